@@ -52,6 +52,72 @@ public final class SlingItsConstants
     public static final String ITS_LOCNOTE = "locNote";
     /** The attribute that will hold the note. */
     public static final String ITS_NOTE = "note";
+    /** The prefix of the properties sling-its keeps for itself. */
+    public static final String SLING_ITS_PROPERTY_PREFIX = "sling-its-";
+    /** Property that holds the pre-computed id of an element node. */
+    public static final String SLING_ITS_ID = "sling-its-id";
+    /** Property that holds the time the node was last written by an import. */
+    public static final String SLING_ITS_MODIFIED = "sling-its-modified";
+    /** Property that holds the resolved translate data category of an element. */
+    public static final String SLING_ITS_TRANSLATE = "sling-its-translate";
+    /** Property that holds the names of the translatable attributes of an element. */
+    public static final String SLING_ITS_TRANSLATE_ATTRS = "sling-its-translate-attrs";
+    /** Property that holds the resolved locNote of an element. */
+    public static final String SLING_ITS_LOC_NOTE = "sling-its-loc-note";
+    /** Property that holds the resolved locNote type of an element. */
+    public static final String SLING_ITS_LOC_NOTE_TYPE = "sling-its-loc-note-type";
+    /** Property that holds the resolved idValue of an element. */
+    public static final String SLING_ITS_ID_VALUE = "sling-its-id-value";
+    /** Property that holds the resolved targetPointer of an element. */
+    public static final String SLING_ITS_TARGET_POINTER = "sling-its-target-pointer";
+    /** Property that holds the translatable words of an element and its descendants. */
+    public static final String SLING_ITS_WORDS_TRANSLATABLE = "sling-its-words-translatable";
+    /** Property that holds the translatable characters of an element and its descendants. */
+    public static final String SLING_ITS_CHARS_TRANSLATABLE = "sling-its-chars-translatable";
+    /** Property that holds the non-translatable words of an element and its descendants. */
+    public static final String SLING_ITS_WORDS_UNTRANSLATABLE = "sling-its-words-untranslatable";
+    /** Property that holds the non-translatable characters of an element and its descendants. */
+    public static final String SLING_ITS_CHARS_UNTRANSLATABLE = "sling-its-chars-untranslatable";
+    /** Property that holds the number of nodes of an element and its descendants. */
+    public static final String SLING_ITS_NODES = "sling-its-nodes";
+    /** XML's attribute name for the sling-its id. */
+    public static final String XML_SLING_ITS_ID_ATTR = "sling-its:id";
+    /** HTML's attribute name for the sling-its id. */
+    public static final String HTML_SLING_ITS_ID_ATTR = "data-sling-its-id";
+    /** The sling-its namespace prefix. */
+    public static final String SLING_ITS_NS_PREFIX = "sling-its";
+    /** The sling-its namespace uri. */
+    public static final String SLING_ITS_NS_URI = "http://www.w3.org/2013/7/sling-its";
+    /** The path below which the id index of every imported document is kept. */
+    public static final String ITS_INDEX_PATH = "/var/its/index";
+    /** The name of the index node holding the id to path mapping in its shards. */
+    public static final String ITS_INDEX_IDS = "sling-its-ids";
+    /** Index property that holds the resourceType of the imported document. */
+    public static final String ITS_INDEX_RESOURCE_TYPE = "resource-type";
+    /** Index property that holds the digest of the rules the document was annotated with. */
+    public static final String ITS_INDEX_RULES_DIGEST = "rules-digest";
+    /** The path below which the deduplicated texts are stored by their hash. */
+    public static final String ITS_TEXT_STORE_PATH = "/var/its/text";
+    /** Property of a text-content-node that holds the hash of its stored text. */
+    public static final String SLING_ITS_TEXT_REF = "sling-its-text-ref";
+    /** Property of an element that holds its inline content as one segment. */
+    public static final String SLING_ITS_SEGMENT = "sling-its-segment";
+    /** Property of an element that holds the start tags of the inline codes of its segment. */
+    public static final String SLING_ITS_SEGMENT_CODES = "sling-its-segment-codes";
+    /** Property of the target node that holds the digest of the imported files. */
+    public static final String SLING_ITS_CONTENT_DIGEST = "sling-its-content-digest";
+    /** The user data of the observation events of the changes made by sling-its. */
+    public static final String ITS_EVENT_USER_DATA = "sling-its";
+    /** Path below which the documents of a staged import are stored until complete. */
+    public static final String ITS_STAGING_PATH = "/var/its/staging";
+    /** Name of the node of a staged import that holds the staged document. */
+    public static final String ITS_STAGING_DOCUMENT = "document";
+    /** Property of a staged import that holds the position of the last checkpoint. */
+    public static final String SLING_ITS_CHECKPOINT_POSITION = "sling-its-checkpoint-position";
+    /** Property of a staged import that holds the element path at the last checkpoint. */
+    public static final String SLING_ITS_CHECKPOINT_PATH = "sling-its-checkpoint-path";
+    /** The mime type of the json responses. */
+    public static final String JSON_MIME_TYPE = "application/json";
 
     /**
      * The map from the name of the rule to the location where it should be
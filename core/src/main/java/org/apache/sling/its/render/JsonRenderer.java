@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.render;
+
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.rules.ItsCategoryFilter;
+import org.apache.sling.its.traversal.DepthLimitExceededException;
+import org.apache.sling.its.traversal.ResourceTreeWalker;
+import org.apache.sling.its.utils.ItsIdUtils;
+import org.apache.sling.its.utils.ItsTextUtils;
+
+/**
+ * Streams a stored document as JSON. The elements and texts are written in
+ * document order as one flat list, every entry refers to the id of its
+ * parent, so the nesting of the JSON does not grow with the depth of the
+ * document and no DOM is built. The global rules of the resourceType are
+ * written as a list of their own. The attributes and rules can be limited to
+ * the requested data categories, see {@link ItsCategoryFilter}.
+ *
+ * The renderer holds no state of a single document, one instance can be
+ * used by several threads.
+ */
+public class JsonRenderer
+{
+    /** Walks the elements of the document. */
+    private final ResourceTreeWalker walker;
+
+    /**
+     * Constructor.
+     *
+     * @param maxDepth
+     *         the maximum depth of the document
+     */
+    public JsonRenderer(final int maxDepth)
+    {
+        this.walker = new ResourceTreeWalker(maxDepth);
+    }
+
+    /**
+     * Render the document. The resource is either the target path of the
+     * import or the root element of the document.
+     *
+     * @param resource
+     *         the requested resource
+     * @param out
+     *         the writer
+     * @param compact
+     *         true to write without indentation
+     * @throws JSONException
+     *         if the JSON could not be written
+     * @throws DepthLimitExceededException
+     *         if the document is nested deeper than the depth limit
+     */
+    public void render(final Resource resource, final Writer out, final boolean compact)
+        throws JSONException
+    {
+        render(resource, out, compact, null);
+    }
+
+    /**
+     * Render the document with the local attributes and global rules of the
+     * requested data categories only.
+     *
+     * @param resource
+     *         the requested resource
+     * @param out
+     *         the writer
+     * @param compact
+     *         true to write without indentation
+     * @param categoryFilter
+     *         the requested data categories or null to render all
+     * @throws JSONException
+     *         if the JSON could not be written
+     * @throws DepthLimitExceededException
+     *         if the document is nested deeper than the depth limit
+     */
+    public void render(final Resource resource, final Writer out, final boolean compact,
+        final ItsCategoryFilter categoryFilter) throws JSONException
+    {
+        final Resource root = ItsIdUtils.getRootElement(resource);
+        final String resourceType = ItsIdUtils.getResourceType(root);
+        final JSONWriter writer = new JSONWriter(out);
+        writer.setTidy(!compact);
+        writer.object();
+        writer.key("path").value(root.getPath());
+        writer.key("resourceType").value(resourceType);
+        writer.key("nodes").array();
+        this.walker.walk(root, null, new JsonVisitor(writer, categoryFilter, "html"
+            .equals(root.getName())));
+        writer.endArray();
+        writer.key("rules").array();
+        if (StringUtils.isNotBlank(resourceType))
+        {
+            for (final Map.Entry<String, String> globalRule : SlingItsConstants
+                .getGlobalRules().entrySet())
+            {
+                if (categoryFilter != null && !categoryFilter.isRuleIncluded(globalRule
+                    .getKey()))
+                {
+                    continue;
+                }
+                final Iterator<Resource> globalRules = resource.getResourceResolver()
+                    .findResources("SELECT * FROM [nt:base] as t WHERE ISCHILDNODE(["
+                        + globalRule.getValue() + resourceType + "]) ORDER BY name(t) ASC",
+                        Query.JCR_SQL2);
+                while (globalRules.hasNext())
+                {
+                    // the attributes of the global rules are those of their category.
+                    this.walker.walk(globalRules.next(), null, new JsonVisitor(writer, null,
+                        false));
+                }
+            }
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    /**
+     * @param key
+     *         a property name
+     * @return true if the property is rendered as an attribute
+     */
+    private static boolean isAttribute(final String key)
+    {
+        return (key.indexOf("jcr:") < 0 || key.equals(SlingItsConstants.XML_PRIMARY_TYPE_PROP))
+            && key.indexOf("xlink") < 0
+            && !key.equals(SlingItsConstants.NAMESPACE_DECLARATION)
+            && !key.equals(SlingItsConstants.NODE_PREFIX)
+            && !key.equals(SlingItsConstants.TEXT_CONTENT)
+            && !key.startsWith(SlingItsConstants.SLING_ITS_PROPERTY_PREFIX);
+    }
+
+    /**
+     * Writes the walked resources as entries of the flat node list. The value
+     * of a walked element is its id, the entries of its children refer to it
+     * as their parent.
+     */
+    private final class JsonVisitor implements
+        ResourceTreeWalker.Visitor<String, JSONException>
+    {
+        /** The JSON writer. */
+        private final JSONWriter writer;
+        /** The requested data categories or null to render all. */
+        private final ItsCategoryFilter categoryFilter;
+        /** True if the document is an html document. */
+        private final boolean isHtml;
+
+        /**
+         * Constructor.
+         *
+         * @param writer
+         *         the JSON writer
+         * @param categoryFilter
+         *         the requested data categories or null to render all
+         * @param isHtml
+         *         true if the document is an html document
+         */
+        private JsonVisitor(final JSONWriter writer, final ItsCategoryFilter categoryFilter,
+            final boolean isHtml)
+        {
+            this.writer = writer;
+            this.categoryFilter = categoryFilter;
+            this.isHtml = isHtml;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String enter(final Resource resource, final String parent) throws JSONException
+        {
+            final ValueMap props = resource.adaptTo(ValueMap.class);
+            final String prefix = props.get(SlingItsConstants.NODE_PREFIX, String.class);
+            final String localName = resource.getName().replaceAll("\\(\\d+\\)",
+                StringUtils.EMPTY);
+            this.writer.object();
+            if (parent != null)
+            {
+                this.writer.key("parent").value(parent);
+            }
+            if (localName.equals(SlingItsConstants.TEXT_CONTENT_NODE))
+            {
+                this.writer.key("text").value(StringUtils.defaultString(ItsTextUtils
+                    .getText(resource)));
+                this.writer.endObject();
+                return null;
+            }
+            final String id = ItsIdUtils.getRenderedId(resource, props);
+            this.writer.key("id").value(id);
+            this.writer.key("name").value(StringUtils.isNotBlank(prefix) ? prefix + ":"
+                + localName : localName);
+            this.writer.key("attributes").object();
+            final List<String> namespaces = Arrays.asList(props.get(
+                SlingItsConstants.NAMESPACE_DECLARATION, new String[] {}));
+            for (final String key : props.keySet())
+            {
+                if (isAttribute(key) && (this.categoryFilter == null
+                    || this.categoryFilter.isAttributeIncluded(key, this.isHtml)))
+                {
+                    this.writer.key(namespaces.contains(key) ? SlingItsConstants.XMLNS + key
+                        : key).value(props.get(key, String.class));
+                }
+            }
+            this.writer.endObject();
+            if (props.containsKey(SlingItsConstants.TEXT_CONTENT))
+            {
+                this.writer.key("text").value(props.get(SlingItsConstants.TEXT_CONTENT,
+                    String.class));
+            }
+            final String segment = props.get(SlingItsConstants.SLING_ITS_SEGMENT, String.class);
+            if (segment != null)
+            {
+                this.writer.key("segment").value(segment);
+                this.writer.key("codes").array();
+                for (final String code : props.get(SlingItsConstants.SLING_ITS_SEGMENT_CODES,
+                    new String[] {}))
+                {
+                    this.writer.value(code);
+                }
+                this.writer.endArray();
+            }
+            this.writer.endObject();
+            return id;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Iterator<Resource> getChildren(final Resource resource, final String id)
+        {
+            return resource.listChildren();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void leave(final Resource resource, final String id)
+        {
+            // the entry is complete when the element is entered.
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.render;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the compressed representations of rendered documents, so a document
+ * is not rendered and compressed again on every request. Each entry is stored
+ * with the entity tag it was rendered for and only returned for the same tag,
+ * a changed document therefore replaces its entry on the next request. The
+ * least recently used entries are dropped once the total size exceeds the
+ * limit.
+ */
+public final class RenderCache
+{
+    /** The maximum total size of the entries in bytes. */
+    private final long maxSize;
+    /** The entries by key, in the order they were used. */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f,
+        true);
+    /** The total size of the entries in bytes. */
+    private long size;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize
+     *         the maximum total size of the entries in bytes, 0 to disable
+     */
+    public RenderCache(final long maxSize)
+    {
+        this.maxSize = Math.max(0, maxSize);
+    }
+
+    /**
+     * Get a representation.
+     *
+     * @param key
+     *         the key of the representation
+     * @param etag
+     *         the entity tag of the current document
+     * @return the representation or null if it is not cached for the tag
+     */
+    public synchronized byte[] get(final String key, final String etag)
+    {
+        final Entry entry = this.entries.get(key);
+        return (entry != null && entry.etag.equals(etag) ? entry.data : null);
+    }
+
+    /**
+     * Keep a representation, representations larger than the cache are not
+     * kept.
+     *
+     * @param key
+     *         the key of the representation
+     * @param etag
+     *         the entity tag of the document it was rendered from
+     * @param data
+     *         the representation
+     */
+    public synchronized void put(final String key, final String etag, final byte[] data)
+    {
+        if (data.length > this.maxSize)
+        {
+            return;
+        }
+        final Entry old = this.entries.put(key, new Entry(etag, data));
+        if (old != null)
+        {
+            this.size -= old.data.length;
+        }
+        this.size += data.length;
+        final Iterator<Entry> eldest = this.entries.values().iterator();
+        while (this.size > this.maxSize && eldest.hasNext())
+        {
+            this.size -= eldest.next().data.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return true if representations are kept
+     */
+    public boolean isEnabled()
+    {
+        return this.maxSize > 0;
+    }
+
+    /**
+     * @return the total size of the entries in bytes
+     */
+    public synchronized long getSize()
+    {
+        return this.size;
+    }
+
+    /**
+     * A representation with its entity tag.
+     */
+    private static final class Entry
+    {
+        /** The entity tag. */
+        private final String etag;
+        /** The representation. */
+        private final byte[] data;
+
+        /**
+         * Constructor.
+         *
+         * @param etag
+         *         the entity tag
+         * @param data
+         *         the representation
+         */
+        private Entry(final String etag, final byte[] data)
+        {
+            this.etag = etag;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,593 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.render;
+
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.rules.IncompleteRulesException;
+import org.apache.sling.its.rules.ItsAnnotation;
+import org.apache.sling.its.rules.ItsAnnotator;
+import org.apache.sling.its.traversal.DepthLimitExceededException;
+import org.apache.sling.its.traversal.ResourceTreeWalker;
+import org.apache.sling.its.utils.ItsIdUtils;
+import org.apache.sling.its.utils.ItsInlineUtils;
+import org.apache.sling.its.utils.ItsTextUtils;
+
+/**
+ * Extracts the translatable content of a stored document into XLIFF 2.0. The
+ * resource tree is walked once and the units are streamed to the writer, so
+ * no DOM is built and the document is not parsed again. The translate,
+ * locNote, idValue, targetPointer and withinText data categories are resolved
+ * by the {@link ItsAnnotator}.
+ *
+ * Each element with text that is not within text becomes a unit with one
+ * segment. The elements within text are written as pc codes, or as ph codes
+ * if they are empty, inside the segment of the unit, the ones that are not
+ * translatable as mrk with translate="no". The unit id is the id the element
+ * is rendered with, so translations can be merged back by id. Translatable
+ * attributes become units of their own.
+ *
+ * The units are written in the order their first translatable text appears
+ * in the document. A unit is buffered until it and all the units before it
+ * are complete, i.e. at most for the walk of the element that holds the
+ * first incomplete unit.
+ */
+public class XliffRenderer
+{
+    /** The XLIFF 2.0 namespace. */
+    public static final String XLIFF_NS_URI = "urn:oasis:names:tc:xliff:document:2.0";
+    /** Default source language if neither requested nor declared. */
+    private static final String DEFAULT_SOURCE_LANGUAGE = "en";
+
+    /** The resource resolver. */
+    private final ResourceResolver resolver;
+    /** Resolves the data categories of the document. */
+    private ItsAnnotator annotator;
+    /** Paths of the elements that hold a target and are not extracted. */
+    private final Set<String> targetPaths = new HashSet<String>();
+    /** Walks the elements of the document. */
+    private final ResourceTreeWalker walker;
+
+    /**
+     * Constructor.
+     *
+     * @param resolver
+     *         the resource resolver
+     */
+    public XliffRenderer(final ResourceResolver resolver)
+    {
+        this(resolver, ResourceTreeWalker.DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param resolver
+     *         the resource resolver
+     * @param maxDepth
+     *         the maximum depth of the document
+     */
+    public XliffRenderer(final ResourceResolver resolver, final int maxDepth)
+    {
+        this.resolver = resolver;
+        this.walker = new ResourceTreeWalker(maxDepth);
+    }
+
+    /**
+     * Extract the document to XLIFF. The resource is either the target path
+     * of the import or the root element of the document.
+     *
+     * @param resource
+     *         the requested resource
+     * @param out
+     *         the writer
+     * @param sourceLanguage
+     *         the source language or null to use the one of the document
+     * @param targetLanguage
+     *         the target language or null
+     * @throws XMLStreamException
+     *         if the XLIFF could not be written
+     * @throws DepthLimitExceededException
+     *         if the document is nested deeper than the depth limit
+     * @throws IncompleteRulesException
+     *         if the global rules have selectors that are not supported and
+     *         the stored annotations are not valid for them, the XLIFF could
+     *         then extract content a skipped rule excludes
+     */
+    public void render(final Resource resource, final Writer out,
+        final String sourceLanguage, final String targetLanguage) throws XMLStreamException
+    {
+        final Resource root = ItsIdUtils.getRootElement(resource);
+        final ValueMap rootProps = root.adaptTo(ValueMap.class);
+        this.annotator = ItsAnnotator.forDocument(this.resolver, root, true);
+        if (!this.annotator.isComplete())
+        {
+            throw new IncompleteRulesException(root.getPath());
+        }
+        this.targetPaths.clear();
+
+        String srcLang = sourceLanguage;
+        if (StringUtils.isBlank(srcLang))
+        {
+            srcLang = rootProps.get("xml:lang", rootProps.get("lang",
+                DEFAULT_SOURCE_LANGUAGE));
+        }
+
+        final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(
+            out);
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("xliff");
+        writer.writeDefaultNamespace(XLIFF_NS_URI);
+        writer.writeAttribute("version", "2.0");
+        writer.writeAttribute("srcLang", srcLang);
+        if (StringUtils.isNotBlank(targetLanguage))
+        {
+            writer.writeAttribute("trgLang", targetLanguage);
+        }
+        writer.writeStartElement("file");
+        writer.writeAttribute("id", "f1");
+        writer.writeAttribute("original", root.getPath());
+        this.walker.walk(root, null, new UnitVisitor(writer));
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+    /**
+     * Resolve the data categories of the elements, collect the content of
+     * their units and write the units in document order.
+     */
+    private final class UnitVisitor
+        implements ResourceTreeWalker.Visitor<Element, XMLStreamException>
+    {
+        /** The XLIFF writer. */
+        private final XMLStreamWriter writer;
+        /** The units with text that are not written yet, in document order. */
+        private final Deque<Unit> pending = new ArrayDeque<Unit>();
+
+        /**
+         * Constructor.
+         *
+         * @param writer
+         *         the XLIFF writer
+         */
+        private UnitVisitor(final XMLStreamWriter writer)
+        {
+            this.writer = writer;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Element enter(final Resource resource, final Element parent)
+            throws XMLStreamException
+        {
+            if (parent != null)
+            {
+                if (resource.getName().startsWith(SlingItsConstants.TEXT_CONTENT_NODE))
+                {
+                    final String text = ItsTextUtils.getText(resource);
+                    if (text != null)
+                    {
+                        addText(parent, text);
+                    }
+                    return null;
+                }
+                if (ItsAnnotator.isRules(resource) || targetPaths.contains(resource.getPath()))
+                {
+                    return null;
+                }
+            }
+            final ItsAnnotation annotation = annotator.enter(resource);
+            if (annotation.getTarget() != null)
+            {
+                targetPaths.add(annotation.getTarget().getPath());
+            }
+            final Element element;
+            if (parent != null && annotation.isWithinText() && parent.unit.translate)
+            {
+                element = new Element(annotation, parent.unit, parent.unit.open(annotation
+                    .isTranslate()));
+            }
+            else
+            {
+                element = new Element(annotation, new Unit(annotation.getId(),
+                    annotation.getIdValue(), annotation.getLocNote(),
+                    annotation.getLocNoteType(), annotation.isTranslate(), (annotation
+                        .getTarget() != null ? ItsAnnotator.getText(annotation.getTarget())
+                        : null)), -1);
+            }
+            addSegment(element, annotation.getProperties().get(
+                SlingItsConstants.SLING_ITS_SEGMENT, String.class));
+            for (final String attribute : annotation.getTranslatableAttributes())
+            {
+                final String value = annotation.getProperties().get(attribute, String.class);
+                if (StringUtils.isNotBlank(value))
+                {
+                    final Unit unit = new Unit(annotation.getId() + "-" + attribute, null,
+                        null, null, true, null);
+                    unit.content.add(new Part(Part.TEXT, value));
+                    unit.complete = true;
+                    this.pending.add(unit);
+                }
+            }
+            flush();
+            return element;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Iterator<Resource> getChildren(final Resource resource, final Element element)
+        {
+            return resource.listChildren();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void leave(final Resource resource, final Element element)
+            throws XMLStreamException
+        {
+            if (element.code > -1)
+            {
+                element.unit.close(element.code);
+            }
+            else
+            {
+                element.unit.complete = true;
+                flush();
+            }
+            annotator.leave();
+        }
+
+        /**
+         * Add a text to the unit of an element. The unit is queued with its
+         * first translatable text.
+         *
+         * @param element
+         *         the element
+         * @param text
+         *         the text
+         */
+        private void addText(final Element element, final String text)
+        {
+            final Unit unit = element.unit;
+            unit.content.add(new Part(Part.TEXT, text));
+            if (!unit.queued && unit.translate && element.annotation.isTranslate()
+                && StringUtils.isNotBlank(text))
+            {
+                unit.queued = true;
+                this.pending.add(unit);
+            }
+        }
+
+        /**
+         * Add the inline content stored as a segment to the unit of an
+         * element, the markers of the segment become codes.
+         *
+         * @param element
+         *         the element
+         * @param segment
+         *         the text of the segment with the markers or null
+         */
+        private void addSegment(final Element element, final String segment)
+        {
+            if (segment == null)
+            {
+                return;
+            }
+            final Deque<Integer> open = new ArrayDeque<Integer>();
+            final StringBuilder text = new StringBuilder();
+            for (int i = 0; i < segment.length(); i++)
+            {
+                final char c = segment.charAt(i);
+                if (c != ItsInlineUtils.MARKER_OPENING && c != ItsInlineUtils.MARKER_CLOSING
+                    && c != ItsInlineUtils.MARKER_ISOLATED)
+                {
+                    text.append(c);
+                    continue;
+                }
+                i++;
+                if (text.length() > 0)
+                {
+                    addText(element, text.toString());
+                    text.setLength(0);
+                }
+                if (c == ItsInlineUtils.MARKER_OPENING)
+                {
+                    open.push(element.unit.open(true));
+                }
+                else if (c == ItsInlineUtils.MARKER_CLOSING)
+                {
+                    if (!open.isEmpty())
+                    {
+                        element.unit.close(open.pop());
+                    }
+                }
+                else
+                {
+                    element.unit.close(element.unit.open(true));
+                }
+            }
+            if (text.length() > 0)
+            {
+                addText(element, text.toString());
+            }
+        }
+
+        /**
+         * Write the complete units at the head of the queue.
+         *
+         * @throws XMLStreamException
+         *         if the XLIFF could not be written
+         */
+        private void flush() throws XMLStreamException
+        {
+            while (!this.pending.isEmpty() && this.pending.peek().complete)
+            {
+                writeUnit(this.writer, this.pending.poll());
+            }
+        }
+    }
+
+    /**
+     * The annotation of an element and the unit its text goes to.
+     */
+    private static final class Element
+    {
+        /** The resolved data categories. */
+        private final ItsAnnotation annotation;
+        /** The unit of the element or of the element it is within text of. */
+        private final Unit unit;
+        /** The index of the start code of an element within text or -1. */
+        private final int code;
+
+        /**
+         * Constructor.
+         *
+         * @param annotation
+         *         the resolved data categories
+         * @param unit
+         *         the unit the text of the element goes to
+         * @param code
+         *         the index of the start code of an element within text or -1
+         */
+        private Element(final ItsAnnotation annotation, final Unit unit, final int code)
+        {
+            this.annotation = annotation;
+            this.unit = unit;
+            this.code = code;
+        }
+    }
+
+    /**
+     * A unit and its content.
+     */
+    private static final class Unit
+    {
+        /** The id of the unit. */
+        private final String id;
+        /** The idValue of the element or null. */
+        private final String name;
+        /** The locNote or null. */
+        private final String note;
+        /** The locNote type. */
+        private final String noteType;
+        /** True if the unit is translatable. */
+        private final boolean translate;
+        /** The target text or null. */
+        private final String target;
+        /** The text and the codes of the segment. */
+        private final List<Part> content = new ArrayList<Part>();
+        /** The number of codes, the last id given to a code. */
+        private int codes;
+        /** True once the unit is queued to be written. */
+        private boolean queued;
+        /** True once all the content of the unit is collected. */
+        private boolean complete;
+
+        /**
+         * Constructor.
+         *
+         * @param id
+         *         the id of the unit
+         * @param name
+         *         the idValue of the element or null
+         * @param note
+         *         the locNote or null
+         * @param noteType
+         *         the locNote type
+         * @param translate
+         *         true if the unit is translatable
+         * @param target
+         *         the target text or null
+         */
+        private Unit(final String id, final String name, final String note,
+            final String noteType, final boolean translate, final String target)
+        {
+            this.id = id;
+            this.name = name;
+            this.note = note;
+            this.noteType = noteType;
+            this.translate = translate;
+            this.target = target;
+        }
+
+        /**
+         * Start the code of an element within text.
+         *
+         * @param translatable
+         *         true if the content of the element is translatable
+         * @return the index of the start code
+         */
+        private int open(final boolean translatable)
+        {
+            this.content.add(new Part(translatable ? Part.PC : Part.MRK, String
+                .valueOf(++this.codes)));
+            return this.content.size() - 1;
+        }
+
+        /**
+         * End the code of an element within text. A code without content
+         * becomes a ph code.
+         *
+         * @param index
+         *         the index of the start code
+         */
+        private void close(final int index)
+        {
+            if (index != this.content.size() - 1)
+            {
+                this.content.add(new Part(Part.END, null));
+            }
+            else if (this.content.get(index).type == Part.PC)
+            {
+                this.content.set(index, new Part(Part.PH, this.content.get(index).value));
+            }
+            else
+            {
+                this.content.remove(index);
+            }
+        }
+    }
+
+    /**
+     * A text or a code of the content of a unit.
+     */
+    private static final class Part
+    {
+        /** A text. */
+        private static final int TEXT = 0;
+        /** The start of a pc code. */
+        private static final int PC = 1;
+        /** The start of a mrk code with translate="no". */
+        private static final int MRK = 2;
+        /** The end of a pc or mrk code. */
+        private static final int END = 3;
+        /** A ph code. */
+        private static final int PH = 4;
+
+        /** The type of the part. */
+        private final int type;
+        /** The text or the id of the code. */
+        private final String value;
+
+        /**
+         * Constructor.
+         *
+         * @param type
+         *         the type of the part
+         * @param value
+         *         the text or the id of the code
+         */
+        private Part(final int type, final String value)
+        {
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Write a unit.
+     *
+     * @param writer
+     *         the XLIFF writer
+     * @param unit
+     *         the unit
+     * @throws XMLStreamException
+     *         if the XLIFF could not be written
+     */
+    private void writeUnit(final XMLStreamWriter writer, final Unit unit)
+        throws XMLStreamException
+    {
+        writer.writeStartElement("unit");
+        writer.writeAttribute("id", unit.id);
+        if (StringUtils.isNotBlank(unit.name))
+        {
+            writer.writeAttribute("name", unit.name);
+        }
+        if (StringUtils.isNotBlank(unit.note))
+        {
+            writer.writeStartElement("notes");
+            writer.writeStartElement("note");
+            writer.writeAttribute("category", unit.noteType);
+            if ("alert".equals(unit.noteType))
+            {
+                writer.writeAttribute("priority", "1");
+            }
+            writer.writeCharacters(unit.note);
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+        writer.writeStartElement("segment");
+        writer.writeStartElement("source");
+        for (final Part part : unit.content)
+        {
+            switch (part.type)
+            {
+                case Part.TEXT:
+                    writer.writeCharacters(part.value);
+                    break;
+                case Part.PC:
+                    writer.writeStartElement("pc");
+                    writer.writeAttribute("id", part.value);
+                    break;
+                case Part.MRK:
+                    writer.writeStartElement("mrk");
+                    writer.writeAttribute("id", "m" + part.value);
+                    writer.writeAttribute("translate", "no");
+                    break;
+                case Part.PH:
+                    writer.writeEmptyElement("ph");
+                    writer.writeAttribute("id", part.value);
+                    break;
+                default:
+                    writer.writeEndElement();
+                    break;
+            }
+        }
+        writer.writeEndElement();
+        if (unit.target != null)
+        {
+            writer.writeStartElement("target");
+            writer.writeCharacters(unit.target);
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+}
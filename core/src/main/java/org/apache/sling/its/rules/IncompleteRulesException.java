@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.rules;
+
+/**
+ * Thrown when the global rules of a document have selectors that are not
+ * supported, so its data categories cannot be resolved the way the ITS
+ * engine does.
+ */
+public class IncompleteRulesException extends RuntimeException
+{
+    /** UID for serialization. */
+    private static final long serialVersionUID = 7203516648829120153L;
+
+    /**
+     * Constructor.
+     *
+     * @param path
+     *         the path of the document
+     */
+    public IncompleteRulesException(final String path)
+    {
+        super("The global rules of " + path + " have unsupported selectors, its data "
+            + "categories cannot be resolved.");
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import net.sf.okapi.common.Namespaces;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.utils.ItsIdUtils;
+
+/**
+ * The data categories resolved for an element of a stored document. The
+ * translate flag and the locNote are inherited from the parent element.
+ */
+public final class ItsAnnotation implements ItsSelector.SelectorNode
+{
+    /** The default locNote type. */
+    static final String DEFAULT_LOC_NOTE_TYPE = "description";
+
+    /** The element resource. */
+    private final Resource resource;
+    /** The properties of the resource. */
+    private final ValueMap props;
+    /** The local name of the element. */
+    private final String localName;
+    /** The namespaces in scope by prefix. */
+    private final Map<String, String> namespaces;
+    /** The translate data category. */
+    boolean translate;
+    /** The locNote or null. */
+    String locNote;
+    /** The locNote type. */
+    String locNoteType;
+    /** The idValue or null. */
+    String idValue;
+    /** The targetPointer or null. */
+    String targetPointer;
+    /** The element the targetPointer points to or null. */
+    Resource target;
+    /** The names of the translatable attributes. */
+    final List<String> translatableAttributes = new ArrayList<String>();
+    /** True if the element is within text, it is not inherited. */
+    boolean withinText;
+
+    /**
+     * Constructor.
+     *
+     * @param resource
+     *         the element resource
+     * @param parent
+     *         the annotation of the parent element or null for the root
+     */
+    ItsAnnotation(final Resource resource, final ItsAnnotation parent)
+    {
+        this.resource = resource;
+        this.props = resource.adaptTo(ValueMap.class);
+        this.localName = StringUtils.substringBefore(resource.getName(), "(");
+        this.translate = (parent == null || parent.translate);
+        this.locNote = (parent != null ? parent.locNote : null);
+        this.locNoteType = (parent != null ? parent.locNoteType : DEFAULT_LOC_NOTE_TYPE);
+        final String[] declarations = this.props.get(SlingItsConstants.NAMESPACE_DECLARATION,
+            new String[] {});
+        if (declarations.length == 0 && parent != null)
+        {
+            this.namespaces = parent.namespaces;
+        }
+        else
+        {
+            this.namespaces = (parent != null ? new HashMap<String, String>(parent.namespaces)
+                : new HashMap<String, String>());
+            for (final String prefix : declarations)
+            {
+                this.namespaces.put(prefix, this.props.get(prefix, String.class));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getLocalName()
+    {
+        return this.localName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getAttribute(final String name)
+    {
+        final String value = this.props.get(name, String.class);
+        if (value != null)
+        {
+            return value;
+        }
+        final String local = StringUtils.substringAfterLast(":" + name, ":");
+        for (final String key : this.props.keySet())
+        {
+            if (key.equals(local) || key.endsWith(":" + local))
+            {
+                return this.props.get(key, String.class);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get a local ITS attribute, an attribute whose prefix is bound to the ITS
+     * namespace.
+     *
+     * @param local
+     *         the local name of the attribute
+     * @return the value or null if not found
+     */
+    String getItsAttribute(final String local)
+    {
+        for (final String key : this.props.keySet())
+        {
+            if (key.endsWith(":" + local))
+            {
+                final String prefix = StringUtils.substringBefore(key, ":");
+                final String uri = this.namespaces.get(prefix);
+                if (Namespaces.ITS_NS_URI.equals(uri)
+                    || (uri == null && Namespaces.ITS_NS_PREFIX.equals(prefix)))
+                {
+                    return this.props.get(key, String.class);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the element resource
+     */
+    public Resource getResource()
+    {
+        return this.resource;
+    }
+
+    /**
+     * @return the properties of the element
+     */
+    public ValueMap getProperties()
+    {
+        return this.props;
+    }
+
+    /**
+     * @return true if the text of the element is translatable
+     */
+    public boolean isTranslate()
+    {
+        return this.translate;
+    }
+
+    /**
+     * @return the locNote or null
+     */
+    public String getLocNote()
+    {
+        return this.locNote;
+    }
+
+    /**
+     * @return the locNote type
+     */
+    public String getLocNoteType()
+    {
+        return this.locNoteType;
+    }
+
+    /**
+     * @return the idValue or null
+     */
+    public String getIdValue()
+    {
+        return this.idValue;
+    }
+
+    /**
+     * @return true if the element is part of the text of its parent
+     */
+    public boolean isWithinText()
+    {
+        return this.withinText;
+    }
+
+    /**
+     * @return the element that holds the target of this element or null
+     */
+    public Resource getTarget()
+    {
+        return this.target;
+    }
+
+    /**
+     * @return the names of the translatable attributes
+     */
+    public List<String> getTranslatableAttributes()
+    {
+        return Collections.unmodifiableList(this.translatableAttributes);
+    }
+
+    /**
+     * @return the id the element is rendered with
+     */
+    public String getId()
+    {
+        return ItsIdUtils.getRenderedId(this.resource, this.props);
+    }
+
+    /**
+     * Store the annotation on the node of the element. Only the properties
+     * whose value changed are written.
+     *
+     * @param node
+     *         the node of the element
+     * @return true if a property was changed
+     * @throws RepositoryException
+     *         if the node could not be updated
+     */
+    public boolean store(final Node node) throws RepositoryException
+    {
+        boolean changed = false;
+        if (!node.hasProperty(SlingItsConstants.SLING_ITS_TRANSLATE)
+            || node.getProperty(SlingItsConstants.SLING_ITS_TRANSLATE).getBoolean()
+                != this.translate)
+        {
+            node.setProperty(SlingItsConstants.SLING_ITS_TRANSLATE, this.translate);
+            changed = true;
+        }
+        changed |= store(node, SlingItsConstants.SLING_ITS_LOC_NOTE, this.locNote);
+        changed |= store(node, SlingItsConstants.SLING_ITS_LOC_NOTE_TYPE,
+            (this.locNote != null ? this.locNoteType : null));
+        changed |= store(node, SlingItsConstants.SLING_ITS_ID_VALUE, this.idValue);
+        changed |= store(node, SlingItsConstants.SLING_ITS_TARGET_POINTER, this.targetPointer);
+        final String[] attributes = this.translatableAttributes.toArray(
+            new String[this.translatableAttributes.size()]);
+        final String[] stored = this.props.get(SlingItsConstants.SLING_ITS_TRANSLATE_ATTRS,
+            new String[] {});
+        if (!ArrayUtils.isEquals(attributes, stored))
+        {
+            node.setProperty(SlingItsConstants.SLING_ITS_TRANSLATE_ATTRS,
+                (attributes.length > 0 ? attributes : null));
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Set or remove a single annotation property if its value changed.
+     *
+     * @param node
+     *         the node of the element
+     * @param name
+     *         the property name
+     * @param value
+     *         the new value or null to remove the property
+     * @return true if the property was changed
+     * @throws RepositoryException
+     *         if the node could not be updated
+     */
+    private boolean store(final Node node, final String name, final String value)
+        throws RepositoryException
+    {
+        final String stored = (node.hasProperty(name) ? node.getProperty(name).getString()
+            : null);
+        if (StringUtils.equals(stored, value))
+        {
+            return false;
+        }
+        node.setProperty(name, value);
+        return true;
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import net.sf.okapi.common.Namespaces;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.utils.ItsIdUtils;
+import org.apache.sling.its.utils.ItsInlineUtils;
+import org.apache.sling.its.utils.ItsRulesUtils;
+import org.apache.sling.its.utils.ItsTextUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the translate, locNote, idValue, targetPointer and withinText data
+ * categories of a stored document while its tree is walked. Each element is entered
+ * after its parent and left after its children, the annotator keeps the
+ * stack of the open elements the global rule selectors are matched against.
+ *
+ * The annotations stored at import time are used as long as the global rules
+ * of the resourceType did not change since. Otherwise the global rules and
+ * the local markup are evaluated. There are no global withinText rules, so
+ * withinText always comes from the local markup and the HTML defaults.
+ */
+public final class ItsAnnotator
+{
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsAnnotator.class);
+    /** HTML elements that are never translatable. */
+    private static final Set<String> HTML_NON_TRANSLATABLE = new HashSet<String>(
+        Arrays.asList("script", "style"));
+
+    /** The resource resolver. */
+    private final ResourceResolver resolver;
+    /** The global rules of the document, empty if the stored values are used. */
+    private final ItsRuleSet ruleSet;
+    /** True if the document is html. */
+    private final boolean isHtml;
+    /** True if the stored annotations are valid for the current rules. */
+    private final boolean stored;
+    /** The open elements from the root to the current element. */
+    private final List<ItsAnnotation> stack = new ArrayList<ItsAnnotation>();
+
+    /**
+     * Constructor.
+     *
+     * @param resolver
+     *         the resource resolver
+     * @param ruleSet
+     *         the global rules of the document
+     * @param isHtml
+     *         true if the document is html
+     * @param stored
+     *         true to read the stored annotations
+     */
+    private ItsAnnotator(final ResourceResolver resolver, final ItsRuleSet ruleSet,
+        final boolean isHtml, final boolean stored)
+    {
+        this.resolver = resolver;
+        this.ruleSet = ruleSet;
+        this.isHtml = isHtml;
+        this.stored = stored;
+    }
+
+    /**
+     * Create an annotator for the document with the given root element.
+     *
+     * @param resolver
+     *         the resource resolver
+     * @param root
+     *         the root element of the document
+     * @param useStored
+     *         true to use the stored annotations if they are still valid,
+     *         false to always evaluate the rules
+     * @return the annotator
+     */
+    public static ItsAnnotator forDocument(final ResourceResolver resolver,
+        final Resource root, final boolean useStored)
+    {
+        final String resourceType = ItsIdUtils.getResourceType(root);
+        final boolean isHtml = "html".equals(root.getName())
+            && !root.adaptTo(ValueMap.class).containsKey(SlingItsConstants.NODE_PREFIX);
+        if (useStored && isAnnotated(resolver, root, resourceType))
+        {
+            return new ItsAnnotator(resolver, ItsRuleSet.load(resolver, null), isHtml, true);
+        }
+        return new ItsAnnotator(resolver, ItsRuleSet.load(resolver, resourceType), isHtml,
+            false);
+    }
+
+    /**
+     * Check if the document was annotated with the current global rules of
+     * its resourceType.
+     *
+     * @param resolver
+     *         the resource resolver
+     * @param root
+     *         the root element of the document
+     * @param resourceType
+     *         the resourceType of the document
+     * @return true if the stored annotations can be used
+     */
+    private static boolean isAnnotated(final ResourceResolver resolver, final Resource root,
+        final String resourceType)
+    {
+        final Resource index = ItsIdUtils.findIndex(root);
+        final Session session = resolver.adaptTo(Session.class);
+        if (index == null || session == null)
+        {
+            return false;
+        }
+        final String digest = resolver.getResource(ResourceUtil.getParent(index.getPath()))
+            .adaptTo(ValueMap.class).get(SlingItsConstants.ITS_INDEX_RULES_DIGEST,
+                String.class);
+        try
+        {
+            return digest != null
+                && digest.equals(ItsRulesUtils.getRulesDigest(session, resourceType));
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to read the global rules. Stack Trace: ", e);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the document is html
+     */
+    public boolean isHtml()
+    {
+        return this.isHtml;
+    }
+
+    /**
+     * @return false if global rules were skipped because their selector is
+     *         not supported
+     */
+    public boolean isComplete()
+    {
+        return this.ruleSet.isComplete();
+    }
+
+    /**
+     * @return true if the stored annotations are read instead of the rules
+     */
+    public boolean isStored()
+    {
+        return this.stored;
+    }
+
+    /**
+     * Enter an element, a child of the current element or the root element.
+     *
+     * @param resource
+     *         the element resource
+     * @return the annotation of the element
+     */
+    public ItsAnnotation enter(final Resource resource)
+    {
+        final ItsAnnotation parent = (this.stack.isEmpty() ? null : this.stack.get(this.stack
+            .size() - 1));
+        final ItsAnnotation annotation = new ItsAnnotation(resource, parent);
+        this.stack.add(annotation);
+        if (this.stored
+            && annotation.getProperties().containsKey(SlingItsConstants.SLING_ITS_TRANSLATE))
+        {
+            applyStored(annotation);
+        }
+        else
+        {
+            applyGlobalRules(annotation);
+            applyLocalMarkup(annotation);
+            applyAttributeRules(annotation);
+        }
+        applyWithinText(annotation);
+        return annotation;
+    }
+
+    /**
+     * Leave the current element.
+     */
+    public void leave()
+    {
+        this.stack.remove(this.stack.size() - 1);
+    }
+
+    /**
+     * Check if the resource holds the local rules of a document, those are
+     * not part of the content.
+     *
+     * @param resource
+     *         a child resource
+     * @return true if the resource holds rules
+     */
+    public static boolean isRules(final Resource resource)
+    {
+        return StringUtils.substringBefore(resource.getName(), "(").endsWith(
+            SlingItsConstants.ITS_RULES)
+            && resource.adaptTo(ValueMap.class).containsKey(SlingItsConstants.NODE_PREFIX);
+    }
+
+    /**
+     * @param resource
+     *         an element resource
+     * @return the text of the segment and the text-content-nodes of the element
+     */
+    public static String getText(final Resource resource)
+    {
+        final StringBuilder text = new StringBuilder(StringUtils.defaultString(ItsInlineUtils
+            .getPlainText(resource.adaptTo(ValueMap.class).get(
+                SlingItsConstants.SLING_ITS_SEGMENT, String.class))));
+        final Iterator<Resource> children = resource.listChildren();
+        while (children.hasNext())
+        {
+            final Resource child = children.next();
+            if (child.getName().startsWith(SlingItsConstants.TEXT_CONTENT_NODE))
+            {
+                text.append(StringUtils.defaultString(ItsTextUtils.getText(child)));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Read the data categories stored with the element.
+     *
+     * @param annotation
+     *         the element
+     */
+    private void applyStored(final ItsAnnotation annotation)
+    {
+        final ValueMap props = annotation.getProperties();
+        annotation.translate = props.get(SlingItsConstants.SLING_ITS_TRANSLATE, true);
+        annotation.locNote = props.get(SlingItsConstants.SLING_ITS_LOC_NOTE, String.class);
+        annotation.locNoteType = props.get(SlingItsConstants.SLING_ITS_LOC_NOTE_TYPE,
+            ItsAnnotation.DEFAULT_LOC_NOTE_TYPE);
+        annotation.idValue = props.get(SlingItsConstants.SLING_ITS_ID_VALUE, String.class);
+        annotation.targetPointer = props.get(SlingItsConstants.SLING_ITS_TARGET_POINTER,
+            String.class);
+        annotation.target = resolvePointer(annotation.getResource(), annotation.targetPointer);
+        annotation.translatableAttributes.addAll(Arrays.asList(props.get(
+            SlingItsConstants.SLING_ITS_TRANSLATE_ATTRS, new String[] {})));
+    }
+
+    /**
+     * Apply the global rules that select the element. Later rules override
+     * earlier ones.
+     *
+     * @param annotation
+     *         the element
+     */
+    private void applyGlobalRules(final ItsAnnotation annotation)
+    {
+        for (final ItsRule rule : this.ruleSet.getRules("translateRule"))
+        {
+            if (rule.getSelector().matches(this.stack))
+            {
+                annotation.translate = "yes".equals(rule.getProperty("translate"));
+            }
+        }
+        for (final ItsRule rule : this.ruleSet.getRules(SlingItsConstants.ITS_LOCNOTE_RULE))
+        {
+            if (rule.getSelector().matches(this.stack))
+            {
+                annotation.locNoteType = StringUtils.defaultIfEmpty(
+                    rule.getProperty("locNoteType"), annotation.locNoteType);
+                if (rule.getProperty(SlingItsConstants.ITS_NOTE) != null)
+                {
+                    annotation.locNote = rule.getProperty(SlingItsConstants.ITS_NOTE);
+                }
+                else if (rule.getProperty("locNotePointer") != null)
+                {
+                    annotation.locNote = resolveValue(annotation,
+                        rule.getProperty("locNotePointer"));
+                }
+                else if (rule.getProperty("locNoteRef") != null)
+                {
+                    annotation.locNote = rule.getProperty("locNoteRef");
+                }
+                else if (rule.getProperty("locNoteRefPointer") != null)
+                {
+                    annotation.locNote = resolveValue(annotation,
+                        rule.getProperty("locNoteRefPointer"));
+                }
+            }
+        }
+        for (final ItsRule rule : this.ruleSet.getRules("idValueRule"))
+        {
+            if (rule.getSelector().matches(this.stack))
+            {
+                annotation.idValue = resolveValue(annotation, rule.getProperty("idValue"));
+            }
+        }
+        for (final ItsRule rule : this.ruleSet.getRules("targetPointerRule"))
+        {
+            if (rule.getSelector().matches(this.stack))
+            {
+                final Resource target = resolvePointer(annotation.getResource(),
+                    rule.getProperty("targetPointer"));
+                if (target != null)
+                {
+                    annotation.targetPointer = rule.getProperty("targetPointer");
+                    annotation.target = target;
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the local ITS markup of the element, it overrides the global
+     * rules.
+     *
+     * @param annotation
+     *         the element
+     */
+    private void applyLocalMarkup(final ItsAnnotation annotation)
+    {
+        final ValueMap props = annotation.getProperties();
+        final String translate = (this.isHtml ? props.get("translate", String.class)
+            : annotation.getItsAttribute("translate"));
+        if (translate != null)
+        {
+            annotation.translate = "yes".equalsIgnoreCase(translate.trim());
+        }
+        else if (this.isHtml && HTML_NON_TRANSLATABLE.contains(annotation.getLocalName()))
+        {
+            annotation.translate = false;
+        }
+        final String locNote = (this.isHtml ? props.get("its-loc-note", String.class)
+            : annotation.getItsAttribute(SlingItsConstants.ITS_LOCNOTE));
+        final String locNoteRef = (this.isHtml ? props.get("its-loc-note-ref", String.class)
+            : annotation.getItsAttribute("locNoteRef"));
+        if (locNote != null || locNoteRef != null)
+        {
+            annotation.locNote = (locNote != null ? locNote : locNoteRef);
+            final String locNoteType = (this.isHtml ? props.get("its-loc-note-type",
+                String.class) : annotation.getItsAttribute("locNoteType"));
+            annotation.locNoteType = StringUtils.defaultIfEmpty(locNoteType,
+                ItsAnnotation.DEFAULT_LOC_NOTE_TYPE);
+        }
+    }
+
+    /**
+     * Resolve if the element is within text from its local markup. HTML
+     * phrasing elements are within text by default.
+     *
+     * @param annotation
+     *         the element
+     */
+    private void applyWithinText(final ItsAnnotation annotation)
+    {
+        final String withinText = (this.isHtml ? annotation.getProperties().get(
+            "its-within-text", String.class) : annotation.getItsAttribute("withinText"));
+        if (withinText != null)
+        {
+            annotation.withinText = "yes".equalsIgnoreCase(withinText.trim());
+        }
+        else
+        {
+            annotation.withinText = this.isHtml
+                && ItsInlineUtils.isHtmlInline(annotation.getLocalName());
+        }
+    }
+
+    /**
+     * Find the attributes of the element the translate rules make
+     * translatable. Attributes are not translatable by default.
+     *
+     * @param annotation
+     *         the element
+     */
+    private void applyAttributeRules(final ItsAnnotation annotation)
+    {
+        final List<ItsRule> rules = this.ruleSet.getRules("translateRule");
+        if (rules.isEmpty())
+        {
+            return;
+        }
+        for (final String key : annotation.getProperties().keySet())
+        {
+            if (!isAttribute(key))
+            {
+                continue;
+            }
+            boolean translate = false;
+            for (final ItsRule rule : rules)
+            {
+                if (rule.getSelector().matchesAttribute(this.stack, key))
+                {
+                    translate = "yes".equals(rule.getProperty("translate"));
+                }
+            }
+            if (translate)
+            {
+                annotation.translatableAttributes.add(key);
+            }
+        }
+    }
+
+    /**
+     * Resolve the value of an idValue or pointer expression. Literals, the
+     * attributes of the element and simple relative paths are supported.
+     *
+     * @param annotation
+     *         the element the expression is relative to
+     * @param expression
+     *         the expression
+     * @return the value or null if it could not be resolved
+     */
+    private String resolveValue(final ItsAnnotation annotation, final String expression)
+    {
+        if (StringUtils.isBlank(expression))
+        {
+            return null;
+        }
+        final String trimmed = expression.trim();
+        if (trimmed.length() > 1 && (trimmed.charAt(0) == '\'' || trimmed.charAt(0) == '"'))
+        {
+            return trimmed.substring(1, trimmed.length() - 1);
+        }
+        if (trimmed.startsWith("@") || trimmed.indexOf("/@") > -1)
+        {
+            final String attribute = StringUtils.substringAfterLast(trimmed, "@");
+            final String elementPath = StringUtils.substringBeforeLast(trimmed, "@");
+            final Resource element = (elementPath.length() == 0 ? annotation.getResource()
+                : resolvePointer(annotation.getResource(), StringUtils.removeEnd(elementPath,
+                    "/")));
+            return (element != null ? new ItsAnnotation(element, annotation)
+                .getAttribute(attribute) : null);
+        }
+        final Resource element = resolvePointer(annotation.getResource(), trimmed);
+        return (element != null ? getText(element) : null);
+    }
+
+    /**
+     * Resolve a relative path of element steps (.., . and names).
+     *
+     * @param resource
+     *         the resource the path is relative to
+     * @param pointer
+     *         the relative path
+     * @return the resource or null if it could not be resolved
+     */
+    private Resource resolvePointer(final Resource resource, final String pointer)
+    {
+        if (StringUtils.isBlank(pointer))
+        {
+            return null;
+        }
+        Resource current = resource;
+        for (final String step : StringUtils.split(pointer.trim(), '/'))
+        {
+            if (current == null)
+            {
+                return null;
+            }
+            if ("..".equals(step))
+            {
+                current = this.resolver.getResource(ResourceUtil.getParent(current.getPath()));
+            }
+            else if (!".".equals(step))
+            {
+                final String localName = StringUtils.substringAfterLast(":" + step, ":");
+                Resource found = null;
+                final Iterator<Resource> children = current.listChildren();
+                while (found == null && children.hasNext())
+                {
+                    final Resource child = children.next();
+                    if ("*".equals(localName)
+                        || localName.equals(StringUtils.substringBefore(child.getName(), "(")))
+                    {
+                        found = child;
+                    }
+                }
+                current = found;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @param key
+     *         a property name
+     * @return true if the property is an attribute of the element that can be
+     *         translatable
+     */
+    private static boolean isAttribute(final String key)
+    {
+        return key.indexOf("jcr:") < 0 && key.indexOf("sling:") < 0
+            && key.indexOf("xmlns") < 0 && key.indexOf("xlink") < 0
+            && !key.startsWith("its-") && !key.startsWith(Namespaces.ITS_NS_PREFIX + ":")
+            && !key.equals(SlingItsConstants.NAMESPACE_DECLARATION)
+            && !key.equals(SlingItsConstants.NODE_PREFIX)
+            && !key.startsWith(SlingItsConstants.SLING_ITS_PROPERTY_PREFIX);
+    }
+}
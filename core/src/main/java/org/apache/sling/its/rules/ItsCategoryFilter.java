@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.rules;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.okapi.common.Namespaces;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The data categories a document is rendered with, requested as selectors,
+ * e.g. .its.translate.locNote.xml. Only the local ITS attributes and the
+ * global rules of the requested categories are rendered. The content of the
+ * document, the params and the rules elements are always rendered.
+ *
+ * Local attributes are recognized by their name, in xml by the its prefix,
+ * e.g. its:locNote, in html by their html name, e.g. its-loc-note.
+ */
+public final class ItsCategoryFilter
+{
+    /** The suffix of the name of a global rule, e.g. translateRule. */
+    private static final String RULE_SUFFIX = "Rule";
+    /** The categories by the local name of their xml attributes. */
+    private static final Map<String, String> XML_ATTRIBUTES = new HashMap<String, String>();
+    /** The categories by the name of their html attributes. */
+    private static final Map<String, String> HTML_ATTRIBUTES = new HashMap<String, String>();
+    /** The categories that can be requested. */
+    private static final Set<String> CATEGORIES = new LinkedHashSet<String>();
+
+    static
+    {
+        XML_ATTRIBUTES.put("translate", "translate");
+        XML_ATTRIBUTES.put("locNote", "locNote");
+        XML_ATTRIBUTES.put("locNoteRef", "locNote");
+        XML_ATTRIBUTES.put("locNoteType", "locNote");
+        HTML_ATTRIBUTES.put("translate", "translate");
+        HTML_ATTRIBUTES.put("its-loc-note", "locNote");
+        HTML_ATTRIBUTES.put("its-loc-note-ref", "locNote");
+        HTML_ATTRIBUTES.put("its-loc-note-type", "locNote");
+        CATEGORIES.add("translate");
+        CATEGORIES.add("locNote");
+        CATEGORIES.add("idValue");
+        CATEGORIES.add("targetPointer");
+    }
+
+    /** The requested categories. */
+    private final Set<String> categories;
+
+    /**
+     * Constructor.
+     *
+     * @param categories
+     *         the requested categories
+     */
+    private ItsCategoryFilter(final Set<String> categories)
+    {
+        this.categories = Collections.unmodifiableSet(categories);
+    }
+
+    /**
+     * Get the filter of the categories requested as selectors. Selectors that
+     * are not a category, e.g. its or compact, are ignored.
+     *
+     * @param selectors
+     *         the selectors of the request
+     * @return the filter or null if no category was requested and all are
+     *         rendered
+     */
+    public static ItsCategoryFilter fromSelectors(final String[] selectors)
+    {
+        final Set<String> categories = new LinkedHashSet<String>();
+        for (final String selector : selectors)
+        {
+            if (CATEGORIES.contains(selector))
+            {
+                categories.add(selector);
+            }
+        }
+        return (categories.isEmpty() ? null : new ItsCategoryFilter(categories));
+    }
+
+    /**
+     * @return the requested categories
+     */
+    public Set<String> getCategories()
+    {
+        return this.categories;
+    }
+
+    /**
+     * @param rule
+     *         the name of the global rule, e.g. translateRule or param
+     * @return true if the rules of this name are rendered
+     */
+    public boolean isRuleIncluded(final String rule)
+    {
+        return !rule.endsWith(RULE_SUFFIX)
+            || this.categories.contains(StringUtils.removeEnd(rule, RULE_SUFFIX));
+    }
+
+    /**
+     * @param key
+     *         the name of the attribute
+     * @param isHtml
+     *         true if the document is an html document
+     * @return true if the attribute is rendered, that is if it is not a local
+     *         ITS attribute or one of a requested category
+     */
+    public boolean isAttributeIncluded(final String key, final boolean isHtml)
+    {
+        final String category;
+        if (isHtml)
+        {
+            category = HTML_ATTRIBUTES.get(key);
+        }
+        else if (key.startsWith(Namespaces.ITS_NS_PREFIX + ":"))
+        {
+            category = XML_ATTRIBUTES.get(StringUtils.substringAfter(key, ":"));
+        }
+        else
+        {
+            category = null;
+        }
+        return category == null || this.categories.contains(category);
+    }
+}
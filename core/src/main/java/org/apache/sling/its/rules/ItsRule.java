@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.rules;
+
+import java.util.Map;
+
+/**
+ * A global rule as it is stored below /etc/its.
+ */
+public final class ItsRule
+{
+    /** The local name of the rule element, e.g. translateRule. */
+    private final String type;
+    /** The parsed selector. */
+    private final ItsSelector selector;
+    /** The stored attributes of the rule. */
+    private final Map<String, String> properties;
+
+    /**
+     * Constructor.
+     *
+     * @param type
+     *         the local name of the rule element
+     * @param selector
+     *         the parsed selector
+     * @param properties
+     *         the stored attributes of the rule
+     */
+    public ItsRule(final String type, final ItsSelector selector,
+        final Map<String, String> properties)
+    {
+        this.type = type;
+        this.selector = selector;
+        this.properties = properties;
+    }
+
+    /**
+     * @return the local name of the rule element
+     */
+    public String getType()
+    {
+        return this.type;
+    }
+
+    /**
+     * @return the parsed selector
+     */
+    public ItsSelector getSelector()
+    {
+        return this.selector;
+    }
+
+    /**
+     * @param name
+     *         the attribute name
+     * @return the value of the attribute of the rule or null
+     */
+    public String getProperty(final String name)
+    {
+        return this.properties.get(name);
+    }
+}
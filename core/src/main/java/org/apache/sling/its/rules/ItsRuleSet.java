@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.utils.XmlNodeUtils;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * The global rules of a resourceType, loaded from /etc/its or read from rules
+ * elements. The rules of each type are kept in document order, so later rules
+ * override earlier ones.
+ */
+public final class ItsRuleSet
+{
+    /** The rules by the local name of the rule element. */
+    private final Map<String, List<ItsRule>> rules = new HashMap<String, List<ItsRule>>();
+    /** False once a rule was skipped because its selector is not supported. */
+    private boolean complete = true;
+
+    /**
+     * Private constructor, use load.
+     */
+    private ItsRuleSet()
+    {
+    }
+
+    /**
+     * Load the global rules of the resourceType. Rules with a selector that
+     * is not supported by ItsSelector are skipped.
+     *
+     * @param resolver
+     *         the resource resolver
+     * @param resourceType
+     *         the resourceType of the document
+     * @return the rule set, empty if there is no resourceType
+     */
+    public static ItsRuleSet load(final ResourceResolver resolver, final String resourceType)
+    {
+        final ItsRuleSet ruleSet = new ItsRuleSet();
+        if (StringUtils.isBlank(resourceType))
+        {
+            return ruleSet;
+        }
+        final Map<String, String> params = new HashMap<String, String>();
+        for (final Resource param : getRuleResources(resolver, "param", resourceType))
+        {
+            final ValueMap props = param.adaptTo(ValueMap.class);
+            final String name = props.get("name", String.class);
+            if (name != null)
+            {
+                params.put(name, props.get(SlingItsConstants.TEXT_CONTENT, StringUtils.EMPTY));
+            }
+        }
+        for (final String type : SlingItsConstants.getGlobalRules().keySet())
+        {
+            if ("param".equals(type))
+            {
+                continue;
+            }
+            final List<ItsRule> typeRules = new ArrayList<ItsRule>();
+            for (final Resource rule : getRuleResources(resolver, type, resourceType))
+            {
+                final ValueMap props = rule.adaptTo(ValueMap.class);
+                final ItsSelector selector = ItsSelector.parse(
+                    props.get("selector", String.class), params);
+                if (selector != null)
+                {
+                    final Map<String, String> properties = new HashMap<String, String>();
+                    for (final String key : props.keySet())
+                    {
+                        properties.put(key, props.get(key, String.class));
+                    }
+                    typeRules.add(new ItsRule(type, selector, properties));
+                }
+                else
+                {
+                    ruleSet.complete = false;
+                }
+            }
+            ruleSet.rules.put(type, typeRules);
+        }
+        return ruleSet;
+    }
+
+    /**
+     * @return an empty rule set the rules of documents can be added to
+     */
+    public static ItsRuleSet create()
+    {
+        return new ItsRuleSet();
+    }
+
+    /**
+     * Add the global rules of an its:rules element after the rules of the
+     * set. Rules with a selector that is not supported by ItsSelector are
+     * skipped.
+     *
+     * @param rules
+     *         the its:rules element
+     */
+    public void addRules(final Element rules)
+    {
+        final Map<String, String> params = new HashMap<String, String>();
+        for (Node child = rules.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            if (child.getNodeType() != Node.ELEMENT_NODE)
+            {
+                continue;
+            }
+            final Element rule = (Element) child;
+            final String type = rule.getLocalName();
+            if ("param".equals(type))
+            {
+                params.put(rule.getAttribute("name"), rule.getTextContent());
+                continue;
+            }
+            if (!SlingItsConstants.getGlobalRules().containsKey(type))
+            {
+                continue;
+            }
+            final ItsSelector selector = ItsSelector.parse(rule.getAttribute("selector"),
+                params);
+            if (selector == null)
+            {
+                this.complete = false;
+                continue;
+            }
+            final Map<String, String> properties = new HashMap<String, String>();
+            final NamedNodeMap attributes = rule.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++)
+            {
+                final Attr attr = (Attr) attributes.item(i);
+                properties.put(attr.getNodeName(), attr.getNodeValue());
+            }
+            final Node locNote = XmlNodeUtils.getChildNodeByLocalName(rule,
+                SlingItsConstants.ITS_LOCNOTE);
+            if (SlingItsConstants.ITS_LOCNOTE_RULE.equals(type) && locNote != null)
+            {
+                properties.put(SlingItsConstants.ITS_NOTE, locNote.getTextContent());
+            }
+            List<ItsRule> typeRules = this.rules.get(type);
+            if (typeRules == null)
+            {
+                typeRules = new ArrayList<ItsRule>();
+                this.rules.put(type, typeRules);
+            }
+            typeRules.add(new ItsRule(type, selector, properties));
+        }
+    }
+
+    /**
+     * @return false if a rule was skipped because its selector is not
+     *         supported, the rules then do not resolve the data categories
+     *         the way the ITS engine does
+     */
+    public boolean isComplete()
+    {
+        return this.complete;
+    }
+
+    /**
+     * Get the rules of a type.
+     *
+     * @param type
+     *         the local name of the rule element, e.g. translateRule
+     * @return the rules in document order, never null
+     */
+    public List<ItsRule> getRules(final String type)
+    {
+        final List<ItsRule> typeRules = this.rules.get(type);
+        return (typeRules != null ? typeRules : Collections.<ItsRule> emptyList());
+    }
+
+    /**
+     * Get the stored rules of a type ordered by the iteration in their name.
+     *
+     * @param resolver
+     *         the resource resolver
+     * @param type
+     *         the local name of the rule element
+     * @param resourceType
+     *         the resourceType of the document
+     * @return the rule resources
+     */
+    private static List<Resource> getRuleResources(final ResourceResolver resolver,
+        final String type, final String resourceType)
+    {
+        final List<Resource> ruleResources = new ArrayList<Resource>();
+        final Resource parent = resolver.getResource(SlingItsConstants.getGlobalRules().get(
+            type)
+            + resourceType);
+        if (parent != null)
+        {
+            final Iterator<Resource> children = parent.listChildren();
+            while (children.hasNext())
+            {
+                ruleResources.add(children.next());
+            }
+            Collections.sort(ruleResources, new Comparator<Resource>()
+            {
+                public int compare(final Resource r1, final Resource r2)
+                {
+                    return getIteration(r1) - getIteration(r2);
+                }
+            });
+        }
+        return ruleResources;
+    }
+
+    /**
+     * @param resource
+     *         a rule resource
+     * @return the iteration of the rule in its name, e.g. 2 for translateRule(2)
+     */
+    private static int getIteration(final Resource resource)
+    {
+        return NumberUtils.toInt(StringUtils.substringBetween(resource.getName(), "(", ")"));
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The selector of an ITS global rule. Only the location paths ITS rules
+ * usually use are supported: unions of absolute paths with child and
+ * descendant steps, name tests, attribute predicates and a final attribute
+ * step (e.g. //p|//div/span[@class='x']/@title). The selector is matched
+ * against the stack of elements from the root to the current element, so
+ * it can be evaluated while the tree is streamed without a DOM.
+ */
+public final class ItsSelector
+{
+    /**
+     * Read access to an element of the tree the selector is matched against.
+     */
+    public interface SelectorNode
+    {
+        /**
+         * @return the local name of the element
+         */
+        String getLocalName();
+
+        /**
+         * @param name
+         *         the (optionally prefixed) name of the attribute
+         * @return the value of the attribute or null if not found
+         */
+        String getAttribute(String name);
+    }
+
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsSelector.class);
+    /** Matches any name. */
+    private static final String ANY = "*";
+
+    /** The location paths of the union. */
+    private final List<LocationPath> paths;
+
+    /**
+     * Constructor.
+     *
+     * @param paths
+     *         the location paths of the union
+     */
+    private ItsSelector(final List<LocationPath> paths)
+    {
+        this.paths = paths;
+    }
+
+    /**
+     * Parse the selector. The parameters of the rules are substituted first.
+     *
+     * @param selector
+     *         the selector of the rule
+     * @param params
+     *         the parameters of the rules, may be empty
+     * @return the selector or null if the selector is not supported
+     */
+    public static ItsSelector parse(final String selector, final Map<String, String> params)
+    {
+        if (StringUtils.isBlank(selector))
+        {
+            return null;
+        }
+        String expression = selector;
+        for (final Map.Entry<String, String> param : params.entrySet())
+        {
+            expression = expression.replace("$" + param.getKey(), "'" + param.getValue()
+                + "'");
+        }
+        final List<LocationPath> paths = new ArrayList<LocationPath>();
+        for (final String path : split(expression, '|'))
+        {
+            final LocationPath locationPath = parsePath(path.trim());
+            if (locationPath == null)
+            {
+                LOG.warn("Unsupported selector, the rule is ignored: " + selector);
+                return null;
+            }
+            paths.add(locationPath);
+        }
+        return new ItsSelector(paths);
+    }
+
+    /**
+     * Check if the selector selects the last element of the stack.
+     *
+     * @param stack
+     *         the elements from the root to the current element
+     * @return true if the current element is selected
+     */
+    public boolean matches(final List<? extends SelectorNode> stack)
+    {
+        for (final LocationPath path : this.paths)
+        {
+            if (path.attributeName == null && path.matches(stack))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if the selector selects the attribute of the last element of the
+     * stack.
+     *
+     * @param stack
+     *         the elements from the root to the current element
+     * @param attributeName
+     *         the name of the attribute
+     * @return true if the attribute is selected
+     */
+    public boolean matchesAttribute(final List<? extends SelectorNode> stack,
+        final String attributeName)
+    {
+        for (final LocationPath path : this.paths)
+        {
+            if (path.attributeName != null
+                && (ANY.equals(path.attributeName) || StringUtils.equals(
+                    getLocalName(path.attributeName), getLocalName(attributeName)))
+                && path.matches(stack))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a single location path.
+     *
+     * @param path
+     *         the location path
+     * @return the location path or null if it is not supported
+     */
+    private static LocationPath parsePath(final String path)
+    {
+        if (!path.startsWith("/"))
+        {
+            return null;
+        }
+        final LocationPath locationPath = new LocationPath();
+        int i = 0;
+        while (i < path.length())
+        {
+            final boolean descendant = path.startsWith("//", i);
+            i += (descendant ? 2 : 1);
+            final int end = indexOfStepEnd(path, i);
+            final String step = path.substring(i, end).trim();
+            i = end;
+            if (step.startsWith("@"))
+            {
+                if (i < path.length())
+                {
+                    return null;
+                }
+                if (descendant)
+                {
+                    locationPath.steps.add(new Step(true, ANY));
+                }
+                locationPath.attributeName = step.substring(1);
+            }
+            else
+            {
+                final Step parsedStep = parseStep(step, descendant);
+                if (parsedStep == null)
+                {
+                    return null;
+                }
+                locationPath.steps.add(parsedStep);
+            }
+        }
+        return (locationPath.steps.isEmpty() ? null : locationPath);
+    }
+
+    /**
+     * Parse an element step with its predicates.
+     *
+     * @param step
+     *         the step
+     * @param descendant
+     *         true if the step uses the descendant axis
+     * @return the step or null if it is not supported
+     */
+    private static Step parseStep(final String step, final boolean descendant)
+    {
+        final String nameTest = StringUtils.substringBefore(step, "[").trim();
+        if (nameTest.length() == 0
+            || (nameTest.indexOf('(') > -1 && !"node()".equals(nameTest))
+            || nameTest.indexOf("::") > -1)
+        {
+            return null;
+        }
+        final Step parsedStep = new Step(descendant, "node()".equals(nameTest) ? ANY
+            : getLocalName(nameTest));
+        String predicates = step.substring(nameTest.length()).trim();
+        while (predicates.startsWith("["))
+        {
+            final int end = indexOfStepEnd(predicates, 1, ']');
+            if (end >= predicates.length())
+            {
+                return null;
+            }
+            final String predicate = predicates.substring(1, end).trim();
+            if (!predicate.startsWith("@"))
+            {
+                return null;
+            }
+            final int eq = predicate.indexOf('=');
+            if (eq < 0)
+            {
+                parsedStep.predicates.add(new String[] { predicate.substring(1).trim(), null });
+            }
+            else
+            {
+                final String value = predicate.substring(eq + 1).trim();
+                if (value.length() < 2 || (value.charAt(0) != '\'' && value.charAt(0) != '"')
+                    || value.charAt(value.length() - 1) != value.charAt(0))
+                {
+                    return null;
+                }
+                parsedStep.predicates.add(new String[] {
+                    predicate.substring(1, eq).trim(), value.substring(1, value.length() - 1) });
+            }
+            predicates = predicates.substring(end + 1).trim();
+        }
+        return (predicates.length() == 0 ? parsedStep : null);
+    }
+
+    /**
+     * Find the end of a step, the next slash that is not within a predicate
+     * or a literal.
+     *
+     * @param path
+     *         the location path
+     * @param start
+     *         start of the step
+     * @return index of the end of the step
+     */
+    private static int indexOfStepEnd(final String path, final int start)
+    {
+        return indexOfStepEnd(path, start, '/');
+    }
+
+    /**
+     * Find the next occurrence of the delimiter that is not within brackets or
+     * a literal.
+     *
+     * @param text
+     *         the text
+     * @param start
+     *         where to start looking
+     * @param delimiter
+     *         the delimiter
+     * @return index of the delimiter or the length of the text
+     */
+    private static int indexOfStepEnd(final String text, final int start,
+        final char delimiter)
+    {
+        int depth = 0;
+        char quote = 0;
+        for (int i = start; i < text.length(); i++)
+        {
+            final char c = text.charAt(i);
+            if (quote != 0)
+            {
+                quote = (c == quote ? 0 : quote);
+            }
+            else if (c == '\'' || c == '"')
+            {
+                quote = c;
+            }
+            else if (c == delimiter && depth == 0)
+            {
+                return i;
+            }
+            else if (c == '[')
+            {
+                depth++;
+            }
+            else if (c == ']')
+            {
+                depth--;
+            }
+        }
+        return text.length();
+    }
+
+    /**
+     * Split the expression at the delimiter outside of brackets and literals.
+     *
+     * @param expression
+     *         the expression
+     * @param delimiter
+     *         the delimiter
+     * @return the parts of the expression
+     */
+    private static List<String> split(final String expression, final char delimiter)
+    {
+        final List<String> parts = new ArrayList<String>();
+        int start = 0;
+        int end;
+        while ((end = indexOfStepEnd(expression, start, delimiter)) < expression.length())
+        {
+            parts.add(expression.substring(start, end));
+            start = end + 1;
+        }
+        parts.add(expression.substring(start));
+        return parts;
+    }
+
+    /**
+     * @param name
+     *         a qualified name
+     * @return the local name
+     */
+    private static String getLocalName(final String name)
+    {
+        final int colon = name.indexOf(':');
+        return (colon > -1 ? name.substring(colon + 1) : name);
+    }
+
+    /**
+     * A location path of the selector.
+     */
+    private static final class LocationPath
+    {
+        /** The element steps. */
+        private final List<Step> steps = new ArrayList<Step>();
+        /** The name of the selected attribute or null if elements are selected. */
+        private String attributeName;
+
+        /**
+         * @param stack
+         *         the elements from the root to the current element
+         * @return true if the current element is matched by the element steps
+         */
+        private boolean matches(final List<? extends SelectorNode> stack)
+        {
+            return !stack.isEmpty() && matches(this.steps.size() - 1, stack, stack.size() - 1);
+        }
+
+        /**
+         * Match the steps from right to left.
+         *
+         * @param stepIndex
+         *         the step to match
+         * @param stack
+         *         the elements from the root to the current element
+         * @param nodeIndex
+         *         the element to match
+         * @return true if the steps up to stepIndex match
+         */
+        private boolean matches(final int stepIndex, final List<? extends SelectorNode> stack,
+            final int nodeIndex)
+        {
+            final Step step = this.steps.get(stepIndex);
+            if (!step.matches(stack.get(nodeIndex)))
+            {
+                return false;
+            }
+            if (stepIndex == 0)
+            {
+                return step.descendant || nodeIndex == 0;
+            }
+            if (!step.descendant)
+            {
+                return nodeIndex > 0 && matches(stepIndex - 1, stack, nodeIndex - 1);
+            }
+            for (int i = nodeIndex - 1; i >= 0; i--)
+            {
+                if (matches(stepIndex - 1, stack, i))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * An element step of a location path.
+     */
+    private static final class Step
+    {
+        /** True for the descendant axis, false for the child axis. */
+        private final boolean descendant;
+        /** The local name to match or * for any. */
+        private final String localName;
+        /** The attribute predicates, name and value (null to test existence). */
+        private final List<String[]> predicates = new ArrayList<String[]>();
+
+        /**
+         * Constructor.
+         *
+         * @param descendant
+         *         true for the descendant axis
+         * @param localName
+         *         the local name to match
+         */
+        private Step(final boolean descendant, final String localName)
+        {
+            this.descendant = descendant;
+            this.localName = localName;
+        }
+
+        /**
+         * @param node
+         *         the element
+         * @return true if the name test and the predicates match the element
+         */
+        private boolean matches(final SelectorNode node)
+        {
+            if (!ANY.equals(this.localName) && !this.localName.equals(node.getLocalName()))
+            {
+                return false;
+            }
+            for (final String[] predicate : this.predicates)
+            {
+                final String value = node.getAttribute(predicate[0]);
+                if (value == null || (predicate[1] != null && !predicate[1].equals(value)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A lane of the admission control. At most maxConcurrent requests of the
+ * lane run at the same time, at most maxQueued wait for their turn and none
+ * waits longer than the timeout. The waiting requests are admitted smallest
+ * first, in the order they arrived for equal sizes, so a small request does
+ * not wait for a large one that arrived earlier. A large request can not
+ * wait forever either, the timeout rejects it with a retry hint.
+ */
+public final class AdmissionLane
+{
+    /** The name of the lane. */
+    private final String name;
+    /** Number of requests that may run at the same time. */
+    private final int maxConcurrent;
+    /** Number of requests that may wait. */
+    private final int maxQueued;
+    /** Time a request may wait in milliseconds. */
+    private final long timeout;
+    /** Guards the state of the lane. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when a request finished or left the queue. */
+    private final Condition changed = this.lock.newCondition();
+    /** The waiting requests, smallest first. */
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+    /** Number of running requests. */
+    private int running;
+    /** Sequence number of the next waiting request. */
+    private long sequence;
+    /** Number of admitted requests. */
+    private long admitted;
+    /** Number of requests rejected because the queue was full. */
+    private long rejected;
+    /** Number of requests rejected because they waited too long. */
+    private long timedOut;
+    /** Total time the admitted requests waited in milliseconds. */
+    private long waitTime;
+    /** Number of finished requests. */
+    private long finished;
+    /** Total time the finished requests ran in milliseconds. */
+    private long runTime;
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     *         the name of the lane
+     * @param maxConcurrent
+     *         number of requests that may run at the same time
+     * @param maxQueued
+     *         number of requests that may wait
+     * @param timeout
+     *         time a request may wait in milliseconds
+     */
+    public AdmissionLane(final String name, final int maxConcurrent, final int maxQueued,
+        final long timeout)
+    {
+        this.name = name;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.timeout = Math.max(0, timeout);
+    }
+
+    /**
+     * Parse a lane from its configuration, name:maxConcurrent:maxQueued:timeout
+     * with the timeout in milliseconds.
+     *
+     * @param config
+     *         the configuration of the lane
+     * @return the lane or null if the configuration is invalid
+     */
+    public static AdmissionLane parse(final String config)
+    {
+        final String[] parts = (config != null ? config.trim().split(":") : new String[0]);
+        if (parts.length != 4 || parts[0].length() == 0)
+        {
+            return null;
+        }
+        try
+        {
+            return new AdmissionLane(parts[0], Integer.parseInt(parts[1].trim()), Integer
+                .parseInt(parts[2].trim()), Long.parseLong(parts[3].trim()));
+        }
+        catch (final NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Wait until the request may run.
+     *
+     * @param size
+     *         the size of the request, smaller requests are admitted first
+     * @return the permit to release once the request finished
+     * @throws AdmissionRejectedException
+     *         if the queue is full, the request waited too long or the
+     *         thread was interrupted
+     */
+    public Permit acquire(final long size) throws AdmissionRejectedException
+    {
+        final long start = System.currentTimeMillis();
+        this.lock.lock();
+        try
+        {
+            if (this.running < this.maxConcurrent && this.waiters.isEmpty())
+            {
+                return admit(start);
+            }
+            if (this.waiters.size() >= this.maxQueued)
+            {
+                this.rejected++;
+                throw new AdmissionRejectedException("Too many " + this.name
+                    + " requests, please retry later.", getRetryAfter());
+            }
+            final Waiter waiter = new Waiter(size, this.sequence++);
+            this.waiters.add(waiter);
+            boolean ready = false;
+            try
+            {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(this.timeout);
+                while (this.waiters.peek() != waiter || this.running >= this.maxConcurrent)
+                {
+                    if (remaining <= 0)
+                    {
+                        this.timedOut++;
+                        throw new AdmissionRejectedException("The " + this.name
+                            + " request waited too long, please retry later.", getRetryAfter());
+                    }
+                    remaining = this.changed.awaitNanos(remaining);
+                }
+                ready = true;
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                this.timedOut++;
+                throw new AdmissionRejectedException("The " + this.name
+                    + " request was interrupted.", getRetryAfter());
+            }
+            finally
+            {
+                this.waiters.remove(waiter);
+                if (!ready)
+                {
+                    // the next waiter may be at the head of the queue now.
+                    this.changed.signalAll();
+                }
+            }
+            final Permit permit = admit(start);
+            if (this.running < this.maxConcurrent)
+            {
+                this.changed.signalAll();
+            }
+            return permit;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Admit a request, the lock is held.
+     *
+     * @param start
+     *         the time the request arrived
+     * @return the permit of the request
+     */
+    private Permit admit(final long start)
+    {
+        final long now = System.currentTimeMillis();
+        this.running++;
+        this.admitted++;
+        this.waitTime += now - start;
+        return new Permit(now);
+    }
+
+    /**
+     * Estimate the number of seconds after which a rejected request could
+     * be admitted, from the average run time and the number of requests
+     * ahead of it. The lock is held.
+     *
+     * @return the number of seconds, at least 1
+     */
+    private long getRetryAfter()
+    {
+        final long averageRun = (this.finished > 0 ? this.runTime / this.finished : 1000L);
+        final long ahead = this.running + this.waiters.size();
+        return Math.max(1L, averageRun * (ahead + 1) / this.maxConcurrent / 1000L);
+    }
+
+    /**
+     * @return the name of the lane
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * @return the number of requests rejected because the queue was full or
+     *         because they waited too long
+     */
+    public long getRejectedCount()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.rejected + this.timedOut;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the statistics of the lane: maxConcurrent, maxQueued, timeout,
+     *         running, queued, admitted, rejected, timed out, average wait
+     *         and average run time in milliseconds
+     */
+    public long[] getStatistics()
+    {
+        this.lock.lock();
+        try
+        {
+            return new long[] { this.maxConcurrent, this.maxQueued, this.timeout,
+                this.running, this.waiters.size(), this.admitted, this.rejected,
+                this.timedOut, (this.admitted > 0 ? this.waitTime / this.admitted : 0L),
+                (this.finished > 0 ? this.runTime / this.finished : 0L) };
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Allows a request to run until it is released.
+     */
+    public final class Permit
+    {
+        /** The time the request was admitted. */
+        private final long start;
+        /** True once released. */
+        private boolean released;
+
+        /**
+         * Constructor.
+         *
+         * @param start
+         *         the time the request was admitted
+         */
+        private Permit(final long start)
+        {
+            this.start = start;
+        }
+
+        /**
+         * Release the permit, the next waiting request may run. Releasing it
+         * again has no effect.
+         */
+        public void release()
+        {
+            lock.lock();
+            try
+            {
+                if (!this.released)
+                {
+                    this.released = true;
+                    running--;
+                    finished++;
+                    runTime += System.currentTimeMillis() - this.start;
+                    changed.signalAll();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A waiting request, ordered by size and arrival.
+     */
+    private static final class Waiter implements Comparable<Waiter>
+    {
+        /** The size of the request. */
+        private final long size;
+        /** The arrival order. */
+        private final long sequence;
+
+        /**
+         * Constructor.
+         *
+         * @param size
+         *         the size of the request
+         * @param sequence
+         *         the arrival order
+         */
+        private Waiter(final long size, final long sequence)
+        {
+            this.size = size;
+            this.sequence = sequence;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int compareTo(final Waiter other)
+        {
+            if (this.size != other.size)
+            {
+                return (this.size < other.size ? -1 : 1);
+            }
+            return (this.sequence < other.sequence ? -1 : (this.sequence == other.sequence ? 0
+                : 1));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+/**
+ * Thrown when a request is not admitted to its lane, because the queue of
+ * the lane is full or the request waited longer than the lane timeout.
+ */
+public class AdmissionRejectedException extends Exception
+{
+    /** UID for serialization. */
+    private static final long serialVersionUID = -2391478107715523604L;
+    /** The number of seconds after which the client should retry. */
+    private final long retryAfter;
+
+    /**
+     * Constructor.
+     *
+     * @param message
+     *         the reason of the rejection
+     * @param retryAfter
+     *         the number of seconds after which the client should retry
+     */
+    public AdmissionRejectedException(final String message, final long retryAfter)
+    {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return the number of seconds after which the client should retry
+     */
+    public long getRetryAfter()
+    {
+        return this.retryAfter;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of import, export and extraction requests that run at
+ * the same time, so a few large requests can not take all the threads of
+ * the container and the repository from the other requests, e.g. the
+ * previews. Every operation type has a lane of its own, configured as
+ * name:maxConcurrent:maxQueued:timeout with the timeout in milliseconds.
+ * Requests of an operation type without a lane are not limited.
+ *
+ * A rejected request gets a 503 with a Retry-After header right away if the
+ * queue of its lane is full, or once it waited for the timeout. The queue
+ * metrics are exposed as an MBean.
+ */
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.services.ItsAdmissionControl", label = "ITS Admission Control", description = "Limits the concurrent import, export and extraction requests")
+@Service({ ItsAdmissionControl.class, ItsAdmissionControlMBean.class })
+@Properties({
+        @Property(name = "service.description", value = "ITS Admission Control"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+        @Property(name = "jmx.objectname", value = "org.apache.sling.its:type=AdmissionControl", propertyPrivate = true),
+        @Property(name = ItsAdmissionControl.LANES, value = { "import:2:10:30000",
+            "export:2:4:60000", "extraction:4:20:30000" }) })
+public class ItsAdmissionControl implements ItsAdmissionControlMBean
+{
+    /** The lane of single document imports and merges. */
+    public static final String IMPORT = "import";
+    /** The lane of bulk exports. */
+    public static final String EXPORT = "export";
+    /** The lane of XLIFF extractions. */
+    public static final String EXTRACTION = "extraction";
+    /** Property for the configuration of the lanes. */
+    static final String LANES = "its.admission.lanes";
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsAdmissionControl.class);
+    /** The names of the columns of the lane metrics. */
+    private static final String[] COLUMNS = { "name", "maxConcurrent", "maxQueued",
+        "timeout", "running", "queued", "admitted", "rejected", "timedOut", "averageWait",
+        "averageRun" };
+
+    /** The lanes by name. */
+    private volatile Map<String, AdmissionLane> lanes = new LinkedHashMap<String, AdmissionLane>();
+
+    /**
+     * Gets automatically invoked when the component is started or
+     * reconfigured. Requests admitted by the previous lanes keep their
+     * permits.
+     *
+     * @param ctx
+     *            the component context
+     */
+    protected void activate(final ComponentContext ctx)
+    {
+        final Object value = ctx.getProperties().get(LANES);
+        final String[] configs = (value instanceof String[] ? (String[]) value
+            : (value != null ? new String[] { value.toString() } : new String[0]));
+        final Map<String, AdmissionLane> configured = new LinkedHashMap<String, AdmissionLane>();
+        for (final String config : configs)
+        {
+            final AdmissionLane lane = AdmissionLane.parse(config);
+            if (lane == null)
+            {
+                LOG.warn("Invalid lane configuration, the lane is ignored: " + config);
+            }
+            else
+            {
+                configured.put(lane.getName(), lane);
+            }
+        }
+        this.lanes = configured;
+    }
+
+    /**
+     * Wait until a request of the lane may run.
+     *
+     * @param laneName
+     *         the name of the lane
+     * @param size
+     *         the size of the request, smaller requests are admitted first
+     * @return the permit to release once the request finished or null if
+     *         the lane is not limited
+     * @throws AdmissionRejectedException
+     *         if the request is not admitted
+     */
+    public AdmissionLane.Permit acquire(final String laneName, final long size)
+        throws AdmissionRejectedException
+    {
+        final AdmissionLane lane = this.lanes.get(laneName);
+        return (lane != null ? lane.acquire(size) : null);
+    }
+
+    /**
+     * Answer a rejected request with a 503 and the retry hint.
+     *
+     * @param response
+     *         the response
+     * @param e
+     *         the rejection
+     * @throws IOException
+     *         if the response could not be written
+     */
+    public static void reject(final SlingHttpServletResponse response,
+        final AdmissionRejectedException e) throws IOException
+    {
+        LOG.warn(e.getMessage());
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+        response.getWriter().write("503: " + e.getMessage());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public TabularData getLanes()
+    {
+        try
+        {
+            final OpenType<?>[] types = new OpenType<?>[COLUMNS.length];
+            types[0] = SimpleType.STRING;
+            for (int i = 1; i < types.length; i++)
+            {
+                types[i] = SimpleType.LONG;
+            }
+            final CompositeType rowType = new CompositeType("lane", "Admission lane",
+                COLUMNS, COLUMNS, types);
+            final TabularDataSupport data = new TabularDataSupport(new TabularType("lanes",
+                "Admission lanes", rowType, new String[] { COLUMNS[0] }));
+            for (final AdmissionLane lane : this.lanes.values())
+            {
+                final long[] statistics = lane.getStatistics();
+                final Object[] values = new Object[COLUMNS.length];
+                values[0] = lane.getName();
+                for (int i = 0; i < statistics.length; i++)
+                {
+                    values[i + 1] = Long.valueOf(statistics[i]);
+                }
+                data.put(new CompositeDataSupport(rowType, COLUMNS, values));
+            }
+            return data;
+        }
+        catch (final OpenDataException e)
+        {
+            LOG.error("Failed to create the lane metrics. Stack Trace: ", e);
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRejectedCount()
+    {
+        long count = 0;
+        for (final AdmissionLane lane : this.lanes.values())
+        {
+            count += lane.getRejectedCount();
+        }
+        return count;
+    }
+}
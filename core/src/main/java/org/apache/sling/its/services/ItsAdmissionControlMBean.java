@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * The queue metrics of the lanes of the {@link ItsAdmissionControl}.
+ */
+public interface ItsAdmissionControlMBean
+{
+    /**
+     * @return one row per lane with its limits, the number of running and
+     *         queued requests, the admitted, rejected and timed out counts
+     *         and the average wait and run times in milliseconds
+     */
+    TabularData getLanes();
+
+    /**
+     * @return the number of requests rejected by all lanes
+     */
+    long getRejectedCount();
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.utils.HashUtils;
+import org.apache.sling.its.utils.ItsIdUtils;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the changes made to imported documents by other writers than
+ * sling-its, e.g. the Sling POST servlet. The content digest of a changed
+ * document is replaced by a new one, so its entity tag changes, no stale
+ * 304 is sent and the render cache does not return the old representation.
+ * A new upload of the imported files is imported again, as the digest no
+ * longer matches them.
+ *
+ * The sessions of sling-its tag their changes with
+ * {@link SlingItsConstants#ITS_EVENT_USER_DATA}, those are ignored.
+ */
+@Component(immediate = true, metatype = false, name = "org.apache.sling.its.services.ItsChangeListener", label = "ITS Change Listener", description = "Updates the content digest of imported documents that are changed by other writers")
+@Properties({
+        @Property(name = "service.description", value = "ITS Change Listener"),
+        @Property(name = "service.vendor", value = "Adobe Systems") })
+public class ItsChangeListener implements EventListener
+{
+    /** The events of a change of the content. */
+    private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED
+        | Event.NODE_MOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+        | Event.PROPERTY_REMOVED;
+    /** The paths below which no document is imported. */
+    private static final String[] IGNORED_PATHS = { SlingItsConstants.ITS_INDEX_PATH + "/",
+        SlingItsConstants.ITS_TEXT_STORE_PATH + "/", SlingItsConstants.ITS_STAGING_PATH + "/",
+        SlingItsConstants.ITS_GLOBAL_PATH + "/", "/jcr:system/" };
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsChangeListener.class);
+
+    /** The repository. */
+    @Reference
+    private SlingRepository repository;
+    /** The session of the listener, only used by the observation thread. */
+    private Session session;
+
+    /**
+     * Gets automatically invoked when the listener is started.
+     *
+     * @param ctx
+     *            the component context
+     * @throws RepositoryException
+     *             if the listener could not be registered
+     */
+    protected void activate(final ComponentContext ctx) throws RepositoryException
+    {
+        this.session = this.repository.loginAdministrative(null);
+        this.session.getWorkspace().getObservationManager().addEventListener(this,
+            EVENT_TYPES, "/", true, null, null, true);
+    }
+
+    /**
+     * Gets automatically invoked when the listener is stopped.
+     *
+     * @param ctx
+     *            the component context
+     */
+    protected void deactivate(final ComponentContext ctx)
+    {
+        if (this.session == null)
+        {
+            return;
+        }
+        try
+        {
+            this.session.getWorkspace().getObservationManager().removeEventListener(this);
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to remove the listener. Stack Trace: ", e);
+        }
+        this.session.logout();
+        this.session = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onEvent(final EventIterator events)
+    {
+        // the target path of the document of each visited path, "" if none.
+        final Map<String, String> documents = new HashMap<String, String>();
+        final Set<String> changed = new HashSet<String>();
+        try
+        {
+            while (events.hasNext())
+            {
+                final Event event = events.nextEvent();
+                if (SlingItsConstants.ITS_EVENT_USER_DATA.equals(event.getUserData()))
+                {
+                    continue;
+                }
+                final String docPath = findDocument(event.getPath(), documents);
+                if (docPath.length() > 0)
+                {
+                    changed.add(docPath);
+                }
+            }
+            for (final String docPath : changed)
+            {
+                updateContentDigest(docPath);
+            }
+            if (!changed.isEmpty())
+            {
+                this.session.save();
+            }
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to update the content digest of " + changed
+                + ". Stack Trace: ", e);
+            try
+            {
+                this.session.refresh(false);
+            }
+            catch (final RepositoryException ex)
+            {
+                LOG.error("Failed to discard the pending changes. Stack Trace: ", ex);
+            }
+        }
+    }
+
+    /**
+     * Find the imported document a changed item belongs to. The ancestors of
+     * the item are checked for an id index, the results are kept in
+     * documents.
+     *
+     * @param path
+     *         the path of the changed item
+     * @param documents
+     *         the target path of the document of each checked path, empty
+     *         if it is not part of a document
+     * @return the target path of the document or an empty string
+     * @throws RepositoryException
+     *         if the index could not be read
+     */
+    private String findDocument(final String path, final Map<String, String> documents)
+        throws RepositoryException
+    {
+        for (final String ignored : IGNORED_PATHS)
+        {
+            if (path.startsWith(ignored))
+            {
+                return StringUtils.EMPTY;
+            }
+        }
+        final List<String> visited = new ArrayList<String>();
+        String docPath = StringUtils.EMPTY;
+        String current = path;
+        while (current.length() > 1)
+        {
+            final String known = documents.get(current);
+            if (known != null)
+            {
+                docPath = known;
+                break;
+            }
+            visited.add(current);
+            if (this.session.nodeExists(ItsIdUtils.getIndexPath(current)))
+            {
+                docPath = current;
+                break;
+            }
+            current = StringUtils.defaultIfEmpty(StringUtils.substringBeforeLast(current,
+                "/"), "/");
+        }
+        for (final String visitedPath : visited)
+        {
+            documents.put(visitedPath, docPath);
+        }
+        return docPath;
+    }
+
+    /**
+     * Replace the content digest of a changed document. A document without
+     * a digest is being imported and gets its digest once complete.
+     *
+     * @param docPath
+     *         the target path of the document
+     * @throws RepositoryException
+     *         if the digest could not be updated
+     */
+    private void updateContentDigest(final String docPath) throws RepositoryException
+    {
+        if (!this.session.nodeExists(docPath))
+        {
+            return;
+        }
+        final Node target = this.session.getNode(docPath);
+        if (target.hasProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST))
+        {
+            target.setProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST, HashUtils.sha1Hex(
+                target.getProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST).getString()
+                    + "\n" + System.currentTimeMillis()));
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the counters and timers of the imports, renders and exports by
+ * resourceType and format, e.g. the parse and applyRules times, the nodes,
+ * properties and saves written, the queries run and the output bytes. Times
+ * are in milliseconds. Hit rates are recorded as 1 for a hit and 0 for a
+ * miss, their mean is the rate. The metrics are exposed as an MBean, with
+ * percentiles over the most recent values of every metric.
+ *
+ * Requests that take longer than the trace threshold are traced with all
+ * their counters and timers, one out of every sample slow requests. The
+ * traces are logged to the org.apache.sling.its.traces logger and the most
+ * recent ones are kept for the trace servlet.
+ */
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.services.ItsMetrics", label = "ITS Metrics", description = "Collects the metrics of the imports and renders")
+@Service({ ItsMetrics.class, ItsMetricsMBean.class })
+@Properties({
+        @Property(name = "service.description", value = "ITS Metrics"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+        @Property(name = "jmx.objectname", value = "org.apache.sling.its:type=Metrics", propertyPrivate = true),
+        @Property(name = ItsMetrics.WINDOW, intValue = MetricHistogram.DEFAULT_WINDOW),
+        @Property(name = ItsMetrics.TRACE_THRESHOLD, intValue = ItsMetrics.DEFAULT_TRACE_THRESHOLD),
+        @Property(name = ItsMetrics.TRACE_SAMPLE, intValue = 1),
+        @Property(name = ItsMetrics.TRACE_SIZE, intValue = ItsMetrics.DEFAULT_TRACE_SIZE) })
+public class ItsMetrics implements ItsMetricsMBean
+{
+    /** Size of the uploaded document in bytes. */
+    public static final String UPLOAD_BYTES = "uploadBytes";
+    /** Time to write the uploaded document to a temporary file. */
+    public static final String SPOOL_TIME = "spoolTime";
+    /** Time to parse the uploaded document. */
+    public static final String PARSE_TIME = "parseTime";
+    /** Time the ITS engine takes to apply the rules. */
+    public static final String APPLY_RULES_TIME = "applyRulesTime";
+    /** Time to traverse and write the document. */
+    public static final String STORE_TIME = "storeTime";
+    /** Number of nodes written. */
+    public static final String NODES = "nodes";
+    /** Number of properties written. */
+    public static final String PROPERTIES = "properties";
+    /** Number of session saves. */
+    public static final String SAVES = "saves";
+    /** Number of JCR queries run. */
+    public static final String QUERIES = "queries";
+    /** Time to render a document. */
+    public static final String RENDER_TIME = "renderTime";
+    /** Time to compute the entity tag of a document. */
+    public static final String VALIDATE_TIME = "validateTime";
+    /** Time to walk the resources and build the document. */
+    public static final String TRAVERSAL_TIME = "traversalTime";
+    /** Time to look up the global rules, part of the traversal. */
+    public static final String RULES_TIME = "rulesTime";
+    /** Time to write the built document. */
+    public static final String SERIALIZE_TIME = "serializeTime";
+    /** Number of resources visited. */
+    public static final String RESOURCES = "resources";
+    /** Number of ValueMaps adapted. */
+    public static final String VALUE_MAPS = "valueMaps";
+    /** Size of the response in bytes. */
+    public static final String OUTPUT_BYTES = "outputBytes";
+    /** 1 if a gzipped response was taken from the render cache, 0 if rendered. */
+    public static final String RENDER_CACHE_HIT = "renderCacheHit";
+    /** 1 if a request was answered with 304, 0 if not. */
+    public static final String NOT_MODIFIED = "notModified";
+    /** Property for the number of recent values the percentiles are computed from. */
+    static final String WINDOW = "its.metrics.window";
+    /** Property for the duration in milliseconds from which a request is traced, 0 to disable. */
+    static final String TRACE_THRESHOLD = "its.trace.threshold";
+    /** Default duration from which a request is traced. */
+    static final int DEFAULT_TRACE_THRESHOLD = 2000;
+    /** Property to trace one out of this number of slow requests. */
+    static final String TRACE_SAMPLE = "its.trace.sample";
+    /** Property for the number of traces kept. */
+    static final String TRACE_SIZE = "its.trace.size";
+    /** Default number of traces kept. */
+    static final int DEFAULT_TRACE_SIZE = 50;
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsMetrics.class);
+    /** Logger of the traces of the slow requests. */
+    private static final Logger TRACE_LOG = LoggerFactory.getLogger("org.apache.sling.its.traces");
+    /** The names of the columns of the metrics. */
+    private static final String[] COLUMNS = { "name", "resourceType", "format", "count",
+        "sum", "mean", "min", "max", "p50", "p95", "p99" };
+    /** The columns that identify a metric. */
+    private static final int KEY_COLUMNS = 3;
+    /** Separates the parts of a key. */
+    private static final char SEPARATOR = '|';
+
+    /** The metrics by name, resourceType and format. */
+    private final ConcurrentMap<String, MetricHistogram> histograms = new ConcurrentHashMap<String, MetricHistogram>();
+    /** Number of recent values the percentiles are computed from. */
+    private int windowSize = MetricHistogram.DEFAULT_WINDOW;
+    /** Duration in milliseconds from which a request is traced, 0 if disabled. */
+    private long traceThreshold = DEFAULT_TRACE_THRESHOLD;
+    /** One out of this number of slow requests is traced. */
+    private int traceSample = 1;
+    /** Number of traces kept. */
+    private int traceSize = DEFAULT_TRACE_SIZE;
+    /** Number of slow requests. */
+    private final AtomicLong slowCount = new AtomicLong();
+    /** The most recent traces, oldest first. */
+    private final LinkedList<SlowRequest> traces = new LinkedList<SlowRequest>();
+
+    /**
+     * Gets automatically invoked when the component is started or
+     * reconfigured.
+     *
+     * @param ctx
+     *            the component context
+     */
+    protected void activate(final ComponentContext ctx)
+    {
+        this.windowSize = Math.max(1, NumberUtils.toInt(String.valueOf(ctx.getProperties()
+            .get(WINDOW)), MetricHistogram.DEFAULT_WINDOW));
+        this.traceThreshold = Math.max(0, NumberUtils.toInt(String.valueOf(ctx
+            .getProperties().get(TRACE_THRESHOLD)), DEFAULT_TRACE_THRESHOLD));
+        this.traceSample = Math.max(1, NumberUtils.toInt(String.valueOf(ctx.getProperties()
+            .get(TRACE_SAMPLE)), 1));
+        this.traceSize = Math.max(1, NumberUtils.toInt(String.valueOf(ctx.getProperties()
+            .get(TRACE_SIZE)), DEFAULT_TRACE_SIZE));
+        this.histograms.clear();
+        synchronized (this.traces)
+        {
+            this.traces.clear();
+        }
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param name
+     *         the name of the metric
+     * @param resourceType
+     *         the resourceType of the document or null
+     * @param format
+     *         the format of the document or null
+     * @param value
+     *         the value
+     */
+    public void record(final String name, final String resourceType, final String format,
+        final long value)
+    {
+        final String key = name + SEPARATOR + StringUtils.defaultString(resourceType)
+            + SEPARATOR + StringUtils.defaultString(format);
+        MetricHistogram histogram = this.histograms.get(key);
+        if (histogram == null)
+        {
+            final MetricHistogram created = new MetricHistogram(this.windowSize);
+            histogram = this.histograms.putIfAbsent(key, created);
+            if (histogram == null)
+            {
+                histogram = created;
+            }
+        }
+        histogram.record(value);
+    }
+
+    /**
+     * Record all counters and timers of a request.
+     *
+     * @param metrics
+     *         the metrics of the request
+     * @param resourceType
+     *         the resourceType of the document or null
+     * @param format
+     *         the format of the document or null
+     */
+    public void record(final RequestMetrics metrics, final String resourceType,
+        final String format)
+    {
+        for (final Map.Entry<String, Long> value : metrics.getValues().entrySet())
+        {
+            record(value.getKey(), resourceType, format, value.getValue());
+        }
+    }
+
+    /**
+     * Trace the request if it took longer than the trace threshold and it is
+     * sampled.
+     *
+     * @param operation
+     *         the operation, e.g. import or render
+     * @param path
+     *         the path of the document
+     * @param resourceType
+     *         the resourceType of the document or null
+     * @param format
+     *         the format of the document or null
+     * @param duration
+     *         the duration of the request in milliseconds
+     * @param metrics
+     *         the metrics of the request
+     */
+    public void trace(final String operation, final String path, final String resourceType,
+        final String format, final long duration, final RequestMetrics metrics)
+    {
+        if (this.traceThreshold <= 0 || duration < this.traceThreshold
+            || this.slowCount.getAndIncrement() % this.traceSample != 0)
+        {
+            return;
+        }
+        final SlowRequest trace = new SlowRequest(operation, path, resourceType, format,
+            duration, metrics.getValues());
+        TRACE_LOG.info(trace.toString());
+        synchronized (this.traces)
+        {
+            this.traces.addLast(trace);
+            while (this.traces.size() > this.traceSize)
+            {
+                this.traces.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * @return the most recent traces of the slow requests, newest first
+     */
+    public List<SlowRequest> getSlowRequests()
+    {
+        final List<SlowRequest> recent;
+        synchronized (this.traces)
+        {
+            recent = new ArrayList<SlowRequest>(this.traces);
+        }
+        Collections.reverse(recent);
+        return recent;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public TabularData getMetrics()
+    {
+        try
+        {
+            final OpenType<?>[] types = new OpenType<?>[COLUMNS.length];
+            for (int i = 0; i < types.length; i++)
+            {
+                types[i] = (i < KEY_COLUMNS ? SimpleType.STRING : SimpleType.LONG);
+            }
+            types[5] = SimpleType.DOUBLE;
+            final CompositeType rowType = new CompositeType("metric", "ITS metric", COLUMNS,
+                COLUMNS, types);
+            final TabularDataSupport data = new TabularDataSupport(new TabularType("metrics",
+                "ITS metrics", rowType, new String[] { COLUMNS[0], COLUMNS[1], COLUMNS[2] }));
+            for (final Map.Entry<String, MetricHistogram> histogram : new TreeMap<String, MetricHistogram>(
+                this.histograms).entrySet())
+            {
+                final long[] statistics = histogram.getValue().getStatistics();
+                final String[] key = StringUtils.splitPreserveAllTokens(histogram.getKey(),
+                    SEPARATOR);
+                data.put(new CompositeDataSupport(rowType, COLUMNS, new Object[] { key[0],
+                    key[1], key[2], statistics[0], statistics[1],
+                    (statistics[0] > 0 ? (double) statistics[1] / statistics[0] : 0d),
+                    statistics[2], statistics[3], statistics[4], statistics[5],
+                    statistics[6] }));
+            }
+            return data;
+        }
+        catch (final OpenDataException e)
+        {
+            LOG.error("Failed to create the metrics. Stack Trace: ", e);
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSlowRequestCount()
+    {
+        return this.slowCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        this.histograms.clear();
+        synchronized (this.traces)
+        {
+            this.traces.clear();
+        }
+    }
+}
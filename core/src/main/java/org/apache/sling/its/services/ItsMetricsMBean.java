@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * The metrics of the imports and renders collected by {@link ItsMetrics}.
+ */
+public interface ItsMetricsMBean
+{
+    /**
+     * @return one row per metric, resourceType and format with the count,
+     *         sum, mean, minimum, maximum and the 50th, 95th and 99th
+     *         percentiles of the recorded values
+     */
+    TabularData getMetrics();
+
+    /**
+     * @return the number of requests that took longer than the trace
+     *         threshold, traced or not
+     */
+    long getSlowRequestCount();
+
+    /**
+     * Drop all recorded values and traces.
+     */
+    void reset();
+}
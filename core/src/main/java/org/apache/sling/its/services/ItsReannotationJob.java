@@ -0,0 +1,497 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.rules.ItsAnnotation;
+import org.apache.sling.its.rules.ItsAnnotator;
+import org.apache.sling.its.rules.ItsRuleSet;
+import org.apache.sling.its.utils.ItsIdUtils;
+import org.apache.sling.its.utils.ItsRulesUtils;
+import org.apache.sling.its.utils.ItsStatsUtils;
+import org.apache.sling.its.utils.JcrNodeUtils;
+import org.apache.sling.jcr.resource.JcrResourceUtil;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the annotations stored with the imported documents in line with the
+ * global rules. The job periodically compares the digest of the global rules
+ * of each resourceType with the digest every document was annotated with.
+ * The documents whose rules changed are re-annotated from their stored tree
+ * in parallel, only the nodes whose values change are written and the
+ * changes are saved in batches. The word counts of a re-annotated document
+ * are computed again. Documents whose rules have a selector the annotator
+ * does not support are left as imported, their digest is not updated. A
+ * document that is imported while it is re-annotated is left to the import,
+ * one that fails is re-annotated on the next run.
+ */
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.services.ItsReannotationJob", label = "ITS Re-annotation Job", description = "Re-annotates the stored documents when their global rules change")
+@Service(Runnable.class)
+@Properties({
+        @Property(name = "service.description", value = "ITS Re-annotation Job"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+        @Property(name = "scheduler.period", longValue = 60),
+        @Property(name = "scheduler.concurrent", boolValue = false, propertyPrivate = true),
+        @Property(name = ItsReannotationJob.THREADS, intValue = ItsReannotationJob.DEFAULT_THREADS),
+        @Property(name = ItsReannotationJob.BATCH_SIZE, intValue = ItsReannotationJob.DEFAULT_BATCH_SIZE) })
+public class ItsReannotationJob implements Runnable
+{
+    /** Property for the number of documents re-annotated in parallel. */
+    static final String THREADS = "its.reannotation.threads";
+    /** Default number of threads. */
+    static final int DEFAULT_THREADS = 4;
+    /** Property for the number of changed nodes saved at once. */
+    static final String BATCH_SIZE = "its.reannotation.batch.size";
+    /** Default batch size. */
+    static final int DEFAULT_BATCH_SIZE = 500;
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsReannotationJob.class);
+
+    /** The resource resolver factory. */
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+    /** Number of documents re-annotated in parallel. */
+    private int threads = DEFAULT_THREADS;
+    /** Number of changed nodes saved at once. */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Gets automatically invoked when the job is started or reconfigured.
+     *
+     * @param ctx
+     *            the component context
+     */
+    protected void activate(final ComponentContext ctx)
+    {
+        this.threads = Math.max(1, toInt(ctx.getProperties().get(THREADS), DEFAULT_THREADS));
+        this.batchSize = Math.max(1, toInt(ctx.getProperties().get(BATCH_SIZE),
+            DEFAULT_BATCH_SIZE));
+    }
+
+    /**
+     * @param value
+     *         a configuration value
+     * @param defaultValue
+     *         the value to use if it is missing or not a number
+     * @return the configured number
+     */
+    private static int toInt(final Object value, final int defaultValue)
+    {
+        return (value != null ? NumberUtils.toInt(value.toString(), defaultValue)
+            : defaultValue);
+    }
+
+    /**
+     * Find the documents whose global rules changed and re-annotate them.
+     */
+    public void run()
+    {
+        ResourceResolver resolver = null;
+        try
+        {
+            resolver = this.resolverFactory.getAdministrativeResourceResolver(null);
+            final List<String[]> documents = findOutdatedDocuments(resolver);
+            if (documents.isEmpty())
+            {
+                return;
+            }
+            LOG.info("Re-annotating " + documents.size()
+                + " document(s) after a change of their global rules.");
+            final long start = System.currentTimeMillis();
+            final AtomicLong visited = new AtomicLong();
+            final AtomicLong updated = new AtomicLong();
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                this.threads, documents.size()));
+            try
+            {
+                final List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (final String[] document : documents)
+                {
+                    futures.add(executor.submit(new Runnable()
+                    {
+                        public void run()
+                        {
+                            reannotate(document[0], document[1], document[2], visited, updated);
+                        }
+                    }));
+                }
+                int done = 0;
+                for (final Future<?> future : futures)
+                {
+                    future.get();
+                    done++;
+                    LOG.info(String.format("Re-annotation progress: %d/%d documents, %d nodes "
+                        + "visited, %d updated.", done, documents.size(), visited.get(),
+                        updated.get()));
+                }
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+            final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            LOG.info(String.format("Re-annotated %d document(s) in %d ms: %d nodes visited, "
+                + "%d updated, %.1f nodes/s.", documents.size(), elapsed, visited.get(),
+                updated.get(), visited.get() * 1000.0 / elapsed));
+        }
+        catch (final LoginException e)
+        {
+            LOG.error("Failed to login. Stack Trace: ", e);
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to access repository. Stack Trace: ", e);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (final ExecutionException e)
+        {
+            LOG.error("Re-annotation failed. Stack Trace: ", e.getCause());
+        }
+        finally
+        {
+            if (resolver != null)
+            {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Find the documents that were annotated with other rules than the
+     * current global rules of their resourceType. The documents of a
+     * resourceType whose rules have unsupported selectors are skipped.
+     *
+     * @param resolver
+     *         the resource resolver
+     * @return the target path, the resourceType and the current digest of
+     *         each outdated document
+     * @throws RepositoryException
+     *         if the index could not be read
+     */
+    private List<String[]> findOutdatedDocuments(final ResourceResolver resolver)
+        throws RepositoryException
+    {
+        final Session session = resolver.adaptTo(Session.class);
+        final List<String[]> documents = new ArrayList<String[]>();
+        if (!session.nodeExists(SlingItsConstants.ITS_INDEX_PATH))
+        {
+            return documents;
+        }
+        final Map<String, String> digests = new HashMap<String, String>();
+        final Map<String, Boolean> supported = new HashMap<String, Boolean>();
+        final NodeIterator indexes = JcrResourceUtil.query(
+            session,
+            "SELECT * FROM [nt:base] as t WHERE ISDESCENDANTNODE(["
+                + SlingItsConstants.ITS_INDEX_PATH + "]) AND t.["
+                + SlingItsConstants.ITS_INDEX_RESOURCE_TYPE + "] IS NOT NULL",
+            Query.JCR_SQL2).getNodes();
+        while (indexes.hasNext())
+        {
+            final Node index = indexes.nextNode();
+            final String resourceType = index.getProperty(
+                SlingItsConstants.ITS_INDEX_RESOURCE_TYPE).getString();
+            String digest = digests.get(resourceType);
+            if (digest == null)
+            {
+                digest = ItsRulesUtils.getRulesDigest(session, resourceType);
+                digests.put(resourceType, digest);
+            }
+            final String stored = (index.hasProperty(SlingItsConstants.ITS_INDEX_RULES_DIGEST)
+                ? index.getProperty(SlingItsConstants.ITS_INDEX_RULES_DIGEST).getString() : null);
+            final String docPath = index.getPath().substring(
+                SlingItsConstants.ITS_INDEX_PATH.length());
+            if (!digest.equals(stored) && session.nodeExists(docPath)
+                && isSupported(resolver, resourceType, supported))
+            {
+                documents.add(new String[] { docPath, resourceType, digest });
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Check if all the global rules of a resourceType have a selector the
+     * annotator supports. Skipped rules would drop the annotations the
+     * import stored for them.
+     *
+     * @param resolver
+     *         the resource resolver
+     * @param resourceType
+     *         the resourceType of the document
+     * @param supported
+     *         the result by resourceType, of this run
+     * @return true if the documents of the resourceType can be re-annotated
+     */
+    private boolean isSupported(final ResourceResolver resolver, final String resourceType,
+        final Map<String, Boolean> supported)
+    {
+        Boolean complete = supported.get(resourceType);
+        if (complete == null)
+        {
+            complete = ItsRuleSet.load(resolver, resourceType).isComplete();
+            supported.put(resourceType, complete);
+            if (!complete)
+            {
+                LOG.warn("The global rules of " + resourceType + " have unsupported "
+                    + "selectors, its documents are not re-annotated.");
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Re-annotate a document with its own resource resolver. The tree is
+     * walked depth first, the changed nodes are saved in batches and the
+     * digest is recorded once the whole document is done.
+     *
+     * The content digest of the document is checked before the walk, before
+     * each batch and before the digest is recorded. An import removes it
+     * until it is complete and replaces the tree, so a document that is
+     * being imported is left to the import. A document that is changed by
+     * another writer gets a new digest and is re-annotated on the next run,
+     * as is a document that fails, since its rules digest is not recorded.
+     * The word counts are always computed again as a failed run may have
+     * saved annotations without them.
+     *
+     * @param docPath
+     *         the target path of the document
+     * @param resourceType
+     *         the resourceType of the document
+     * @param digest
+     *         the digest of the rules the document is annotated with
+     * @param visited
+     *         counts the visited element nodes
+     * @param updated
+     *         counts the updated element nodes
+     */
+    private void reannotate(final String docPath, final String resourceType,
+        final String digest, final AtomicLong visited, final AtomicLong updated)
+    {
+        ResourceResolver resolver = null;
+        Session session = null;
+        try
+        {
+            resolver = this.resolverFactory.getAdministrativeResourceResolver(null);
+            session = resolver.adaptTo(Session.class);
+            JcrNodeUtils.setItsUserData(session);
+            final String contentDigest = getContentDigest(session, docPath);
+            if (contentDigest == null)
+            {
+                LOG.info(docPath + " is being imported, it is not re-annotated.");
+                return;
+            }
+            final Resource root = ItsIdUtils.getRootElement(resolver.getResource(docPath));
+            final ItsAnnotator annotator = ItsAnnotator.forDocument(resolver, root, false);
+            if (!annotator.isComplete())
+            {
+                // skipped rules would drop their annotations, the import keeps them.
+                LOG.warn("The global rules of " + resourceType + " have unsupported "
+                    + "selectors, " + docPath + " is not re-annotated.");
+                return;
+            }
+            int pending = 0;
+
+            // the stack holds the children still to visit of each open element.
+            final Deque<Iterator<Resource>> stack = new ArrayDeque<Iterator<Resource>>();
+            pending += annotate(annotator.enter(root), session);
+            stack.push(root.listChildren());
+            visited.incrementAndGet();
+            while (!stack.isEmpty())
+            {
+                final Iterator<Resource> children = stack.peek();
+                if (!children.hasNext())
+                {
+                    stack.pop();
+                    annotator.leave();
+                    continue;
+                }
+                final Resource child = children.next();
+                if (child.getName().startsWith(SlingItsConstants.TEXT_CONTENT_NODE)
+                    || ItsAnnotator.isRules(child))
+                {
+                    continue;
+                }
+                pending += annotate(annotator.enter(child), session);
+                stack.push(child.listChildren());
+                visited.incrementAndGet();
+                if (pending >= this.batchSize)
+                {
+                    if (!isUnchanged(session, docPath, contentDigest))
+                    {
+                        return;
+                    }
+                    session.save();
+                    updated.addAndGet(pending);
+                    pending = 0;
+                }
+            }
+            ItsStatsUtils.recompute(session, docPath);
+            if (!isUnchanged(session, docPath, contentDigest))
+            {
+                return;
+            }
+            session.getNode(ItsIdUtils.getIndexPath(docPath)).getParent().setProperty(
+                SlingItsConstants.ITS_INDEX_RULES_DIGEST, digest);
+            session.save();
+            updated.addAndGet(pending);
+        }
+        catch (final LoginException e)
+        {
+            LOG.error("Failed to login. Stack Trace: ", e);
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to re-annotate " + docPath
+                + ", it is re-annotated on the next run. Stack Trace: ", e);
+        }
+        finally
+        {
+            discard(session);
+            if (resolver != null)
+            {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Get the content digest of a document, it is only missing while the
+     * document is being imported.
+     *
+     * @param session
+     *         the session
+     * @param docPath
+     *         the target path of the document
+     * @return the content digest or null
+     * @throws RepositoryException
+     *         if the target node could not be read
+     */
+    private static String getContentDigest(final Session session, final String docPath)
+        throws RepositoryException
+    {
+        if (!session.nodeExists(docPath))
+        {
+            return null;
+        }
+        final Node target = session.getNode(docPath);
+        return (target.hasProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST) ? target
+            .getProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST).getString() : null);
+    }
+
+    /**
+     * Check that the document was not imported since the re-annotation
+     * started. The changes saved by other sessions are read, the pending
+     * changes are kept.
+     *
+     * @param session
+     *         the session
+     * @param docPath
+     *         the target path of the document
+     * @param contentDigest
+     *         the content digest read before the walk
+     * @return true if the re-annotation can go on
+     * @throws RepositoryException
+     *         if the target node could not be read
+     */
+    private static boolean isUnchanged(final Session session, final String docPath,
+        final String contentDigest) throws RepositoryException
+    {
+        session.refresh(true);
+        if (contentDigest.equals(getContentDigest(session, docPath)))
+        {
+            return true;
+        }
+        LOG.info(docPath + " was imported or changed during its re-annotation, the "
+            + "re-annotation is discarded.");
+        return false;
+    }
+
+    /**
+     * Discard the changes that were not saved.
+     *
+     * @param session
+     *         the session or null
+     */
+    private static void discard(final Session session)
+    {
+        if (session == null)
+        {
+            return;
+        }
+        try
+        {
+            session.refresh(false);
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to discard the pending changes. Stack Trace: ", e);
+        }
+    }
+
+    /**
+     * Store the annotation on the node of the element if it changed.
+     *
+     * @param annotation
+     *         the annotation of the element
+     * @param session
+     *         the session
+     * @return 1 if the node was changed, 0 otherwise
+     * @throws RepositoryException
+     *         if the node could not be updated
+     */
+    private int annotate(final ItsAnnotation annotation, final Session session)
+        throws RepositoryException
+    {
+        return (annotation.store(session.getNode(annotation.getResource().getPath())) ? 1 : 0);
+    }
+}
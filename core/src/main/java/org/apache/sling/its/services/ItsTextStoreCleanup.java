@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.utils.ItsTextUtils;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes the texts of the text store that are no longer referenced by any
+ * text-content-node. The job first collects the hashes of all references and
+ * then removes the stored texts that are not among them. Texts that were
+ * stored or referenced within the grace period are kept, so texts of imports
+ * that are still running are not removed.
+ */
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.services.ItsTextStoreCleanup", label = "ITS Text Store Cleanup", description = "Removes the texts of the text store that are no longer referenced")
+@Service(Runnable.class)
+@Properties({
+        @Property(name = "service.description", value = "ITS Text Store Cleanup"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+        @Property(name = "scheduler.period", longValue = 3600),
+        @Property(name = "scheduler.concurrent", boolValue = false, propertyPrivate = true),
+        @Property(name = ItsTextStoreCleanup.GRACE_PERIOD, longValue = ItsTextStoreCleanup.DEFAULT_GRACE_PERIOD),
+        @Property(name = ItsTextStoreCleanup.BATCH_SIZE, intValue = ItsTextStoreCleanup.DEFAULT_BATCH_SIZE) })
+public class ItsTextStoreCleanup implements Runnable
+{
+    /** Property for the number of seconds a new or referenced text is kept. */
+    static final String GRACE_PERIOD = "its.text.store.grace.period";
+    /** Default grace period, one day. */
+    static final long DEFAULT_GRACE_PERIOD = 24L * 60L * 60L;
+    /** Property for the number of removed texts saved at once. */
+    static final String BATCH_SIZE = "its.text.store.batch.size";
+    /** Default batch size. */
+    static final int DEFAULT_BATCH_SIZE = 500;
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsTextStoreCleanup.class);
+
+    /** The resource resolver factory. */
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+    /** Number of milliseconds a new or referenced text is kept. */
+    private long gracePeriod = DEFAULT_GRACE_PERIOD * 1000L;
+    /** Number of removed texts saved at once. */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Gets automatically invoked when the job is started or reconfigured.
+     *
+     * @param ctx
+     *            the component context
+     */
+    protected void activate(final ComponentContext ctx)
+    {
+        final Object grace = ctx.getProperties().get(GRACE_PERIOD);
+        // a referenced text is stamped again only once per touch interval.
+        this.gracePeriod = Math.max(ItsTextUtils.TOUCH_INTERVAL, (grace != null ? NumberUtils
+            .toLong(grace.toString(), DEFAULT_GRACE_PERIOD) : DEFAULT_GRACE_PERIOD) * 1000L);
+        final Object batch = ctx.getProperties().get(BATCH_SIZE);
+        this.batchSize = Math.max(1, (batch != null ? NumberUtils.toInt(batch.toString(),
+            DEFAULT_BATCH_SIZE) : DEFAULT_BATCH_SIZE));
+    }
+
+    /**
+     * Remove the stored texts that are no longer referenced.
+     */
+    public void run()
+    {
+        ResourceResolver resolver = null;
+        try
+        {
+            resolver = this.resolverFactory.getAdministrativeResourceResolver(null);
+            final Session session = resolver.adaptTo(Session.class);
+            if (!session.nodeExists(SlingItsConstants.ITS_TEXT_STORE_PATH))
+            {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            final Set<String> referenced = findReferences(session);
+            int kept = 0;
+            int removed = 0;
+            final NodeIterator buckets = session.getNode(
+                SlingItsConstants.ITS_TEXT_STORE_PATH).getNodes();
+            while (buckets.hasNext())
+            {
+                final NodeIterator texts = buckets.nextNode().getNodes();
+                while (texts.hasNext())
+                {
+                    final Node text = texts.nextNode();
+                    if (referenced.contains(text.getName()) || isRecent(text, start))
+                    {
+                        kept++;
+                    }
+                    else
+                    {
+                        text.remove();
+                        if (++removed % this.batchSize == 0)
+                        {
+                            session.save();
+                        }
+                    }
+                }
+            }
+            session.save();
+            LOG.info(String.format("Text store cleanup: %d text(s) removed, %d kept, "
+                + "%d reference(s) in %d ms.", removed, kept, referenced.size(), System
+                .currentTimeMillis() - start));
+        }
+        catch (final LoginException e)
+        {
+            LOG.error("Failed to login. Stack Trace: ", e);
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to access repository. Stack Trace: ", e);
+        }
+        finally
+        {
+            if (resolver != null)
+            {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Collect the hashes referenced by the text-content-nodes.
+     *
+     * @param session
+     *         the session
+     * @return the referenced hashes
+     * @throws RepositoryException
+     *         if the references could not be queried
+     */
+    private Set<String> findReferences(final Session session) throws RepositoryException
+    {
+        final Set<String> referenced = new HashSet<String>();
+        final Query query = session.getWorkspace().getQueryManager().createQuery(
+            "SELECT * FROM [nt:base] AS t WHERE t.[" + SlingItsConstants.SLING_ITS_TEXT_REF
+                + "] IS NOT NULL", Query.JCR_SQL2);
+        final NodeIterator nodes = query.execute().getNodes();
+        while (nodes.hasNext())
+        {
+            referenced.add(nodes.nextNode().getProperty(SlingItsConstants.SLING_ITS_TEXT_REF)
+                .getString());
+        }
+        return referenced;
+    }
+
+    /**
+     * @param text
+     *         a stored text
+     * @param start
+     *         the start of the cleanup
+     * @return true if the text was stored or referenced within the grace
+     *         period
+     * @throws RepositoryException
+     *         if the time could not be read
+     */
+    private boolean isRecent(final Node text, final long start) throws RepositoryException
+    {
+        return text.hasProperty(SlingItsConstants.SLING_ITS_MODIFIED)
+            && text.getProperty(SlingItsConstants.SLING_ITS_MODIFIED).getLong() >= start
+                - this.gracePeriod;
+    }
+}
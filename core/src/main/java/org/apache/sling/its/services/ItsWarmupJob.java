@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.io.output.NullWriter;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.its.render.XliffRenderer;
+import org.apache.sling.its.rules.IncompleteRulesException;
+import org.apache.sling.its.servlets.ItsServlet;
+import org.apache.sling.its.traversal.DepthLimitExceededException;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pre-renders the documents that were just imported or merged, so the first
+ * requests for them do not pay for the cold reads. The import servlet
+ * schedules the target path of every import, the job renders the scheduled
+ * documents on its next run. The default .its.xml and .its.html
+ * representations are rendered into the render cache of the ItsServlet, see
+ * ItsServlet.prerender, where they stay until the document or its rules
+ * change. Without the servlet or its cache, the document is rendered to XLIFF and the
+ * output discarded. Either way every node of the document, the global rules
+ * of its resourceType and the texts of the text store are read, which fills
+ * the repository caches and the text cache the requests are served from.
+ *
+ * The job runs on threads of the lowest priority, renders at most
+ * its.warmup.max.documents per run and pauses after every document so its
+ * threads stay busy for no more than its.warmup.cpu.percent of the time.
+ * Documents that were not rendered in a run are kept for the next one.
+ */
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.services.ItsWarmupJob", label = "ITS Warm-up Job", description = "Pre-renders the imported documents at low priority")
+@Service({ Runnable.class, ItsWarmupJob.class })
+@Properties({
+        @Property(name = "service.description", value = "ITS Warm-up Job"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+        @Property(name = "scheduler.period", longValue = 30),
+        @Property(name = "scheduler.concurrent", boolValue = false, propertyPrivate = true),
+        @Property(name = ItsWarmupJob.ENABLED, boolValue = false),
+        @Property(name = ItsWarmupJob.THREADS, intValue = ItsWarmupJob.DEFAULT_THREADS),
+        @Property(name = ItsWarmupJob.CPU_PERCENT, intValue = ItsWarmupJob.DEFAULT_CPU_PERCENT),
+        @Property(name = ItsWarmupJob.MAX_DOCUMENTS, intValue = ItsWarmupJob.DEFAULT_MAX_DOCUMENTS) })
+public class ItsWarmupJob implements Runnable
+{
+    /** Property to enable the warm-up. */
+    static final String ENABLED = "its.warmup.enabled";
+    /** Property for the number of documents rendered in parallel. */
+    static final String THREADS = "its.warmup.threads";
+    /** Default number of threads. */
+    static final int DEFAULT_THREADS = 1;
+    /** Property for the share of the time a warm-up thread may be busy, in percent. */
+    static final String CPU_PERCENT = "its.warmup.cpu.percent";
+    /** Default share of the time a warm-up thread may be busy. */
+    static final int DEFAULT_CPU_PERCENT = 25;
+    /** Property for the number of documents rendered per run. */
+    static final String MAX_DOCUMENTS = "its.warmup.max.documents";
+    /** Default number of documents rendered per run. */
+    static final int DEFAULT_MAX_DOCUMENTS = 100;
+    /** Maximum number of scheduled documents, further ones are dropped. */
+    private static final int MAX_PENDING = 10000;
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsWarmupJob.class);
+
+    /** The resource resolver factory. */
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+    /** The servlet whose render cache is filled, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile ItsServlet itsServlet;
+    /** The paths of the documents to render, in the order they were scheduled. */
+    private final Set<String> pending = new LinkedHashSet<String>();
+    /** True if the warm-up is enabled. */
+    private boolean enabled;
+    /** Number of documents rendered in parallel. */
+    private int threads = DEFAULT_THREADS;
+    /** Share of the time a warm-up thread may be busy, in percent. */
+    private int cpuPercent = DEFAULT_CPU_PERCENT;
+    /** Number of documents rendered per run. */
+    private int maxDocuments = DEFAULT_MAX_DOCUMENTS;
+
+    /**
+     * Gets automatically invoked when the job is started or reconfigured.
+     *
+     * @param ctx
+     *            the component context
+     */
+    protected void activate(final ComponentContext ctx)
+    {
+        this.enabled = Boolean.valueOf(String.valueOf(ctx.getProperties().get(ENABLED)));
+        this.threads = Math.max(1, NumberUtils.toInt(String.valueOf(ctx.getProperties().get(
+            THREADS)), DEFAULT_THREADS));
+        this.cpuPercent = Math.min(100, Math.max(1, NumberUtils.toInt(String.valueOf(ctx
+            .getProperties().get(CPU_PERCENT)), DEFAULT_CPU_PERCENT)));
+        this.maxDocuments = Math.max(1, NumberUtils.toInt(String.valueOf(ctx.getProperties()
+            .get(MAX_DOCUMENTS)), DEFAULT_MAX_DOCUMENTS));
+    }
+
+    /**
+     * Schedule a document to be rendered on the next run. Nothing is
+     * scheduled if the warm-up is disabled.
+     *
+     * @param docPath
+     *         the target path of the import
+     */
+    public void schedule(final String docPath)
+    {
+        if (!this.enabled)
+        {
+            return;
+        }
+        synchronized (this.pending)
+        {
+            if (this.pending.size() < MAX_PENDING)
+            {
+                this.pending.add(docPath);
+            }
+            else
+            {
+                LOG.warn("Too many documents scheduled for warm-up, skipping: " + docPath);
+            }
+        }
+    }
+
+    /**
+     * Render the documents scheduled since the last run.
+     */
+    public void run()
+    {
+        final List<String> documents = takePending();
+        if (documents.isEmpty())
+        {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final AtomicInteger rendered = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.threads,
+            documents.size()), new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, "its-warmup");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        try
+        {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final String docPath : documents)
+            {
+                futures.add(executor.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        if (warmup(docPath))
+                        {
+                            rendered.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (final Future<?> future : futures)
+            {
+                future.get();
+            }
+            LOG.info(String.format("Warmed up %d of %d document(s) in %d ms.", rendered.get(),
+                documents.size(), System.currentTimeMillis() - start));
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (final ExecutionException e)
+        {
+            LOG.error("Warm-up failed. Stack Trace: ", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return up to maxDocuments of the scheduled documents, they are no
+     *         longer scheduled
+     */
+    private List<String> takePending()
+    {
+        final List<String> documents = new ArrayList<String>();
+        synchronized (this.pending)
+        {
+            final Iterator<String> iter = this.pending.iterator();
+            while (iter.hasNext() && documents.size() < this.maxDocuments)
+            {
+                documents.add(iter.next());
+                iter.remove();
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Render a document into the render cache, or to XLIFF discarding the
+     * output if the servlet or its cache is not available. The thread pauses afterwards
+     * in proportion to the time the rendering took to keep to the CPU share.
+     * A failure is logged and does not affect the other documents.
+     *
+     * @param docPath
+     *         the target path of the document
+     * @return true if the document was rendered
+     */
+    private boolean warmup(final String docPath)
+    {
+        ResourceResolver resolver = null;
+        final long start = System.currentTimeMillis();
+        try
+        {
+            resolver = this.resolverFactory.getAdministrativeResourceResolver(null);
+            final Resource resource = resolver.getResource(docPath);
+            if (resource == null)
+            {
+                return false;
+            }
+            final ItsServlet servlet = this.itsServlet;
+            if (servlet != null && servlet.isPrerendering())
+            {
+                servlet.prerender(resource);
+            }
+            else
+            {
+                new XliffRenderer(resolver).render(resource, new NullWriter(), null, null);
+            }
+            return true;
+        }
+        catch (final LoginException e)
+        {
+            LOG.error("Failed to login. Stack Trace: ", e);
+        }
+        catch (final XMLStreamException e)
+        {
+            LOG.error("Failed to warm up " + docPath + ". Stack Trace: ", e);
+        }
+        catch (final DepthLimitExceededException e)
+        {
+            LOG.error("Failed to warm up " + docPath + ". Stack Trace: ", e);
+        }
+        catch (final IncompleteRulesException e)
+        {
+            LOG.warn("Failed to warm up " + docPath + ": " + e.getMessage());
+        }
+        catch (final RuntimeException e)
+        {
+            LOG.error("Failed to warm up " + docPath + ". Stack Trace: ", e);
+        }
+        finally
+        {
+            if (resolver != null)
+            {
+                resolver.close();
+            }
+            pause(System.currentTimeMillis() - start);
+        }
+        return false;
+    }
+
+    /**
+     * Pause the current thread so the time it was busy is no more than the
+     * CPU share of the elapsed time.
+     *
+     * @param busy
+     *         the time the thread was busy in milliseconds
+     */
+    private void pause(final long busy)
+    {
+        final long idle = busy * (100 - this.cpuPercent) / this.cpuPercent;
+        if (idle > 0)
+        {
+            try
+            {
+                Thread.sleep(idle);
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
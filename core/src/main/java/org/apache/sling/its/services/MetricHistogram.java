@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.util.Arrays;
+
+/**
+ * The distribution of the values of one metric. Count, sum, minimum and
+ * maximum cover all recorded values, the percentiles are computed from the
+ * most recent values only, so they follow the current behaviour instead of
+ * averaging over the whole uptime.
+ */
+public final class MetricHistogram
+{
+    /** Default number of recent values the percentiles are computed from. */
+    public static final int DEFAULT_WINDOW = 1024;
+
+    /** The most recent values, a ring. */
+    private final long[] window;
+    /** Index of the next value in the ring. */
+    private int next;
+    /** Number of recorded values. */
+    private long count;
+    /** Sum of the recorded values. */
+    private long sum;
+    /** Smallest recorded value. */
+    private long min = Long.MAX_VALUE;
+    /** Largest recorded value. */
+    private long max = Long.MIN_VALUE;
+
+    /**
+     * Constructor.
+     *
+     * @param windowSize
+     *         number of recent values the percentiles are computed from
+     */
+    public MetricHistogram(final int windowSize)
+    {
+        this.window = new long[Math.max(1, windowSize)];
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value
+     *         the value
+     */
+    public synchronized void record(final long value)
+    {
+        this.window[this.next] = value;
+        this.next = (this.next + 1) % this.window.length;
+        this.count++;
+        this.sum += value;
+        this.min = Math.min(this.min, value);
+        this.max = Math.max(this.max, value);
+    }
+
+    /**
+     * @return the count, sum, minimum, maximum and the 50th, 95th and 99th
+     *         percentiles, all 0 if nothing was recorded
+     */
+    public synchronized long[] getStatistics()
+    {
+        if (this.count == 0)
+        {
+            return new long[7];
+        }
+        final long[] recent = Arrays.copyOf(this.window, (int) Math.min(this.count,
+            this.window.length));
+        Arrays.sort(recent);
+        return new long[] { this.count, this.sum, this.min, this.max,
+            percentile(recent, 0.5), percentile(recent, 0.95), percentile(recent, 0.99) };
+    }
+
+    /**
+     * Get the nearest-rank percentile.
+     *
+     * @param sorted
+     *         the sorted values, not empty
+     * @param p
+     *         the percentile between 0 and 1
+     * @return the smallest value not exceeded by p of the values
+     */
+    private static long percentile(final long[] sorted, final double p)
+    {
+        final int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JDK Flight Recorder event for a phase of an import or a render, tagged
+ * with the path and the resourceType of the document and the number of nodes
+ * and bytes the phase handled, 0 if not known. Profiles can so be sliced by
+ * document.
+ *
+ * The bundle is built for Java 7, so the event type cannot extend
+ * jdk.jfr.Event. It is defined at runtime with jdk.jfr.EventFactory, which is
+ * available from Java 12 on, and the events are driven by reflection. The
+ * classes are loaded from the system class loader, so the bundle does not
+ * import jdk.jfr. On older runtimes, and while the event is not enabled in a
+ * recording, {@link #begin(String, String)} returns an inert event and a
+ * phase only pays for one check.
+ */
+public final class PhaseEvent
+{
+    /** Name of the event type. */
+    public static final String NAME = "org.apache.sling.its.Phase";
+    /** Operation of the import phases. */
+    public static final String IMPORT = "import";
+    /** Operation of the render phases. */
+    public static final String RENDER = "render";
+    /** Phase writing the upload to a temporary file. */
+    public static final String SPOOL = "spool";
+    /** Phase parsing the document. */
+    public static final String PARSE = "parse";
+    /** Phase applying the ITS rules to the document. */
+    public static final String APPLY_RULES = "applyRules";
+    /** Phase storing the nodes of the document. */
+    public static final String STORE = "store";
+    /** Phase saving a batch of nodes. */
+    public static final String SAVE = "save";
+    /** Phase walking the resources of the document. */
+    public static final String TRAVERSAL = "traversal";
+    /** Phase looking up the global rules of the document. */
+    public static final String RULES = "rules";
+    /** Phase writing the rendered document. */
+    public static final String SERIALIZE = "serialize";
+
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(PhaseEvent.class);
+    /** The event type, null if the runtime has no Flight Recorder. */
+    private static final EventType TYPE = EventType.create();
+    /** The event returned while no event is recorded. */
+    private static final PhaseEvent INERT = new PhaseEvent(null, null, null);
+
+    /** The jdk.jfr.Event or null if the event is inert. */
+    private final Object event;
+    /** The operation. */
+    private final String operation;
+    /** The phase. */
+    private final String phase;
+
+    /**
+     * Constructor.
+     *
+     * @param event
+     *         the jdk.jfr.Event or null
+     * @param operation
+     *         the operation
+     * @param phase
+     *         the phase
+     */
+    private PhaseEvent(final Object event, final String operation, final String phase)
+    {
+        this.event = event;
+        this.operation = operation;
+        this.phase = phase;
+    }
+
+    /**
+     * Begin the event of a phase.
+     *
+     * @param operation
+     *         the operation, {@link #IMPORT} or {@link #RENDER}
+     * @param phase
+     *         the phase
+     * @return the event, inert if it is not recorded
+     */
+    public static PhaseEvent begin(final String operation, final String phase)
+    {
+        final EventType type = TYPE;
+        if (type == null)
+        {
+            return INERT;
+        }
+        final Object event = type.begin();
+        return (event != null ? new PhaseEvent(event, operation, phase) : INERT);
+    }
+
+    /**
+     * @return true if the event is recorded, false if it is inert
+     */
+    public boolean isRecorded()
+    {
+        return this.event != null;
+    }
+
+    /**
+     * End the phase and commit the event, if it lasted longer than the
+     * threshold of the recording.
+     *
+     * @param path
+     *         the path of the document
+     * @param resourceType
+     *         the resourceType of the document or null
+     * @param nodes
+     *         the number of nodes, 0 if not known
+     * @param bytes
+     *         the number of bytes, 0 if not known
+     */
+    public void commit(final String path, final String resourceType, final long nodes,
+        final long bytes)
+    {
+        if (this.event != null)
+        {
+            TYPE.commit(this.event, new Object[] {this.operation, this.phase, path,
+                resourceType, nodes, bytes });
+        }
+    }
+
+    /**
+     * The reflective handles of the event type.
+     */
+    private static final class EventType
+    {
+        /** An event to check whether the type is enabled. */
+        private final Object probe;
+        /** EventFactory.newEvent(). */
+        private final Method newEvent;
+        /** Event.isEnabled(). */
+        private final Method isEnabled;
+        /** Event.begin(). */
+        private final Method begin;
+        /** Event.end(). */
+        private final Method end;
+        /** Event.shouldCommit(). */
+        private final Method shouldCommit;
+        /** Event.set(int, Object). */
+        private final Method set;
+        /** Event.commit(). */
+        private final Method commit;
+        /** The event factory. */
+        private final Object factory;
+        /** Whether the Flight Recorder failed and the events are dropped. */
+        private volatile boolean failed;
+
+        /**
+         * Constructor.
+         *
+         * @param factoryClass
+         *         the jdk.jfr.EventFactory class
+         * @param eventClass
+         *         the jdk.jfr.Event class
+         * @param factory
+         *         the event factory
+         * @throws ReflectiveOperationException
+         *         if the event methods are not found
+         */
+        private EventType(final Class<?> factoryClass, final Class<?> eventClass,
+            final Object factory) throws ReflectiveOperationException
+        {
+            this.factory = factory;
+            this.newEvent = factoryClass.getMethod("newEvent");
+            this.isEnabled = eventClass.getMethod("isEnabled");
+            this.begin = eventClass.getMethod("begin");
+            this.end = eventClass.getMethod("end");
+            this.shouldCommit = eventClass.getMethod("shouldCommit");
+            this.set = eventClass.getMethod("set", int.class, Object.class);
+            this.commit = eventClass.getMethod("commit");
+            this.probe = this.newEvent.invoke(factory);
+        }
+
+        /**
+         * Define and register the event type.
+         *
+         * @return the event type or null if the runtime has no Flight
+         *         Recorder
+         */
+        private static EventType create()
+        {
+            final ClassLoader loader = ClassLoader.getSystemClassLoader();
+            try
+            {
+                final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory", true, loader);
+                final Class<?> eventClass = Class.forName("jdk.jfr.Event", true, loader);
+                final Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement",
+                    true, loader).getConstructor(Class.class, Object.class);
+                final Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor", true,
+                    loader).getConstructor(Class.class, String.class, List.class);
+                final Class<?> label = Class.forName("jdk.jfr.Label", true, loader);
+
+                final List<Object> annotations = new ArrayList<Object>();
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name", true,
+                    loader), NAME));
+                annotations.add(annotation.newInstance(label, "ITS Phase"));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Description",
+                    true, loader), "A phase of an ITS import or render"));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category", true,
+                    loader), new String[] {"Apache Sling", "ITS" }));
+
+                final List<Object> fields = new ArrayList<Object>();
+                fields.add(field.newInstance(String.class, "operation", labels(annotation,
+                    label, "Operation")));
+                fields.add(field.newInstance(String.class, "phase", labels(annotation, label,
+                    "Phase")));
+                fields.add(field.newInstance(String.class, "path", labels(annotation, label,
+                    "Path")));
+                fields.add(field.newInstance(String.class, "resourceType", labels(annotation,
+                    label, "Resource Type")));
+                fields.add(field.newInstance(long.class, "nodes", labels(annotation, label,
+                    "Nodes")));
+                final List<Object> bytes = labels(annotation, label, "Bytes");
+                bytes.add(annotation.newInstance(Class.forName("jdk.jfr.DataAmount", true,
+                    loader), "BYTES"));
+                fields.add(field.newInstance(long.class, "bytes", bytes));
+
+                final Object factory = factoryClass.getMethod("create", List.class,
+                    List.class).invoke(null, annotations, fields);
+                factoryClass.getMethod("register").invoke(factory);
+                return new EventType(factoryClass, eventClass, factory);
+            }
+            catch (final ClassNotFoundException e)
+            {
+                LOG.debug("The Flight Recorder events are not available on this runtime.");
+            }
+            catch (final Exception e)
+            {
+                LOG.warn("Failed to define the Flight Recorder events. Stack Trace: ", e);
+            }
+            return null;
+        }
+
+        /**
+         * @param annotation
+         *         the AnnotationElement constructor
+         * @param label
+         *         the jdk.jfr.Label class
+         * @param value
+         *         the label
+         * @return the annotations of a field, holding its label
+         * @throws ReflectiveOperationException
+         *         if the annotation could not be created
+         */
+        private static List<Object> labels(final Constructor<?> annotation,
+            final Class<?> label, final String value) throws ReflectiveOperationException
+        {
+            final List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation.newInstance(label, value));
+            return annotations;
+        }
+
+        /**
+         * Begin an event.
+         *
+         * @return the jdk.jfr.Event or null if the event is not enabled
+         */
+        private Object begin()
+        {
+            if (this.failed)
+            {
+                return null;
+            }
+            try
+            {
+                if (!((Boolean) this.isEnabled.invoke(this.probe)).booleanValue())
+                {
+                    return null;
+                }
+                final Object event = this.newEvent.invoke(this.factory);
+                this.begin.invoke(event);
+                return event;
+            }
+            catch (final Exception e)
+            {
+                fail(e);
+                return null;
+            }
+        }
+
+        /**
+         * End an event and commit it with its values, if it is to be
+         * committed.
+         *
+         * @param event
+         *         the jdk.jfr.Event
+         * @param values
+         *         the values of the fields, in the order they are defined
+         */
+        private void commit(final Object event, final Object[] values)
+        {
+            try
+            {
+                this.end.invoke(event);
+                if (((Boolean) this.shouldCommit.invoke(event)).booleanValue())
+                {
+                    for (int i = 0; i < values.length; i++)
+                    {
+                        this.set.invoke(event, i, values[i]);
+                    }
+                    this.commit.invoke(event);
+                }
+            }
+            catch (final Exception e)
+            {
+                fail(e);
+            }
+        }
+
+        /**
+         * Drop the events after the Flight Recorder failed, the phases must
+         * not fail for it.
+         *
+         * @param e
+         *         the failure
+         */
+        private void fail(final Exception e)
+        {
+            if (!this.failed)
+            {
+                this.failed = true;
+                LOG.warn("Failed to record a Flight Recorder event, the events are dropped. "
+                    + "Stack Trace: ", e);
+            }
+        }
+    }
+}
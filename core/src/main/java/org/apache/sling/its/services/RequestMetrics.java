@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The counters and timers of one import or render request, recorded with
+ * the {@link ItsMetrics} once the request finished. Render threads of a
+ * parallel render add to the metrics of their request, so the updates are
+ * synchronized. Times are added in nanoseconds and read in milliseconds.
+ * The metrics can be sent to the client as a Server-Timing header.
+ */
+public final class RequestMetrics
+{
+    /** The counters by name, in the order they were first added. */
+    private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    /** The times by name in nanoseconds, in the order they were first added. */
+    private final Map<String, Long> times = new LinkedHashMap<String, Long>();
+
+    /**
+     * Add to a counter.
+     *
+     * @param name
+     *         the name of the counter
+     * @param delta
+     *         the amount to add
+     */
+    public synchronized void add(final String name, final long delta)
+    {
+        final Long value = this.counters.get(name);
+        this.counters.put(name, (value != null ? value.longValue() : 0L) + delta);
+    }
+
+    /**
+     * Add the time elapsed since start to a timer.
+     *
+     * @param name
+     *         the name of the timer
+     * @param start
+     *         the start as returned by {@link System#nanoTime()}
+     */
+    public synchronized void addTime(final String name, final long start)
+    {
+        final Long value = this.times.get(name);
+        this.times.put(name, (value != null ? value.longValue() : 0L) + System.nanoTime()
+            - start);
+    }
+
+    /**
+     * @param name
+     *         the name of the counter
+     * @return the value of the counter, 0 if it was not added to
+     */
+    public synchronized long get(final String name)
+    {
+        final Long value = this.counters.get(name);
+        return (value != null ? value.longValue() : 0L);
+    }
+
+    /**
+     * Get the value of a Server-Timing header. Every time becomes a metric
+     * with its duration in milliseconds, every counter a metric with the
+     * count as its description, e.g.
+     * traversalTime;dur=12.5, queries;desc="3".
+     *
+     * @return the Server-Timing header value, empty if there are no metrics
+     */
+    public synchronized String getServerTiming()
+    {
+        final StringBuilder header = new StringBuilder();
+        for (final Map.Entry<String, Long> time : this.times.entrySet())
+        {
+            header.append(header.length() > 0 ? ", " : "").append(time.getKey()).append(
+                ";dur=").append(String.format(Locale.ROOT, "%.1f",
+                time.getValue() / 1000000d));
+        }
+        for (final Map.Entry<String, Long> counter : this.counters.entrySet())
+        {
+            header.append(header.length() > 0 ? ", " : "").append(counter.getKey()).append(
+                ";desc=\"").append(counter.getValue()).append('"');
+        }
+        return header.toString();
+    }
+
+    /**
+     * @return the counters and the times in milliseconds by name
+     */
+    public synchronized Map<String, Long> getValues()
+    {
+        final Map<String, Long> values = new LinkedHashMap<String, Long>(this.counters);
+        for (final Map.Entry<String, Long> time : this.times.entrySet())
+        {
+            values.put(time.getKey(), TimeUnit.NANOSECONDS.toMillis(time.getValue()));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The trace of a request that took longer than the trace threshold of the
+ * {@link ItsMetrics}, with all its counters and timers.
+ */
+public final class SlowRequest
+{
+    /** The time the request finished in milliseconds. */
+    private final long time;
+    /** The operation, e.g. import or render. */
+    private final String operation;
+    /** The path of the document. */
+    private final String path;
+    /** The resourceType of the document or null. */
+    private final String resourceType;
+    /** The format of the document or null. */
+    private final String format;
+    /** The duration of the request in milliseconds. */
+    private final long duration;
+    /** The counters and the times in milliseconds by name. */
+    private final Map<String, Long> values;
+
+    /**
+     * Constructor.
+     *
+     * @param operation
+     *         the operation, e.g. import or render
+     * @param path
+     *         the path of the document
+     * @param resourceType
+     *         the resourceType of the document or null
+     * @param format
+     *         the format of the document or null
+     * @param duration
+     *         the duration of the request in milliseconds
+     * @param values
+     *         the counters and the times in milliseconds by name
+     */
+    public SlowRequest(final String operation, final String path, final String resourceType,
+        final String format, final long duration, final Map<String, Long> values)
+    {
+        this.time = System.currentTimeMillis();
+        this.operation = operation;
+        this.path = path;
+        this.resourceType = resourceType;
+        this.format = format;
+        this.duration = duration;
+        this.values = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(values));
+    }
+
+    /**
+     * @return the time the request finished in milliseconds
+     */
+    public long getTime()
+    {
+        return this.time;
+    }
+
+    /**
+     * @return the operation, e.g. import or render
+     */
+    public String getOperation()
+    {
+        return this.operation;
+    }
+
+    /**
+     * @return the path of the document
+     */
+    public String getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     * @return the resourceType of the document or null
+     */
+    public String getResourceType()
+    {
+        return this.resourceType;
+    }
+
+    /**
+     * @return the format of the document or null
+     */
+    public String getFormat()
+    {
+        return this.format;
+    }
+
+    /**
+     * @return the duration of the request in milliseconds
+     */
+    public long getDuration()
+    {
+        return this.duration;
+    }
+
+    /**
+     * @return the counters and the times in milliseconds by name
+     */
+    public Map<String, Long> getValues()
+    {
+        return this.values;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return this.operation + " " + this.path + " (" + this.resourceType + ", "
+            + this.format + ") took " + this.duration + " ms: " + this.values;
+    }
+}
@@ -0,0 +1,625 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.jcr.query.Query;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.CharEncoding;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.render.JsonRenderer;
+import org.apache.sling.its.render.XliffRenderer;
+import org.apache.sling.its.rules.IncompleteRulesException;
+import org.apache.sling.its.services.AdmissionLane;
+import org.apache.sling.its.services.AdmissionRejectedException;
+import org.apache.sling.its.services.ItsAdmissionControl;
+import org.apache.sling.its.services.ItsMetrics;
+import org.apache.sling.its.services.RequestMetrics;
+import org.apache.sling.its.traversal.DepthLimitExceededException;
+import org.apache.sling.its.traversal.ResourceTreeWalker;
+import org.apache.sling.its.utils.ItsIdUtils;
+import org.apache.sling.its.utils.JcrNodeUtils;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports many stored documents at once as a zip. The documents are given
+ * by one or more path parameters or found below the root parameter through
+ * the id index, the format parameter is xlf (default) or json.
+ *
+ * The documents are rendered on a pool of a fixed size shared by all
+ * exports, every document is rendered with a resolver of its own. The zip
+ * entries are written in the order the documents finish. Only a bounded
+ * number of documents is rendered ahead of the response, the next one is
+ * submitted once a finished one was written, so a slow client slows the
+ * rendering down instead of filling the memory. A document that fails gets
+ * an error entry instead of its content and the export goes on, the
+ * manifest.json written last lists the entry or error of every document.
+ */
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.servlets.ItsExportServlet", label = "%servlet.export.name", description = "%servlet.export.description")
+@Service(Servlet.class)
+@Properties({
+        @Property(name = "service.description", value = "ITS Export Servlet"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+
+        @Property(name = "sling.servlet.methods", value = { "GET", "POST" }, propertyPrivate = true),
+        @Property(name = "sling.servlet.paths", value = "/bin/its/export", propertyPrivate = true),
+        @Property(name = ItsExportServlet.THREADS, intValue = ItsExportServlet.DEFAULT_THREADS),
+        @Property(name = ItsExportServlet.QUEUE_SIZE, intValue = ItsExportServlet.DEFAULT_QUEUE_SIZE),
+        @Property(name = ItsExportServlet.MAX_DEPTH, intValue = ResourceTreeWalker.DEFAULT_MAX_DEPTH) })
+public class ItsExportServlet extends SlingAllMethodsServlet
+{
+    /** UID for serialization. */
+    private static final long serialVersionUID = -4722436010598236873L;
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsExportServlet.class);
+    /** Property for the number of threads all exports render on. */
+    static final String THREADS = "its.export.threads";
+    /** Default number of threads. */
+    static final int DEFAULT_THREADS = 4;
+    /** Property for the number of documents of an export rendered ahead of the response. */
+    static final String QUEUE_SIZE = "its.export.queue.size";
+    /** Default number of documents rendered ahead of the response. */
+    static final int DEFAULT_QUEUE_SIZE = 8;
+    /** Property for the maximum depth of an exported document. */
+    static final String MAX_DEPTH = "its.export.max.depth";
+    /** The supported formats, the first one is the default. */
+    private static final String[] FORMATS = { "xlf", "json" };
+    /** The zip mime type. */
+    private static final String ZIP_MIME_TYPE = "application/zip";
+    /** Name of the entry that lists the exported documents. */
+    private static final String MANIFEST_ENTRY = "manifest.json";
+
+    /** Limits the concurrent exports, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile ItsAdmissionControl admissionControl;
+    /** Collects the metrics of the exported documents, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile ItsMetrics metrics;
+    /** The pool the documents are rendered on. */
+    private ExecutorService exportPool;
+    /** Number of documents of an export rendered ahead of the response. */
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    /** The maximum depth of an exported document. */
+    private int maxDepth = ResourceTreeWalker.DEFAULT_MAX_DEPTH;
+
+    /**
+     * Gets automatically invoked when servlet is started.
+     *
+     * @param ctx
+     *            the component context
+     */
+    protected final void activate(final ComponentContext ctx)
+    {
+        final Dictionary<?, ?> props = ctx.getProperties();
+        this.exportPool = Executors.newFixedThreadPool(Math.max(1, NumberUtils.toInt(String
+            .valueOf(props.get(THREADS)), DEFAULT_THREADS)));
+        this.queueSize = Math.max(1, NumberUtils.toInt(String.valueOf(props.get(QUEUE_SIZE)),
+            DEFAULT_QUEUE_SIZE));
+        this.maxDepth = NumberUtils.toInt(String.valueOf(props.get(MAX_DEPTH)),
+            ResourceTreeWalker.DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Gets automatically invoked when service is stopped.
+     *
+     * @param ctx
+     *            the component context
+     */
+    protected final void deactivate(final ComponentContext ctx)
+    {
+        if (this.exportPool != null)
+        {
+            this.exportPool.shutdownNow();
+            this.exportPool = null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.sling.api.servlets.SlingAllMethodsServlet#doPost(org.apache.sling.api.SlingHttpServletRequest,
+     * org.apache.sling.api.SlingHttpServletResponse)
+     */
+    @Override
+    protected final void doPost(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response) throws ServletException, IOException
+    {
+        doGet(request, response);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+     * org.apache.sling.api.SlingHttpServletResponse)
+     */
+    @Override
+    protected final void doGet(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response) throws ServletException, IOException
+    {
+        final String format = StringUtils.defaultIfEmpty(request.getParameter("format"),
+            FORMATS[0]);
+        if (!ArrayUtils.contains(FORMATS, format))
+        {
+            LOG.error("Unsupported export format: " + format);
+            response.getWriter().write("500: Unsupported export format: " + format);
+            return;
+        }
+        final String root = StringUtils.trim(request.getParameter("root"));
+        if (StringUtils.isNotEmpty(root) && !JcrNodeUtils.isAbsolutePath(
+            root.length() > 1 ? StringUtils.removeEnd(root, "/") : root))
+        {
+            LOG.error("Invalid root: " + root);
+            response.getWriter().write(
+                "500: Invalid root. Please use an absolute path without '.' and '..'.");
+            return;
+        }
+        final List<String> paths = findDocuments(request.getResourceResolver(), root,
+            request.getParameterValues("path"));
+        if (paths.isEmpty())
+        {
+            LOG.error("No documents found to export.");
+            response.getWriter().write("500: No documents found to export.");
+            return;
+        }
+
+        final ItsAdmissionControl admission = this.admissionControl;
+        AdmissionLane.Permit permit = null;
+        try
+        {
+            if (admission != null)
+            {
+                permit = admission.acquire(ItsAdmissionControl.EXPORT, paths.size());
+            }
+            response.setContentType(ZIP_MIME_TYPE);
+            response.setHeader("Content-Disposition",
+                "attachment; filename=\"its-export.zip\"");
+            final ZipOutputStream zip = new ZipOutputStream(response.getOutputStream());
+            export(request, paths, format, zip);
+            zip.finish();
+            zip.flush();
+        }
+        catch (final AdmissionRejectedException e)
+        {
+            ItsAdmissionControl.reject(response, e);
+        }
+        finally
+        {
+            if (permit != null)
+            {
+                permit.release();
+            }
+        }
+    }
+
+    /**
+     * Get the target paths of the documents to export. The path parameters
+     * are taken as they are, they may hold several comma separated paths.
+     * Below the root, every document that has an id index is exported.
+     *
+     * @param resolver
+     *         the resource resolver of the request
+     * @param root
+     *         the validated root path or null
+     * @param pathParams
+     *         the path parameters or null
+     * @return the paths of the documents, without duplicates
+     */
+    private List<String> findDocuments(final ResourceResolver resolver, final String root,
+        final String[] pathParams)
+    {
+        final Set<String> paths = new LinkedHashSet<String>();
+        if (pathParams != null)
+        {
+            for (final String pathParam : pathParams)
+            {
+                for (final String path : StringUtils.split(pathParam, ','))
+                {
+                    if (StringUtils.isNotBlank(path))
+                    {
+                        paths.add(path.trim());
+                    }
+                }
+            }
+        }
+        if (StringUtils.isNotBlank(root))
+        {
+            final String rootPath = StringUtils.removeEnd(root, "/");
+            final Set<String> documents = new TreeSet<String>();
+            if (StringUtils.isNotEmpty(rootPath)
+                && resolver.getResource(ItsIdUtils.getIndexPath(rootPath)) != null)
+            {
+                documents.add(rootPath);
+            }
+            final Iterator<Resource> indexes = resolver.findResources(
+                "SELECT * FROM [nt:base] as t WHERE ISDESCENDANTNODE(["
+                    + SlingItsConstants.ITS_INDEX_PATH + rootPath + "]) AND t.["
+                    + SlingItsConstants.ITS_INDEX_RESOURCE_TYPE + "] IS NOT NULL",
+                Query.JCR_SQL2);
+            while (indexes.hasNext())
+            {
+                documents.add(indexes.next().getPath().substring(
+                    SlingItsConstants.ITS_INDEX_PATH.length()));
+            }
+            paths.addAll(documents);
+        }
+        return new ArrayList<String>(paths);
+    }
+
+    /**
+     * Render the documents on the export pool and write them to the zip as
+     * they finish. At most queueSize documents are rendered or waiting to be
+     * written at any time. The documents not written yet are cancelled if
+     * the client goes away.
+     *
+     * @param request
+     *         the request
+     * @param paths
+     *         the paths of the documents
+     * @param format
+     *         the format
+     * @param zip
+     *         the zip of the response
+     * @throws IOException
+     *         if the response could not be written
+     */
+    private void export(final SlingHttpServletRequest request, final List<String> paths,
+        final String format, final ZipOutputStream zip) throws IOException
+    {
+        final long start = System.currentTimeMillis();
+        final CompletionService<ExportEntry> completion = new ExecutorCompletionService<ExportEntry>(
+            this.exportPool);
+        final Map<Future<ExportEntry>, String> pending = new HashMap<Future<ExportEntry>, String>();
+        final List<ExportEntry> entries = new ArrayList<ExportEntry>();
+        int submitted = 0;
+        try
+        {
+            while (entries.size() < paths.size())
+            {
+                while (submitted < paths.size() && pending.size() < this.queueSize)
+                {
+                    final String path = paths.get(submitted++);
+                    pending.put(completion.submit(new ExportTask(request.getResourceResolver(),
+                        path, format, request.getParameter("srcLang"), request
+                            .getParameter("trgLang"))), path);
+                }
+                final Future<ExportEntry> done = completion.take();
+                final String path = pending.remove(done);
+                ExportEntry entry;
+                try
+                {
+                    entry = done.get();
+                }
+                catch (final ExecutionException e)
+                {
+                    LOG.error("Failed to export " + path + ". Stack Trace: ", e.getCause());
+                    entry = new ExportEntry(path, format);
+                    entry.error = "Failed to render the document.";
+                }
+                entries.add(entry);
+                writeEntry(zip, entry);
+            }
+            writeManifest(zip, format, entries);
+            LOG.info(String.format("Exported %d document(s) as %s in %d ms.", entries.size(),
+                format, System.currentTimeMillis() - start));
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            for (final Future<ExportEntry> future : pending.keySet())
+            {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Write the rendered document or its error to the zip.
+     *
+     * @param zip
+     *         the zip of the response
+     * @param entry
+     *         the exported document
+     * @throws IOException
+     *         if the response could not be written
+     */
+    private void writeEntry(final ZipOutputStream zip, final ExportEntry entry)
+        throws IOException
+    {
+        zip.putNextEntry(new ZipEntry(entry.getName()));
+        if (entry.error == null)
+        {
+            zip.write(entry.content);
+        }
+        else
+        {
+            zip.write(("500: " + entry.error).getBytes(CharEncoding.UTF_8));
+        }
+        zip.closeEntry();
+        zip.flush();
+    }
+
+    /**
+     * Write the manifest that lists the entry or the error of every document.
+     *
+     * @param zip
+     *         the zip of the response
+     * @param format
+     *         the format
+     * @param entries
+     *         the exported documents
+     * @throws IOException
+     *         if the response could not be written
+     */
+    private void writeManifest(final ZipOutputStream zip, final String format,
+        final List<ExportEntry> entries) throws IOException
+    {
+        zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+        final Writer writer = new OutputStreamWriter(zip, CharEncoding.UTF_8);
+        try
+        {
+            int failed = 0;
+            final JSONWriter json = new JSONWriter(writer);
+            json.object();
+            json.key("format").value(format);
+            json.key("documents").array();
+            for (final ExportEntry entry : entries)
+            {
+                json.object();
+                json.key("path").value(entry.path);
+                json.key("entry").value(entry.getName());
+                if (entry.error != null)
+                {
+                    json.key("error").value(entry.error);
+                    failed++;
+                }
+                json.endObject();
+            }
+            json.endArray();
+            json.key("exported").value(entries.size() - failed);
+            json.key("failed").value(failed);
+            json.endObject();
+        }
+        catch (final JSONException e)
+        {
+            LOG.error("Failed to write the manifest. Stack Trace: ", e);
+        }
+        writer.flush();
+        zip.closeEntry();
+    }
+
+    /**
+     * Renders one document into memory with a resolver of its own.
+     */
+    private final class ExportTask implements Callable<ExportEntry>
+    {
+        /** The resolver of the request, it is cloned for the task. */
+        private final ResourceResolver resolver;
+        /** The path of the document. */
+        private final String path;
+        /** The format. */
+        private final String format;
+        /** The source language for XLIFF or null. */
+        private final String sourceLanguage;
+        /** The target language for XLIFF or null. */
+        private final String targetLanguage;
+
+        /**
+         * Constructor.
+         *
+         * @param resolver
+         *         the resolver of the request
+         * @param path
+         *         the path of the document
+         * @param format
+         *         the format
+         * @param sourceLanguage
+         *         the source language for XLIFF or null
+         * @param targetLanguage
+         *         the target language for XLIFF or null
+         */
+        private ExportTask(final ResourceResolver resolver, final String path,
+            final String format, final String sourceLanguage, final String targetLanguage)
+        {
+            this.resolver = resolver;
+            this.path = path;
+            this.format = format;
+            this.sourceLanguage = sourceLanguage;
+            this.targetLanguage = targetLanguage;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public ExportEntry call()
+        {
+            final ExportEntry entry = new ExportEntry(this.path, this.format);
+            ResourceResolver taskResolver = null;
+            try
+            {
+                taskResolver = this.resolver.clone(null);
+                final Resource resource = taskResolver.getResource(this.path);
+                if (resource == null)
+                {
+                    entry.error = "No resource found for path: " + this.path;
+                    return entry;
+                }
+                final long start = System.nanoTime();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final Writer writer = new OutputStreamWriter(out, CharEncoding.UTF_8);
+                if ("json".equals(this.format))
+                {
+                    new JsonRenderer(maxDepth).render(resource, writer, true);
+                }
+                else
+                {
+                    new XliffRenderer(taskResolver, maxDepth).render(resource, writer,
+                        this.sourceLanguage, this.targetLanguage);
+                }
+                writer.flush();
+                entry.content = out.toByteArray();
+                recordMetrics(resource, start, entry.content.length);
+            }
+            catch (final LoginException e)
+            {
+                entry.error = "Failed to login.";
+            }
+            catch (final IOException e)
+            {
+                entry.error = "Failed to write the document.";
+            }
+            catch (final XMLStreamException e)
+            {
+                entry.error = "Failed to write the document.";
+                LOG.error("Failed to export " + this.path + ". Stack Trace: ", e);
+            }
+            catch (final JSONException e)
+            {
+                entry.error = "Failed to write the document.";
+                LOG.error("Failed to export " + this.path + ". Stack Trace: ", e);
+            }
+            catch (final DepthLimitExceededException e)
+            {
+                entry.error = e.getMessage();
+            }
+            catch (final IncompleteRulesException e)
+            {
+                entry.error = e.getMessage();
+            }
+            finally
+            {
+                if (taskResolver != null)
+                {
+                    taskResolver.close();
+                }
+            }
+            return entry;
+        }
+
+        /**
+         * Record the metrics of the rendered document, if the metrics are
+         * available.
+         *
+         * @param resource
+         *         the document
+         * @param start
+         *         the start of the render as returned by {@link System#nanoTime()}
+         * @param size
+         *         the size of the rendered document in bytes
+         */
+        private void recordMetrics(final Resource resource, final long start, final long size)
+        {
+            final ItsMetrics collector = metrics;
+            if (collector != null)
+            {
+                final RequestMetrics documentMetrics = new RequestMetrics();
+                documentMetrics.addTime(ItsMetrics.RENDER_TIME, start);
+                documentMetrics.add(ItsMetrics.OUTPUT_BYTES, size);
+                collector.record(documentMetrics, ItsIdUtils.getResourceType(resource),
+                    this.format);
+            }
+        }
+    }
+
+    /**
+     * A rendered document or the error it failed with.
+     */
+    private static final class ExportEntry
+    {
+        /** The path of the document. */
+        private final String path;
+        /** The format. */
+        private final String format;
+        /** The rendered document. */
+        private byte[] content;
+        /** The error or null if rendered. */
+        private String error;
+
+        /**
+         * Constructor.
+         *
+         * @param path
+         *         the path of the document
+         * @param format
+         *         the format
+         */
+        private ExportEntry(final String path, final String format)
+        {
+            this.path = path;
+            this.format = format;
+        }
+
+        /**
+         * @return the name of the zip entry, an error entry if it failed
+         */
+        private String getName()
+        {
+            return StringUtils.removeStart(this.path, "/") + ".its." + this.format
+                + (this.error != null ? ".error" : StringUtils.EMPTY);
+        }
+    }
+}
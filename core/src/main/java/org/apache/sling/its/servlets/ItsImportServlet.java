@@ -20,36 +20,77 @@ package org.apache.sling.its.servlets;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import javax.jcr.NamespaceRegistry;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.XMLConstants;
 
 import net.sf.okapi.common.Namespaces;
 import net.sf.okapi.common.exceptions.OkapiBadFilterParametersException;
 import net.sf.okapi.filters.its.html5.HTML5Filter;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.CharEncoding;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.rules.ItsAnnotation;
+import org.apache.sling.its.rules.ItsAnnotator;
+import org.apache.sling.its.services.AdmissionLane;
+import org.apache.sling.its.services.AdmissionRejectedException;
+import org.apache.sling.its.services.ItsAdmissionControl;
+import org.apache.sling.its.services.ItsMetrics;
+import org.apache.sling.its.services.ItsWarmupJob;
+import org.apache.sling.its.services.PhaseEvent;
+import org.apache.sling.its.services.RequestMetrics;
+import org.apache.sling.its.traversal.DepthLimitExceededException;
+import org.apache.sling.its.traversal.ElementPathStack;
+import org.apache.sling.its.traversal.HtmlStreamParser;
+import org.apache.sling.its.traversal.ResourceTreeWalker;
+import org.apache.sling.its.traversal.WritePipeline;
 import org.apache.sling.its.utils.DocumentUtils;
+import org.apache.sling.its.utils.HashUtils;
+import org.apache.sling.its.utils.ItsIdUtils;
+import org.apache.sling.its.utils.ItsInlineUtils;
 import org.apache.sling.its.utils.ItsRulesUtils;
+import org.apache.sling.its.utils.ItsStatsUtils;
+import org.apache.sling.its.utils.ItsTextUtils;
 import org.apache.sling.its.utils.JcrNodeUtils;
 import org.apache.sling.its.utils.ValueUtils;
 import org.apache.sling.its.utils.XmlNodeUtils;
@@ -63,9 +104,11 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.w3c.its.IProcessor;
 import org.w3c.its.ITSEngine;
 import org.w3c.its.ITraversal;
+import org.xml.sax.SAXException;
 
 @Component(immediate = true, metatype = true, name = "org.apache.sling.its.servlets.ItsImportServlet", label = "%servlet.get.name", description = "%servlet.get.description")
 @Service(Servlet.class)
@@ -75,19 +118,61 @@ import org.w3c.its.ITraversal;
 
         // Generic handler for all get requests
         @Property(name = "sling.servlet.methods", value = "POST", propertyPrivate = true),
-        @Property(name = "sling.servlet.paths", value = "/bin/its/import", propertyPrivate = true) })
+        @Property(name = "sling.servlet.paths", value = "/bin/its/import", propertyPrivate = true),
+        @Property(name = ItsImportServlet.MAX_DEPTH, intValue = ResourceTreeWalker.DEFAULT_MAX_DEPTH),
+        @Property(name = ItsImportServlet.TEXT_STORE_THRESHOLD, intValue = 0),
+        @Property(name = ItsImportServlet.CHECKPOINT_SIZE, intValue = ItsImportServlet.DEFAULT_CHECKPOINT_SIZE),
+        @Property(name = ItsImportServlet.WRITE_QUEUE_SIZE, intValue = ItsImportServlet.DEFAULT_WRITE_QUEUE_SIZE),
+        @Property(name = ItsImportServlet.WRITE_BATCH_SIZE, intValue = ItsImportServlet.DEFAULT_WRITE_BATCH_SIZE) })
 public class ItsImportServlet extends SlingAllMethodsServlet
 {
     /** UID for serialization. */
     private static final long serialVersionUID = 5983619887988477737L;
     /** Logger instance. */
     private static final Logger LOG = LoggerFactory.getLogger(ItsImportServlet.class);
-    /** The current session. */
-    private Session session;
-    /** Holds the path and the number of iteration of that element in the given path. */
-    private Map<String, Integer> counterMap;
-    /** If current doc or external doc contains global rules.*/
-    private boolean hasGlobalRules;
+    /** The import mode that merges a translated document by its ids. */
+    private static final String MERGE_MODE = "merge";
+    /** The import mode that stages the document and can be resumed. */
+    private static final String STAGED_MODE = "staged";
+    /** Value of the parser parameter to stream an html document instead of building a DOM. */
+    private static final String STREAM_PARSER = "stream";
+    /** Property for the number of nodes of a staged import between two checkpoints. */
+    static final String CHECKPOINT_SIZE = "its.import.checkpoint.size";
+    /** Default number of nodes between two checkpoints. */
+    static final int DEFAULT_CHECKPOINT_SIZE = 1000;
+    /** Property for the number of write operations waiting for the writer of an import. */
+    static final String WRITE_QUEUE_SIZE = "its.import.write.queue.size";
+    /** Default number of write operations waiting for the writer. */
+    static final int DEFAULT_WRITE_QUEUE_SIZE = 1000;
+    /** Property for the number of write operations after which the writer saves. */
+    static final String WRITE_BATCH_SIZE = "its.import.write.batch.size";
+    /** Default number of write operations after which the writer saves. */
+    static final int DEFAULT_WRITE_BATCH_SIZE = 500;
+    /** Property for the maximum depth of an imported document. */
+    static final String MAX_DEPTH = "its.import.max.depth";
+    /** Property for the number of characters from which a text is deduplicated, 0 to disable. */
+    static final String TEXT_STORE_THRESHOLD = "its.text.store.threshold";
+    /** Value of the inline parameter to store the inline content of elements as one segment. */
+    private static final String INLINE_COMPACT = "compact";
+    /** Pre-renders the imported documents, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile ItsWarmupJob warmupJob;
+    /** Limits the concurrent imports, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile ItsAdmissionControl admissionControl;
+    /** Collects the metrics of the imports, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile ItsMetrics metrics;
+    /** The maximum depth of an imported document. */
+    private int maxDepth = ResourceTreeWalker.DEFAULT_MAX_DEPTH;
+    /** Number of characters from which a text is kept in the text store, 0 if disabled. */
+    private int textStoreThreshold;
+    /** Number of nodes of a staged import between two checkpoints. */
+    private int checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+    /** Number of write operations waiting for the writer of an import. */
+    private int writeQueueSize = DEFAULT_WRITE_QUEUE_SIZE;
+    /** Number of write operations after which the writer saves. */
+    private int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
 
     /**
      * Gets automatically invoked when servlet is started.
@@ -97,7 +182,16 @@ public class ItsImportServlet extends SlingAllMethodsServlet
      */
     protected void activate(final ComponentContext ctx)
     {
-
+        this.maxDepth = NumberUtils.toInt(String.valueOf(ctx.getProperties().get(MAX_DEPTH)),
+            ResourceTreeWalker.DEFAULT_MAX_DEPTH);
+        this.textStoreThreshold = Math.max(0, NumberUtils.toInt(String.valueOf(ctx
+            .getProperties().get(TEXT_STORE_THRESHOLD)), 0));
+        this.checkpointSize = Math.max(1, NumberUtils.toInt(String.valueOf(ctx
+            .getProperties().get(CHECKPOINT_SIZE)), DEFAULT_CHECKPOINT_SIZE));
+        this.writeQueueSize = Math.max(1, NumberUtils.toInt(String.valueOf(ctx
+            .getProperties().get(WRITE_QUEUE_SIZE)), DEFAULT_WRITE_QUEUE_SIZE));
+        this.writeBatchSize = Math.max(1, NumberUtils.toInt(String.valueOf(ctx
+            .getProperties().get(WRITE_BATCH_SIZE)), DEFAULT_WRITE_BATCH_SIZE));
     }
 
     /**
@@ -142,6 +236,45 @@ public class ItsImportServlet extends SlingAllMethodsServlet
     @Override
     protected final void doPost(final SlingHttpServletRequest request,
         final SlingHttpServletResponse response) throws ServletException, IOException
+    {
+        final ItsAdmissionControl admission = this.admissionControl;
+        AdmissionLane.Permit permit = null;
+        try
+        {
+            if (admission != null)
+            {
+                // the size of the upload, unknown sizes are admitted last.
+                permit = admission.acquire(ItsAdmissionControl.IMPORT, (request
+                    .getContentLength() >= 0 ? request.getContentLength() : Long.MAX_VALUE));
+            }
+            doImport(request, response);
+        }
+        catch (final AdmissionRejectedException e)
+        {
+            ItsAdmissionControl.reject(response, e);
+        }
+        finally
+        {
+            if (permit != null)
+            {
+                permit.release();
+            }
+        }
+    }
+
+    /**
+     * Import or merge the uploaded document.
+     *
+     * @param request
+     *         the import request
+     * @param response
+     *         the response
+     * @throws IOException
+     *         if the file could not be read or the response could not be
+     *         written
+     */
+    private void doImport(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response) throws IOException
     {
         // assert that path and resourceType was provided.
         final String targetPath = request.getParameter("path");
@@ -153,201 +286,1399 @@ public class ItsImportServlet extends SlingAllMethodsServlet
             return;
         }
 
-        this.session = request.getResourceResolver().adaptTo(Session.class);
-        this.counterMap = new HashMap<String, Integer>();
-        this.hasGlobalRules = false;
+        final ImportContext context = new ImportContext(request.getResourceResolver().adaptTo(
+            Session.class));
+        try
+        {
+            // the changes of the import do not change the content digest.
+            JcrNodeUtils.setItsUserData(context.session);
+        }
+        catch (final RepositoryException e)
+        {
+            response.getWriter().write("500: Failed to access repository.");
+            LOG.error("Failed to access repository. Stack Trace: ", e);
+            return;
+        }
+        if (MERGE_MODE.equals(request.getParameter("mode")))
+        {
+            if (merge(context, request, response, targetPath))
+            {
+                scheduleWarmup(targetPath);
+            }
+            return;
+        }
+
+        // a re-upload of the same files is not imported again.
+        final String contentDigest = getContentDigest(request);
+        if (!Boolean.valueOf(request.getParameter("force"))
+            && isUnchanged(context, targetPath, contentDigest))
+        {
+            writeNotModified(response, targetPath, contentDigest);
+            return;
+        }
+        context.compactInline = INLINE_COMPACT.equals(request.getParameter("inline"));
 
         // get the document.
         final File file = File.createTempFile("input",
             StringUtils.EMPTY + System.currentTimeMillis());
         file.deleteOnExit();
-        final Document doc = DocumentUtils.getDocument(
-            request.getRequestParameter("file"), file);
-        if (request.getRequestParameters("externalFile") != null && doc != null)
+        final RequestParameter upload = request.getRequestParameter("file");
+        final boolean stream = isStreamed(DocumentUtils.isHtml(upload), request
+            .getParameter("parser"), request.getParameter("mode"), request.getParameter("inline"));
+        try
         {
-            final String resourceType = DocumentUtils.getResourceType(doc);
-            // create new rules node for this resourceType.
-            ItsRulesUtils.createGlobalRulesNode(this.session, resourceType);
-            for (final RequestParameter requestParameter : request.getRequestParameters("externalFile"))
+            final String resourceType;
+            if (stream)
             {
-                final File externalRulesFile = new File(file.getParent() + File.separator
-                    + requestParameter.getFileName());
-                externalRulesFile.deleteOnExit();
-                final Document externalDoc = DocumentUtils.getDocument(requestParameter,
-                    externalRulesFile);
-                store("/", resourceType, externalDoc, externalRulesFile, true);
+                resourceType = importStream(context, request, targetPath, upload, file,
+                    contentDigest);
+            }
+            else
+            {
+                final boolean spooled = spool(context, targetPath, upload, file);
+                final long parseStart = System.nanoTime();
+                final PhaseEvent parseEvent = PhaseEvent.begin(PhaseEvent.IMPORT,
+                    PhaseEvent.PARSE);
+                final Document doc = (spooled ? DocumentUtils.parse(file, DocumentUtils
+                    .isHtml(upload)) : null);
+                context.requestMetrics.addTime(ItsMetrics.PARSE_TIME, parseStart);
+                parseEvent.commit(targetPath, (doc != null ? DocumentUtils
+                    .getResourceType(doc) : null), 0, file.length());
+                resourceType = importDocument(context, request, targetPath, doc, file,
+                    contentDigest);
             }
+            if (upload != null)
+            {
+                context.requestMetrics.add(ItsMetrics.UPLOAD_BYTES, upload.getSize());
+            }
+            recordMetrics(context, targetPath, resourceType, (DocumentUtils.isHtml(upload) ? "html"
+                : "xml"));
+            scheduleWarmup(targetPath);
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to store the document. Stack Trace: ", e);
+            response.getWriter().write("500: Failed to store the document.");
+        }
+        catch (final DepthLimitExceededException e)
+        {
+            LOG.error("Failed to store the document. Stack Trace: ", e);
+            response.getWriter().write("500: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check if an upload is imported with the streaming html parser. Staged
+     * imports and compact inline segments are only supported by the DOM
+     * import, those uploads take the DOM path even with parser=stream.
+     *
+     * @param isHtml
+     *         true if the upload is an html document
+     * @param parser
+     *         the parser parameter or null
+     * @param mode
+     *         the mode parameter or null
+     * @param inline
+     *         the inline parameter or null
+     * @return true if the upload is streamed
+     */
+    static boolean isStreamed(final boolean isHtml, final String parser, final String mode,
+        final String inline)
+    {
+        return isHtml && STREAM_PARSER.equals(parser) && !STAGED_MODE.equals(mode)
+            && !INLINE_COMPACT.equals(inline);
+    }
+
+    /**
+     * Write the uploaded document to a temporary file.
+     *
+     * @param context
+     *         the state of the import
+     * @param targetPath
+     *         the target path of the import
+     * @param upload
+     *         the uploaded document
+     * @param file
+     *         the file to write the document to
+     * @return true if the file was written
+     */
+    private boolean spool(final ImportContext context, final String targetPath,
+        final RequestParameter upload, final File file)
+    {
+        final long start = System.nanoTime();
+        final PhaseEvent event = PhaseEvent.begin(PhaseEvent.IMPORT, PhaseEvent.SPOOL);
+        final boolean spooled = DocumentUtils.save(upload, file);
+        context.requestMetrics.addTime(ItsMetrics.SPOOL_TIME, start);
+        event.commit(targetPath, null, 0, file.length());
+        return spooled;
+    }
+
+    /**
+     * Schedule the imported document to be pre-rendered, if the warm-up job
+     * is available.
+     *
+     * @param targetPath
+     *         the target path of the import
+     */
+    private void scheduleWarmup(final String targetPath)
+    {
+        final ItsWarmupJob job = this.warmupJob;
+        if (job != null)
+        {
+            job.schedule(targetPath);
+        }
+    }
+
+    /**
+     * Record the metrics of the import and trace it if it was slow, if the
+     * metrics are available.
+     *
+     * @param context
+     *         the state of the import
+     * @param targetPath
+     *         the target path of the import
+     * @param resourceType
+     *         the resourceType of the document or null
+     * @param format
+     *         the format of the document
+     */
+    private void recordMetrics(final ImportContext context, final String targetPath,
+        final String resourceType, final String format)
+    {
+        final ItsMetrics collector = this.metrics;
+        if (collector != null)
+        {
+            collector.record(context.requestMetrics, resourceType, format);
+            collector.trace("import", targetPath, resourceType, format, System
+                .currentTimeMillis() - context.importTime, context.requestMetrics);
         }
+    }
 
+    /**
+     * Store the external rules and the document.
+     *
+     * @param context
+     *         the state of the import
+     * @param request
+     *         the import request
+     * @param targetPath
+     *         the target path of the import
+     * @param doc
+     *         the document or null if it could not be parsed
+     * @param file
+     *         the file of the document
+     * @param contentDigest
+     *         the digest of the uploaded files
+     * @return the resourceType of the document or null if it could not be
+     *         parsed
+     * @throws RepositoryException
+     *         if an element could not be stored
+     */
+    private String importDocument(final ImportContext context,
+        final SlingHttpServletRequest request, final String targetPath, final Document doc,
+        final File file, final String contentDigest) throws RepositoryException
+    {
         if (doc != null)
         {
-            JcrNodeUtils.createNode(this.session, targetPath);
+            storeExternalRules(context, request, DocumentUtils.getResourceType(doc), file);
+        }
+
+        if (doc != null && STAGED_MODE.equals(request.getParameter("mode")))
+        {
+            final String resourceType = DocumentUtils.getResourceType(doc);
+            openStaging(context, targetPath, contentDigest);
+            if (request.getRequestParameters("externalFile") == null)
+            {
+                // create new rules node for this resourceType.
+                context.requestMetrics.add(ItsMetrics.QUERIES, ItsRulesUtils
+                    .createGlobalRulesNode(context.session, resourceType));
+            }
+            store(context, targetPath, resourceType, doc, file, false);
+            commitStaging(context, targetPath, resourceType);
+            ItsRulesUtils.storeRulesDigest(context.session, targetPath, resourceType);
+        }
+        else if (doc != null)
+        {
             final String resourceType = DocumentUtils.getResourceType(doc);
+            createTarget(context, targetPath, resourceType);
             if (request.getRequestParameters("externalFile") == null)
             {
                 // create new rules node for this resourceType.
-                ItsRulesUtils.createGlobalRulesNode(this.session, resourceType);
+                context.requestMetrics.add(ItsMetrics.QUERIES, ItsRulesUtils
+                    .createGlobalRulesNode(context.session, resourceType));
             }
-            store(targetPath, resourceType, doc, file, false);
+            store(context, targetPath, resourceType, doc, file, false);
+            ItsRulesUtils.storeRulesDigest(context.session, targetPath, resourceType);
+            storeStats(context, targetPath);
         }
 
-        if (!this.hasGlobalRules)
+        if (!context.hasGlobalRules)
+        {
+            context.requestMetrics.add(ItsMetrics.QUERIES, ItsRulesUtils.createItsRulesNode(
+                context.session, targetPath));
+        }
+        if (doc != null)
         {
-            ItsRulesUtils.createItsRulesNode(this.session, targetPath);
+            storeContentDigest(context, targetPath, contentDigest);
+            return DocumentUtils.getResourceType(doc);
         }
+        return null;
     }
 
     /**
-     * Get the attributes and call output to set the attributes into
-     * jackrabbit.
+     * Store the external rules and stream the html document to the
+     * repository, without building a DOM. The data categories are resolved
+     * while the document is streamed, see {@link HtmlStreamParser}.
      *
-     * @param element
-     *           an Element from the Document object.
-     * @param path
-     *           jackrabbit path to store the attributes
+     * @param context
+     *         the state of the import
+     * @param request
+     *         the import request
+     * @param targetPath
+     *         the target path of the import
+     * @param upload
+     *         the uploaded document
+     * @param file
+     *         the file to write the document to
+     * @param contentDigest
+     *         the digest of the uploaded files
+     * @return the resourceType of the document
+     * @throws RepositoryException
+     *         if the document could not be read or stored
      */
-    private void setAttributes(final Element element, final String path)
+    private String importStream(final ImportContext context, final SlingHttpServletRequest request,
+        final String targetPath, final RequestParameter upload, final File file,
+        final String contentDigest) throws RepositoryException
     {
-        if (element.hasAttributes())
+        if (!spool(context, targetPath, upload, file))
         {
-            final NamedNodeMap map = element.getAttributes();
-
-            final ArrayList<String> list = new ArrayList<String>();
-            for (int i = 0; i < map.getLength(); i++)
+            throw new RepositoryException("Failed to write the uploaded document.");
+        }
+        final String resourceType;
+        try
+        {
+            resourceType = HtmlStreamParser.getResourceType(file);
+            final List<Document> rules = storeExternalRules(context, request, resourceType, file);
+            createTarget(context, targetPath, resourceType);
+            if (request.getRequestParameters("externalFile") == null)
             {
-                list.add(((Attr) map.item(i)).getNodeName());
+                // create new rules node for this resourceType.
+                context.requestMetrics.add(ItsMetrics.QUERIES, ItsRulesUtils
+                    .createGlobalRulesNode(context.session, resourceType));
             }
-            Collections.sort(list);
+            storeStream(context, targetPath, resourceType, file, rules);
+            ItsRulesUtils.storeRulesDigest(context.session, targetPath, resourceType);
+            storeStats(context, targetPath);
+        }
+        catch (final IOException e)
+        {
+            throw new RepositoryException("Failed to read the document.", e);
+        }
+        if (!context.hasGlobalRules)
+        {
+            context.requestMetrics.add(ItsMetrics.QUERIES, ItsRulesUtils.createItsRulesNode(
+                context.session, targetPath));
+        }
+        storeContentDigest(context, targetPath, contentDigest);
+        return resourceType;
+    }
 
-            for (final String attrName : list)
+    /**
+     * Store the global rules of the uploaded external rules files.
+     *
+     * @param context
+     *         the state of the import
+     * @param request
+     *         the import request
+     * @param resourceType
+     *         the resourceType of the document
+     * @param file
+     *         the file of the document, the rules files are written next to it
+     * @return the parsed rules files, empty if there are none
+     * @throws RepositoryException
+     *         if a rule could not be stored
+     */
+    private List<Document> storeExternalRules(final ImportContext context,
+        final SlingHttpServletRequest request, final String resourceType, final File file)
+        throws RepositoryException
+    {
+        final List<Document> rules = new ArrayList<Document>();
+        if (request.getRequestParameters("externalFile") != null)
+        {
+            // create new rules node for this resourceType.
+            context.requestMetrics.add(ItsMetrics.QUERIES, ItsRulesUtils.createGlobalRulesNode(
+                context.session, resourceType));
+            for (final RequestParameter requestParameter : request.getRequestParameters("externalFile"))
             {
-                final Attr attr = (Attr) map.getNamedItem(attrName);
-                output(path, attr, null);
+                final File externalRulesFile = new File(file.getParent() + File.separator
+                    + requestParameter.getFileName());
+                externalRulesFile.deleteOnExit();
+                final Document externalDoc = DocumentUtils.getDocument(requestParameter,
+                    externalRulesFile);
+                store(context, "/", resourceType, externalDoc, externalRulesFile, true);
+                rules.add(externalDoc);
             }
         }
+        return rules;
     }
 
     /**
-     * Gets the iteration of this node at its current level. For example, under
-     * the body node, there could be two span tags as its children. The first
-     * span tag will be span(1) while the second will be span(2). This is
-     * needed so we won't override the first tag.
+     * Create the target node and a new id index for the document. The content
+     * digest of the previous import is removed until the import is complete.
      *
-     * @param relPath
-     *         relative path for local mark up. absolute path for global rules.
-     * @return counterValue
-     *            iteration of this node name at its current level.
+     * @param context
+     *         the state of the import
+     * @param targetPath
+     *         the target path of the import
+     * @param resourceType
+     *         the resourceType of the document
+     * @throws RepositoryException
+     *         if the target node could not be created
      */
-    private Integer getCounter(final String relPath)
+    private void createTarget(final ImportContext context, final String targetPath,
+        final String resourceType) throws RepositoryException
     {
-        Integer counterValue = this.counterMap.get(relPath);
-        counterValue = (counterValue != null) ? counterValue + 1 : 1;
-        this.counterMap.put(relPath, counterValue);
-        return counterValue;
+        final javax.jcr.Node targetNode = JcrNodeUtils.createNode(context.session, targetPath);
+        if (targetNode != null && targetNode.hasProperty(
+            SlingItsConstants.SLING_ITS_CONTENT_DIGEST))
+        {
+            targetNode.getProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST).remove();
+            context.session.save();
+        }
+        context.idIndex = ItsIdUtils.createIndexNode(context.session, targetPath, resourceType);
     }
 
     /**
-     * When it is a closing tag or an element node has no children, path and/or
-     * globalPath needs to go back one level.
+     * Record the import of the uploaded files, only a complete import is
+     * recorded as the import of these files.
      *
-     * @param relPath
-     *         the relative path
-     * @return relPath
-     *         parent path of the relative path
+     * @param context
+     *         the state of the import
+     * @param targetPath
+     *         the target path of the import
+     * @param contentDigest
+     *         the digest of the uploaded files
+     * @throws RepositoryException
+     *         if the digest could not be stored
      */
-    private String backTrack(final String relPath)
+    private void storeContentDigest(final ImportContext context, final String targetPath,
+        final String contentDigest) throws RepositoryException
     {
-        final int n = relPath.lastIndexOf('/');
-        if (n > -1)
+        if (context.session.nodeExists(targetPath))
         {
-            return relPath.substring(0, n);
+            context.session.getNode(targetPath).setProperty(
+                SlingItsConstants.SLING_ITS_CONTENT_DIGEST, contentDigest);
+            context.session.save();
         }
-        return relPath;
     }
 
     /**
-     * If element has child elements, don't process them and skip those nodes.
+     * Open the staging node of a staged import. The staged import of the same
+     * files is resumed from its last checkpoint, the staged import of other
+     * files is discarded. The document is staged with its id index below
+     * {@link SlingItsConstants#ITS_STAGING_PATH}, the target path keeps the
+     * previous version until the staged one is committed.
      *
-     * @param element
-     *         current element
-     * @param itsEng
-     *         the ITSEngine
+     * @param context
+     *         the state of the import
+     * @param targetPath
+     *         the target path of the import
+     * @param contentDigest
+     *         the digest of the uploaded files
+     * @throws RepositoryException
+     *         if the staging node could not be created
      */
-    private void skipChildren(final Element element, final ITraversal itsEng)
+    private void openStaging(final ImportContext context, final String targetPath,
+        final String contentDigest) throws RepositoryException
     {
-        if (element.hasChildNodes())
+        final String stagingPath = SlingItsConstants.ITS_STAGING_PATH + targetPath;
+        if (context.session.nodeExists(stagingPath))
         {
-            Node node;
-            while ((node = itsEng.nextNode()) != null)
+            final javax.jcr.Node existing = context.session.getNode(stagingPath);
+            if (existing.hasProperty(SlingItsConstants.SLING_ITS_CHECKPOINT_POSITION)
+                && existing.hasProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST)
+                && contentDigest.equals(existing.getProperty(
+                    SlingItsConstants.SLING_ITS_CONTENT_DIGEST).getString()))
             {
-                if (node.getNodeType() == Node.ELEMENT_NODE)
+                context.staging = existing;
+                context.idIndex = existing.getNode(SlingItsConstants.ITS_INDEX_IDS);
+                context.resumePosition = existing.getProperty(
+                    SlingItsConstants.SLING_ITS_CHECKPOINT_POSITION).getLong();
+                context.resumePath = existing.getProperty(
+                    SlingItsConstants.SLING_ITS_CHECKPOINT_PATH).getString();
+                LOG.info("Resuming the staged import of " + targetPath + " after "
+                    + context.resumePosition + " nodes.");
+                return;
+            }
+            existing.remove();
+            context.session.save();
+        }
+        context.staging = JcrResourceUtil.createPath(stagingPath, "nt:unstructured",
+            "nt:unstructured", context.session, false);
+        context.staging.setProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST, contentDigest);
+        context.staging.addNode(SlingItsConstants.ITS_STAGING_DOCUMENT, "nt:unstructured");
+        context.idIndex = context.staging.addNode(SlingItsConstants.ITS_INDEX_IDS,
+            "nt:unstructured");
+        context.session.save();
+    }
+
+    /**
+     * Record a checkpoint of a staged import once checkpointSize nodes were
+     * traversed since the last one. The changes are saved together with the
+     * position in the document and the path of the current element, a
+     * resumed import traverses the document up to the position without
+     * writing, which restores the counters of the paths and the word counts,
+     * and checks that it arrives at the same path.
+     *
+     * @param context
+     *         the state of the import
+     * @param stack
+     *         the open elements
+     * @throws RepositoryException
+     *         if the checkpoint could not be saved
+     */
+    private void checkpoint(final ImportContext context, final ElementPathStack<NodeRef> stack)
+        throws RepositoryException
+    {
+        if (context.staging == null)
+        {
+            return;
+        }
+        final javax.jcr.Node stagingNode = context.staging;
+        if (context.position == context.resumePosition && context.resumePosition > 0
+            && !stack.getPath().equals(context.resumePath))
+        {
+            // the document is not traversed as before, start over on the next try.
+            submit(context, new WriteOperation()
+            {
+                public void apply(final Session target) throws RepositoryException
                 {
-                    if (itsEng.backTracking()
-                        && StringUtils.equals(node.getLocalName(), element.getLocalName()))
-                    {
-                        break;
-                    }
+                    stagingNode.remove();
+                    target.save();
                 }
-            }
+            });
+            throw new RepositoryException("The staged import does not match the document.");
+        }
+        if (!isReplay(context) && ++context.sinceCheckpoint >= this.checkpointSize)
+        {
+            final long checkpointPosition = context.position;
+            final String checkpointPath = stack.getPath();
+            submit(context, new WriteOperation()
+            {
+                public void apply(final Session target) throws RepositoryException
+                {
+                    stagingNode.setProperty(SlingItsConstants.SLING_ITS_CHECKPOINT_POSITION,
+                        checkpointPosition);
+                    stagingNode.setProperty(SlingItsConstants.SLING_ITS_CHECKPOINT_PATH,
+                        checkpointPath);
+                    save(context, target);
+                }
+            });
+            context.sinceCheckpoint = 0;
         }
     }
 
     /**
-     * Store the global rule.
+     * @param context
+     *         the state of the import
+     * @return true while a resumed import traverses the nodes that were
+     *         already stored before the checkpoint
+     */
+    private boolean isReplay(final ImportContext context)
+    {
+        return context.position <= context.resumePosition;
+    }
+
+    /**
+     * Replace the previous version of the document with the staged one. The
+     * staged elements and id index are moved to the target path and the word
+     * counts are stored, all with one save, so readers either see the
+     * previous or the new version.
      *
-     * @param element
-     *         an Element from the Document object.
+     * @param context
+     *         the state of the import
+     * @param targetPath
+     *         the target path of the import
      * @param resourceType
-     *         resource type
-     * @param itsEng
-     *         the ITSEngine
+     *         the resourceType of the document
+     * @throws RepositoryException
+     *         if the staged document could not be moved
      */
-    private void storeGlobalRule(final Element element, final String resourceType,
-        final ITraversal itsEng)
+    private void commitStaging(final ImportContext context, final String targetPath,
+        final String resourceType) throws RepositoryException
     {
-        if (StringUtils.isNotBlank(resourceType))
+        final javax.jcr.Node target = JcrResourceUtil.createPath(targetPath, "nt:unstructured",
+            "nt:unstructured", context.session, false);
+        final NodeIterator oldChildren = target.getNodes();
+        while (oldChildren.hasNext())
         {
-            String globalPath = SlingItsConstants.getGlobalRules().get(
-                element.getLocalName())
-                + resourceType;
-            if (element.getPrefix() != null)
+            oldChildren.nextNode().remove();
+        }
+        final NodeIterator stagedChildren = context.staging.getNode(
+            SlingItsConstants.ITS_STAGING_DOCUMENT).getNodes();
+        while (stagedChildren.hasNext())
+        {
+            final javax.jcr.Node child = stagedChildren.nextNode();
+            context.session.move(child.getPath(), targetPath + "/" + child.getName());
+        }
+        if (target.hasProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST))
+        {
+            target.getProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST).remove();
+        }
+
+        final String indexPath = ItsIdUtils.getIndexPath(targetPath);
+        if (context.session.nodeExists(indexPath))
+        {
+            context.session.getNode(indexPath).remove();
+        }
+        final javax.jcr.Node indexParent = JcrResourceUtil.createPath(StringUtils
+            .substringBeforeLast(indexPath, "/"), "nt:unstructured", "nt:unstructured",
+            context.session, false);
+        indexParent.setProperty(SlingItsConstants.ITS_INDEX_RESOURCE_TYPE, StringUtils
+            .defaultString(resourceType));
+        context.session.move(context.idIndex.getPath(), indexPath);
+        context.idIndex = context.session.getNode(indexPath);
+
+        ItsStatsUtils.store(target, context.counts);
+        context.staging.remove();
+        context.staging = null;
+        context.session.save();
+    }
+
+    /**
+     * Compute the digest of the uploaded document and external rules files
+     * together with the parameters that change how they are stored. The files
+     * are read as streams, so large uploads are not held in memory.
+     *
+     * @param request
+     *         the import request
+     * @return the hex encoded digest
+     * @throws IOException
+     *         if an uploaded file could not be read
+     */
+    private String getContentDigest(final SlingHttpServletRequest request) throws IOException
+    {
+        final MessageDigest digest = HashUtils.newDigest();
+        HashUtils.update(digest, StringUtils.defaultString(request.getParameter("inline"))
+            + "\n" + this.textStoreThreshold + "\n");
+        final List<RequestParameter> files = new ArrayList<RequestParameter>();
+        if (request.getRequestParameter("file") != null)
+        {
+            files.add(request.getRequestParameter("file"));
+        }
+        if (request.getRequestParameters("externalFile") != null)
+        {
+            Collections.addAll(files, request.getRequestParameters("externalFile"));
+        }
+        for (final RequestParameter requestParameter : files)
+        {
+            final InputStream content = requestParameter.getInputStream();
+            try
             {
-                globalPath += String.format("/%s(%d)", element.getLocalName(),
-                    getCounter(globalPath + "/" + element.getLocalName()));
-                element.setAttribute(SlingItsConstants.NODE_PREFIX, element.getPrefix());
+                updateDigest(digest, requestParameter.getFileName(), requestParameter
+                    .getSize(), content);
             }
-            else
+            finally
             {
-                globalPath += String.format("/%s(%d)", element.getNodeName(),
-                    getCounter(globalPath + "/" + element.getNodeName()));
+                IOUtils.closeQuietly(content);
             }
+        }
+        return HashUtils.toHex(digest);
+    }
 
-            output(globalPath, null, null);
-            if (element.getLocalName().equals("param"))
+    /**
+     * Add an uploaded file to the content digest.
+     *
+     * @param digest
+     *         the content digest
+     * @param fileName
+     *         the name of the file or null
+     * @param size
+     *         the size of the file
+     * @param content
+     *         the content of the file, it is not closed
+     * @throws IOException
+     *         if the file could not be read
+     */
+    static void updateDigest(final MessageDigest digest, final String fileName,
+        final long size, final InputStream content) throws IOException
+    {
+        HashUtils.update(digest, StringUtils.defaultString(fileName) + "\n" + size + "\n");
+        HashUtils.update(digest, content);
+    }
+
+    /**
+     * Check if the files with the given digest were the last ones imported
+     * to the target path and the document is still stored as imported. That
+     * is the case if the id index exists and the global rules of the
+     * resourceType are the ones the document was annotated with.
+     *
+     * @param context
+     *         the state of the import
+     * @param targetPath
+     *         the target path of the import
+     * @param contentDigest
+     *         the digest of the uploaded files
+     * @return true if the import can be skipped
+     */
+    private boolean isUnchanged(final ImportContext context, final String targetPath,
+        final String contentDigest)
+    {
+        try
+        {
+            final String indexPath = ItsIdUtils.getIndexPath(targetPath);
+            if (!context.session.nodeExists(targetPath) || !context.session.nodeExists(indexPath))
             {
-                output(globalPath, null, element.getTextContent());
+                return false;
             }
-            else if (element.getLocalName().equals(SlingItsConstants.ITS_LOCNOTE_RULE)
-                && element.hasChildNodes())
+            final javax.jcr.Node targetNode = context.session.getNode(targetPath);
+            final javax.jcr.Node indexNode = context.session.getNode(indexPath).getParent();
+            if (!targetNode.hasProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST)
+                || !contentDigest.equals(targetNode.getProperty(
+                    SlingItsConstants.SLING_ITS_CONTENT_DIGEST).getString())
+                || !indexNode.hasProperty(SlingItsConstants.ITS_INDEX_RULES_DIGEST))
             {
-                final Element locNoteElement = (Element) XmlNodeUtils.getChildNodeByLocalName(
-                    element, SlingItsConstants.ITS_LOCNOTE);
-                if (locNoteElement != null)
-                {
-                    element.setAttribute(SlingItsConstants.ITS_NOTE,
-                        locNoteElement.getTextContent());
-                }
+                return false;
             }
-            setAttributes(element, globalPath);
+            final String resourceType = (indexNode.hasProperty(
+                SlingItsConstants.ITS_INDEX_RESOURCE_TYPE) ? indexNode.getProperty(
+                SlingItsConstants.ITS_INDEX_RESOURCE_TYPE).getString() : StringUtils.EMPTY);
+            return ItsRulesUtils.getRulesDigest(context.session, resourceType).equals(
+                indexNode.getProperty(SlingItsConstants.ITS_INDEX_RULES_DIGEST).getString());
         }
-        skipChildren(element, itsEng);
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to access repository. Stack Trace: ", e);
+        }
+        return false;
     }
 
     /**
-     * Store the element and its attribute. The child node of global rules are
-     * specially handled so they will not be traversed.
+     * Write the result of an import that was skipped because the same files
+     * were imported before.
      *
-     * @param path
+     * @param response
+     *         the response
+     * @param targetPath
+     *         the target path of the import
+     * @param contentDigest
+     *         the digest of the uploaded files
+     * @throws IOException
+     *         if the response could not be written
+     */
+    private void writeNotModified(final SlingHttpServletResponse response,
+        final String targetPath, final String contentDigest) throws IOException
+    {
+        try
+        {
+            response.setCharacterEncoding(CharEncoding.UTF_8);
+            response.setContentType(SlingItsConstants.JSON_MIME_TYPE);
+            final JSONWriter writer = new JSONWriter(response.getWriter());
+            writer.object();
+            writer.key("path").value(targetPath);
+            writer.key("modified").value(false);
+            writer.key("digest").value(contentDigest);
+            writer.endObject();
+        }
+        catch (final JSONException e)
+        {
+            LOG.error("Failed to write the import result. Stack Trace: ", e);
+        }
+    }
+
+    /**
+     * Merge a translated document into the document imported to targetPath.
+     * The elements are matched by the ids they were rendered with and only
+     * the text-content and the attributes that changed are updated in place.
+     * Ids that are not found in the id index are reported back.
+     *
+     * The data categories of the updated elements and their descendants are
+     * resolved again, as their attributes may have changed, and the document
+     * gets a new content digest, so its entity tag changes. The changes are
+     * saved together, a merge that fails leaves the document unchanged.
+     *
+     * @param context
+     *         the state of the import
+     * @param request
+     *         the request that holds the translated file
+     * @param response
+     *         the response the merge report is written to
+     * @param targetPath
+     *         the target path of the original import
+     * @return true if the merge was saved, false if it failed
+     * @throws IOException
+     *         if the file could not be read or the report could not be written
+     */
+    private boolean merge(final ImportContext context, final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response, final String targetPath) throws IOException
+    {
+        final String indexPath = ItsIdUtils.getIndexPath(targetPath);
+        final File file = File.createTempFile("input",
+            StringUtils.EMPTY + System.currentTimeMillis());
+        file.deleteOnExit();
+        final Document doc = DocumentUtils.getDocument(
+            request.getRequestParameter("file"), file);
+        final String mergeDigest = getContentDigest(request);
+        final List<String> unmatched = new ArrayList<String>();
+        final List<String> mismatched = new ArrayList<String>();
+        final Set<String> touched = new HashSet<String>();
+        int matched = 0;
+        int updated = 0;
+        try
+        {
+            if (doc == null || !context.session.nodeExists(indexPath))
+            {
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                response.getWriter().write(
+                    "500: No document or no id index found for path: " + targetPath);
+                LOG.error("No document or no id index found for path: " + targetPath);
+                return false;
+            }
+            final javax.jcr.Node index = context.session.getNode(indexPath);
+            final NodeList elements = doc.getElementsByTagName("*");
+            for (int i = 0; i < elements.getLength(); i++)
+            {
+                final Element element = (Element) elements.item(i);
+                final String id = getRenderedId(element);
+                if (id == null)
+                {
+                    continue;
+                }
+                final String path = ItsIdUtils.lookupId(index, id);
+                if (path == null || !context.session.nodeExists(path))
+                {
+                    unmatched.add(id);
+                    continue;
+                }
+                matched++;
+                final javax.jcr.Node node = context.session.getNode(path);
+                boolean changed = mergeAttributes(element, node);
+                if (node.hasProperty(SlingItsConstants.SLING_ITS_SEGMENT))
+                {
+                    final Boolean merged = mergeSegment(context, element, node, targetPath);
+                    if (merged == null)
+                    {
+                        mismatched.add(id);
+                    }
+                    else if (merged)
+                    {
+                        changed = true;
+                    }
+                }
+                else
+                {
+                    final List<String> texts = getTexts(element);
+                    final NodeIterator textNodes = node.getNodes(
+                        SlingItsConstants.TEXT_CONTENT_NODE + "*");
+                    int t = 0;
+                    while (textNodes.hasNext() && t < texts.size())
+                    {
+                        final javax.jcr.Node textNode = textNodes.nextNode();
+                        final String text = texts.get(t++);
+                        final String oldText = ItsTextUtils.getText(textNode);
+                        if (!text.equals(oldText))
+                        {
+                            ItsTextUtils.setText(textNode, text, this.textStoreThreshold);
+                            updateStats(context, node, targetPath, oldText, text);
+                            changed = true;
+                        }
+                    }
+                    if (textNodes.hasNext() || t < texts.size())
+                    {
+                        mismatched.add(id);
+                    }
+                }
+                if (changed)
+                {
+                    node.setProperty(SlingItsConstants.SLING_ITS_MODIFIED, context.importTime);
+                    touched.add(node.getPath());
+                    updated++;
+                }
+            }
+
+            if (updated > 0)
+            {
+                final Resource root = ItsIdUtils.getRootElement(request.getResourceResolver()
+                    .getResource(targetPath));
+                if (annotateMerged(context, root, touched))
+                {
+                    // the translate data category of merged elements changed.
+                    ItsStatsUtils.recompute(context.session, targetPath);
+                }
+                // the stored document no longer is the one of the imported files.
+                final javax.jcr.Node target = context.session.getNode(targetPath);
+                if (target.hasProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST))
+                {
+                    target.setProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST, HashUtils
+                        .sha1Hex(target.getProperty(SlingItsConstants.SLING_ITS_CONTENT_DIGEST)
+                            .getString() + "\n" + mergeDigest));
+                }
+            }
+            context.session.save();
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to merge the document into " + targetPath + ". Stack Trace: ", e);
+            discard(context.session);
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            response.getWriter().write("500: Failed to merge the document.");
+            return false;
+        }
+
+        try
+        {
+            response.setCharacterEncoding(CharEncoding.UTF_8);
+            response.setContentType(SlingItsConstants.JSON_MIME_TYPE);
+            final JSONWriter writer = new JSONWriter(response.getWriter());
+            writer.object();
+            writer.key("path").value(targetPath);
+            writer.key("matched").value(matched);
+            writer.key("updated").value(updated);
+            writer.key("unmatched").array();
+            for (final String id : unmatched)
+            {
+                writer.value(id);
+            }
+            writer.endArray();
+            writer.key("mismatched").array();
+            for (final String id : mismatched)
+            {
+                writer.value(id);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        catch (final JSONException e)
+        {
+            LOG.error("Failed to write the merge report. Stack Trace: ", e);
+        }
+        return true;
+    }
+
+    /**
+     * Resolve the data categories of the merged elements and their
+     * descendants again and store the changed ones. Only the ancestors of the
+     * merged elements are entered on the way down, to get the inherited
+     * values. Documents whose global rules have unsupported selectors keep
+     * their annotations, as the skipped rules would drop the ones the import
+     * stored for them.
+     *
+     * @param context
+     *         the state of the import
+     * @param root
+     *         the root element of the document
+     * @param touched
+     *         the paths of the merged elements
+     * @return true if an annotation changed
+     * @throws RepositoryException
+     *         if the annotations could not be stored
+     */
+    private boolean annotateMerged(final ImportContext context, final Resource root,
+        final Set<String> touched) throws RepositoryException
+    {
+        final ItsAnnotator annotator = ItsAnnotator.forDocument(root.getResourceResolver(),
+            root, false);
+        if (!annotator.isComplete())
+        {
+            LOG.warn("The global rules of " + root.getPath() + " have unsupported "
+                + "selectors, the annotations of the merged elements are kept.");
+            return false;
+        }
+        final Set<String> ancestors = new HashSet<String>();
+        for (final String path : touched)
+        {
+            String parent = ResourceUtil.getParent(path);
+            while (parent != null && ancestors.add(parent))
+            {
+                parent = ResourceUtil.getParent(parent);
+            }
+        }
+        boolean changed = false;
+        final boolean merged = touched.contains(root.getPath());
+        if (merged)
+        {
+            changed = annotator.enter(root).store(context.session.getNode(root.getPath()));
+        }
+        else
+        {
+            annotator.enter(root);
+        }
+
+        // the stack holds the children still to visit of each open element.
+        final Deque<Iterator<Resource>> stack = new ArrayDeque<Iterator<Resource>>();
+        final Deque<Boolean> within = new ArrayDeque<Boolean>();
+        stack.push(root.listChildren());
+        within.push(merged);
+        while (!stack.isEmpty())
+        {
+            final Iterator<Resource> children = stack.peek();
+            if (!children.hasNext())
+            {
+                stack.pop();
+                within.pop();
+                annotator.leave();
+                continue;
+            }
+            final Resource child = children.next();
+            final boolean isMerged = within.peek() || touched.contains(child.getPath());
+            if (child.getName().startsWith(SlingItsConstants.TEXT_CONTENT_NODE)
+                || ItsAnnotator.isRules(child)
+                || (!isMerged && !ancestors.contains(child.getPath())))
+            {
+                continue;
+            }
+            final ItsAnnotation annotation = annotator.enter(child);
+            if (isMerged)
+            {
+                changed |= annotation.store(context.session.getNode(child.getPath()));
+            }
+            stack.push(child.listChildren());
+            within.push(isMerged);
+        }
+        return changed;
+    }
+
+    /**
+     * Discard the changes that were not saved.
+     *
+     * @param session
+     *         the session
+     */
+    private static void discard(final Session session)
+    {
+        try
+        {
+            session.refresh(false);
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to discard the pending changes. Stack Trace: ", e);
+        }
+    }
+
+    /**
+     * Get the id an element was rendered with. That is the sling-its id for
+     * xml and html or the id of the element itself.
+     *
+     * @param element
+     *         an Element from the translated Document object.
+     * @return the id or null if the element has none
+     */
+    static String getRenderedId(final Element element)
+    {
+        for (final String attrName : new String[] { SlingItsConstants.XML_SLING_ITS_ID_ATTR,
+            SlingItsConstants.HTML_SLING_ITS_ID_ATTR, "id", "xml:id" })
+        {
+            if (element.hasAttribute(attrName))
+            {
+                return element.getAttribute(attrName);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the texts of an element that are merged into its text-content
+     * nodes, in document order. Whitespace between the child elements is not
+     * a text of its own. The element is mismatched if the number of texts is
+     * not the number of its text-content nodes.
+     *
+     * @param element
+     *         an Element from the translated Document object.
+     * @return the text children that are not blank
+     */
+    static List<String> getTexts(final Element element)
+    {
+        final List<String> texts = new ArrayList<String>();
+        for (Node child = element.getFirstChild(); child != null; child = child
+            .getNextSibling())
+        {
+            if (child.getNodeType() == Node.TEXT_NODE
+                && StringUtils.isNotBlank(child.getNodeValue()))
+            {
+                texts.add(child.getNodeValue());
+            }
+        }
+        return texts;
+    }
+
+    /**
+     * Update the properties of the node whose value differ from the
+     * attributes of the translated element. Namespace declarations, the
+     * sling-its id and the jcr/sling type attributes are left untouched.
+     *
+     * @param element
+     *         an Element from the translated Document object.
+     * @param node
+     *         the node the element was rendered from
+     * @return true if a property was changed
+     * @throws RepositoryException
+     *         if the node could not be updated
+     */
+    private boolean mergeAttributes(final Element element, final javax.jcr.Node node)
+        throws RepositoryException
+    {
+        boolean changed = false;
+        final NamedNodeMap map = element.getAttributes();
+        for (int i = 0; i < map.getLength(); i++)
+        {
+            final Attr attr = (Attr) map.item(i);
+            final String name = attr.getNodeName();
+            if (name.startsWith(XMLConstants.XMLNS_ATTRIBUTE)
+                || name.equals(SlingItsConstants.XML_SLING_ITS_ID_ATTR)
+                || name.equals(SlingItsConstants.HTML_SLING_ITS_ID_ATTR)
+                || name.equals(SlingItsConstants.XML_PRIMARY_TYPE_PROP)
+                || name.equals(SlingItsConstants.HTML_PRIMARY_TYPE_PROP)
+                || name.equals(SlingItsConstants.HTML_RESOURCE_TYPE_PROP)
+                || name.equals(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY))
+            {
+                continue;
+            }
+            if (!node.hasProperty(name)
+                || !attr.getNodeValue().equals(node.getProperty(name).getString()))
+            {
+                node.setProperty(name, attr.getNodeValue());
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Set the attributes of the element on its node.
+     *
+     * @param context
+     *         the state of the import
+     * @param node
+     *           the node of the element
+     * @param attributes
+     *           the attributes of the element
+     * @throws RepositoryException
+     *           if an attribute could not be set
+     */
+    private void setAttributes(final ImportContext context, final javax.jcr.Node node,
+        final List<Attribute> attributes) throws RepositoryException
+    {
+        for (final Attribute attr : attributes)
+        {
+            write(node, attr, null);
+        }
+        context.requestMetrics.add(ItsMetrics.PROPERTIES, attributes.size());
+    }
+
+    /**
+     * @param element
+     *           an Element from the Document object.
+     * @return the attributes of the element sorted by name
+     */
+    private static List<Attribute> getSortedAttributes(final Element element)
+    {
+        final List<Attribute> attributes = new ArrayList<Attribute>();
+        if (element.hasAttributes())
+        {
+            final NamedNodeMap map = element.getAttributes();
+
+            final ArrayList<String> list = new ArrayList<String>();
+            for (int i = 0; i < map.getLength(); i++)
+            {
+                list.add(((Attr) map.item(i)).getNodeName());
+            }
+            Collections.sort(list);
+
+            for (final String attrName : list)
+            {
+                attributes.add(new Attribute((Attr) map.getNamedItem(attrName)));
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Gets the iteration of this global rule at its current level. For
+     * example, there could be two translateRules of the same resourceType.
+     * The first will be translateRule(1) while the second will be
+     * translateRule(2). This is needed so we won't override the first rule.
+     *
+     * @param context
+     *         the state of the import
+     * @param relPath
+     *         absolute path of the global rule without its iteration.
+     * @return counterValue
+     *            iteration of this node name at its current level.
+     */
+    private Integer getCounter(final ImportContext context, final String relPath)
+    {
+        Integer counterValue = context.counterMap.get(relPath);
+        counterValue = (counterValue != null) ? counterValue + 1 : 1;
+        context.counterMap.put(relPath, counterValue);
+        return counterValue;
+    }
+
+    /**
+     * If element has child elements, don't process them and skip those nodes.
+     *
+     * @param element
+     *         current element
+     * @param itsEng
+     *         the ITSEngine
+     */
+    private void skipChildren(final Element element, final ITraversal itsEng)
+    {
+        if (element.hasChildNodes())
+        {
+            Node node;
+            while ((node = itsEng.nextNode()) != null)
+            {
+                if (node.getNodeType() == Node.ELEMENT_NODE)
+                {
+                    if (itsEng.backTracking()
+                        && StringUtils.equals(node.getLocalName(), element.getLocalName()))
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Skip the descendants of the element, the backtracking of the element
+     * itself is consumed as well.
+     *
+     * @param element
+     *         current element
+     * @param itsEng
+     *         the ITSEngine
+     */
+    private static void skipDescendants(final Element element, final ITraversal itsEng)
+    {
+        if (element.hasChildNodes())
+        {
+            Node node;
+            while ((node = itsEng.nextNode()) != null)
+            {
+                if (itsEng.backTracking() && node.isSameNode(element))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param element
+     *         an Element from the Document object.
+     * @return true if the element has child elements
+     */
+    private static boolean hasChildElements(final Element element)
+    {
+        for (Node child = element.getFirstChild(); child != null; child = child
+            .getNextSibling())
+        {
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the elements that are within text, as resolved by the ITSEngine
+     * (ITS Elements Within Text). The rules are applied without the HTML5
+     * defaults, so for HTML the phrasing elements without local withinText
+     * markup are within text as well.
+     *
+     * @param doc
+     *         the document
+     * @param itsEng
+     *         the ITSEngine
+     * @return the elements that are within text
+     */
+    private static Set<Node> findInlineElements(final Document doc, final ITraversal itsEng)
+    {
+        final Element root = doc.getDocumentElement();
+        final boolean isHtml = "html".equalsIgnoreCase(root.getLocalName() != null ? root
+            .getLocalName() : root.getNodeName());
+        final Set<Node> inline = new HashSet<Node>();
+        itsEng.startTraversal();
+        Node node;
+        while ((node = itsEng.nextNode()) != null)
+        {
+            if (node.getNodeType() == Node.ELEMENT_NODE && !itsEng.backTracking())
+            {
+                final int withinText = itsEng.getWithinText();
+                if (withinText == ITraversal.WITHINTEXT_YES
+                    || (isHtml && withinText == ITraversal.WITHINTEXT_NO && ItsInlineUtils
+                        .isHtmlInline((Element) node)))
+                {
+                    inline.add(node);
+                }
+            }
+        }
+        return inline;
+    }
+
+    /**
+     * Store the inline content of an element as one segment and count its
+     * text.
+     *
+     * @param context
+     *         the state of the import
+     * @param node
+     *         the node of the element
+     * @param segment
+     *         the encoded inline content
+     * @throws RepositoryException
+     *         if the segment could not be stored
+     */
+    private void storeSegment(final ImportContext context, final NodeRef node,
+        final ItsInlineUtils.Segment segment) throws RepositoryException
+    {
+        if (context.staging == null || !isReplay(context))
+        {
+            submit(context, new WriteOperation()
+            {
+                public void apply(final Session target) throws RepositoryException
+                {
+                    node.node.setProperty(SlingItsConstants.SLING_ITS_SEGMENT,
+                        segment.getText());
+                    node.node.setProperty(SlingItsConstants.SLING_ITS_SEGMENT_CODES,
+                        segment.getCodes());
+                }
+            });
+        }
+        final String text = ItsInlineUtils.getPlainText(segment.getText());
+        if (StringUtils.isNotBlank(text))
+        {
+            countText(node, text);
+        }
+    }
+
+    /**
+     * Merge the translated inline content of an element into its segment.
+     *
+     * @param context
+     *         the state of the import
+     * @param element
+     *         the translated element
+     * @param node
+     *         the node holding the segment
+     * @param targetPath
+     *         the target path of the document
+     * @return true if the segment changed, false if not, null if the
+     *         translated content can't be stored as a segment
+     * @throws RepositoryException
+     *         if the segment could not be merged
+     */
+    private Boolean mergeSegment(final ImportContext context, final Element element,
+        final javax.jcr.Node node, final String targetPath) throws RepositoryException
+    {
+        final ItsInlineUtils.Segment segment = ItsInlineUtils.encode(element, null);
+        if (segment == null)
+        {
+            return null;
+        }
+        final String oldText = node.getProperty(SlingItsConstants.SLING_ITS_SEGMENT)
+            .getString();
+        if (segment.getText().equals(oldText))
+        {
+            return Boolean.FALSE;
+        }
+        node.setProperty(SlingItsConstants.SLING_ITS_SEGMENT, segment.getText());
+        node.setProperty(SlingItsConstants.SLING_ITS_SEGMENT_CODES, segment.getCodes());
+        updateStats(context, node, targetPath, ItsInlineUtils.getPlainText(oldText), ItsInlineUtils
+            .getPlainText(segment.getText()));
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Store the global rule.
+     *
+     * @param context
+     *         the state of the import
+     * @param element
+     *         an Element from the Document object.
+     * @param resourceType
+     *         resource type
+     * @param itsEng
+     *         the ITSEngine
+     * @throws RepositoryException
+     *         if the rule could not be passed to the writer
+     */
+    private void storeGlobalRule(final ImportContext context, final Element element,
+        final String resourceType, final ITraversal itsEng) throws RepositoryException
+    {
+        if (StringUtils.isNotBlank(resourceType))
+        {
+            String globalPath = SlingItsConstants.getGlobalRules().get(
+                element.getLocalName())
+                + resourceType;
+            if (element.getPrefix() != null)
+            {
+                globalPath += String.format("/%s(%d)", element.getLocalName(),
+                    getCounter(context, globalPath + "/" + element.getLocalName()));
+                element.setAttribute(SlingItsConstants.NODE_PREFIX, element.getPrefix());
+            }
+            else
+            {
+                globalPath += String.format("/%s(%d)", element.getNodeName(),
+                    getCounter(context, globalPath + "/" + element.getNodeName()));
+            }
+
+            final String rulePath = globalPath;
+            String text = null;
+            if (element.getLocalName().equals("param"))
+            {
+                text = element.getTextContent();
+            }
+            else if (element.getLocalName().equals(SlingItsConstants.ITS_LOCNOTE_RULE)
+                && element.hasChildNodes())
+            {
+                final Element locNoteElement = (Element) XmlNodeUtils.getChildNodeByLocalName(
+                    element, SlingItsConstants.ITS_LOCNOTE);
+                if (locNoteElement != null)
+                {
+                    element.setAttribute(SlingItsConstants.ITS_NOTE,
+                        locNoteElement.getTextContent());
+                }
+            }
+            final String paramText = text;
+            final List<Attribute> attributes = getSortedAttributes(element);
+            submit(context, new WriteOperation()
+            {
+                public void apply(final Session target) throws RepositoryException
+                {
+                    if (target.itemExists(rulePath))
+                    {
+                        target.getItem(rulePath).remove();
+                    }
+                    final javax.jcr.Node node = JcrResourceUtil.createPath(rulePath,
+                        "nt:unstructured", "nt:unstructured", target, false);
+                    node.setProperty(SlingItsConstants.SLING_ITS_MODIFIED, context.importTime);
+                    write(node, null, paramText);
+                    setAttributes(context, node, attributes);
+                    context.requestMetrics.add(ItsMetrics.NODES, 1);
+                }
+            });
+        }
+        skipChildren(element, itsEng);
+    }
+
+    /**
+     * Store the element and its attribute. The child node of global rules are
+     * specially handled so they will not be traversed. The open elements are
+     * kept on an {@link ElementPathStack} with their nodes, so each element
+     * is added to the node of its parent and storing it costs the same at any
+     * depth. The traversal only reads the document, the nodes are written by
+     * a {@link WritePipeline} on its own thread, so the document is traversed
+     * while the previous elements are written. If inline content is compacted, the content of an element whose
+     * descendants are all within text is stored as one segment on the element
+     * node instead of a node per inline element and text.
+     *
+     * @param context
+     *         the state of the import
+     * @param path
      *         the target path
      * @param resourceType
      *         the resourceType
@@ -357,15 +1688,214 @@ public class ItsImportServlet extends SlingAllMethodsServlet
      *        the file.
      * @param isExternalDoc
      *         true if this is for storing global rules for external documents
+     * @throws RepositoryException
+     *         if an element could not be stored
+     * @throws DepthLimitExceededException
+     *         if the document is nested deeper than the depth limit
      */
-    private void store(String path, final String resourceType, final Document doc,
-        final File file, final boolean isExternalDoc)
+    private void store(final ImportContext context, final String path, final String resourceType,
+        final Document doc, final File file, final boolean isExternalDoc) throws RepositoryException
     {
+        final javax.jcr.Node root;
+        if (isExternalDoc)
+        {
+            root = null;
+        }
+        else if (context.staging != null)
+        {
+            // the nodes are staged, their paths are the ones of the target.
+            root = context.staging.getNode(SlingItsConstants.ITS_STAGING_DOCUMENT);
+        }
+        else
+        {
+            root = context.session.getNode(path);
+        }
+        final ElementPathStack<NodeRef> stack = new ElementPathStack<NodeRef>(path,
+            new NodeRef(true, ItsIdUtils.getUniqueId(path)), this.maxDepth);
+        stack.getValue().node = root;
+        if (!isExternalDoc)
+        {
+            context.counts = stack.getValue().counts;
+        }
+        final long rulesStart = System.nanoTime();
+        final PhaseEvent rulesEvent = PhaseEvent.begin(PhaseEvent.IMPORT,
+            PhaseEvent.APPLY_RULES);
         final ITraversal itsEng = applyITSRules(doc, file, null, false);
+        context.requestMetrics.addTime(ItsMetrics.APPLY_RULES_TIME, rulesStart);
+        rulesEvent.commit(path, resourceType, 0, file.length());
+        final Set<Node> inline = (context.compactInline && !isExternalDoc ? findInlineElements(
+            doc, itsEng) : null);
+        final long storeStart = System.nanoTime();
+        final PhaseEvent storeEvent = PhaseEvent.begin(PhaseEvent.IMPORT, PhaseEvent.STORE);
+        final long nodes = context.requestMetrics.get(ItsMetrics.NODES);
+        startPipeline(context, path, resourceType);
+        try
+        {
+            traverse(context, stack, resourceType, doc, itsEng, inline, isExternalDoc);
+            context.pipeline.finish();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("The import was interrupted.", e);
+        }
+        finally
+        {
+            context.pipeline.close();
+            context.pipeline = null;
+        }
+        save(context, context.session);
+        context.requestMetrics.addTime(ItsMetrics.STORE_TIME, storeStart);
+        storeEvent.commit(path, resourceType, context.requestMetrics.get(ItsMetrics.NODES)
+            - nodes, 0);
+    }
+
+    /**
+     * Start the writer of the document, it owns the session until it is
+     * finished. If the import fails, the unsaved changes are discarded.
+     *
+     * @param context
+     *         the state of the import
+     * @param path
+     *         the path of the document
+     * @param resourceType
+     *         the resourceType of the document
+     */
+    private void startPipeline(final ImportContext context, final String path,
+        final String resourceType)
+    {
+        context.eventPath = path;
+        context.eventResourceType = resourceType;
+        context.pipeline = new WritePipeline<Session, RepositoryException>("its-import-writer",
+            context.session, this.writeQueueSize, this.writeBatchSize, new WriteOperation()
+            {
+                public void apply(final Session target) throws RepositoryException
+                {
+                    // a staged import is only saved at its checkpoints.
+                    if (context.staging == null)
+                    {
+                        save(context, target);
+                    }
+                }
+            }, new WriteOperation()
+            {
+                public void apply(final Session target) throws RepositoryException
+                {
+                    target.refresh(false);
+                }
+            });
+        context.pipeline.start();
+    }
+
+    /**
+     * Save a batch of the document.
+     *
+     * @param context
+     *         the state of the import
+     * @param target
+     *         the session
+     * @throws RepositoryException
+     *         if the batch could not be saved
+     */
+    private void save(final ImportContext context, final Session target) throws RepositoryException
+    {
+        final PhaseEvent event = PhaseEvent.begin(PhaseEvent.IMPORT, PhaseEvent.SAVE);
+        target.save();
+        context.requestMetrics.add(ItsMetrics.SAVES, 1);
+        event.commit(context.eventPath, context.eventResourceType, 0, 0);
+    }
+
+    /**
+     * Stream the html document to the writer.
+     *
+     * @param context
+     *         the state of the import
+     * @param path
+     *         the target path
+     * @param resourceType
+     *         the resourceType of the document
+     * @param file
+     *         the html document
+     * @param rules
+     *         the external rules files
+     * @throws RepositoryException
+     *         if the document could not be parsed or stored
+     * @throws IOException
+     *         if the document could not be read
+     */
+    private void storeStream(final ImportContext context, final String path,
+        final String resourceType, final File file, final List<Document> rules)
+        throws RepositoryException, IOException
+    {
+        final ElementPathStack<NodeRef> stack = new ElementPathStack<NodeRef>(path,
+            new NodeRef(true, ItsIdUtils.getUniqueId(path)), this.maxDepth);
+        stack.getValue().node = context.session.getNode(path);
+        context.counts = stack.getValue().counts;
+        final long storeStart = System.nanoTime();
+        final PhaseEvent storeEvent = PhaseEvent.begin(PhaseEvent.IMPORT, PhaseEvent.STORE);
+        final long nodes = context.requestMetrics.get(ItsMetrics.NODES);
+        startPipeline(context, path, resourceType);
+        try
+        {
+            HtmlStreamParser.parse(file, rules, new StreamStore(context, stack));
+            context.pipeline.finish();
+        }
+        catch (final SAXException e)
+        {
+            if (e.getException() instanceof RepositoryException)
+            {
+                throw (RepositoryException) e.getException();
+            }
+            throw new RepositoryException("Failed to parse the document.", e);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("The import was interrupted.", e);
+        }
+        finally
+        {
+            context.pipeline.close();
+            context.pipeline = null;
+        }
+        save(context, context.session);
+        context.requestMetrics.addTime(ItsMetrics.STORE_TIME, storeStart);
+        storeEvent.commit(path, resourceType, context.requestMetrics.get(ItsMetrics.NODES)
+            - nodes, file.length());
+    }
+
+    /**
+     * Traverse the document and pass the elements to the writer.
+     *
+     * @param context
+     *         the state of the import
+     * @param stack
+     *         the open elements, holding the target node
+     * @param resourceType
+     *         the resourceType
+     * @param doc
+     *         the document
+     * @param itsEng
+     *         the ITSEngine
+     * @param inline
+     *         the inline elements or null if inline content is not compacted
+     * @param isExternalDoc
+     *         true if this is for storing global rules for external documents
+     * @throws RepositoryException
+     *         if an element could not be passed to the writer
+     */
+    private void traverse(final ImportContext context, final ElementPathStack<NodeRef> stack,
+        final String resourceType, final Document doc, final ITraversal itsEng,
+        final Set<Node> inline, final boolean isExternalDoc) throws RepositoryException
+    {
         itsEng.startTraversal();
         Node node;
         while ((node = itsEng.nextNode()) != null)
         {
+            if (!isExternalDoc)
+            {
+                context.position++;
+            }
             switch (node.getNodeType())
             {
                 case Node.ELEMENT_NODE:
@@ -377,7 +1907,7 @@ public class ItsImportServlet extends SlingAllMethodsServlet
                         if (!SlingItsConstants.getGlobalRules().containsKey(
                             element.getLocalName()))
                         {
-                            path = backTrack(path);
+                            leave(context, stack);
                         }
                     }
                     else
@@ -385,14 +1915,14 @@ public class ItsImportServlet extends SlingAllMethodsServlet
                         if (element.isSameNode(doc.getDocumentElement())
                             && !isExternalDoc)
                         {
-                            path += "/" + element.getNodeName();
-                            output(path, null, null);
-                            setAttributes(element, path);
+                            final String name = element.getNodeName();
+                            stack.push(name, storeElement(context, element, stack, name,
+                                itsEng));
                         }
                         else if (SlingItsConstants.getGlobalRules().containsKey(
                             element.getLocalName()))
                         {
-                            storeGlobalRule(element, resourceType, itsEng);
+                            storeGlobalRule(context, element, resourceType, itsEng);
                         }
                         else if (!isExternalDoc
                             && !SlingItsConstants.getGlobalRules().containsKey(
@@ -403,12 +1933,12 @@ public class ItsImportServlet extends SlingAllMethodsServlet
                             if (element.getLocalName().equals(SlingItsConstants.ITS_RULES)
                                 && element.getPrefix() != null)
                             {
-                                this.hasGlobalRules = true;
+                                context.hasGlobalRules = true;
                             }
+                            final String name;
                             if (element.getPrefix() != null)
                             {
-                                path += String.format("/%s(%d)", element.getLocalName(),
-                                    getCounter(path + "/" + element.getLocalName()));
+                                name = stack.getChildName(element.getLocalName());
                                 element.setAttribute(SlingItsConstants.NODE_PREFIX,
                                     element.getPrefix());
                             }
@@ -416,9 +1946,7 @@ public class ItsImportServlet extends SlingAllMethodsServlet
                                 && StringUtils.endsWith(element.getAttribute("rel"),
                                     "-rules"))
                             {
-                                path += String.format("/%s(%d)",
-                                    SlingItsConstants.ITS_RULES, getCounter(path + "/"
-                                        + SlingItsConstants.ITS_RULES));
+                                name = stack.getChildName(SlingItsConstants.ITS_RULES);
                                 final String prefix = StringUtils.substringBefore(
                                     element.getAttribute("rel"), "-rules");
                                 element.setAttribute(SlingItsConstants.NODE_PREFIX,
@@ -433,18 +1961,39 @@ public class ItsImportServlet extends SlingAllMethodsServlet
                                 element.setAttributeNS(
                                     XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:jcr",
                                     NamespaceRegistry.NAMESPACE_JCR);
-                                this.hasGlobalRules = true;
+                                context.hasGlobalRules = true;
                             }
                             else
                             {
-                                path += String.format("/%s(%d)", element.getNodeName(),
-                                    getCounter(path + "/" + element.getNodeName()));
+                                name = stack.getChildName(element.getNodeName());
                             }
-                            output(path, null, null);
-                            setAttributes(element, path);
-                            if (!element.hasChildNodes()) // Empty elements:
+                            final NodeRef elementNode = storeElement(context, element, stack,
+                                name, itsEng);
+                            final ItsInlineUtils.Segment segment = (inline != null
+                                && !inline.contains(element) && hasChildElements(element)
+                                ? ItsInlineUtils.encode(element, inline) : null);
+                            if (segment != null)
                             {
-                                path = backTrack(path);
+                                storeSegment(context, elementNode, segment);
+                                skipDescendants(element, itsEng);
+                                close(context, elementNode, stack.getValue());
+                            }
+                            else
+                            {
+                                stack.push(name, elementNode);
+                                if (!element.hasChildNodes()) // Empty elements:
+                                {
+                                    leave(context, stack);
+                                }
+                            }
+                        }
+                        else
+                        {
+                            // not stored, its children belong to the current element.
+                            stack.pushSame();
+                            if (!element.hasChildNodes())
+                            {
+                                stack.pop();
                             }
                         }
                     }
@@ -452,89 +2001,570 @@ public class ItsImportServlet extends SlingAllMethodsServlet
                 case Node.TEXT_NODE:
                     if (StringUtils.isNotBlank(node.getNodeValue()) && !isExternalDoc)
                     {
-                        path += String.format("/%s(%d)",
-                            SlingItsConstants.TEXT_CONTENT_NODE, getCounter(path + "/"
-                                + SlingItsConstants.TEXT_CONTENT_NODE));
-                        output(path, null, node.getNodeValue());
-                        path = backTrack(path);
+                        countText(stack.getValue(), node.getNodeValue());
+                        final String textName = stack.getChildName(
+                            SlingItsConstants.TEXT_CONTENT_NODE);
+                        if (context.staging == null || !isReplay(context))
+                        {
+                            storeText(context, stack.getValue(), textName, node.getNodeValue());
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (!isExternalDoc)
+            {
+                checkpoint(context, stack);
+            }
+        }
+    }
+
+    /**
+     * Store an element of the document with its attributes, its id and its
+     * data categories.
+     *
+     * @param context
+     *         the state of the import
+     * @param element
+     *         an Element from the Document object.
+     * @param stack
+     *         the open elements, the parent element on top
+     * @param name
+     *         the node name of the element
+     * @param itsEng
+     *         the ITSEngine, positioned on the element
+     * @return the node of the element, set once it is written
+     * @throws RepositoryException
+     *         if the element could not be passed to the writer
+     */
+    private NodeRef storeElement(final ImportContext context, final Element element,
+        final ElementPathStack<NodeRef> stack, final String name, final ITraversal itsEng)
+        throws RepositoryException
+    {
+        final NodeRef parent = stack.getValue();
+        final boolean isRules = StringUtils.substringBefore(name, "(").endsWith(
+            SlingItsConstants.ITS_RULES);
+        final NodeRef ref = new NodeRef(isRules || itsEng.getTranslate(null),
+            ItsIdUtils.getChildId(parent.id, name));
+        if (context.staging != null && isReplay(context))
+        {
+            // stored before the checkpoint the import is resumed from.
+            submit(context, new WriteOperation()
+            {
+                public void apply(final Session target) throws RepositoryException
+                {
+                    ref.node = parent.node.getNode(name);
+                }
+            });
+            return ref;
+        }
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        String indexId = null;
+        if (!isRules)
+        {
+            final String id;
+            if (element.hasAttribute("id"))
+            {
+                id = element.getAttribute("id");
+            }
+            else if (element.hasAttribute("xml:id"))
+            {
+                id = element.getAttribute("xml:id");
+            }
+            else
+            {
+                id = null;
+            }
+            indexId = indexElement(context, id, ref, properties);
+            annotateElement(element, itsEng, properties);
+        }
+        submitElement(context, stack, name, ref, getSortedAttributes(element), properties,
+            indexId);
+        return ref;
+    }
+
+    /**
+     * Store an element of a streamed html document with its attributes, its
+     * id and its data categories.
+     *
+     * @param context
+     *         the state of the import
+     * @param element
+     *         the element
+     * @param attributes
+     *         the attributes of the element, sorted by name
+     * @param stack
+     *         the open elements, the parent element on top
+     * @param name
+     *         the node name of the element
+     * @return the node of the element, set once it is written
+     * @throws RepositoryException
+     *         if the element could not be passed to the writer
+     */
+    private NodeRef storeElement(final ImportContext context,
+        final HtmlStreamParser.StreamElement element, final List<Attribute> attributes,
+        final ElementPathStack<NodeRef> stack, final String name) throws RepositoryException
+    {
+        final boolean isRules = StringUtils.substringBefore(name, "(").endsWith(
+            SlingItsConstants.ITS_RULES);
+        final NodeRef ref = new NodeRef(isRules || element.isTranslate(),
+            ItsIdUtils.getChildId(stack.getValue().id, name));
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        String indexId = null;
+        if (!isRules)
+        {
+            indexId = indexElement(context, element.getAttribute("id") != null ? element
+                .getAttribute("id") : element.getAttribute("xml:id"), ref, properties);
+            annotateElement(element, properties);
+        }
+        submitElement(context, stack, name, ref, attributes, properties, indexId);
+        return ref;
+    }
+
+    /**
+     * Pass an element to the writer. The writer adds the node to the node of
+     * the parent, sets its attributes and properties and indexes its id.
+     *
+     * @param context
+     *         the state of the import
+     * @param stack
+     *         the open elements, the parent element on top
+     * @param name
+     *         the node name of the element
+     * @param ref
+     *         the node of the element, set by the writer
+     * @param attributes
+     *         the attributes of the element, sorted by name
+     * @param properties
+     *         the properties of the node
+     * @param indexId
+     *         the id to index the element with or null
+     * @throws RepositoryException
+     *         if the element could not be passed to the writer
+     */
+    private void submitElement(final ImportContext context,
+        final ElementPathStack<NodeRef> stack, final String name, final NodeRef ref,
+        final List<Attribute> attributes, final Map<String, Object> properties,
+        final String indexId) throws RepositoryException
+    {
+        ref.counts[ItsStatsUtils.NODES]++;
+        final NodeRef parent = stack.getValue();
+        // the path is only built for the elements that are indexed.
+        final String absPath = (indexId != null ? stack.getPath() + "/" + name : null);
+        final javax.jcr.Node index = context.idIndex;
+        submit(context, new WriteOperation()
+        {
+            public void apply(final Session target) throws RepositoryException
+            {
+                final javax.jcr.Node node = addNode(context, parent.node, name, null);
+                setAttributes(context, node, attributes);
+                for (final Map.Entry<String, Object> property : properties.entrySet())
+                {
+                    setProperty(context, node, property.getKey(), property.getValue());
+                }
+                if (indexId != null)
+                {
+                    final String indexed = ItsIdUtils.addId(index, indexId, absPath);
+                    if (indexed != null)
+                    {
+                        LOG.warn("The id " + indexId + " of " + absPath
+                            + " is already used by " + indexed + ", it is not indexed.");
                     }
-                    break;
-                default:
-                    break;
+                }
+                ref.node = node;
+            }
+        });
+    }
+
+    /**
+     * Store a text of an element as a text-content-node.
+     *
+     * @param context
+     *         the state of the import
+     * @param parent
+     *         the node of the element
+     * @param name
+     *         the name of the text-content-node
+     * @param text
+     *         the text
+     * @throws RepositoryException
+     *         if the text could not be passed to the writer
+     */
+    private void storeText(final ImportContext context, final NodeRef parent, final String name,
+        final String text) throws RepositoryException
+    {
+        submit(context, new WriteOperation()
+        {
+            public void apply(final Session target) throws RepositoryException
+            {
+                addNode(context, parent.node, name, text);
             }
+        });
+    }
+
+    /**
+     * Pass a write operation to the writer of the import.
+     *
+     * @param context
+     *         the state of the import
+     * @param operation
+     *         the operation
+     * @throws RepositoryException
+     *         if a previous operation failed or the import was interrupted
+     */
+    private void submit(final ImportContext context, final WriteOperation operation)
+        throws RepositoryException
+    {
+        try
+        {
+            context.pipeline.submit(operation);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("The import was interrupted.", e);
         }
     }
 
     /**
-     * Creates the jcr node and appends the necessary properties.
+     * Set a property of the type of the value.
      *
-     * @param absPath
-     *         absolute path of the node.
-     * @param attr
-     *         attribute of the element
+     * @param context
+     *         the state of the import
+     * @param node
+     *         the node
+     * @param name
+     *         the name of the property
+     * @param value
+     *         a Boolean, a String or a String array
+     * @throws RepositoryException
+     *         if the property could not be set
+     */
+    private void setProperty(final ImportContext context, final javax.jcr.Node node,
+        final String name, final Object value) throws RepositoryException
+    {
+        context.requestMetrics.add(ItsMetrics.PROPERTIES, 1);
+        if (value instanceof Boolean)
+        {
+            node.setProperty(name, ((Boolean) value).booleanValue());
+        }
+        else if (value instanceof String[])
+        {
+            node.setProperty(name, (String[]) value);
+        }
+        else
+        {
+            node.setProperty(name, String.valueOf(value));
+        }
+    }
+
+    /**
+     * Add a child node stamped with the time of the import. An existing
+     * element node of the same name is replaced, an existing text node gets
+     * the new text. Long texts are kept in the text store if it is enabled.
+     *
+     * @param context
+     *         the state of the import
+     * @param parent
+     *         the parent node
+     * @param name
+     *         the name of the node
      * @param textContent
-     *        text content of the element.
+     *         text content of the element or null
+     * @return the node
+     * @throws RepositoryException
+     *         if the node could not be added
      */
-    private void output(final String absPath, final Attr attr, final String textContent)
+    private javax.jcr.Node addNode(final ImportContext context, final javax.jcr.Node parent,
+        final String name, final String textContent) throws RepositoryException
     {
         javax.jcr.Node node = null;
-        try
+        if (parent.hasNode(name))
         {
-            if (this.session.itemExists(absPath) && attr == null && textContent == null)
+            node = parent.getNode(name);
+            if (textContent == null)
             {
-                node = (javax.jcr.Node) this.session.getItem(absPath);
                 node.remove();
+                node = null;
             }
-            node = JcrResourceUtil.createPath(absPath, "nt:unstructured",
-                "nt:unstructured", this.session, false);
+        }
+        if (node == null)
+        {
+            node = parent.addNode(name, "nt:unstructured");
+        }
+        node.setProperty(SlingItsConstants.SLING_ITS_MODIFIED, context.importTime);
+        if (textContent != null)
+        {
+            ItsTextUtils.setText(node, textContent, this.textStoreThreshold);
+        }
+        context.requestMetrics.add(ItsMetrics.NODES, 1);
+        context.requestMetrics.add(ItsMetrics.PROPERTIES, (textContent != null ? 2 : 1));
+        return node;
+    }
 
-            if (textContent != null)
-            {
-                node.setProperty(SlingItsConstants.TEXT_CONTENT, textContent);
-            }
+    /**
+     * Set the text content or the attribute on the node.
+     *
+     * @param node
+     *         the node
+     * @param attr
+     *         attribute of the element or null
+     * @param textContent
+     *        text content of the element or null
+     * @throws RepositoryException
+     *         if the property could not be set
+     */
+    private void write(final javax.jcr.Node node, final Attribute attr,
+        final String textContent)
+        throws RepositoryException
+    {
+        if (textContent != null)
+        {
+            node.setProperty(SlingItsConstants.TEXT_CONTENT, textContent);
+        }
 
-            if (attr != null)
+        if (attr != null)
+        {
+            if (attr.getNodeName().startsWith(XMLConstants.XMLNS_ATTRIBUTE))
             {
-                if (attr.getNodeName().startsWith(XMLConstants.XMLNS_ATTRIBUTE))
+                node.setProperty(attr.getLocalName(), attr.getNodeValue());
+                if (node.hasProperty(SlingItsConstants.NAMESPACE_DECLARATION))
                 {
-                    node.setProperty(attr.getLocalName(), attr.getNodeValue());
-                    if (node.hasProperty(SlingItsConstants.NAMESPACE_DECLARATION))
-                    {
-                        final ArrayList<String> prefixes = new ArrayList<String>(
-                            ValueUtils.convertToArrayList(node.getProperty(
-                                SlingItsConstants.NAMESPACE_DECLARATION).getValues()));
-                        if (!prefixes.contains(attr.getLocalName()))
-                        {
-                            prefixes.add(attr.getLocalName());
-                            node.setProperty(SlingItsConstants.NAMESPACE_DECLARATION,
-                                prefixes.toArray(new String[prefixes.size()]));
-                        }
-                    }
-                    else
+                    final ArrayList<String> prefixes = new ArrayList<String>(
+                        ValueUtils.convertToArrayList(node.getProperty(
+                            SlingItsConstants.NAMESPACE_DECLARATION).getValues()));
+                    if (!prefixes.contains(attr.getLocalName()))
                     {
+                        prefixes.add(attr.getLocalName());
                         node.setProperty(SlingItsConstants.NAMESPACE_DECLARATION,
-                            new String[] { attr.getLocalName() });
+                            prefixes.toArray(new String[prefixes.size()]));
                     }
                 }
-                else if (StringUtils.equals(attr.getNodeName(),
-                    SlingItsConstants.XML_PRIMARY_TYPE_PROP)
-                    || StringUtils.equals(attr.getNodeName(),
-                        SlingItsConstants.HTML_PRIMARY_TYPE_PROP))
-                {
-                    node.setPrimaryType(attr.getNodeValue());
-                }
-                else if (StringUtils.equals(attr.getNodeName(),
-                    SlingItsConstants.HTML_RESOURCE_TYPE_PROP))
-                {
-                    node.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-                        attr.getNodeValue());
-                }
                 else
                 {
-                    node.setProperty(attr.getNodeName(), attr.getNodeValue());
+                    node.setProperty(SlingItsConstants.NAMESPACE_DECLARATION,
+                        new String[] { attr.getLocalName() });
                 }
             }
-            this.session.save();
+            else if (StringUtils.equals(attr.getNodeName(),
+                SlingItsConstants.XML_PRIMARY_TYPE_PROP)
+                || StringUtils.equals(attr.getNodeName(),
+                    SlingItsConstants.HTML_PRIMARY_TYPE_PROP))
+            {
+                node.setPrimaryType(attr.getNodeValue());
+            }
+            else if (StringUtils.equals(attr.getNodeName(),
+                SlingItsConstants.HTML_RESOURCE_TYPE_PROP))
+            {
+                node.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+                    attr.getNodeValue());
+            }
+            else
+            {
+                node.setProperty(attr.getNodeName(), attr.getNodeValue());
+            }
+        }
+    }
+
+    /**
+     * Add the id the element will be rendered with to the id index of the
+     * document. Generated ids are also stored on the node itself so they don't
+     * need to be computed again on every render. Rules elements don't get an
+     * id.
+     *
+     * @param context
+     *         the state of the import
+     * @param elementId
+     *         the id or xml:id of the element, null if it has none
+     * @param ref
+     *         the node of the element, holding its generated id
+     * @param properties
+     *         the properties of the node, the generated id is added to them
+     * @return the id to index the element with or null if there is no index
+     */
+    private String indexElement(final ImportContext context, final String elementId,
+        final NodeRef ref, final Map<String, Object> properties)
+    {
+        if (context.idIndex == null)
+        {
+            return null;
+        }
+        String id = elementId;
+        if (id == null)
+        {
+            id = ref.id;
+            properties.put(SlingItsConstants.SLING_ITS_ID, id);
+        }
+        return id;
+    }
+
+    /**
+     * Resolve the data categories of the element, so they can be stored and
+     * read back without evaluating the rules again. Only values that are set
+     * are stored, the translate flag is always stored. Rules elements are not
+     * annotated.
+     *
+     * @param element
+     *         an Element from the Document object.
+     * @param itsEng
+     *         the ITSEngine, positioned on the element
+     * @param properties
+     *         the properties of the node, the data categories are added to them
+     */
+    private void annotateElement(final Element element, final ITraversal itsEng,
+        final Map<String, Object> properties)
+    {
+        properties.put(SlingItsConstants.SLING_ITS_TRANSLATE, itsEng.getTranslate(null));
+        final String locNote = itsEng.getLocNote(null);
+        if (locNote != null)
+        {
+            properties.put(SlingItsConstants.SLING_ITS_LOC_NOTE, locNote);
+            properties.put(SlingItsConstants.SLING_ITS_LOC_NOTE_TYPE,
+                StringUtils.defaultIfEmpty(itsEng.getLocNoteType(null), "description"));
+        }
+        final String idValue = itsEng.getIdValue(null);
+        if (idValue != null)
+        {
+            properties.put(SlingItsConstants.SLING_ITS_ID_VALUE, idValue);
+        }
+        final String targetPointer = itsEng.getTargetPointer(null);
+        if (targetPointer != null)
+        {
+            properties.put(SlingItsConstants.SLING_ITS_TARGET_POINTER, targetPointer);
+        }
+        final List<String> translatable = new ArrayList<String>();
+        final NamedNodeMap map = element.getAttributes();
+        for (int i = 0; i < map.getLength(); i++)
+        {
+            final Attr attr = (Attr) map.item(i);
+            if (!attr.getNodeName().startsWith(XMLConstants.XMLNS_ATTRIBUTE)
+                && !attr.getNodeName().equals(SlingItsConstants.NODE_PREFIX)
+                && itsEng.getTranslate(attr))
+            {
+                translatable.add(attr.getNodeName());
+            }
+        }
+        if (!translatable.isEmpty())
+        {
+            properties.put(SlingItsConstants.SLING_ITS_TRANSLATE_ATTRS,
+                translatable.toArray(new String[translatable.size()]));
+        }
+    }
+
+    /**
+     * Add the data categories resolved for an element of a streamed html
+     * document, as stored by annotateElement for a DOM.
+     *
+     * @param element
+     *         the element
+     * @param properties
+     *         the properties of the node, the data categories are added to them
+     */
+    private static void annotateElement(final HtmlStreamParser.StreamElement element,
+        final Map<String, Object> properties)
+    {
+        properties.put(SlingItsConstants.SLING_ITS_TRANSLATE, element.isTranslate());
+        if (element.getLocNote() != null)
+        {
+            properties.put(SlingItsConstants.SLING_ITS_LOC_NOTE, element.getLocNote());
+            properties.put(SlingItsConstants.SLING_ITS_LOC_NOTE_TYPE, element.getLocNoteType());
+        }
+        if (element.getIdValue() != null)
+        {
+            properties.put(SlingItsConstants.SLING_ITS_ID_VALUE, element.getIdValue());
+        }
+        if (element.getTargetPointer() != null)
+        {
+            properties.put(SlingItsConstants.SLING_ITS_TARGET_POINTER,
+                element.getTargetPointer());
+        }
+        final List<String> translatable = element.getTranslatableAttributes();
+        if (!translatable.isEmpty())
+        {
+            properties.put(SlingItsConstants.SLING_ITS_TRANSLATE_ATTRS,
+                translatable.toArray(new String[translatable.size()]));
+        }
+    }
+
+    /**
+     * Count the words and characters of a text of the element, as
+     * translatable or not depending on the translate annotation of the
+     * element.
+     *
+     * @param element
+     *         the node of the element
+     * @param text
+     *         the text
+     */
+    private static void countText(final NodeRef element, final String text)
+    {
+        ItsStatsUtils.add(element.counts, ItsStatsUtils.count(text, element.translate), 1);
+    }
+
+    /**
+     * Leave the current element. If it is stored, its counts are complete.
+     *
+     * @param context
+     *         the state of the import
+     * @param stack
+     *         the open elements
+     * @throws RepositoryException
+     *         if the counts could not be passed to the writer
+     */
+    private void leave(final ImportContext context, final ElementPathStack<NodeRef> stack)
+        throws RepositoryException
+    {
+        final NodeRef element = stack.getValue();
+        stack.pop();
+        // an element that is not stored shares the node of its parent.
+        if (stack.getValue() != element)
+        {
+            close(context, element, stack.getValue());
+        }
+    }
+
+    /**
+     * Add the counts of the subtree of a stored element to its parent and
+     * store them on the element node.
+     *
+     * @param context
+     *         the state of the import
+     * @param element
+     *         the node of the element, all its descendants are stored
+     * @param parent
+     *         the node of the parent element
+     * @throws RepositoryException
+     *         if the counts could not be passed to the writer
+     */
+    private void close(final ImportContext context, final NodeRef element,
+        final NodeRef parent) throws RepositoryException
+    {
+        ItsStatsUtils.add(parent.counts, element.counts, 1);
+        submit(context, new WriteOperation()
+        {
+            public void apply(final Session target) throws RepositoryException
+            {
+                ItsStatsUtils.store(element.node, element.counts);
+            }
+        });
+    }
+
+    /**
+     * Store the counts of the imported document on the target node, the
+     * element nodes got theirs when they were closed.
+     *
+     * @param context
+     *         the state of the import
+     * @param targetPath
+     *         the target path of the import
+     */
+    private void storeStats(final ImportContext context, final String targetPath)
+    {
+        try
+        {
+            ItsStatsUtils.store(context.session.getNode(targetPath), context.counts);
+            context.session.save();
         }
         catch (final RepositoryException e)
         {
@@ -543,6 +2573,33 @@ public class ItsImportServlet extends SlingAllMethodsServlet
         }
     }
 
+    /**
+     * Update the counts of the element and its ancestors after a text of the
+     * element was merged.
+     *
+     * @param context
+     *         the state of the import
+     * @param element
+     *         the element node
+     * @param targetPath
+     *         the target path of the document
+     * @param oldText
+     *         the previous text or null
+     * @param newText
+     *         the merged text
+     * @throws RepositoryException
+     *         if the counts could not be updated
+     */
+    private void updateStats(final ImportContext context, final javax.jcr.Node element,
+        final String targetPath, final String oldText, final String newText)
+        throws RepositoryException
+    {
+        final boolean translate = ItsStatsUtils.isTranslatable(element);
+        final long[] delta = ItsStatsUtils.count(newText, translate);
+        ItsStatsUtils.add(delta, ItsStatsUtils.count(oldText, translate), -1);
+        ItsStatsUtils.propagate(context.session, element.getPath(), targetPath, delta);
+    }
+
     /**
      * Get the (optional) HTML5 and (optional)  external rules and apply the
      * ITS rules to the input file.
@@ -596,4 +2653,272 @@ public class ItsImportServlet extends SlingAllMethodsServlet
 
         return itsEng;
     }
+
+    /**
+     * The state of one import. The servlet is shared by all requests, so
+     * everything an import changes while it runs is kept here and passed down.
+     */
+    private static final class ImportContext
+    {
+        /** The session of the import. */
+        private final Session session;
+        /** The time of this import, every written node is stamped with it. */
+        private final long importTime = System.currentTimeMillis();
+        /** The counters and timers of this import. */
+        private final RequestMetrics requestMetrics = new RequestMetrics();
+        /** Holds the path and the number of iteration of that global rule in the given path. */
+        private final Map<String, Integer> counterMap = new HashMap<String, Integer>();
+        /** The word and character counts of the document. */
+        private long[] counts = ItsStatsUtils.newCounts();
+        /** If current doc or external doc contains global rules.*/
+        private boolean hasGlobalRules;
+        /** The index node that maps the ids of the document to their paths. */
+        private javax.jcr.Node idIndex;
+        /** True if the inline content of an element is stored as one segment. */
+        private boolean compactInline;
+        /** The node of the staged import or null if the document is imported in place. */
+        private javax.jcr.Node staging;
+        /** Number of nodes of the document traversed so far. */
+        private long position;
+        /** Position of the checkpoint a staged import is resumed from, 0 if not resumed. */
+        private long resumePosition;
+        /** Number of nodes traversed since the last checkpoint. */
+        private int sinceCheckpoint;
+        /** Element path at the checkpoint a staged import is resumed from. */
+        private String resumePath;
+        /** Writes the document while it is traversed, only set during store. */
+        private WritePipeline<Session, RepositoryException> pipeline;
+        /** Path of the document the save events are tagged with. */
+        private String eventPath;
+        /** ResourceType of the document the save events are tagged with. */
+        private String eventResourceType;
+
+        /**
+         * Constructor.
+         *
+         * @param session
+         *         the session of the import
+         */
+        private ImportContext(final Session session)
+        {
+            this.session = session;
+        }
+    }
+
+    /**
+     * A write operation on the session of the import.
+     */
+    private interface WriteOperation extends WritePipeline.Operation<Session, RepositoryException>
+    {
+    }
+
+    /**
+     * The node of a stored element. The node is set by the writer when the
+     * element is written and only read by the operations that follow. The
+     * counts are added up by the traversal and passed to the writer once the
+     * element is closed.
+     */
+    private static final class NodeRef
+    {
+        /** True if the text of the element is translatable. */
+        private final boolean translate;
+        /** The generated id of the element. */
+        private final String id;
+        /** The counts of the element, of its subtree once it is closed. */
+        private final long[] counts = ItsStatsUtils.newCounts();
+        /** The node, only accessed by the writer. */
+        private javax.jcr.Node node;
+
+        /**
+         * Constructor.
+         *
+         * @param translate
+         *         true if the text of the element is translatable
+         * @param id
+         *         the generated id of the element
+         */
+        private NodeRef(final boolean translate, final String id)
+        {
+            this.translate = translate;
+            this.id = id;
+        }
+    }
+
+    /**
+     * The name and value of an attribute, read by the traversal so the
+     * writer does not access the document.
+     */
+    private static final class Attribute
+    {
+        /** The qualified name. */
+        private final String nodeName;
+        /** The local name. */
+        private final String localName;
+        /** The value. */
+        private final String nodeValue;
+
+        /**
+         * Constructor.
+         *
+         * @param attr
+         *         the attribute
+         */
+        private Attribute(final Attr attr)
+        {
+            this.nodeName = attr.getNodeName();
+            this.localName = attr.getLocalName();
+            this.nodeValue = attr.getNodeValue();
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param nodeName
+         *         the qualified name
+         * @param nodeValue
+         *         the value
+         */
+        private Attribute(final String nodeName, final String nodeValue)
+        {
+            this.nodeName = nodeName;
+            this.localName = StringUtils.substringAfterLast(":" + nodeName, ":");
+            this.nodeValue = nodeValue;
+        }
+
+        /**
+         * @return the qualified name
+         */
+        private String getNodeName()
+        {
+            return this.nodeName;
+        }
+
+        /**
+         * @return the local name
+         */
+        private String getLocalName()
+        {
+            return this.localName;
+        }
+
+        /**
+         * @return the value
+         */
+        private String getNodeValue()
+        {
+            return this.nodeValue;
+        }
+    }
+
+    /**
+     * Stores the elements and texts of a streamed html document the way the
+     * traversal of a DOM stores them.
+     */
+    private final class StreamStore implements HtmlStreamParser.Listener
+    {
+        /** The state of the import. */
+        private final ImportContext context;
+        /** The open elements. */
+        private final ElementPathStack<NodeRef> stack;
+        /** True until the root element is stored. */
+        private boolean root = true;
+
+        /**
+         * Constructor.
+         *
+         * @param context
+         *         the state of the import
+         * @param stack
+         *         the open elements, holding the target node
+         */
+        private StreamStore(final ImportContext context, final ElementPathStack<NodeRef> stack)
+        {
+            this.context = context;
+            this.stack = stack;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void startElement(final HtmlStreamParser.StreamElement element)
+            throws SAXException
+        {
+            final Map<String, String> attributes = new TreeMap<String, String>(
+                element.getAttributes());
+            final String name;
+            if (this.root)
+            {
+                name = element.getQName();
+                this.root = false;
+            }
+            else if (element.getQName().indexOf(':') > -1)
+            {
+                name = this.stack.getChildName(element.getLocalName());
+                attributes.put(SlingItsConstants.NODE_PREFIX, StringUtils.substringBefore(
+                    element.getQName(), ":"));
+            }
+            else if ("link".equals(element.getQName())
+                && StringUtils.endsWith(element.getAttribute("rel"), "-rules"))
+            {
+                name = this.stack.getChildName(SlingItsConstants.ITS_RULES);
+                final String prefix = StringUtils.substringBefore(element.getAttribute("rel"),
+                    "-rules");
+                attributes.put(SlingItsConstants.NODE_PREFIX, prefix);
+                attributes.put(SlingItsConstants.XMLNS + prefix, Namespaces.ITS_NS_URI);
+                attributes.put("xmlns:h", Namespaces.HTML_NS_URI);
+                attributes.put("xmlns:jcr", NamespaceRegistry.NAMESPACE_JCR);
+                this.context.hasGlobalRules = true;
+            }
+            else
+            {
+                name = this.stack.getChildName(element.getQName());
+            }
+            final List<Attribute> attributeList = new ArrayList<Attribute>();
+            for (final Map.Entry<String, String> attribute : attributes.entrySet())
+            {
+                attributeList.add(new Attribute(attribute.getKey(), attribute.getValue()));
+            }
+            try
+            {
+                this.stack.push(name, storeElement(this.context, element, attributeList,
+                    this.stack, name));
+            }
+            catch (final RepositoryException e)
+            {
+                throw new SAXException(e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void text(final String text) throws SAXException
+        {
+            countText(this.stack.getValue(), text);
+            try
+            {
+                storeText(this.context, this.stack.getValue(), this.stack.getChildName(
+                    SlingItsConstants.TEXT_CONTENT_NODE), text);
+            }
+            catch (final RepositoryException e)
+            {
+                throw new SAXException(e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void endElement() throws SAXException
+        {
+            try
+            {
+                leave(this.context, this.stack);
+            }
+            catch (final RepositoryException e)
+            {
+                throw new SAXException(e);
+            }
+        }
+    }
 }
@@ -0,0 +1,369 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.servlets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.utils.JcrNodeUtils;
+import org.apache.sling.jcr.resource.JcrResourceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers queries on the data categories stored with the imported documents,
+ * e.g. all non-translatable elements below a path or all locNotes of a
+ * resourceType. The query runs against the sling-its properties written at
+ * import time, so nothing is traversed or rendered. Results are paged with
+ * offset and limit.
+ */
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.servlets.ItsQueryServlet", label = "%servlet.query.name", description = "%servlet.query.description")
+@Service(Servlet.class)
+@Properties({
+        @Property(name = "service.description", value = "ITS Query Servlet"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+
+        @Property(name = "sling.servlet.methods", value = "GET", propertyPrivate = true),
+        @Property(name = "sling.servlet.paths", value = "/bin/its/query", propertyPrivate = true) })
+public class ItsQueryServlet extends SlingSafeMethodsServlet
+{
+    /** UID for serialization. */
+    private static final long serialVersionUID = -2671096385260174623L;
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsQueryServlet.class);
+    /** Default number of hits per page. */
+    private static final int DEFAULT_LIMIT = 100;
+    /** Maximum number of hits per page. */
+    private static final int MAX_LIMIT = 1000;
+    /** The queryable data categories and the property that holds them. */
+    private static final Map<String, String> CATEGORIES = new LinkedHashMap<String, String>();
+
+    static
+    {
+        CATEGORIES.put("translate", SlingItsConstants.SLING_ITS_TRANSLATE);
+        CATEGORIES.put("translateAttribute", SlingItsConstants.SLING_ITS_TRANSLATE_ATTRS);
+        CATEGORIES.put("locNote", SlingItsConstants.SLING_ITS_LOC_NOTE);
+        CATEGORIES.put("locNoteType", SlingItsConstants.SLING_ITS_LOC_NOTE_TYPE);
+        CATEGORIES.put("idValue", SlingItsConstants.SLING_ITS_ID_VALUE);
+        CATEGORIES.put("targetPointer", SlingItsConstants.SLING_ITS_TARGET_POINTER);
+        CATEGORIES.put("nodePrefix", SlingItsConstants.NODE_PREFIX);
+        CATEGORIES.put("note", SlingItsConstants.ITS_NOTE);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+     * org.apache.sling.api.SlingHttpServletResponse)
+     */
+    @Override
+    protected final void doGet(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response) throws ServletException, IOException
+    {
+        final String category = request.getParameter("category");
+        final String property = CATEGORIES.get(category);
+        if (property == null)
+        {
+            response.getWriter().write(
+                "500: Unknown category. Please use one of " + CATEGORIES.keySet() + ".");
+            LOG.error("Unknown category: " + category);
+            return;
+        }
+        final String path = StringUtils.defaultIfEmpty(request.getParameter("path"), "/");
+        if (!JcrNodeUtils.isAbsolutePath(path))
+        {
+            response.getWriter().write(
+                "500: Invalid path. Please use an absolute path without '.' and '..'.");
+            LOG.error("Invalid path: " + path);
+            return;
+        }
+        final String value = request.getParameter("value");
+        final String resourceType = request.getParameter("resourceType");
+        final int offset = Math.max(0, NumberUtils.toInt(request.getParameter("offset"), 0));
+        final int limit = Math.min(MAX_LIMIT, Math.max(1, NumberUtils.toInt(
+            request.getParameter("limit"), DEFAULT_LIMIT)));
+
+        final Session session = request.getResourceResolver().adaptTo(Session.class);
+        try
+        {
+            final List<String> roots = getRoots(session, path, resourceType);
+            response.setCharacterEncoding(CharEncoding.UTF_8);
+            response.setContentType(SlingItsConstants.JSON_MIME_TYPE);
+            final JSONWriter writer = new JSONWriter(response.getWriter());
+            writer.object();
+            writer.key("category").value(category);
+            writer.key("path").value(path);
+            if (resourceType != null)
+            {
+                writer.key("resourceType").value(resourceType);
+            }
+            writer.key("offset").value(offset);
+            writer.key("limit").value(limit);
+            writer.key("hits").array();
+            boolean more = false;
+            if (!roots.isEmpty())
+            {
+                // documents of several resourceTypes below the root are filtered out.
+                final Set<String> documents = (roots.size() > 1 ? new HashSet<String>(roots)
+                    : null);
+                final Query query = session.getWorkspace().getQueryManager().createQuery(
+                    createStatement(property, value, (documents != null ? path : roots
+                        .get(0))), Query.JCR_SQL2);
+                if (documents == null)
+                {
+                    query.setOffset(offset);
+                    // one more than requested tells whether there is a next page.
+                    query.setLimit(limit + 1);
+                }
+                final NodeIterator nodes = query.execute().getNodes();
+                int skipped = 0;
+                int count = 0;
+                while (nodes.hasNext())
+                {
+                    final Node node = nodes.nextNode();
+                    if (documents != null)
+                    {
+                        if (!isInDocument(node.getPath(), documents))
+                        {
+                            continue;
+                        }
+                        if (skipped < offset)
+                        {
+                            skipped++;
+                            continue;
+                        }
+                    }
+                    if (++count > limit)
+                    {
+                        more = true;
+                        break;
+                    }
+                    writeHit(writer, node, property);
+                }
+            }
+            writer.endArray();
+            writer.key("more").value(more);
+            writer.endObject();
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to query the repository. Stack Trace: ", e);
+        }
+        catch (final JSONException e)
+        {
+            LOG.error("Failed to write the query result. Stack Trace: ", e);
+        }
+    }
+
+    /**
+     * Get the paths the query is restricted to. Without a resourceType that
+     * is the path itself, otherwise the target paths of the documents of that
+     * resourceType below the path, as recorded in their id index. The query
+     * runs below the only document or below the path and its hits are
+     * filtered by these documents.
+     *
+     * @param session
+     *         the session
+     * @param path
+     *         the path to query below
+     * @param resourceType
+     *         the resourceType or null
+     * @return the paths to query below
+     * @throws RepositoryException
+     *         if the id index could not be queried
+     */
+    private List<String> getRoots(final Session session, final String path,
+        final String resourceType) throws RepositoryException
+    {
+        final List<String> roots = new ArrayList<String>();
+        if (StringUtils.isBlank(resourceType))
+        {
+            roots.add(path);
+            return roots;
+        }
+        if (!session.nodeExists(SlingItsConstants.ITS_INDEX_PATH))
+        {
+            return roots;
+        }
+        final NodeIterator indexes = JcrResourceUtil.query(
+            session,
+            "SELECT * FROM [nt:base] as t WHERE ISDESCENDANTNODE(["
+                + SlingItsConstants.ITS_INDEX_PATH + "]) AND t.["
+                + SlingItsConstants.ITS_INDEX_RESOURCE_TYPE + "] = '"
+                + escape(resourceType) + "'", Query.JCR_SQL2).getNodes();
+        final String prefix = ("/".equals(path) ? path : path + "/");
+        while (indexes.hasNext())
+        {
+            final String docPath = indexes.nextNode().getPath().substring(
+                SlingItsConstants.ITS_INDEX_PATH.length());
+            if (docPath.equals(path) || docPath.startsWith(prefix))
+            {
+                roots.add(docPath);
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Check if a node is part of one of the documents.
+     *
+     * @param path
+     *         the path of the node
+     * @param documents
+     *         the target paths of the documents
+     * @return true if the node or one of its ancestors is a target path
+     */
+    static boolean isInDocument(final String path, final Set<String> documents)
+    {
+        String current = path;
+        while (current.length() > 0)
+        {
+            if (documents.contains(current))
+            {
+                return true;
+            }
+            current = StringUtils.substringBeforeLast(current, "/");
+        }
+        return false;
+    }
+
+    /**
+     * Create the JCR-SQL2 statement.
+     *
+     * @param property
+     *         the property that holds the data category
+     * @param value
+     *         the value to match or null to match any value
+     * @param root
+     *         the path to query below, a valid absolute path
+     * @return the statement
+     */
+    private String createStatement(final String property, final String value,
+        final String root)
+    {
+        final StringBuilder statement = new StringBuilder(
+            "SELECT * FROM [nt:base] as t WHERE ");
+        if (!"/".equals(root))
+        {
+            statement.append("ISDESCENDANTNODE([").append(root).append("]) AND ");
+        }
+        statement.append("t.[").append(property).append("]");
+        if (value == null)
+        {
+            statement.append(" IS NOT NULL");
+        }
+        else if (SlingItsConstants.SLING_ITS_TRANSLATE.equals(property))
+        {
+            final boolean translate = "yes".equals(value) || "true".equals(value);
+            statement.append(" = CAST('").append(translate).append("' AS BOOLEAN)");
+        }
+        else
+        {
+            statement.append(" = '").append(escape(value)).append("'");
+        }
+        return statement.toString();
+    }
+
+    /**
+     * Write a hit.
+     *
+     * @param writer
+     *         the json writer
+     * @param node
+     *         the matched node
+     * @param property
+     *         the property that holds the data category
+     * @throws RepositoryException
+     *         if the node could not be read
+     * @throws JSONException
+     *         if the hit could not be written
+     */
+    private void writeHit(final JSONWriter writer, final Node node, final String property)
+        throws RepositoryException, JSONException
+    {
+        writer.object();
+        writer.key("path").value(node.getPath());
+        for (final String idProperty : new String[] { "id", "xml:id",
+            SlingItsConstants.SLING_ITS_ID })
+        {
+            if (node.hasProperty(idProperty))
+            {
+                writer.key("id").value(node.getProperty(idProperty).getString());
+                break;
+            }
+        }
+        final javax.jcr.Property value = node.getProperty(property);
+        writer.key("value");
+        if (value.isMultiple())
+        {
+            writer.array();
+            for (final Value item : value.getValues())
+            {
+                writer.value(item.getString());
+            }
+            writer.endArray();
+        }
+        else if (SlingItsConstants.SLING_ITS_TRANSLATE.equals(property))
+        {
+            writer.value(value.getBoolean() ? "yes" : "no");
+        }
+        else
+        {
+            writer.value(value.getString());
+        }
+        writer.endObject();
+    }
+
+    /**
+     * @param literal
+     *         a string literal
+     * @return the literal with the single quotes escaped for JCR-SQL2
+     */
+    static String escape(final String literal)
+    {
+        return literal.replace("'", "''");
+    }
+}
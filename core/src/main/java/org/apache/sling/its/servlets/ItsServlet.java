@@ -18,19 +18,39 @@
  */
 package org.apache.sling.its.servlets;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Dictionary;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import javax.jcr.NamespaceRegistry;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -41,30 +61,55 @@ import javax.xml.transform.stream.StreamResult;
 import net.sf.okapi.common.MimeTypeMapper;
 import net.sf.okapi.common.Namespaces;
 
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.CharEncoding;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.render.JsonRenderer;
+import org.apache.sling.its.render.RenderCache;
+import org.apache.sling.its.rules.ItsAnnotator;
+import org.apache.sling.its.rules.ItsCategoryFilter;
+import org.apache.sling.its.services.ItsMetrics;
+import org.apache.sling.its.services.PhaseEvent;
+import org.apache.sling.its.services.RequestMetrics;
+import org.apache.sling.its.traversal.DepthLimitExceededException;
+import org.apache.sling.its.traversal.ResourceTreeWalker;
+import org.apache.sling.its.utils.DocumentUtils;
+import org.apache.sling.its.utils.HashUtils;
+import org.apache.sling.its.utils.ItsIdUtils;
+import org.apache.sling.its.utils.ItsInlineUtils;
+import org.apache.sling.its.utils.ItsRulesUtils;
+import org.apache.sling.its.utils.ItsTextUtils;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.Text;
 
 @Component(immediate = true, metatype = true, name = "org.apache.sling.its.servlets.ItsServlet", label = "%servlet.get.name", description = "%servlet.get.description")
-@Service(Servlet.class)
+@Service({ Servlet.class, ItsServlet.class })
 @Properties({
         @Property(name = "service.description", value = "ITS Servlet"),
         @Property(name = "service.vendor", value = "Adobe Systems"),
@@ -75,16 +120,84 @@ import org.w3c.dom.Text;
 
         // Generic handler for all get requests
         @Property(name = "sling.servlet.methods", value = "GET", propertyPrivate = true),
-        @Property(name = "sling.servlet.selectors", value = { "its" }, propertyPrivate = true),
-        @Property(name = "sling.servlet.extensions", value = { "xml", "html" }, propertyPrivate = true) })
+        @Property(name = "sling.servlet.selectors", value = { "its", "its.segment", "its.delta", "its.compact", "its.translate", "its.locNote", "its.idValue", "its.targetPointer", "its.translate.locNote" }, propertyPrivate = true),
+        @Property(name = "sling.servlet.extensions", value = { "xml", "html", "json" }, propertyPrivate = true),
+
+        // Optional parallel rendering of large documents
+        @Property(name = ItsServlet.PARALLEL_RENDERING, boolValue = false),
+        @Property(name = ItsServlet.PARALLEL_THRESHOLD, intValue = ItsServlet.DEFAULT_PARALLEL_THRESHOLD),
+        @Property(name = ItsServlet.PARALLEL_SPLIT_SIZE, intValue = ItsServlet.DEFAULT_PARALLEL_SPLIT_SIZE),
+        @Property(name = ItsServlet.PARALLEL_THREADS, intValue = 0),
+        @Property(name = ItsServlet.MAX_DEPTH, intValue = ResourceTreeWalker.DEFAULT_MAX_DEPTH),
+
+        // Compressed responses
+        @Property(name = ItsServlet.GZIP, boolValue = true),
+        @Property(name = ItsServlet.GZIP_CACHE_SIZE, intValue = ItsServlet.DEFAULT_GZIP_CACHE_SIZE),
+
+        // Timing of the phases of a render
+        @Property(name = ItsServlet.SERVER_TIMING, boolValue = true) })
 public class ItsServlet extends SlingSafeMethodsServlet
 {
     /** UID for serialization. */
     private static final long serialVersionUID = 5230389885707780236L;
     /** Logger instance. */
     private static final Logger LOG = LoggerFactory.getLogger(ItsServlet.class);
-    /** Boolean to determine if the requested page is html. */
-    private boolean isHtml;
+    /** The selector of the default representations. */
+    private static final String ITS_SELECTOR = "its";
+    /** The extensions of the representations that are pre-rendered. */
+    private static final String[] PRERENDER_EXTENSIONS = { "xml", "html" };
+    /** The selector to render only the segments of the requested ids. */
+    private static final String SEGMENT_SELECTOR = "segment";
+    /** The selector to render only what changed since a given time. */
+    private static final String DELTA_SELECTOR = "delta";
+    /** The selector to render without indentation. */
+    private static final String COMPACT_SELECTOR = "compact";
+    /** Property to enable the parallel rendering of large documents. */
+    static final String PARALLEL_RENDERING = "its.render.parallel";
+    /** Property for the number of nodes from which a document is rendered in parallel. */
+    static final String PARALLEL_THRESHOLD = "its.render.parallel.threshold";
+    /** Default number of nodes from which a document is rendered in parallel. */
+    static final int DEFAULT_PARALLEL_THRESHOLD = 20000;
+    /** Property for the number of nodes from which a subtree is rendered as a task. */
+    static final String PARALLEL_SPLIT_SIZE = "its.render.parallel.split.size";
+    /** Default number of nodes from which a subtree is rendered as a task. */
+    static final int DEFAULT_PARALLEL_SPLIT_SIZE = 2000;
+    /** Property for the number of render threads, 0 for one per processor. */
+    static final String PARALLEL_THREADS = "its.render.parallel.threads";
+    /** Property for the maximum depth of a rendered document. */
+    static final String MAX_DEPTH = "its.render.max.depth";
+    /** Property to gzip the responses for clients that accept it. */
+    static final String GZIP = "its.render.gzip";
+    /** Property for the size of the cache of gzipped responses in megabytes, 0 to disable. */
+    static final String GZIP_CACHE_SIZE = "its.render.gzip.cache.size";
+    /** Default size of the cache of gzipped responses in megabytes. */
+    static final int DEFAULT_GZIP_CACHE_SIZE = 32;
+    /** Property to send the phase times and counters as a Server-Timing header. */
+    static final String SERVER_TIMING = "its.render.server.timing";
+    /** Depth from which a document is written without the Transformer, which recurses. */
+    static final int TRANSFORM_MAX_DEPTH = 1000;
+    /** Number of spaces an element of a deep document is indented by per level. */
+    private static final int INDENT_AMOUNT = 4;
+    /** Collects the metrics of the renders, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile ItsMetrics metrics;
+    /** The pool large documents are rendered on or null if disabled. */
+    private ForkJoinPool renderPool;
+    /** Number of nodes from which a document is rendered in parallel. */
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    /** Number of nodes from which a subtree is rendered as a task. */
+    private int parallelSplitSize = DEFAULT_PARALLEL_SPLIT_SIZE;
+    /** Walks the resources of the rendered documents. */
+    private ResourceTreeWalker walker = new ResourceTreeWalker(
+        ResourceTreeWalker.DEFAULT_MAX_DEPTH);
+    /** Streams the stored documents as JSON. */
+    private JsonRenderer jsonRenderer = new JsonRenderer(ResourceTreeWalker.DEFAULT_MAX_DEPTH);
+    /** True if the responses are gzipped for clients that accept it. */
+    private boolean gzip = true;
+    /** Keeps the gzipped responses of documents that did not change. */
+    private RenderCache renderCache = new RenderCache(DEFAULT_GZIP_CACHE_SIZE * 1024L * 1024L);
+    /** True if the phase times and counters are sent as a Server-Timing header. */
+    private boolean serverTiming = true;
 
     /**
      * Gets automatically invoked when servlet is started.
@@ -94,7 +207,27 @@ public class ItsServlet extends SlingSafeMethodsServlet
      */
     protected final void activate(final ComponentContext ctx)
     {
-
+        final Dictionary<?, ?> props = ctx.getProperties();
+        final int maxDepth = NumberUtils.toInt(String.valueOf(props.get(MAX_DEPTH)),
+            ResourceTreeWalker.DEFAULT_MAX_DEPTH);
+        this.walker = new ResourceTreeWalker(maxDepth);
+        this.jsonRenderer = new JsonRenderer(maxDepth);
+        this.gzip = (props.get(GZIP) == null || Boolean.valueOf(String.valueOf(props.get(GZIP))));
+        this.renderCache = new RenderCache(Math.max(0, NumberUtils.toInt(String.valueOf(props
+            .get(GZIP_CACHE_SIZE)), DEFAULT_GZIP_CACHE_SIZE)) * 1024L * 1024L);
+        this.serverTiming = (props.get(SERVER_TIMING) == null || Boolean.valueOf(String
+            .valueOf(props.get(SERVER_TIMING))));
+        if (Boolean.valueOf(String.valueOf(props.get(PARALLEL_RENDERING))))
+        {
+            final int threads = NumberUtils.toInt(String.valueOf(props.get(PARALLEL_THREADS)),
+                0);
+            this.renderPool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime()
+                .availableProcessors());
+            this.parallelThreshold = NumberUtils.toInt(String.valueOf(props
+                .get(PARALLEL_THRESHOLD)), DEFAULT_PARALLEL_THRESHOLD);
+            this.parallelSplitSize = Math.max(1, NumberUtils.toInt(String.valueOf(props
+                .get(PARALLEL_SPLIT_SIZE)), DEFAULT_PARALLEL_SPLIT_SIZE));
+        }
     }
 
     /**
@@ -105,7 +238,11 @@ public class ItsServlet extends SlingSafeMethodsServlet
      */
     protected final void deactivate(final ComponentContext ctx)
     {
-
+        if (this.renderPool != null)
+        {
+            this.renderPool.shutdown();
+            this.renderPool = null;
+        }
     }
 
     /**
@@ -135,7 +272,330 @@ public class ItsServlet extends SlingSafeMethodsServlet
             return;
         }
 
-        this.isHtml = request.getRequestPathInfo().getExtension().equals("html");
+        final boolean isCompact = ArrayUtils.contains(
+            request.getRequestPathInfo().getSelectors(), COMPACT_SELECTOR)
+            || Boolean.valueOf(request.getParameter(COMPACT_SELECTOR));
+        final boolean isGzip = this.gzip && acceptsGzip(request);
+        final long start = System.nanoTime();
+        final RequestMetrics requestMetrics = new RequestMetrics();
+        final String etag = getETag(request.getResource(), request.getRequestPathInfo()
+            .getSelectorString(), request.getRequestPathInfo().getExtension(),
+            request.getQueryString(), isCompact, isGzip);
+        requestMetrics.addTime(ItsMetrics.VALIDATE_TIME, start);
+        if (etag != null)
+        {
+            response.setHeader("ETag", etag);
+            response.setHeader("Vary", "Accept-Encoding");
+            final boolean notModified = etag.equals(request.getHeader("If-None-Match"));
+            requestMetrics.add(ItsMetrics.NOT_MODIFIED, (notModified ? 1 : 0));
+            if (notModified)
+            {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                setServerTiming(response, requestMetrics);
+                recordMetrics(request, requestMetrics, start);
+                return;
+            }
+        }
+        write(request, response, etag, isCompact, isGzip, requestMetrics);
+        recordMetrics(request, requestMetrics, start);
+    }
+
+    /**
+     * Write the requested document, gzipped if the client accepts it. A
+     * gzipped document with an entity tag is taken from the render cache or
+     * kept in it once rendered.
+     *
+     * @param request
+     *          the request
+     * @param response
+     *          the response
+     * @param etag
+     *          the entity tag or null if the document is not cacheable
+     * @param isCompact
+     *          true to write without indentation
+     * @param isGzip
+     *          true to gzip the document
+     * @param requestMetrics
+     *          the metrics of the request
+     * @throws IOException
+     *          if the response could not be written
+     */
+    private void write(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response, final String etag, final boolean isCompact,
+        final boolean isGzip, final RequestMetrics requestMetrics) throws IOException
+    {
+        // make sure the encoding is set before the response is written.
+        final String extension = request.getRequestPathInfo().getExtension();
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        if ("json".equals(extension))
+        {
+            response.setContentType(SlingItsConstants.JSON_MIME_TYPE);
+        }
+        else if ("html".equals(extension))
+        {
+            response.setContentType(MimeTypeMapper.HTML_MIME_TYPE);
+        }
+        else
+        {
+            response.setContentType(MimeTypeMapper.XML_MIME_TYPE);
+        }
+        if (!isGzip || etag == null)
+        {
+            // not cached, the document is written (and compressed) while it is rendered.
+            final CountingOutputStream out = new CountingOutputStream(response
+                .getOutputStream());
+            if (isGzip)
+            {
+                response.setHeader("Content-Encoding", "gzip");
+            }
+            final Writer writer = new OutputStreamWriter((isGzip ? new GZIPOutputStream(out)
+                : out), CharEncoding.UTF_8);
+            render(request, writer, isCompact, requestMetrics, response);
+            writer.close();
+            requestMetrics.add(ItsMetrics.OUTPUT_BYTES, out.getByteCount());
+            return;
+        }
+
+        response.setHeader("Content-Encoding", "gzip");
+        final String key = getCacheKey(request.getResource(), request.getRequestPathInfo()
+            .getSelectorString(), extension, request.getQueryString());
+        byte[] data = this.renderCache.get(key, etag);
+        requestMetrics.add(ItsMetrics.RENDER_CACHE_HIT, (data != null ? 1 : 0));
+        if (data == null)
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes),
+                CharEncoding.UTF_8);
+            final boolean rendered = render(request, writer, isCompact, requestMetrics, null);
+            writer.close();
+            data = bytes.toByteArray();
+            if (rendered)
+            {
+                this.renderCache.put(key, etag, data);
+            }
+        }
+        setServerTiming(response, requestMetrics);
+        response.setContentLength(data.length);
+        response.getOutputStream().write(data);
+        requestMetrics.add(ItsMetrics.OUTPUT_BYTES, data.length);
+    }
+
+    /**
+     * Render the default .its.xml and .its.html representations of a document
+     * into the render cache, the way a gzipped request for them without query
+     * would, so the first such requests are served from the cache. Nothing is
+     * rendered if the cache is disabled, the document is not cacheable or the
+     * representation is cached already.
+     *
+     * @param resource
+     *          the imported document
+     * @return the number of representations rendered
+     */
+    public int prerender(final Resource resource)
+    {
+        if (!isPrerendering())
+        {
+            return 0;
+        }
+        int rendered = 0;
+        for (final String extension : PRERENDER_EXTENSIONS)
+        {
+            final String etag = getETag(resource, ITS_SELECTOR, extension, null, false, true);
+            final String key = getCacheKey(resource, ITS_SELECTOR, extension, null);
+            if (etag == null || this.renderCache.get(key, etag) != null)
+            {
+                continue;
+            }
+            final boolean isHtml = "html".equals(extension);
+            try
+            {
+                final DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
+                docFactory.setNamespaceAware(true);
+                final Document doc = docFactory.newDocumentBuilder().newDocument();
+                createDocument(resource, doc, isHtml, null, new RequestMetrics());
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes),
+                    CharEncoding.UTF_8);
+                if (isHtml)
+                {
+                    writer.write("<!DOCTYPE html>");
+                }
+                serialize(doc, writer, false);
+                writer.close();
+                this.renderCache.put(key, etag, bytes.toByteArray());
+                rendered++;
+            }
+            catch (final ParserConfigurationException pce)
+            {
+                LOG.error("Failed to create DocumentBuilder. Stack Trace: ", pce);
+            }
+            catch (final TransformerException tfe)
+            {
+                LOG.error("Failed to transform the document. Stack Trace: ", tfe);
+            }
+            catch (final XMLStreamException xse)
+            {
+                LOG.error("Failed to write the document. Stack Trace: ", xse);
+            }
+            catch (final IOException ioe)
+            {
+                LOG.error("Failed to compress the document. Stack Trace: ", ioe);
+            }
+            catch (final DepthLimitExceededException dle)
+            {
+                LOG.error("Failed to render the document. Stack Trace: ", dle);
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * @return true if documents can be pre-rendered, i.e. gzipped responses
+     *         are kept in the render cache
+     */
+    public boolean isPrerendering()
+    {
+        return this.gzip && this.renderCache.isEnabled();
+    }
+
+    /**
+     * Get the key of a representation in the render cache.
+     *
+     * @param resource
+     *          the requested resource
+     * @param selectorString
+     *          the selectors or null
+     * @param extension
+     *          the extension
+     * @param queryString
+     *          the query or null
+     * @return the key
+     */
+    private static String getCacheKey(final Resource resource, final String selectorString,
+        final String extension, final String queryString)
+    {
+        return resource.getPath() + "." + StringUtils.defaultString(selectorString) + "."
+            + extension + "?" + StringUtils.defaultString(queryString);
+    }
+
+    /**
+     * Send the phase times and counters measured so far as a Server-Timing
+     * header, if enabled. The header has to be set before the document is
+     * written, so the times of a streamed document end with its traversal.
+     *
+     * @param response
+     *          the response or null if the document is not streamed
+     * @param requestMetrics
+     *          the metrics of the request
+     */
+    private void setServerTiming(final SlingHttpServletResponse response,
+        final RequestMetrics requestMetrics)
+    {
+        if (this.serverTiming && response != null)
+        {
+            final String header = requestMetrics.getServerTiming();
+            if (header.length() > 0)
+            {
+                response.setHeader("Server-Timing", header);
+            }
+        }
+    }
+
+    /**
+     * Record the metrics of the request and trace it if it was slow, if the
+     * metrics are available.
+     *
+     * @param request
+     *          the request
+     * @param requestMetrics
+     *          the metrics of the request
+     * @param start
+     *          the start of the request as returned by {@link System#nanoTime()}
+     */
+    private void recordMetrics(final SlingHttpServletRequest request,
+        final RequestMetrics requestMetrics, final long start)
+    {
+        final ItsMetrics collector = this.metrics;
+        if (collector != null)
+        {
+            final String resourceType = ItsIdUtils.getResourceType(request.getResource());
+            final String extension = request.getRequestPathInfo().getExtension();
+            collector.record(requestMetrics, resourceType, extension);
+            collector.trace("render", request.getResource().getPath(), resourceType,
+                extension, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                requestMetrics);
+        }
+    }
+
+    /**
+     * Render the requested document.
+     *
+     * @param request
+     *          the request
+     * @param out
+     *          the writer
+     * @param isCompact
+     *          true to write without indentation
+     * @param requestMetrics
+     *          the metrics of the request
+     * @param timingResponse
+     *          the response to send the Server-Timing header with before the
+     *          document is written or null
+     * @return true if the document was rendered, false if it failed
+     * @throws IOException
+     *          if the document could not be written
+     */
+    private boolean render(final SlingHttpServletRequest request, final Writer out,
+        final boolean isCompact, final RequestMetrics requestMetrics,
+        final SlingHttpServletResponse timingResponse) throws IOException
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            if ("json".equals(request.getRequestPathInfo().getExtension()))
+            {
+                // the JSON is streamed while the resources are walked.
+                setServerTiming(timingResponse, requestMetrics);
+                return renderJson(request.getResource(), out, isCompact, ItsCategoryFilter
+                    .fromSelectors(request.getRequestPathInfo().getSelectors()));
+            }
+            return renderDocument(request, out, isCompact, requestMetrics, timingResponse);
+        }
+        finally
+        {
+            requestMetrics.addTime(ItsMetrics.RENDER_TIME, start);
+        }
+    }
+
+    /**
+     * Render the requested document as xml or html.
+     *
+     * @param request
+     *          the request
+     * @param out
+     *          the writer
+     * @param isCompact
+     *          true to write without indentation
+     * @param requestMetrics
+     *          the metrics of the request
+     * @param timingResponse
+     *          the response to send the Server-Timing header with before the
+     *          document is written or null
+     * @return true if the document was rendered, false if it failed
+     * @throws IOException
+     *          if the document could not be written
+     */
+    private boolean renderDocument(final SlingHttpServletRequest request, final Writer out,
+        final boolean isCompact, final RequestMetrics requestMetrics,
+        final SlingHttpServletResponse timingResponse) throws IOException
+    {
+        final boolean isHtml = request.getRequestPathInfo().getExtension().equals("html");
+        final boolean isSegment = ArrayUtils.contains(
+            request.getRequestPathInfo().getSelectors(), SEGMENT_SELECTOR);
+        final boolean isDelta = ArrayUtils.contains(
+            request.getRequestPathInfo().getSelectors(), DELTA_SELECTOR);
+        final ItsCategoryFilter categoryFilter = ItsCategoryFilter.fromSelectors(request
+            .getRequestPathInfo().getSelectors());
 
         try
         {
@@ -144,35 +604,43 @@ public class ItsServlet extends SlingSafeMethodsServlet
             final DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
 
             // root elements.
+            final String path = request.getResource().getPath();
+            final long traversalStart = System.nanoTime();
+            final PhaseEvent traversalEvent = PhaseEvent.begin(PhaseEvent.RENDER,
+                PhaseEvent.TRAVERSAL);
             final Document doc = docBuilder.newDocument();
-            createDocument(request.getResource(), doc);
-
-            // make sure the encoding is set before getWriter() is called.
-            if (this.isHtml)
+            if (isSegment)
+            {
+                createSegmentDocument(request, doc, isHtml, categoryFilter, requestMetrics);
+            }
+            else if (isDelta)
             {
-                response.setCharacterEncoding(CharEncoding.UTF_8);
-                response.setContentType(MimeTypeMapper.HTML_MIME_TYPE);
-                response.getWriter().write("<!DOCTYPE html>");
+                createDeltaDocument(request, doc, isHtml, categoryFilter, requestMetrics);
             }
             else
             {
-                response.setCharacterEncoding(CharEncoding.UTF_8);
-                response.setContentType(MimeTypeMapper.XML_MIME_TYPE);
+                createDocument(request.getResource(), doc, isHtml, categoryFilter,
+                    requestMetrics);
             }
+            requestMetrics.addTime(ItsMetrics.TRAVERSAL_TIME, traversalStart);
+            // the resourceType is only looked up while the events are recorded.
+            final String resourceType = (traversalEvent.isRecorded() ? ItsIdUtils
+                .getResourceType(request.getResource()) : null);
+            final long resources = requestMetrics.get(ItsMetrics.RESOURCES);
+            traversalEvent.commit(path, resourceType, resources, 0);
+            setServerTiming(timingResponse, requestMetrics);
 
-            // write the content into xml file.
-            final TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            final Transformer transformer = transformerFactory.newTransformer();
-            final DOMSource source = new DOMSource(doc);
-            final StreamResult result = new StreamResult(response.getWriter());
-
-            // set the correct properties for the xml or html file.
-            transformer.setOutputProperty(OutputKeys.METHOD, Namespaces.XML_NS_PREFIX);
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-
-            // Output the xml or html file.
-            transformer.transform(source, result);
+            final long serializeStart = System.nanoTime();
+            final PhaseEvent serializeEvent = PhaseEvent.begin(PhaseEvent.RENDER,
+                PhaseEvent.SERIALIZE);
+            if (isHtml && !isSegment && !isDelta)
+            {
+                out.write("<!DOCTYPE html>");
+            }
+            serialize(doc, out, isCompact);
+            requestMetrics.addTime(ItsMetrics.SERIALIZE_TIME, serializeStart);
+            serializeEvent.commit(path, resourceType, resources, 0);
+            return true;
         }
         catch (final ParserConfigurationException pce)
         {
@@ -182,6 +650,188 @@ public class ItsServlet extends SlingSafeMethodsServlet
         {
             LOG.error("Failed to transform the document. Stack Trace: ", tfe);
         }
+        catch (final XMLStreamException xse)
+        {
+            LOG.error("Failed to write the document. Stack Trace: ", xse);
+        }
+        catch (final DepthLimitExceededException dle)
+        {
+            LOG.error("Failed to render the document. Stack Trace: ", dle);
+            out.write("500: " + dle.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Write the built document with the Transformer, indented unless compact.
+     * Documents deeper than {@link #TRANSFORM_MAX_DEPTH} are written with
+     * DocumentUtils.write instead, as the Transformer recurses.
+     *
+     * @param doc
+     *          the document
+     * @param out
+     *          the writer
+     * @param isCompact
+     *          true to write without indentation
+     * @throws TransformerException
+     *          if the document could not be transformed
+     * @throws XMLStreamException
+     *          if the document could not be written
+     */
+    static void serialize(final Document doc, final Writer out, final boolean isCompact)
+        throws TransformerException, XMLStreamException
+    {
+        // deep documents are written without the Transformer, which recurses.
+        if (DocumentUtils.getDepth(doc) > TRANSFORM_MAX_DEPTH)
+        {
+            final XMLStreamWriter writer = XMLOutputFactory.newInstance()
+                .createXMLStreamWriter(out);
+            DocumentUtils.write(doc, writer, (isCompact ? 0 : INDENT_AMOUNT));
+            writer.flush();
+            return;
+        }
+
+        // write the content into xml file.
+        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        final Transformer transformer = transformerFactory.newTransformer();
+        final DOMSource source = new DOMSource(doc);
+        final StreamResult result = new StreamResult(out);
+
+        // set the correct properties for the xml or html file.
+        transformer.setOutputProperty(OutputKeys.METHOD, Namespaces.XML_NS_PREFIX);
+        transformer.setOutputProperty(OutputKeys.INDENT, (isCompact ? "no" : "yes"));
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+
+        // Output the xml or html file.
+        transformer.transform(source, result);
+    }
+
+    /**
+     * Stream the stored document as JSON.
+     *
+     * @param resource
+     *          the requested resource
+     * @param out
+     *          the writer
+     * @param compact
+     *          true to write without indentation
+     * @param categoryFilter
+     *          the requested data categories or null to render all
+     * @return true if the document was rendered, false if it failed
+     * @throws IOException
+     *          if the response could not be written
+     */
+    private boolean renderJson(final Resource resource, final Writer out,
+        final boolean compact, final ItsCategoryFilter categoryFilter) throws IOException
+    {
+        try
+        {
+            this.jsonRenderer.render(resource, out, compact, categoryFilter);
+            out.flush();
+            return true;
+        }
+        catch (final JSONException e)
+        {
+            LOG.error("Failed to write the document. Stack Trace: ", e);
+        }
+        catch (final DepthLimitExceededException dle)
+        {
+            LOG.error("Failed to render the document. Stack Trace: ", dle);
+            out.write("500: " + dle.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Check if the client accepts a gzip encoded response.
+     *
+     * @param request
+     *          the request
+     * @return true if gzip is accepted
+     */
+    private static boolean acceptsGzip(final SlingHttpServletRequest request)
+    {
+        final String accepted = request.getHeader("Accept-Encoding");
+        if (accepted == null)
+        {
+            return false;
+        }
+        for (final String coding : StringUtils.split(accepted, ','))
+        {
+            final String name = StringUtils.substringBefore(coding, ";").trim();
+            final String quality = StringUtils.substringAfter(coding, "q=").trim();
+            if ("gzip".equalsIgnoreCase(name)
+                && (quality.length() == 0 || NumberUtils.toDouble(quality) > 0))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the entity tag of the requested representation. It is derived from
+     * the digest of the imported files, the digest of the global rules and
+     * the request, so it changes whenever the document is imported again,
+     * merged, changed by another writer, see ItsChangeListener, or the rules
+     * change. Documents without a digest, e.g. ones being imported, are not
+     * cacheable.
+     *
+     * @param resource
+     *          the requested resource
+     * @param selectorString
+     *          the selectors or null
+     * @param extension
+     *          the extension
+     * @param queryString
+     *          the query or null
+     * @param isCompact
+     *          true if written without indentation
+     * @param isGzip
+     *          true if gzip encoded
+     * @return the quoted entity tag or null if the representation is not
+     *         cacheable
+     */
+    private String getETag(final Resource resource, final String selectorString,
+        final String extension, final String queryString, final boolean isCompact,
+        final boolean isGzip)
+    {
+        final Resource index = ItsIdUtils.findIndex(resource);
+        if (index == null)
+        {
+            return null;
+        }
+        final ResourceResolver resolver = resource.getResourceResolver();
+        final Resource indexParent = resolver.getResource(ResourceUtil.getParent(index
+            .getPath()));
+        final Resource target = resolver.getResource(StringUtils.substringAfter(
+            indexParent.getPath(), SlingItsConstants.ITS_INDEX_PATH));
+        final Session session = resolver.adaptTo(Session.class);
+        final String contentDigest = (target != null ? target.adaptTo(ValueMap.class).get(
+            SlingItsConstants.SLING_ITS_CONTENT_DIGEST, String.class) : null);
+        if (contentDigest == null || session == null)
+        {
+            return null;
+        }
+        try
+        {
+            final MessageDigest digest = HashUtils.newDigest();
+            HashUtils.update(digest, contentDigest);
+            HashUtils.update(digest, ItsRulesUtils.getRulesDigest(session, indexParent
+                .adaptTo(ValueMap.class).get(SlingItsConstants.ITS_INDEX_RESOURCE_TYPE,
+                    String.class)));
+            HashUtils.update(digest, resource.getPath());
+            HashUtils.update(digest, selectorString);
+            HashUtils.update(digest, extension);
+            HashUtils.update(digest, queryString);
+            HashUtils.update(digest, String.valueOf(isCompact));
+            return "\"" + HashUtils.toHex(digest) + (isGzip ? "-gzip" : "") + "\"";
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to read the global rules. Stack Trace: ", e);
+        }
+        return null;
     }
 
     /**
@@ -194,29 +844,362 @@ public class ItsServlet extends SlingSafeMethodsServlet
      *          requested resource
      * @param doc
      *          XML Document
+     * @param isHtml
+     *          true to render html, false to render xml
+     * @param categoryFilter
+     *          the requested data categories or null to render all
+     * @param requestMetrics
+     *          the metrics of the request
      */
-    private void createDocument(final Resource rootResource, final Document doc)
+    private void createDocument(final Resource rootResource, final Document doc,
+        final boolean isHtml, final ItsCategoryFilter categoryFilter,
+        final RequestMetrics requestMetrics)
     {
         final Resource firstChild = getFirstChild(rootResource);
-        final Resource resource = (this.isHtml ? firstChild : rootResource);
+        final Resource resource = (isHtml ? firstChild : rootResource);
         final String resourceType = (firstChild != null ? firstChild.getResourceType()
             : StringUtils.EMPTY);
         final Element rootElement = doc.createElement(resource.getName());
-        if (!this.isHtml)
+        if (!isHtml)
         {
             addNamespaces(rootElement);
         }
         doc.appendChild(rootElement);
-        processAttributes(resource, rootElement);
+        processAttributes(resource, rootElement, isHtml, categoryFilter);
 
         // children element logic.
+        if (this.renderPool != null
+            && getNodeCount(resource) >= this.parallelThreshold
+            && renderParallel(resource, rootElement, resourceType, isHtml, categoryFilter,
+                requestMetrics))
+        {
+            return;
+        }
         final Iterator<Resource> iter = resource.listChildren();
         while (iter.hasNext())
         {
-            processChild(iter.next(), rootElement, resourceType);
+            processChild(iter.next(), rootElement, resourceType, isHtml, categoryFilter,
+                requestMetrics);
         }
     }
 
+    /**
+     * Render the children of the root resource on the render pool. Large
+     * subtrees are rendered into fragments of their own documents in
+     * parallel, the fragments are imported in document order, so the
+     * resulting document is the same as the one rendered on the request
+     * thread.
+     *
+     * @param resource
+     *          the root resource
+     * @param rootElement
+     *          the root element
+     * @param resourceType
+     *          the resourceType provided by the root element
+     * @param isHtml
+     *          true to render html, false to render xml
+     * @param categoryFilter
+     *          the requested data categories or null to render all
+     * @param requestMetrics
+     *          the metrics of the request
+     * @return true if rendered, false if the document has to be rendered on
+     *         the request thread
+     */
+    private boolean renderParallel(final Resource resource, final Element rootElement,
+        final String resourceType, final boolean isHtml,
+        final ItsCategoryFilter categoryFilter, final RequestMetrics requestMetrics)
+    {
+        final RenderContext context = new RenderContext(resource.getResourceResolver(),
+            isHtml, categoryFilter, requestMetrics);
+        try
+        {
+            final Element fragment = this.renderPool.invoke(new SubtreeTask(resource
+                .getPath(), resourceType, context, true));
+            importChildren(fragment, rootElement);
+            return true;
+        }
+        catch (final IllegalStateException e)
+        {
+            LOG.error("Failed to render in parallel, rendering on the request thread. "
+                + "Stack Trace: ", e);
+            return false;
+        }
+        finally
+        {
+            context.close();
+        }
+    }
+
+    /**
+     * Import the children of a fragment into the element.
+     *
+     * @param fragment
+     *          the fragment, possibly of another document
+     * @param element
+     *          the element
+     */
+    private static void importChildren(final Element fragment, final Element element)
+    {
+        final Document doc = element.getOwnerDocument();
+        for (Node child = fragment.getFirstChild(); child != null; child = child
+            .getNextSibling())
+        {
+            element.appendChild(DocumentUtils.importTree(doc, child));
+        }
+    }
+
+    /**
+     * @param resource
+     *          an element resource
+     * @return the number of nodes of its subtree as counted at import time
+     */
+    private static long getNodeCount(final Resource resource)
+    {
+        return resource.adaptTo(ValueMap.class).get(SlingItsConstants.SLING_ITS_NODES, 0L);
+    }
+
+    /**
+     * Create a document that only holds the subtrees of the requested ids.
+     * The ids are resolved through the id index of the document that was
+     * created at import time, so no other part of the document is visited.
+     * Unknown ids are skipped.
+     *
+     * @param request
+     *          the request with one or more id parameters
+     * @param doc
+     *          XML Document
+     * @param isHtml
+     *          true to render html, false to render xml
+     * @param categoryFilter
+     *          the requested data categories or null to render all
+     * @param requestMetrics
+     *          the metrics of the request
+     */
+    private void createSegmentDocument(final SlingHttpServletRequest request,
+        final Document doc, final boolean isHtml, final ItsCategoryFilter categoryFilter,
+        final RequestMetrics requestMetrics)
+    {
+        final Element rootElement;
+        if (isHtml)
+        {
+            rootElement = doc.createElement("div");
+        }
+        else
+        {
+            rootElement = doc.createElement(SlingItsConstants.SLING_ITS_NS_PREFIX
+                + ":segments");
+            addNamespaces(rootElement);
+        }
+        doc.appendChild(rootElement);
+
+        final Resource index = ItsIdUtils.findIndex(request.getResource());
+        final String[] ids = request.getParameterValues("id");
+        if (index == null || ids == null)
+        {
+            LOG.warn("No id index or ids found for path: " + request.getResource().getPath());
+            return;
+        }
+        final ResourceResolver resolver = request.getResourceResolver();
+        final String resourceType = ItsIdUtils.getResourceType(request.getResource());
+        for (final String idParam : ids)
+        {
+            for (final String id : StringUtils.split(idParam, ','))
+            {
+                final String path = ItsIdUtils.lookupId(index, id.trim());
+                final Resource resource = (path != null ? resolver.getResource(path) : null);
+                if (resource == null)
+                {
+                    LOG.warn("No segment found for id: " + id);
+                }
+                else
+                {
+                    processChild(resource, rootElement, resourceType, isHtml,
+                        categoryFilter, requestMetrics);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a document that only holds what changed since the time given by
+     * the since parameter (in milliseconds). Every changed element is
+     * rendered with its subtree inside a change element that carries its
+     * path and the id of its parent, so a previous export can be patched.
+     * Changed text-content-nodes are rendered through their element. The
+     * changed global rules of the resourceType are rendered at the end. The
+     * until attribute holds the time to use as since for the next request.
+     *
+     * @param request
+     *          the request with the since parameter
+     * @param doc
+     *          XML Document
+     * @param isHtml
+     *          true to render html, false to render xml
+     * @param categoryFilter
+     *          the requested data categories or null to render all
+     * @param requestMetrics
+     *          the metrics of the request
+     */
+    private void createDeltaDocument(final SlingHttpServletRequest request,
+        final Document doc, final boolean isHtml, final ItsCategoryFilter categoryFilter,
+        final RequestMetrics requestMetrics)
+    {
+        final long until = System.currentTimeMillis();
+        final long since = NumberUtils.toLong(request.getParameter("since"), 0L);
+        final ResourceResolver resolver = request.getResourceResolver();
+        final Resource firstChild = getFirstChild(request.getResource());
+        final Resource root = (isHtml ? firstChild : request.getResource());
+        final String resourceType = (firstChild != null ? firstChild.getResourceType()
+            : StringUtils.EMPTY);
+        final Element rootElement = doc.createElement(isHtml ? "div"
+            : SlingItsConstants.SLING_ITS_NS_PREFIX + ":delta");
+        if (!isHtml)
+        {
+            addNamespaces(rootElement);
+        }
+        rootElement.setAttribute(getSlingItsAttributeName("since", isHtml),
+            String.valueOf(since));
+        rootElement.setAttribute(getSlingItsAttributeName("until", isHtml),
+            String.valueOf(until));
+        doc.appendChild(rootElement);
+        if (root == null)
+        {
+            return;
+        }
+
+        // changed elements, sorted so the ancestors come first.
+        final Set<String> changedPaths = new TreeSet<String>();
+        if (root.adaptTo(ValueMap.class).get(SlingItsConstants.SLING_ITS_MODIFIED, 0L) > since)
+        {
+            changedPaths.add(root.getPath());
+        }
+        else
+        {
+            requestMetrics.add(ItsMetrics.QUERIES, 1);
+            final Iterator<Resource> changed = resolver.findResources(
+                "SELECT * FROM [nt:base] as t WHERE ISDESCENDANTNODE([" + root.getPath()
+                    + "]) AND t.[" + SlingItsConstants.SLING_ITS_MODIFIED + "] > " + since,
+                Query.JCR_SQL2);
+            while (changed.hasNext())
+            {
+                final Resource resource = changed.next();
+                changedPaths.add(resource.getName().startsWith(
+                    SlingItsConstants.TEXT_CONTENT_NODE) ? ResourceUtil.getParent(resource
+                    .getPath()) : resource.getPath());
+            }
+        }
+
+        for (final String path : changedPaths)
+        {
+            if (hasChangedAncestor(path, root.getPath(), changedPaths))
+            {
+                continue;
+            }
+            final Resource resource = resolver.getResource(path);
+            final Resource parent = resolver.getResource(ResourceUtil.getParent(path));
+            if (resource != null)
+            {
+                final Element changeElement = doc.createElement(isHtml ? "div"
+                    : SlingItsConstants.SLING_ITS_NS_PREFIX + ":change");
+                changeElement.setAttribute(getSlingItsAttributeName("path", isHtml), path);
+                if (parent != null && !path.equals(root.getPath()))
+                {
+                    changeElement.setAttribute(getSlingItsAttributeName("parent", isHtml),
+                        getId(parent));
+                }
+                rootElement.appendChild(changeElement);
+                processChild(resource, changeElement, resourceType, isHtml, categoryFilter,
+                    requestMetrics);
+            }
+        }
+
+        // changed global rules.
+        if (StringUtils.isNotBlank(resourceType))
+        {
+            final Element rulesElement = doc.createElement(isHtml ? "div"
+                : SlingItsConstants.SLING_ITS_NS_PREFIX + ":rules");
+            for (final Map.Entry<String, String> globalRule : SlingItsConstants
+                .getGlobalRules().entrySet())
+            {
+                if (categoryFilter != null && !categoryFilter.isRuleIncluded(globalRule
+                    .getKey()))
+                {
+                    continue;
+                }
+                requestMetrics.add(ItsMetrics.QUERIES, 1);
+                final Iterator<Resource> globalRules = resolver.findResources(
+                    "SELECT * FROM [nt:base] as t WHERE ISCHILDNODE([" + globalRule.getValue()
+                        + resourceType + "]) AND t.[" + SlingItsConstants.SLING_ITS_MODIFIED
+                        + "] > " + since + " ORDER BY name(t) ASC", Query.JCR_SQL2);
+                while (globalRules.hasNext())
+                {
+                    processChild(globalRules.next(), rulesElement, resourceType, isHtml,
+                        categoryFilter, requestMetrics);
+                }
+            }
+            if (rulesElement.hasChildNodes())
+            {
+                rootElement.appendChild(rulesElement);
+            }
+        }
+    }
+
+    /**
+     * Check if one of the ancestors of path up to the root path has changed
+     * as well. The change of the ancestor already holds this path.
+     *
+     * @param path
+     *          path of the changed resource
+     * @param rootPath
+     *          path of the root resource
+     * @param changedPaths
+     *          paths of all changed resources
+     * @return true if an ancestor has changed
+     */
+    static boolean hasChangedAncestor(final String path, final String rootPath,
+        final Set<String> changedPaths)
+    {
+        String parentPath = ResourceUtil.getParent(path);
+        while (parentPath != null && parentPath.startsWith(rootPath))
+        {
+            if (changedPaths.contains(parentPath))
+            {
+                return true;
+            }
+            parentPath = ResourceUtil.getParent(parentPath);
+        }
+        return false;
+    }
+
+    /**
+     * Get the name of a sling-its attribute for the requested output.
+     *
+     * @param name
+     *          the local name of the attribute
+     * @param isHtml
+     *          true to render html, false to render xml
+     * @return the prefixed attribute name for xml or the data attribute name
+     *         for html
+     */
+    private String getSlingItsAttributeName(final String name, final boolean isHtml)
+    {
+        return (isHtml ? "data-" + SlingItsConstants.SLING_ITS_NS_PREFIX + "-"
+            : SlingItsConstants.SLING_ITS_NS_PREFIX + ":") + name;
+    }
+
+    /**
+     * Get the id the resource is rendered with. That is its id or xml:id or
+     * else the sling-its id.
+     *
+     * @param resource
+     *          the resource
+     * @return the id of the resource
+     */
+    private String getId(final Resource resource)
+    {
+        return ItsIdUtils.getRenderedId(resource, resource.adaptTo(ValueMap.class));
+    }
+
     /**
      * Add its, sling-its, jcr and sling namespaces to the root element of the
      * xml document.
@@ -229,7 +1212,8 @@ public class ItsServlet extends SlingSafeMethodsServlet
         rootElement.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
             SlingItsConstants.XMLNS + Namespaces.ITS_NS_PREFIX, Namespaces.ITS_NS_URI);
         rootElement.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
-            SlingItsConstants.XMLNS + "sling-its", "http://www.w3.org/2013/7/sling-its");
+            SlingItsConstants.XMLNS + SlingItsConstants.SLING_ITS_NS_PREFIX,
+            SlingItsConstants.SLING_ITS_NS_URI);
         rootElement.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
             SlingItsConstants.XMLNS + NamespaceRegistry.PREFIX_JCR,
             NamespaceRegistry.NAMESPACE_JCR);
@@ -265,6 +1249,8 @@ public class ItsServlet extends SlingSafeMethodsServlet
      * attributes subsequently needs to be processed. However,
      * text-content-node resources do not need its own element. The
      * text-content property needs to be appended to the previous element.
+     * The subtree is walked with an explicit stack, so deeply nested
+     * documents do not overflow the stack of the request thread.
      *
      * @param resource
      *          the current resource
@@ -272,59 +1258,136 @@ public class ItsServlet extends SlingSafeMethodsServlet
      *          the current element
      * @param resourceType
      *          the resourceType provided by the root element
+     * @param isHtml
+     *          true to render html, false to render xml
+     * @param categoryFilter
+     *          the requested data categories or null to render all
+     * @param requestMetrics
+     *          the metrics of the request
+     * @throws DepthLimitExceededException
+     *          if the subtree is nested deeper than the depth limit
      */
     private void processChild(final Resource resource, final Element element,
-        final String resourceType)
+        final String resourceType, final boolean isHtml,
+        final ItsCategoryFilter categoryFilter, final RequestMetrics requestMetrics)
+    {
+        final ElementVisitor visitor = new ElementVisitor(resourceType, isHtml,
+            categoryFilter, requestMetrics);
+        try
+        {
+            this.walker.walk(resource, element, visitor);
+        }
+        finally
+        {
+            requestMetrics.add(ItsMetrics.RESOURCES, visitor.resources);
+            requestMetrics.add(ItsMetrics.VALUE_MAPS, visitor.valueMaps);
+        }
+    }
+
+    /**
+     * Create the element of the child resource with its attributes and
+     * append it to the current element. The text of a text-content-node is
+     * appended to the current element instead. Inline content stored as a
+     * segment is expanded into the element.
+     *
+     * @param resource
+     *          the current resource
+     * @param element
+     *          the current element
+     * @param isHtml
+     *          true to render html, false to render xml
+     * @param categoryFilter
+     *          the requested data categories or null to render all
+     * @return the created element or null for a text-content-node
+     */
+    private Element appendElement(final Resource resource, final Element element,
+        final boolean isHtml, final ItsCategoryFilter categoryFilter)
     {
         final ValueMap valueMap = resource.adaptTo(ValueMap.class);
         final String prefix = valueMap.get(SlingItsConstants.NODE_PREFIX, String.class);
         final String name = getElementName(resource, prefix);
         final Document doc = element.getOwnerDocument();
-        final Element el = doc.createElement(name);
         if (name.equals(SlingItsConstants.TEXT_CONTENT_NODE))
         {
-            final Text text = doc.createTextNode(valueMap.get(
-                SlingItsConstants.TEXT_CONTENT, StringUtils.EMPTY));
+            final Text text = doc.createTextNode(StringUtils.defaultString(ItsTextUtils
+                .getText(resource)));
             element.appendChild(text);
+            return null;
         }
-        else if (name.endsWith(SlingItsConstants.ITS_RULES) && this.isHtml
+        final Element el = doc.createElement(name);
+        if (name.endsWith(SlingItsConstants.ITS_RULES) && isHtml
             && !element.getNodeName().equals("script") && StringUtils.isNotBlank(prefix))
         {
             final Element scriptElement = doc.createElement("script");
             scriptElement.setAttribute("type", "application/its+xml");
             element.appendChild(scriptElement);
             scriptElement.appendChild(el);
-            processAttributes(resource, el);
+            processAttributes(resource, el, isHtml, categoryFilter);
         }
         else
         {
             element.appendChild(el);
-            processAttributes(resource, el);
+            processAttributes(resource, el, isHtml, categoryFilter);
+        }
+        final String segment = valueMap.get(SlingItsConstants.SLING_ITS_SEGMENT, String.class);
+        if (segment != null)
+        {
+            ItsInlineUtils.decode(el, segment, valueMap.get(
+                SlingItsConstants.SLING_ITS_SEGMENT_CODES, new String[] {}));
         }
+        return el;
+    }
 
+    /**
+     * Get the children of the resource. The rules element gets the global
+     * rules of the resourceType as its children.
+     *
+     * @param resource
+     *          the current resource
+     * @param resourceType
+     *          the resourceType provided by the root element
+     * @param categoryFilter
+     *          the requested data categories or null to render all
+     * @param requestMetrics
+     *          the metrics of the request
+     * @return the children to render
+     */
+    private Iterator<Resource> getChildResources(final Resource resource,
+        final String resourceType, final ItsCategoryFilter categoryFilter,
+        final RequestMetrics requestMetrics)
+    {
+        final String prefix = resource.adaptTo(ValueMap.class).get(
+            SlingItsConstants.NODE_PREFIX, String.class);
+        final String name = getElementName(resource, prefix);
         if (name.endsWith(SlingItsConstants.ITS_RULES) && StringUtils.isNotBlank(prefix)
             && StringUtils.isNotBlank(resourceType))
         {
-            for (final String globalRulePath : SlingItsConstants.getGlobalRules().values())
+            final List<Resource> rules = new ArrayList<Resource>();
+            final long start = System.nanoTime();
+            final PhaseEvent event = PhaseEvent.begin(PhaseEvent.RENDER, PhaseEvent.RULES);
+            for (final Map.Entry<String, String> globalRule : SlingItsConstants
+                .getGlobalRules().entrySet())
             {
+                if (categoryFilter != null && !categoryFilter.isRuleIncluded(globalRule
+                    .getKey()))
+                {
+                    continue;
+                }
+                requestMetrics.add(ItsMetrics.QUERIES, 1);
                 final Iterator<Resource> globalRules = resource.getResourceResolver().findResources(
-                    "SELECT * FROM [nt:base] as t WHERE ISCHILDNODE([" + globalRulePath
+                    "SELECT * FROM [nt:base] as t WHERE ISCHILDNODE([" + globalRule.getValue()
                         + resourceType + "]) AND t.[node-prefix] LIKE '" + prefix
                         + "' ORDER BY name(t) ASC", Query.JCR_SQL2);
                 while (globalRules.hasNext())
                 {
-                    processChild(globalRules.next(), el, resourceType);
+                    rules.add(globalRules.next());
                 }
             }
+            requestMetrics.addTime(ItsMetrics.RULES_TIME, start);
+            event.commit(resource.getPath(), resourceType, rules.size(), 0);
+            return rules.iterator();
         }
-        else
-        {
-            final Iterator<Resource> iter = resource.listChildren();
-            while (iter.hasNext())
-            {
-                processChild(iter.next(), el, resourceType);
-            }
-        }
+        return resource.listChildren();
     }
 
     /**
@@ -333,22 +1396,32 @@ public class ItsServlet extends SlingSafeMethodsServlet
      * exception of properties with the jcr and sling prefix.
      *
      * To adhere to the w3c id rule, there will be an extra id property that
-     * needs to be generated.
+     * needs to be generated. If data categories were requested, the local ITS
+     * attributes of the other categories are skipped.
      *
      * @param resource
      *          the current resource
      * @param element
      *          the current element
+     * @param isHtml
+     *          true to render html, false to render xml
+     * @param categoryFilter
+     *          the requested data categories or null to render all
      */
-    private void processAttributes(final Resource resource, final Element element)
+    private void processAttributes(final Resource resource, final Element element,
+        final boolean isHtml, final ItsCategoryFilter categoryFilter)
     {
         final Document doc = element.getOwnerDocument();
         final ValueMap props = resource.adaptTo(ValueMap.class);
         final List<String> namespaces = Arrays.asList(props.get(
             SlingItsConstants.NAMESPACE_DECLARATION, new String[] {}));
+        // the attributes of the global rules are those of their category.
+        final ItsCategoryFilter filter = (resource.getPath().startsWith(
+            SlingItsConstants.ITS_GLOBAL_PATH) ? null : categoryFilter);
         for (final String key : props.keySet())
         {
-            if (isValidProperty(key))
+            if (isValidProperty(key)
+                && (filter == null || filter.isAttributeIncluded(key, isHtml)))
             {
                 final String value = (String) props.get(key);
                 if (SlingItsConstants.TEXT_CONTENT.equals(key))
@@ -367,13 +1440,13 @@ public class ItsServlet extends SlingSafeMethodsServlet
                 {
                     element.setAttribute(SlingItsConstants.XMLNS + key, value);
                 }
-                else if (this.isHtml
+                else if (isHtml
                     && StringUtils.equals(key, SlingItsConstants.XML_PRIMARY_TYPE_PROP)
                     && (!props.keySet().contains(SlingItsConstants.NODE_PREFIX)))
                 {
                     element.setAttribute(SlingItsConstants.HTML_PRIMARY_TYPE_PROP, value);
                 }
-                else if (this.isHtml
+                else if (isHtml
                     && StringUtils.equals(key,
                         JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)
                     && (!props.keySet().contains(SlingItsConstants.NODE_PREFIX)))
@@ -390,8 +1463,9 @@ public class ItsServlet extends SlingSafeMethodsServlet
             && !element.getNodeName().endsWith(SlingItsConstants.ITS_RULES)
             && !props.keySet().contains("id") && !props.keySet().contains("xml:id"))
         {
-            element.setAttribute((this.isHtml ? "data-sling-its-id" : "sling-its:id"),
-                getUniqueId(resource.getPath()));
+            element.setAttribute((isHtml ? SlingItsConstants.HTML_SLING_ITS_ID_ATTR
+                : SlingItsConstants.XML_SLING_ITS_ID_ATTR), ItsIdUtils.getSlingItsId(resource,
+                props));
         }
     }
 
@@ -421,8 +1495,9 @@ public class ItsServlet extends SlingSafeMethodsServlet
     /**
      * Check if it's a property name we want to output into the xml file. The
      * xlink prefix is to externally reference global rules. For our purposes,
-     * we include the rules ourselves. Lastly, namespace-declaration and
-     * node-prefix is used to render out the correct namespace/prefix.
+     * we include the rules ourselves. The namespace-declaration and
+     * node-prefix is used to render out the correct namespace/prefix. Lastly,
+     * the sling-its- properties are only used internally.
      *
      * @param key
      *         property name
@@ -434,21 +1509,295 @@ public class ItsServlet extends SlingSafeMethodsServlet
         return (key.indexOf("jcr:") < 0 || key.equals(SlingItsConstants.XML_PRIMARY_TYPE_PROP))
             && key.indexOf("xlink") < 0
             && !key.equals(SlingItsConstants.NAMESPACE_DECLARATION)
-            && !key.equals(SlingItsConstants.NODE_PREFIX);
+            && !key.equals(SlingItsConstants.NODE_PREFIX)
+            && !key.startsWith(SlingItsConstants.SLING_ITS_PROPERTY_PREFIX);
     }
 
     /**
-     * Need to generate unique IDs with paths. So parentheses will need to be
-     * stripped. Forward slashes will be replaced with underscores.
-     *
-     * @param path
-     *         resource path
-     * @return unique id
+     * Appends the elements of the walked resources to the element of their
+     * parent. The resources and ValueMaps of a walk are counted without
+     * synchronization and added to the metrics of the request once the walk
+     * is done.
      */
-    private String getUniqueId(final String path)
+    private final class ElementVisitor implements
+        ResourceTreeWalker.Visitor<Element, RuntimeException>
     {
-        return ((path.substring(1)).replaceAll("[\\(\\)]", StringUtils.EMPTY)).replaceAll(
-            "/", "_");
+        /** The resourceType provided by the root element. */
+        private final String resourceType;
+        /** True to render html, false to render xml. */
+        private final boolean isHtml;
+        /** The requested data categories or null to render all. */
+        private final ItsCategoryFilter categoryFilter;
+        /** The metrics of the request. */
+        private final RequestMetrics requestMetrics;
+        /** Number of resources visited. */
+        private long resources;
+        /** Number of ValueMaps adapted. */
+        private long valueMaps;
+
+        /**
+         * Constructor.
+         *
+         * @param resourceType
+         *          the resourceType provided by the root element
+         * @param isHtml
+         *          true to render html, false to render xml
+         * @param categoryFilter
+         *          the requested data categories or null to render all
+         * @param requestMetrics
+         *          the metrics of the request
+         */
+        private ElementVisitor(final String resourceType, final boolean isHtml,
+            final ItsCategoryFilter categoryFilter, final RequestMetrics requestMetrics)
+        {
+            this.resourceType = resourceType;
+            this.isHtml = isHtml;
+            this.categoryFilter = categoryFilter;
+            this.requestMetrics = requestMetrics;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Element enter(final Resource resource, final Element parent)
+        {
+            // one ValueMap for the element and one for its attributes.
+            final Element el = appendElement(resource, parent, this.isHtml,
+                this.categoryFilter);
+            this.resources++;
+            this.valueMaps += (el != null ? 2 : 1);
+            return el;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Iterator<Resource> getChildren(final Resource resource, final Element el)
+        {
+            this.valueMaps++;
+            return getChildResources(resource, this.resourceType, this.categoryFilter,
+                this.requestMetrics);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void leave(final Resource resource, final Element el)
+        {
+            // the element is complete once its children were appended.
+        }
+    }
+
+    /**
+     * Renders a subtree into a fragment of a document of its own. Children
+     * whose subtree is larger than the split size are forked as tasks of
+     * their own, the other children are rendered by this task while the
+     * forked ones run.
+     */
+    private final class SubtreeTask extends RecursiveTask<Element>
+    {
+        /** UID for serialization. */
+        private static final long serialVersionUID = -6017236474263785916L;
+        /** Path of the resource to render. */
+        private final String path;
+        /** The resourceType provided by the root element. */
+        private final String resourceType;
+        /** The resolvers and document builders of the render threads. */
+        private final RenderContext context;
+        /** True to render only the children of the resource. */
+        private final boolean childrenOnly;
+
+        /**
+         * Constructor.
+         *
+         * @param path
+         *          path of the resource to render
+         * @param resourceType
+         *          the resourceType provided by the root element
+         * @param context
+         *          the render context
+         * @param childrenOnly
+         *          true to render only the children of the resource
+         */
+        private SubtreeTask(final String path, final String resourceType,
+            final RenderContext context, final boolean childrenOnly)
+        {
+            this.path = path;
+            this.resourceType = resourceType;
+            this.context = context;
+            this.childrenOnly = childrenOnly;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Element compute()
+        {
+            final Resource resource = this.context.getResolver().getResource(this.path);
+            final Document doc = this.context.newDocument();
+            final Element fragment = doc.createElement("fragment");
+            doc.appendChild(fragment);
+            final Element el = (this.childrenOnly ? fragment : appendElement(resource,
+                fragment, this.context.isHtml(), this.context.getCategoryFilter()));
+
+            // fork the large children first, then render in document order.
+            final List<Object> parts = new ArrayList<Object>();
+            final Iterator<Resource> children = resource.listChildren();
+            while (children.hasNext())
+            {
+                final Resource child = children.next();
+                if (!child.getName().startsWith(SlingItsConstants.TEXT_CONTENT_NODE)
+                    && !ItsAnnotator.isRules(child)
+                    && getNodeCount(child) > ItsServlet.this.parallelSplitSize)
+                {
+                    final SubtreeTask task = new SubtreeTask(child.getPath(),
+                        this.resourceType, this.context, false);
+                    task.fork();
+                    parts.add(task);
+                }
+                else
+                {
+                    parts.add(child);
+                }
+            }
+            for (final Object part : parts)
+            {
+                if (part instanceof SubtreeTask)
+                {
+                    importChildren(((SubtreeTask) part).join(), el);
+                }
+                else
+                {
+                    processChild((Resource) part, el, this.resourceType, this.context
+                        .isHtml(), this.context.getCategoryFilter(), this.context
+                        .getRequestMetrics());
+                }
+            }
+            return fragment;
+        }
+    }
+
+    /**
+     * The resources of one parallel render. Resource resolvers and document
+     * builders are not thread safe, every render thread gets its own.
+     */
+    private static final class RenderContext
+    {
+        /** The resolver of the request. */
+        private final ResourceResolver resolver;
+        /** True to render html, false to render xml. */
+        private final boolean isHtml;
+        /** The requested data categories or null to render all. */
+        private final ItsCategoryFilter categoryFilter;
+        /** The metrics of the request. */
+        private final RequestMetrics requestMetrics;
+        /** The cloned resolvers by render thread. */
+        private final Map<Thread, ResourceResolver> resolvers = new ConcurrentHashMap<Thread, ResourceResolver>();
+        /** The document builders by render thread. */
+        private final Map<Thread, DocumentBuilder> builders = new ConcurrentHashMap<Thread, DocumentBuilder>();
+
+        /**
+         * Constructor.
+         *
+         * @param resolver
+         *          the resolver of the request
+         * @param isHtml
+         *          true to render html, false to render xml
+         * @param categoryFilter
+         *          the requested data categories or null to render all
+         * @param requestMetrics
+         *          the metrics of the request
+         */
+        private RenderContext(final ResourceResolver resolver, final boolean isHtml,
+            final ItsCategoryFilter categoryFilter, final RequestMetrics requestMetrics)
+        {
+            this.resolver = resolver;
+            this.isHtml = isHtml;
+            this.categoryFilter = categoryFilter;
+            this.requestMetrics = requestMetrics;
+        }
+
+        /**
+         * @return true to render html, false to render xml
+         */
+        private boolean isHtml()
+        {
+            return this.isHtml;
+        }
+
+        /**
+         * @return the requested data categories or null to render all
+         */
+        private ItsCategoryFilter getCategoryFilter()
+        {
+            return this.categoryFilter;
+        }
+
+        /**
+         * @return the metrics of the request
+         */
+        private RequestMetrics getRequestMetrics()
+        {
+            return this.requestMetrics;
+        }
+
+        /**
+         * @return the resolver of the current thread
+         */
+        private ResourceResolver getResolver()
+        {
+            ResourceResolver threadResolver = this.resolvers.get(Thread.currentThread());
+            if (threadResolver == null)
+            {
+                try
+                {
+                    threadResolver = this.resolver.clone(null);
+                }
+                catch (final LoginException e)
+                {
+                    throw new IllegalStateException("Failed to clone the resolver.", e);
+                }
+                this.resolvers.put(Thread.currentThread(), threadResolver);
+            }
+            return threadResolver;
+        }
+
+        /**
+         * @return a new document created by the builder of the current thread
+         */
+        private Document newDocument()
+        {
+            DocumentBuilder builder = this.builders.get(Thread.currentThread());
+            if (builder == null)
+            {
+                try
+                {
+                    final DocumentBuilderFactory docFactory = DocumentBuilderFactory
+                        .newInstance();
+                    docFactory.setNamespaceAware(true);
+                    builder = docFactory.newDocumentBuilder();
+                }
+                catch (final ParserConfigurationException e)
+                {
+                    throw new IllegalStateException("Failed to create DocumentBuilder.", e);
+                }
+                this.builders.put(Thread.currentThread(), builder);
+            }
+            return builder.newDocument();
+        }
+
+        /**
+         * Close the cloned resolvers.
+         */
+        private void close()
+        {
+            for (final ResourceResolver threadResolver : this.resolvers.values())
+            {
+                threadResolver.close();
+            }
+            this.resolvers.clear();
+        }
     }
 
     /**
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.utils.ItsStatsUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.servlets.ItsStatsServlet", label = "%servlet.stats.name", description = "%servlet.stats.description")
+@Service(Servlet.class)
+@Properties({
+        @Property(name = "service.description", value = "ITS Statistics Servlet"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+
+        // Use this as a default servlet for Sling
+        @Property(name = "sling.servlet.resourceTypes", value = "sling/servlet/default", propertyPrivate = true),
+        @Property(name = "sling.servlet.prefix", intValue = -1, propertyPrivate = true),
+
+        // Read the word and character counts stored at import time
+        @Property(name = "sling.servlet.methods", value = "GET", propertyPrivate = true),
+        @Property(name = "sling.servlet.selectors", value = "its.stats", propertyPrivate = true),
+        @Property(name = "sling.servlet.extensions", value = "json", propertyPrivate = true) })
+public class ItsStatsServlet extends SlingSafeMethodsServlet
+{
+    /** UID for serialization. */
+    private static final long serialVersionUID = 7414983360628722951L;
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsStatsServlet.class);
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+     * org.apache.sling.api.SlingHttpServletResponse)
+     */
+    @Override
+    protected final void doGet(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response) throws ServletException, IOException
+    {
+        if (ResourceUtil.isNonExistingResource(request.getResource()))
+        {
+            LOG.error("No resource found for path: " + request.getResource().getPath());
+            response.getWriter().write(
+                "500: No resource found for path: " + request.getResource().getPath());
+            return;
+        }
+
+        // the counts of the whole subtree are stored on the node itself.
+        final ValueMap props = request.getResource().adaptTo(ValueMap.class);
+        final long[] counts = ItsStatsUtils.read(props);
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType(SlingItsConstants.JSON_MIME_TYPE);
+        try
+        {
+            final JSONWriter writer = new JSONWriter(response.getWriter());
+            writer.object();
+            writer.key("path").value(request.getResource().getPath());
+            writer.key("computed").value(
+                props.containsKey(SlingItsConstants.SLING_ITS_WORDS_TRANSLATABLE));
+            writer.key("translatable").object();
+            writer.key("words").value(counts[0]);
+            writer.key("characters").value(counts[1]);
+            writer.endObject();
+            writer.key("nonTranslatable").object();
+            writer.key("words").value(counts[2]);
+            writer.key("characters").value(counts[3]);
+            writer.endObject();
+            writer.key("total").object();
+            writer.key("words").value(counts[0] + counts[2]);
+            writer.key("characters").value(counts[1] + counts[3]);
+            writer.endObject();
+            writer.key("nodes").value(counts[ItsStatsUtils.NODES]);
+            writer.endObject();
+        }
+        catch (final JSONException e)
+        {
+            LOG.error("Failed to write the statistics. Stack Trace: ", e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.servlets;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.services.ItsMetrics;
+import org.apache.sling.its.services.SlowRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists the most recent traces of the slow imports and renders kept by the
+ * {@link ItsMetrics}, newest first.
+ */
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.servlets.ItsTraceServlet", label = "%servlet.trace.name", description = "%servlet.trace.description")
+@Service(Servlet.class)
+@Properties({
+        @Property(name = "service.description", value = "ITS Trace Servlet"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+
+        @Property(name = "sling.servlet.methods", value = "GET", propertyPrivate = true),
+        @Property(name = "sling.servlet.paths", value = "/bin/its/traces", propertyPrivate = true) })
+public class ItsTraceServlet extends SlingSafeMethodsServlet
+{
+    /** UID for serialization. */
+    private static final long serialVersionUID = -2781470350936312655L;
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsTraceServlet.class);
+
+    /** Keeps the traces, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile ItsMetrics metrics;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+     * org.apache.sling.api.SlingHttpServletResponse)
+     */
+    @Override
+    protected final void doGet(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response) throws ServletException, IOException
+    {
+        final ItsMetrics collector = this.metrics;
+        if (collector == null)
+        {
+            LOG.error("The ITS metrics are not available.");
+            response.getWriter().write("500: The ITS metrics are not available.");
+            return;
+        }
+
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType(SlingItsConstants.JSON_MIME_TYPE);
+        try
+        {
+            final JSONWriter writer = new JSONWriter(response.getWriter());
+            writer.object();
+            writer.key("slowRequests").value(collector.getSlowRequestCount());
+            writer.key("traces").array();
+            for (final SlowRequest trace : collector.getSlowRequests())
+            {
+                writer.object();
+                writer.key("time").value(trace.getTime());
+                writer.key("operation").value(trace.getOperation());
+                writer.key("path").value(trace.getPath());
+                writer.key("resourceType").value(trace.getResourceType());
+                writer.key("format").value(trace.getFormat());
+                writer.key("duration").value(trace.getDuration());
+                writer.key("metrics").object();
+                for (final Map.Entry<String, Long> value : trace.getValues().entrySet())
+                {
+                    writer.key(value.getKey()).value(value.getValue().longValue());
+                }
+                writer.endObject();
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        catch (final JSONException e)
+        {
+            LOG.error("Failed to write the traces. Stack Trace: ", e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.render.XliffRenderer;
+import org.apache.sling.its.rules.IncompleteRulesException;
+import org.apache.sling.its.services.AdmissionLane;
+import org.apache.sling.its.services.AdmissionRejectedException;
+import org.apache.sling.its.services.ItsAdmissionControl;
+import org.apache.sling.its.traversal.DepthLimitExceededException;
+import org.apache.sling.its.utils.ItsIdUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@Component(immediate = true, metatype = true, name = "org.apache.sling.its.servlets.ItsXliffServlet", label = "%servlet.xliff.name", description = "%servlet.xliff.description")
+@Service(Servlet.class)
+@Properties({
+        @Property(name = "service.description", value = "ITS XLIFF Servlet"),
+        @Property(name = "service.vendor", value = "Adobe Systems"),
+
+        // Use this as a default servlet for Sling
+        @Property(name = "sling.servlet.resourceTypes", value = "sling/servlet/default", propertyPrivate = true),
+        @Property(name = "sling.servlet.prefix", intValue = -1, propertyPrivate = true),
+
+        // Extract the translatable content of the stored documents
+        @Property(name = "sling.servlet.methods", value = "GET", propertyPrivate = true),
+        @Property(name = "sling.servlet.selectors", value = "its", propertyPrivate = true),
+        @Property(name = "sling.servlet.extensions", value = "xlf", propertyPrivate = true) })
+public class ItsXliffServlet extends SlingSafeMethodsServlet
+{
+    /** UID for serialization. */
+    private static final long serialVersionUID = -3036312488216640157L;
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsXliffServlet.class);
+    /** The XLIFF 2.0 mime type. */
+    private static final String XLIFF_MIME_TYPE = "application/xliff+xml";
+    /** Limits the concurrent extractions, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile ItsAdmissionControl admissionControl;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+     * org.apache.sling.api.SlingHttpServletResponse)
+     */
+    @Override
+    protected final void doGet(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response) throws ServletException, IOException
+    {
+        if (ResourceUtil.isNonExistingResource(request.getResource()))
+        {
+            LOG.error("No resource found for path: " + request.getResource().getPath());
+            response.getWriter().write(
+                "500: No resource found for path: " + request.getResource().getPath());
+            return;
+        }
+
+        final ItsAdmissionControl admission = this.admissionControl;
+        AdmissionLane.Permit permit = null;
+        try
+        {
+            if (admission != null)
+            {
+                // the number of nodes of the document as counted at import time.
+                permit = admission.acquire(ItsAdmissionControl.EXTRACTION, ItsIdUtils
+                    .getRootElement(request.getResource()).adaptTo(ValueMap.class).get(
+                        SlingItsConstants.SLING_ITS_NODES, 0L));
+            }
+
+            // make sure the encoding is set before getWriter() is called.
+            response.setCharacterEncoding(CharEncoding.UTF_8);
+            response.setContentType(XLIFF_MIME_TYPE);
+            new XliffRenderer(request.getResourceResolver()).render(request.getResource(),
+                response.getWriter(), request.getParameter("srcLang"),
+                request.getParameter("trgLang"));
+        }
+        catch (final XMLStreamException e)
+        {
+            LOG.error("Failed to write the XLIFF. Stack Trace: ", e);
+        }
+        catch (final DepthLimitExceededException e)
+        {
+            LOG.error("Failed to write the XLIFF. Stack Trace: ", e);
+        }
+        catch (final IncompleteRulesException e)
+        {
+            // thrown before anything is written.
+            LOG.error(e.getMessage());
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            response.setContentType("text/plain");
+            response.getWriter().write("500: " + e.getMessage());
+        }
+        catch (final AdmissionRejectedException e)
+        {
+            ItsAdmissionControl.reject(response, e);
+        }
+        finally
+        {
+            if (permit != null)
+            {
+                permit.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.traversal;
+
+/**
+ * Thrown when a document is nested deeper than the configured depth limit.
+ */
+public class DepthLimitExceededException extends RuntimeException
+{
+    /** UID for serialization. */
+    private static final long serialVersionUID = 3946184205526385472L;
+    /** The depth limit. */
+    private final int maxDepth;
+
+    /**
+     * Constructor.
+     *
+     * @param maxDepth
+     *         the depth limit
+     * @param path
+     *         the path at which the limit was exceeded
+     */
+    public DepthLimitExceededException(final int maxDepth, final String path)
+    {
+        super("The maximum depth of " + maxDepth + " levels was exceeded at: " + path);
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @return the depth limit
+     */
+    public int getMaxDepth()
+    {
+        return this.maxDepth;
+    }
+}
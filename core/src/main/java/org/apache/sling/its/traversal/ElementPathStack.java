@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.traversal;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the open elements while a document is imported. Each level
+ * holds the name of its node, a value (e.g. the node itself) and the counters
+ * of the names of its children, so entering and leaving an element costs the
+ * same at any depth. The path of a level is only built when it is asked for,
+ * from the path of its parent, and kept for the next time. Elements that are
+ * not stored share the level of their parent.
+ *
+ * @param <T>
+ *         the value held for each level
+ */
+public final class ElementPathStack<T>
+{
+    /** The depth limit. */
+    private final int maxDepth;
+    /** The open levels, the root level is never removed. */
+    private final Deque<Level<T>> levels = new ArrayDeque<Level<T>>();
+
+    /**
+     * Constructor.
+     *
+     * @param rootPath
+     *         the path below which the document is stored
+     * @param rootValue
+     *         the value of the root level
+     * @param maxDepth
+     *         the maximum number of nested elements
+     */
+    public ElementPathStack(final String rootPath, final T rootValue, final int maxDepth)
+    {
+        this.maxDepth = maxDepth;
+        final Level<T> root = new Level<T>(null, rootValue, new HashMap<String, Integer>());
+        root.path = rootPath;
+        this.levels.push(root);
+    }
+
+    /**
+     * Get the node name of the next child with the given name of the current
+     * element. The iteration of the name is appended in parentheses, e.g.
+     * the second span is span(2).
+     *
+     * @param name
+     *         the name of the child
+     * @return the node name of the child
+     */
+    public String getChildName(final String name)
+    {
+        final Level<T> level = this.levels.peek();
+        final Integer counter = level.counters.get(name);
+        final int iteration = (counter != null ? counter + 1 : 1);
+        level.counters.put(name, iteration);
+        return name + "(" + iteration + ")";
+    }
+
+    /**
+     * Enter a stored element.
+     *
+     * @param name
+     *         the node name of the element
+     * @param value
+     *         the value of the level
+     * @throws DepthLimitExceededException
+     *         if the element is nested deeper than the depth limit
+     */
+    public void push(final String name, final T value)
+    {
+        if (this.levels.size() > this.maxDepth)
+        {
+            throw new DepthLimitExceededException(this.maxDepth, getPath() + "/" + name);
+        }
+        this.levels.push(new Level<T>(name, value, new HashMap<String, Integer>()));
+    }
+
+    /**
+     * Enter an element that is not stored, its children are stored below the
+     * current element.
+     *
+     * @throws DepthLimitExceededException
+     *         if the element is nested deeper than the depth limit
+     */
+    public void pushSame()
+    {
+        final Level<T> level = this.levels.peek();
+        if (this.levels.size() > this.maxDepth)
+        {
+            throw new DepthLimitExceededException(this.maxDepth, getPath());
+        }
+        this.levels.push(new Level<T>(null, level.value, level.counters));
+    }
+
+    /**
+     * Leave the current element. The root level is kept.
+     */
+    public void pop()
+    {
+        if (this.levels.size() > 1)
+        {
+            this.levels.pop();
+        }
+    }
+
+    /**
+     * Get the path of the current element. Only the levels entered since the
+     * last call are added to the path of their parent.
+     *
+     * @return the path of the current element
+     */
+    public String getPath()
+    {
+        final Deque<Level<T>> unresolved = new ArrayDeque<Level<T>>();
+        String path = null;
+        for (final Level<T> level : this.levels)
+        {
+            if (level.path != null)
+            {
+                path = level.path;
+                break;
+            }
+            unresolved.push(level);
+        }
+        for (final Level<T> level : unresolved)
+        {
+            path = (level.name != null ? path + "/" + level.name : path);
+            level.path = path;
+        }
+        return path;
+    }
+
+    /**
+     * @return the value of the current element
+     */
+    public T getValue()
+    {
+        return this.levels.peek().value;
+    }
+
+    /**
+     * @return the number of open elements
+     */
+    public int getDepth()
+    {
+        return this.levels.size() - 1;
+    }
+
+    /**
+     * A level of the stack.
+     *
+     * @param <T>
+     *         the value held for the level
+     */
+    private static final class Level<T>
+    {
+        /** The node name, null if the level shares the node of its parent. */
+        private final String name;
+        /** The value of the level. */
+        private final T value;
+        /** The iterations of the child names. */
+        private final Map<String, Integer> counters;
+        /** The path of the node, null until it is asked for. */
+        private String path;
+
+        /**
+         * Constructor.
+         *
+         * @param name
+         *         the node name, null to share the node of the parent
+         * @param value
+         *         the value of the level
+         * @param counters
+         *         the iterations of the child names
+         */
+        private Level(final String name, final T value, final Map<String, Integer> counters)
+        {
+            this.name = name;
+            this.value = value;
+            this.counters = counters;
+        }
+    }
+}
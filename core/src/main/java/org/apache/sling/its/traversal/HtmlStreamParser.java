@@ -0,0 +1,667 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.traversal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import net.sf.okapi.filters.its.html5.HTML5Filter;
+import nu.validator.htmlparser.common.XmlViolationPolicy;
+import nu.validator.htmlparser.sax.HtmlParser;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.its.rules.ItsRule;
+import org.apache.sling.its.rules.ItsRuleSet;
+import org.apache.sling.its.rules.ItsSelector;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streams an HTML5 document from the tokenizer of the htmlparser to a
+ * {@link Listener}, without building a DOM. The translate, locNote, idValue
+ * and targetPointer data categories of each element are resolved from the
+ * HTML5 default rules, the given rules, the linked and inline rules of the
+ * document and its local markup while it is streamed. Only the open elements
+ * are kept, so the memory does not grow with the size of the document.
+ *
+ * Rules are applied from the point they are read on, linked and inline rules
+ * therefore only apply to the elements after them, usually the body.
+ */
+public final class HtmlStreamParser extends DefaultHandler
+{
+    /**
+     * Receives the elements and texts of the document in document order.
+     */
+    public interface Listener
+    {
+        /**
+         * Start an element, a child of the current element.
+         *
+         * @param element
+         *         the element
+         * @throws SAXException
+         *         if the element could not be stored
+         */
+        void startElement(StreamElement element) throws SAXException;
+
+        /**
+         * A text of the current element that is not only whitespace.
+         *
+         * @param text
+         *         the text
+         * @throws SAXException
+         *         if the text could not be stored
+         */
+        void text(String text) throws SAXException;
+
+        /**
+         * End the current element.
+         *
+         * @throws SAXException
+         *         if the element could not be stored
+         */
+        void endElement() throws SAXException;
+    }
+
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(HtmlStreamParser.class);
+    /** HTML elements that are never translatable. */
+    private static final Set<String> HTML_NON_TRANSLATABLE = new HashSet<String>(
+        Arrays.asList("script", "style"));
+    /** The type of the script elements holding ITS rules. */
+    private static final String RULES_SCRIPT_TYPE = "application/its+xml";
+    /** Default locNote type. */
+    private static final String DEFAULT_LOC_NOTE_TYPE = "description";
+
+    /** The rules, the rules of the document are added while it is read. */
+    private final ItsRuleSet ruleSet;
+    /** The location of the document the linked rules are resolved against. */
+    private final URI baseUri;
+    /** Receives the elements and texts. */
+    private final Listener listener;
+    /** The open elements from the root to the current element. */
+    private final List<StreamElement> stack = new ArrayList<StreamElement>();
+    /** The text of the current element since the last element event. */
+    private final StringBuilder text = new StringBuilder();
+    /** The content of the current rules script or null if not in one. */
+    private StringBuilder rulesScript;
+
+    /**
+     * Constructor.
+     *
+     * @param ruleSet
+     *         the rules, the rules of the document are added to them
+     * @param baseUri
+     *         the location of the document
+     * @param listener
+     *         receives the elements and texts
+     */
+    private HtmlStreamParser(final ItsRuleSet ruleSet, final URI baseUri,
+        final Listener listener)
+    {
+        this.ruleSet = ruleSet;
+        this.baseUri = baseUri;
+        this.listener = listener;
+    }
+
+    /**
+     * Stream the document to the listener. The HTML5 default rules are
+     * applied first, then the given rules and then the rules of the document.
+     *
+     * @param file
+     *         the HTML document
+     * @param rules
+     *         the external rules, applied before the rules of the document
+     * @param listener
+     *         receives the elements and texts
+     * @throws SAXException
+     *         if the document could not be parsed or the listener failed
+     * @throws IOException
+     *         if the document could not be read
+     */
+    public static void parse(final File file, final List<Document> rules,
+        final Listener listener) throws SAXException, IOException
+    {
+        final ItsRuleSet ruleSet = ItsRuleSet.create();
+        addRules(ruleSet, HTML5Filter.class.getResource("strict.fprm"));
+        for (final Document doc : rules)
+        {
+            ruleSet.addRules(doc.getDocumentElement());
+        }
+        final HtmlParser parser = new HtmlParser(XmlViolationPolicy.ALTER_INFOSET);
+        parser.setContentHandler(new HtmlStreamParser(ruleSet, file.toURI(), listener));
+        parser.parse(new InputSource(file.toURI().toString()));
+    }
+
+    /**
+     * Read the resourceType from the root element of the document. Only the
+     * document up to the root element is parsed.
+     *
+     * @param file
+     *         the HTML document
+     * @return the resourceType or an empty string
+     * @throws IOException
+     *         if the document could not be read
+     */
+    public static String getResourceType(final File file) throws IOException
+    {
+        final String[] resourceType = new String[] { StringUtils.EMPTY };
+        final HtmlParser parser = new HtmlParser(XmlViolationPolicy.ALTER_INFOSET);
+        parser.setContentHandler(new DefaultHandler()
+        {
+            @Override
+            public void startElement(final String uri, final String localName,
+                final String qName, final Attributes attributes) throws SAXException
+            {
+                resourceType[0] = StringUtils.defaultIfEmpty(attributes.getValue(
+                    JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY), StringUtils
+                    .defaultString(attributes.getValue("sling-resourceType")));
+                // the rest of the document is not needed.
+                throw new SAXException("root element");
+            }
+        });
+        try
+        {
+            parser.parse(new InputSource(file.toURI().toString()));
+        }
+        catch (final SAXException e)
+        {
+            // thrown at the root element.
+        }
+        return resourceType[0];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startElement(final String uri, final String localName, final String qName,
+        final Attributes attributes) throws SAXException
+    {
+        flushText();
+        final StreamElement parent = (this.stack.isEmpty() ? null : this.stack.get(this.stack
+            .size() - 1));
+        final StreamElement element = new StreamElement(localName, qName, parent);
+        for (int i = 0; i < attributes.getLength(); i++)
+        {
+            element.attributes.put(attributes.getQName(i), attributes.getValue(i));
+        }
+        this.stack.add(element);
+        applyGlobalRules(element);
+        applyLocalMarkup(element);
+        applyAttributeRules(element);
+
+        if ("script".equals(localName)
+            && RULES_SCRIPT_TYPE.equals(element.getAttribute("type")))
+        {
+            this.rulesScript = new StringBuilder();
+        }
+        else if ("link".equals(localName)
+            && StringUtils.endsWith(element.getAttribute("rel"), "-rules"))
+        {
+            addLinkedRules(element.getAttribute("href"));
+        }
+        this.listener.startElement(element);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void characters(final char[] ch, final int start, final int length)
+    {
+        this.text.append(ch, start, length);
+        if (this.rulesScript != null)
+        {
+            this.rulesScript.append(ch, start, length);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endElement(final String uri, final String localName, final String qName)
+        throws SAXException
+    {
+        flushText();
+        if (this.rulesScript != null && "script".equals(localName))
+        {
+            addRules(this.ruleSet, this.rulesScript.toString());
+            this.rulesScript = null;
+        }
+        this.stack.remove(this.stack.size() - 1);
+        this.listener.endElement();
+    }
+
+    /**
+     * Pass the text read since the last element event to the listener.
+     *
+     * @throws SAXException
+     *         if the text could not be stored
+     */
+    private void flushText() throws SAXException
+    {
+        if (this.text.length() > 0)
+        {
+            final String value = this.text.toString();
+            this.text.setLength(0);
+            if (StringUtils.isNotBlank(value) && !this.stack.isEmpty())
+            {
+                this.listener.text(value);
+            }
+        }
+    }
+
+    /**
+     * Apply the global rules that select the element. Later rules override
+     * earlier ones.
+     *
+     * @param element
+     *         the element
+     */
+    private void applyGlobalRules(final StreamElement element)
+    {
+        for (final ItsRule rule : this.ruleSet.getRules("translateRule"))
+        {
+            if (rule.getSelector().matches(this.stack))
+            {
+                element.translate = "yes".equals(rule.getProperty("translate"));
+            }
+        }
+        for (final ItsRule rule : this.ruleSet.getRules(SlingItsConstants.ITS_LOCNOTE_RULE))
+        {
+            if (rule.getSelector().matches(this.stack))
+            {
+                element.locNoteType = StringUtils.defaultIfEmpty(
+                    rule.getProperty("locNoteType"), element.locNoteType);
+                if (rule.getProperty(SlingItsConstants.ITS_NOTE) != null)
+                {
+                    element.locNote = rule.getProperty(SlingItsConstants.ITS_NOTE);
+                }
+                else if (rule.getProperty("locNotePointer") != null)
+                {
+                    element.locNote = resolveValue(element, rule.getProperty("locNotePointer"));
+                }
+                else if (rule.getProperty("locNoteRef") != null)
+                {
+                    element.locNote = rule.getProperty("locNoteRef");
+                }
+                else if (rule.getProperty("locNoteRefPointer") != null)
+                {
+                    element.locNote = resolveValue(element,
+                        rule.getProperty("locNoteRefPointer"));
+                }
+            }
+        }
+        for (final ItsRule rule : this.ruleSet.getRules("idValueRule"))
+        {
+            if (rule.getSelector().matches(this.stack))
+            {
+                element.idValue = resolveValue(element, rule.getProperty("idValue"));
+            }
+        }
+        for (final ItsRule rule : this.ruleSet.getRules("targetPointerRule"))
+        {
+            if (rule.getSelector().matches(this.stack))
+            {
+                element.targetPointer = rule.getProperty("targetPointer");
+            }
+        }
+    }
+
+    /**
+     * Apply the local ITS markup of the element, it overrides the global
+     * rules.
+     *
+     * @param element
+     *         the element
+     */
+    private static void applyLocalMarkup(final StreamElement element)
+    {
+        final String translate = element.getAttribute("translate");
+        if (translate != null)
+        {
+            element.translate = "yes".equalsIgnoreCase(translate.trim());
+        }
+        else if (HTML_NON_TRANSLATABLE.contains(element.localName))
+        {
+            element.translate = false;
+        }
+        final String locNote = element.getAttribute("its-loc-note");
+        final String locNoteRef = element.getAttribute("its-loc-note-ref");
+        if (locNote != null || locNoteRef != null)
+        {
+            element.locNote = (locNote != null ? locNote : locNoteRef);
+            element.locNoteType = StringUtils.defaultIfEmpty(element
+                .getAttribute("its-loc-note-type"), DEFAULT_LOC_NOTE_TYPE);
+        }
+    }
+
+    /**
+     * Find the attributes of the element the translate rules make
+     * translatable. Attributes are not translatable by default.
+     *
+     * @param element
+     *         the element
+     */
+    private void applyAttributeRules(final StreamElement element)
+    {
+        final List<ItsRule> rules = this.ruleSet.getRules("translateRule");
+        for (final String name : element.attributes.keySet())
+        {
+            boolean translate = false;
+            for (final ItsRule rule : rules)
+            {
+                if (rule.getSelector().matchesAttribute(this.stack, name))
+                {
+                    translate = "yes".equals(rule.getProperty("translate"));
+                }
+            }
+            if (translate)
+            {
+                element.translatableAttributes.add(name);
+            }
+        }
+    }
+
+    /**
+     * Resolve the value of an idValue or pointer expression. Only literals
+     * and the attributes of the element can be resolved while streaming.
+     *
+     * @param element
+     *         the element the expression is relative to
+     * @param expression
+     *         the expression
+     * @return the value or null if it could not be resolved
+     */
+    private static String resolveValue(final StreamElement element, final String expression)
+    {
+        if (StringUtils.isBlank(expression))
+        {
+            return null;
+        }
+        final String trimmed = expression.trim();
+        if (trimmed.length() > 1 && (trimmed.charAt(0) == '\'' || trimmed.charAt(0) == '"'))
+        {
+            return trimmed.substring(1, trimmed.length() - 1);
+        }
+        if (trimmed.startsWith("@"))
+        {
+            return element.getAttribute(trimmed.substring(1));
+        }
+        return null;
+    }
+
+    /**
+     * Add the rules of a rules file linked by the document. Only files next
+     * to the document, i.e. uploaded with it, are read.
+     *
+     * @param href
+     *         the link to the rules file
+     */
+    private void addLinkedRules(final String href)
+    {
+        if (StringUtils.isBlank(href))
+        {
+            return;
+        }
+        try
+        {
+            final URI location = this.baseUri.resolve(href.trim());
+            if (!"file".equals(location.getScheme()))
+            {
+                LOG.warn("Only uploaded rules files can be linked, ignored: " + href);
+                return;
+            }
+            addRules(this.ruleSet, location.toURL());
+        }
+        catch (final IllegalArgumentException e)
+        {
+            LOG.warn("Invalid link to a rules file, ignored: " + href);
+        }
+        catch (final IOException e)
+        {
+            LOG.warn("Failed to read the linked rules file, ignored: " + href);
+        }
+    }
+
+    /**
+     * Add the rules of an its:rules document.
+     *
+     * @param ruleSet
+     *         the rules
+     * @param url
+     *         the location of the rules document
+     */
+    private static void addRules(final ItsRuleSet ruleSet, final URL url)
+    {
+        if (url == null)
+        {
+            return;
+        }
+        try
+        {
+            ruleSet.addRules(newDocumentBuilderFactory().newDocumentBuilder().parse(
+                url.toString()).getDocumentElement());
+        }
+        catch (final ParserConfigurationException e)
+        {
+            LOG.error("Failed to create DocumentBuilder. Stack Trace: ", e);
+        }
+        catch (final SAXException e)
+        {
+            LOG.warn("Failed to parse the rules " + url + ", ignored.");
+        }
+        catch (final IOException e)
+        {
+            LOG.warn("Failed to read the rules " + url + ", ignored.");
+        }
+    }
+
+    /**
+     * Add the rules of an inline rules script.
+     *
+     * @param ruleSet
+     *         the rules
+     * @param rules
+     *         the content of the script
+     */
+    private static void addRules(final ItsRuleSet ruleSet, final String rules)
+    {
+        try
+        {
+            ruleSet.addRules(newDocumentBuilderFactory().newDocumentBuilder().parse(
+                new InputSource(new StringReader(rules.trim()))).getDocumentElement());
+        }
+        catch (final ParserConfigurationException e)
+        {
+            LOG.error("Failed to create DocumentBuilder. Stack Trace: ", e);
+        }
+        catch (final SAXException e)
+        {
+            LOG.warn("Failed to parse the inline rules, ignored.");
+        }
+        catch (final IOException e)
+        {
+            LOG.warn("Failed to read the inline rules, ignored.");
+        }
+    }
+
+    /**
+     * @return a namespace aware, non validating factory
+     */
+    private static DocumentBuilderFactory newDocumentBuilderFactory()
+    {
+        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        dbf.setValidating(false);
+        return dbf;
+    }
+
+    /**
+     * An element of the streamed document with its resolved data categories.
+     * The translate flag and the locNote are inherited from the parent.
+     */
+    public static final class StreamElement implements ItsSelector.SelectorNode
+    {
+        /** The local name. */
+        private final String localName;
+        /** The qualified name. */
+        private final String qName;
+        /** The attributes by name, sorted by name. */
+        private final Map<String, String> attributes = new TreeMap<String, String>();
+        /** The names of the translatable attributes. */
+        private final List<String> translatableAttributes = new ArrayList<String>();
+        /** True if the element is translatable. */
+        private boolean translate = true;
+        /** The locNote or null. */
+        private String locNote;
+        /** The locNote type. */
+        private String locNoteType = DEFAULT_LOC_NOTE_TYPE;
+        /** The idValue or null. */
+        private String idValue;
+        /** The targetPointer or null. */
+        private String targetPointer;
+
+        /**
+         * Constructor.
+         *
+         * @param localName
+         *         the local name
+         * @param qName
+         *         the qualified name
+         * @param parent
+         *         the parent element or null for the root element
+         */
+        private StreamElement(final String localName, final String qName,
+            final StreamElement parent)
+        {
+            this.localName = localName;
+            this.qName = qName;
+            if (parent != null)
+            {
+                this.translate = parent.translate;
+                this.locNote = parent.locNote;
+                this.locNoteType = parent.locNoteType;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getLocalName()
+        {
+            return this.localName;
+        }
+
+        /**
+         * @return the qualified name
+         */
+        public String getQName()
+        {
+            return this.qName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getAttribute(final String name)
+        {
+            return this.attributes.get(name);
+        }
+
+        /**
+         * @return the attributes by name, sorted by name
+         */
+        public Map<String, String> getAttributes()
+        {
+            return Collections.unmodifiableMap(this.attributes);
+        }
+
+        /**
+         * @return the names of the translatable attributes
+         */
+        public List<String> getTranslatableAttributes()
+        {
+            return Collections.unmodifiableList(this.translatableAttributes);
+        }
+
+        /**
+         * @return true if the element is translatable
+         */
+        public boolean isTranslate()
+        {
+            return this.translate;
+        }
+
+        /**
+         * @return the locNote or null
+         */
+        public String getLocNote()
+        {
+            return this.locNote;
+        }
+
+        /**
+         * @return the locNote type
+         */
+        public String getLocNoteType()
+        {
+            return this.locNoteType;
+        }
+
+        /**
+         * @return the idValue or null
+         */
+        public String getIdValue()
+        {
+            return this.idValue;
+        }
+
+        /**
+         * @return the targetPointer or null
+         */
+        public String getTargetPointer()
+        {
+            return this.targetPointer;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.traversal;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * Walks a resource tree depth first with an explicit stack instead of
+ * recursion, so the depth of a document is only limited by the configured
+ * depth limit and not by the stack size of the thread. Each level costs one
+ * frame holding the resource, the value the visitor created for it and the
+ * iterator over its children.
+ */
+public final class ResourceTreeWalker
+{
+    /** The default depth limit. */
+    public static final int DEFAULT_MAX_DEPTH = 20000;
+
+    /**
+     * Callback of the walk.
+     *
+     * @param <T>
+     *         the value created for each entered resource, e.g. its element
+     * @param <E>
+     *         the exception the visitor may throw
+     */
+    public interface Visitor<T, E extends Exception>
+    {
+        /**
+         * Enter a resource.
+         *
+         * @param resource
+         *         the resource
+         * @param parent
+         *         the value of the parent resource
+         * @return the value of the resource or null to skip its children
+         * @throws E
+         *         if the visitor fails
+         */
+        T enter(Resource resource, T parent) throws E;
+
+        /**
+         * @param resource
+         *         an entered resource
+         * @param value
+         *         the value of the resource
+         * @return the children to visit
+         * @throws E
+         *         if the visitor fails
+         */
+        Iterator<Resource> getChildren(Resource resource, T value) throws E;
+
+        /**
+         * Leave a resource after all its children were visited. Only called
+         * for resources whose value was not null.
+         *
+         * @param resource
+         *         the resource
+         * @param value
+         *         the value of the resource
+         * @throws E
+         *         if the visitor fails
+         */
+        void leave(Resource resource, T value) throws E;
+    }
+
+    /** The depth limit. */
+    private final int maxDepth;
+
+    /**
+     * Constructor.
+     *
+     * @param maxDepth
+     *         the maximum number of nested levels, the root is level 1
+     */
+    public ResourceTreeWalker(final int maxDepth)
+    {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Walk the tree below and including the root.
+     *
+     * @param <T>
+     *         the value created for each entered resource
+     * @param <E>
+     *         the exception the visitor may throw
+     * @param root
+     *         the root resource
+     * @param parent
+     *         the value the root is entered with
+     * @param visitor
+     *         the visitor
+     * @throws E
+     *         if the visitor fails
+     * @throws DepthLimitExceededException
+     *         if the tree is nested deeper than the depth limit
+     */
+    public <T, E extends Exception> void walk(final Resource root, final T parent,
+        final Visitor<T, E> visitor) throws E
+    {
+        final T rootValue = visitor.enter(root, parent);
+        if (rootValue == null)
+        {
+            return;
+        }
+        final Deque<Frame<T>> stack = new ArrayDeque<Frame<T>>();
+        stack.push(new Frame<T>(root, rootValue, visitor.getChildren(root, rootValue)));
+        while (!stack.isEmpty())
+        {
+            final Frame<T> frame = stack.peek();
+            if (!frame.children.hasNext())
+            {
+                stack.pop();
+                visitor.leave(frame.resource, frame.value);
+                continue;
+            }
+            final Resource child = frame.children.next();
+            if (stack.size() >= this.maxDepth)
+            {
+                throw new DepthLimitExceededException(this.maxDepth, child.getPath());
+            }
+            final T value = visitor.enter(child, frame.value);
+            if (value != null)
+            {
+                stack.push(new Frame<T>(child, value, visitor.getChildren(child, value)));
+            }
+        }
+    }
+
+    /**
+     * A level of the walk.
+     *
+     * @param <T>
+     *         the value created for the resource
+     */
+    private static final class Frame<T>
+    {
+        /** The resource. */
+        private final Resource resource;
+        /** The value the visitor created for it. */
+        private final T value;
+        /** The children still to visit. */
+        private final Iterator<Resource> children;
+
+        /**
+         * Constructor.
+         *
+         * @param resource
+         *         the resource
+         * @param value
+         *         the value the visitor created for it
+         * @param children
+         *         the children to visit
+         */
+        private Frame(final Resource resource, final T value,
+            final Iterator<Resource> children)
+        {
+            this.resource = resource;
+            this.value = value;
+            this.children = children;
+        }
+    }
+}
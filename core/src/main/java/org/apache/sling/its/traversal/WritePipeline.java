@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.traversal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Applies the write operations of an import on a dedicated writer thread, so
+ * the document is traversed while the previous elements are written. The
+ * operations are passed through a bounded queue, the traversal waits if the
+ * writer falls behind. They are applied in the order they were submitted and
+ * committed in batches.
+ *
+ * The first failure of an operation stops the writer, the remaining
+ * operations are discarded and the failure is thrown to the traversal on its
+ * next submit or on finish. If the traversal fails and closes the pipeline
+ * before finishing it, the pending operations are dropped as well. In both
+ * cases the uncommitted changes are discarded instead of committed.
+ *
+ * @param <T>
+ *         the target the operations are applied to, e.g. the session
+ * @param <E>
+ *         the exception thrown by the operations
+ */
+public final class WritePipeline<T, E extends Exception>
+{
+    /**
+     * A write operation.
+     *
+     * @param <T>
+     *         the target the operation is applied to
+     * @param <E>
+     *         the exception thrown by the operation
+     */
+    public interface Operation<T, E extends Exception>
+    {
+        /**
+         * Apply the operation.
+         *
+         * @param target
+         *         the target
+         * @throws E
+         *         if the operation failed
+         */
+        void apply(T target) throws E;
+    }
+
+    /** Marks the end of the operations. */
+    private final Operation<T, E> end = new Operation<T, E>()
+    {
+        public void apply(final T target)
+        {
+            // nothing to apply.
+        }
+    };
+
+    /** The target of the operations. */
+    private final T target;
+    /** The submitted operations. */
+    private final BlockingQueue<Operation<T, E>> queue;
+    /** Number of operations after which a batch is committed. */
+    private final int batchSize;
+    /** Commits a batch of operations. */
+    private final Operation<T, E> commit;
+    /** Discards the uncommitted operations after a failure. */
+    private final Operation<T, E> discard;
+    /** The writer thread. */
+    private final Thread writer;
+    /** The first failure of the writer. */
+    private volatile Throwable failure;
+    /** True once the end was submitted. */
+    private boolean finished;
+    /** True if the pipeline was closed before it was finished. */
+    private volatile boolean aborted;
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     *         the name of the writer thread
+     * @param target
+     *         the target of the operations
+     * @param queueSize
+     *         the maximum number of operations waiting for the writer
+     * @param batchSize
+     *         the number of operations after which a batch is committed
+     * @param commit
+     *         commits a batch of operations
+     * @param discard
+     *         discards the uncommitted operations after a failure
+     */
+    public WritePipeline(final String name, final T target, final int queueSize,
+        final int batchSize, final Operation<T, E> commit, final Operation<T, E> discard)
+    {
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<Operation<T, E>>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.commit = commit;
+        this.discard = discard;
+        this.writer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                write();
+            }
+        }, name);
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Start the writer thread. The target must not be used by other threads
+     * until the pipeline is finished.
+     */
+    public void start()
+    {
+        this.writer.start();
+    }
+
+    /**
+     * Submit an operation, waiting while the queue is full.
+     *
+     * @param operation
+     *         the operation
+     * @throws E
+     *         if a previous operation failed
+     * @throws InterruptedException
+     *         if interrupted while waiting
+     */
+    public void submit(final Operation<T, E> operation) throws E, InterruptedException
+    {
+        rethrow();
+        this.queue.put(operation);
+    }
+
+    /**
+     * Wait until all the submitted operations are applied and committed.
+     *
+     * @throws E
+     *         if an operation or a commit failed
+     * @throws InterruptedException
+     *         if interrupted while waiting
+     */
+    public void finish() throws E, InterruptedException
+    {
+        if (!this.finished)
+        {
+            this.finished = true;
+            this.queue.put(this.end);
+        }
+        this.writer.join();
+        rethrow();
+    }
+
+    /**
+     * Finish the pipeline if it was not yet finished, e.g. when the traversal
+     * failed. The pending operations are dropped and the uncommitted ones
+     * discarded, a failure is ignored.
+     */
+    public void close()
+    {
+        try
+        {
+            if (!this.finished)
+            {
+                this.finished = true;
+                this.aborted = true;
+                this.queue.clear();
+                this.queue.put(this.end);
+            }
+            this.writer.join();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Apply the operations until the end is reached.
+     */
+    private void write()
+    {
+        final List<Operation<T, E>> batch = new ArrayList<Operation<T, E>>(this.batchSize);
+        int uncommitted = 0;
+        boolean done = false;
+        while (!done)
+        {
+            try
+            {
+                batch.add(this.queue.take());
+            }
+            catch (final InterruptedException e)
+            {
+                // keep draining, the traversal must not wait on a full queue.
+                if (this.failure == null)
+                {
+                    this.failure = e;
+                }
+                continue;
+            }
+            this.queue.drainTo(batch, this.batchSize - 1);
+            for (final Operation<T, E> operation : batch)
+            {
+                if (operation == this.end)
+                {
+                    done = true;
+                }
+                else if (this.failure == null && !this.aborted)
+                {
+                    try
+                    {
+                        operation.apply(this.target);
+                        uncommitted++;
+                        if (uncommitted >= this.batchSize)
+                        {
+                            this.commit.apply(this.target);
+                            uncommitted = 0;
+                        }
+                    }
+                    catch (final Throwable e)
+                    {
+                        this.failure = e;
+                    }
+                }
+            }
+            batch.clear();
+        }
+        try
+        {
+            if (this.failure != null || this.aborted)
+            {
+                this.discard.apply(this.target);
+            }
+            else if (uncommitted > 0)
+            {
+                this.commit.apply(this.target);
+            }
+        }
+        catch (final Throwable e)
+        {
+            if (this.failure == null)
+            {
+                this.failure = e;
+            }
+        }
+    }
+
+    /**
+     * Throw the failure of the writer, if any.
+     *
+     * @throws E
+     *         if an operation or a commit failed
+     * @throws InterruptedException
+     *         if the writer was interrupted
+     */
+    @SuppressWarnings("unchecked")
+    private void rethrow() throws E, InterruptedException
+    {
+        final Throwable e = this.failure;
+        if (e == null)
+        {
+            return;
+        }
+        if (e instanceof RuntimeException)
+        {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error)
+        {
+            throw (Error) e;
+        }
+        if (e instanceof InterruptedException)
+        {
+            throw (InterruptedException) e;
+        }
+        // the operations only throw E besides unchecked exceptions.
+        throw (E) e;
+    }
+}
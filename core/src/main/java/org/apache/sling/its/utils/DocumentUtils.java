@@ -23,20 +23,28 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import nu.validator.htmlparser.dom.HtmlDocumentBuilder;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
 /**
@@ -61,26 +69,31 @@ public final class DocumentUtils
     public static Document getDocument(final RequestParameter requestParameter,
         final File file)
     {
-        Document doc = null;
-        OutputStream outputStream = null;
+        return (save(requestParameter, file) ? parse(file, isHtml(requestParameter)) : null);
+    }
+
+    /**
+     * Parse a written upload.
+     *
+     * @param file
+     *          the file the upload was written to
+     * @param isHtml
+     *          true if the file is an html document
+     * @return the document or null if it could not be parsed
+     */
+    public static Document parse(final File file, final boolean isHtml)
+    {
         try
         {
-            outputStream = new FileOutputStream(file);
-            outputStream.write(requestParameter.get());
-
-            if (StringUtils.equals(
-                FilenameUtils.getExtension(requestParameter.getFileName()), "html"))
+            if (isHtml)
             {
                 final HtmlDocumentBuilder docBuilder = new HtmlDocumentBuilder();
-                doc = docBuilder.parse(file);
-            }
-            else
-            {
-                final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-                dbf.setNamespaceAware(true);
-                dbf.setValidating(false);
-                doc = dbf.newDocumentBuilder().parse(file);
+                return docBuilder.parse(file);
             }
+            final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            dbf.setValidating(false);
+            return dbf.newDocumentBuilder().parse(file);
         }
         catch (final SAXException saxe)
         {
@@ -95,11 +108,40 @@ public final class DocumentUtils
             LOG.error("File Not Found. Stack Trace: ", nfe);
         }
         catch (final IOException ioe)
+        {
+            LOG.error("Failed to read the file. Stack Trace: ", ioe);
+        }
+        return null;
+    }
+
+    /**
+     * Write the uploaded file without parsing it. The upload is copied as a
+     * stream, it is not read into memory.
+     *
+     * @param requestParameter
+     *          the request parameter of the uploaded file
+     * @param file
+     *          the file to write to
+     * @return true if the file was written
+     */
+    public static boolean save(final RequestParameter requestParameter, final File file)
+    {
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        try
+        {
+            inputStream = requestParameter.getInputStream();
+            outputStream = new FileOutputStream(file);
+            IOUtils.copy(inputStream, outputStream);
+            return true;
+        }
+        catch (final IOException ioe)
         {
             LOG.error("Failed to write to file. Stack Trace: ", ioe);
         }
         finally
         {
+            IOUtils.closeQuietly(inputStream);
             if (outputStream != null)
             {
                 try
@@ -112,7 +154,19 @@ public final class DocumentUtils
                 }
             }
         }
-        return doc;
+        return false;
+    }
+
+    /**
+     * @param requestParameter
+     *          the request parameter of the uploaded file
+     * @return true if the uploaded file is an html document
+     */
+    public static boolean isHtml(final RequestParameter requestParameter)
+    {
+        return requestParameter != null
+            && StringUtils.equals(FilenameUtils.getExtension(requestParameter.getFileName()),
+                "html");
     }
 
     /**
@@ -135,6 +189,226 @@ public final class DocumentUtils
         return resourceType;
     }
 
+    /**
+     * Get the depth of the tree below the node. The tree is walked along the
+     * sibling and parent links, so it does not recurse.
+     *
+     * @param root
+     *        the node
+     * @return the number of levels below the node
+     */
+    public static int getDepth(final Node root)
+    {
+        int depth = 0;
+        int maxDepth = 0;
+        Node node = root;
+        while (node != null)
+        {
+            if (node.hasChildNodes())
+            {
+                node = node.getFirstChild();
+                maxDepth = Math.max(maxDepth, ++depth);
+                continue;
+            }
+            while (node != root && node.getNextSibling() == null)
+            {
+                node = node.getParentNode();
+                depth--;
+            }
+            node = (node == root ? null : node.getNextSibling());
+        }
+        return maxDepth;
+    }
+
+    /**
+     * Import a node with all its descendants into the document. Unlike
+     * Document.importNode(node, true) it does not recurse, so trees of any
+     * depth can be imported.
+     *
+     * @param doc
+     *        the document to import to
+     * @param root
+     *        the node, usually of another document
+     * @return the imported node, not yet appended
+     */
+    public static Node importTree(final Document doc, final Node root)
+    {
+        final Node copy = doc.importNode(root, false);
+        Node parent = copy;
+        Node node = root.getFirstChild();
+        while (node != null)
+        {
+            final Node imported = doc.importNode(node, false);
+            parent.appendChild(imported);
+            if (node.hasChildNodes())
+            {
+                parent = imported;
+                node = node.getFirstChild();
+                continue;
+            }
+            while (node != root && node.getNextSibling() == null)
+            {
+                node = node.getParentNode();
+                parent = parent.getParentNode();
+            }
+            node = (node == root ? null : node.getNextSibling());
+        }
+        return copy;
+    }
+
+    /**
+     * Write the node with all its descendants to the writer. Unlike the
+     * identity Transformer it does not recurse, so trees of any depth can be
+     * written. Elements without children are written as empty elements. No
+     * whitespace is added.
+     *
+     * @param root
+     *        the document or element to write
+     * @param writer
+     *        the writer
+     * @throws XMLStreamException
+     *         if the node could not be written
+     */
+    public static void write(final Node root, final XMLStreamWriter writer)
+        throws XMLStreamException
+    {
+        write(root, writer, 0);
+    }
+
+    /**
+     * Write the node with all its descendants to the writer. Unlike the
+     * identity Transformer it does not recurse, so trees of any depth can be
+     * written. Elements without children are written as empty elements. If
+     * indented, every element starts on a line of its own, except in mixed
+     * content, which is written unchanged.
+     *
+     * @param root
+     *        the document or element to write
+     * @param writer
+     *        the writer
+     * @param indent
+     *        the number of spaces to indent each level with, 0 to add no
+     *        whitespace
+     * @throws XMLStreamException
+     *         if the node could not be written
+     */
+    public static void write(final Node root, final XMLStreamWriter writer, final int indent)
+        throws XMLStreamException
+    {
+        // true for each open element that holds text besides its elements.
+        final Deque<Boolean> mixed = new ArrayDeque<Boolean>();
+        boolean first = true;
+        Node node = root;
+        while (node != null)
+        {
+            switch (node.getNodeType())
+            {
+                case Node.DOCUMENT_NODE:
+                    if (node.hasChildNodes())
+                    {
+                        node = node.getFirstChild();
+                        continue;
+                    }
+                    break;
+                case Node.ELEMENT_NODE:
+                    if (indent > 0 && !first && !Boolean.TRUE.equals(mixed.peek()))
+                    {
+                        writeIndent(writer, indent, mixed.size());
+                    }
+                    first = false;
+                    if (node.hasChildNodes())
+                    {
+                        writer.writeStartElement(node.getNodeName());
+                    }
+                    else
+                    {
+                        writer.writeEmptyElement(node.getNodeName());
+                    }
+                    final NamedNodeMap attributes = node.getAttributes();
+                    for (int i = 0; i < attributes.getLength(); i++)
+                    {
+                        writer.writeAttribute(attributes.item(i).getNodeName(),
+                            attributes.item(i).getNodeValue());
+                    }
+                    if (node.hasChildNodes())
+                    {
+                        mixed.push(hasText(node));
+                        node = node.getFirstChild();
+                        continue;
+                    }
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    // whitespace between indented elements is replaced by the indentation.
+                    if (indent == 0 || Boolean.TRUE.equals(mixed.peek()))
+                    {
+                        writer.writeCharacters(node.getNodeValue());
+                        first = false;
+                    }
+                    break;
+                case Node.COMMENT_NODE:
+                    writer.writeComment(node.getNodeValue());
+                    first = false;
+                    break;
+                default:
+                    break;
+            }
+            while (node != root && node.getNextSibling() == null)
+            {
+                node = node.getParentNode();
+                if (node.getNodeType() == Node.ELEMENT_NODE)
+                {
+                    if (indent > 0 && !mixed.pop())
+                    {
+                        writeIndent(writer, indent, mixed.size());
+                    }
+                    writer.writeEndElement();
+                }
+            }
+            node = (node == root ? null : node.getNextSibling());
+        }
+        writer.flush();
+    }
+
+    /**
+     * @param element
+     *        an element
+     * @return true if the element has a text child that is not only
+     *         whitespace
+     */
+    private static boolean hasText(final Node element)
+    {
+        for (Node child = element.getFirstChild(); child != null; child = child
+            .getNextSibling())
+        {
+            if ((child.getNodeType() == Node.TEXT_NODE
+                || child.getNodeType() == Node.CDATA_SECTION_NODE)
+                && StringUtils.isNotBlank(child.getNodeValue()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start a new line indented to the level.
+     *
+     * @param writer
+     *        the writer
+     * @param indent
+     *        the number of spaces per level
+     * @param level
+     *        the level
+     * @throws XMLStreamException
+     *         if the indentation could not be written
+     */
+    private static void writeIndent(final XMLStreamWriter writer, final int indent,
+        final int level) throws XMLStreamException
+    {
+        writer.writeCharacters("\n" + StringUtils.repeat(" ", indent * level));
+    }
+
     /**
      * Private constructor to prevent instantiation of this class.
      */
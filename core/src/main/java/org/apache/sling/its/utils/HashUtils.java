@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.lang.CharEncoding;
+
+/**
+ * A utilities class to compute content digests.
+ */
+public final class HashUtils
+{
+    /** The digest algorithm. */
+    private static final String ALGORITHM = "SHA-1";
+    /** The size of the buffer a stream is read through. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Hex digits. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Create a new digest. SHA-1 is available in every JRE.
+     *
+     * @return the message digest
+     */
+    public static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(ALGORITHM + " is not supported.", e);
+        }
+    }
+
+    /**
+     * Update the digest with the UTF-8 bytes of the text.
+     *
+     * @param digest
+     *         the message digest
+     * @param text
+     *         the text, null is ignored
+     */
+    public static void update(final MessageDigest digest, final String text)
+    {
+        if (text == null)
+        {
+            return;
+        }
+        try
+        {
+            digest.update(text.getBytes(CharEncoding.UTF_8));
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(CharEncoding.UTF_8 + " is not supported.", e);
+        }
+    }
+
+    /**
+     * Update the digest with the content of a stream, it is read through a
+     * fixed buffer so the content is never held in memory as a whole. The
+     * stream is not closed.
+     *
+     * @param digest
+     *         the message digest
+     * @param stream
+     *         the stream
+     * @throws IOException
+     *         if the stream could not be read
+     */
+    public static void update(final MessageDigest digest, final InputStream stream)
+        throws IOException
+    {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = stream.read(buffer)) != -1)
+        {
+            digest.update(buffer, 0, read);
+        }
+    }
+
+    /**
+     * @param digest
+     *         the message digest
+     * @return the hex encoded digest, the digest is reset
+     */
+    public static String toHex(final MessageDigest digest)
+    {
+        final byte[] bytes = digest.digest();
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @param text
+     *         the text
+     * @return the hex encoded SHA-1 of the UTF-8 bytes of the text
+     */
+    public static String sha1Hex(final String text)
+    {
+        final MessageDigest digest = newDigest();
+        update(digest, text);
+        return toHex(digest);
+    }
+
+    /**
+     * Private constructor to prevent instantiation of this class.
+     */
+    private HashUtils()
+    {
+        throw new AssertionError("This class is not ment to be instantiated.");
+    }
+}
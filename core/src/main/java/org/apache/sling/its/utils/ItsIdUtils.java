@@ -0,0 +1,534 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.sling.its.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.jcr.resource.JcrResourceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A utilities class to support the sling-its ids and the id index of the
+ * imported documents.
+ */
+public final class ItsIdUtils
+{
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsIdUtils.class);
+    /** Characters that are not allowed in a jcr property name. */
+    private static final String ILLEGAL_NAME_CHARS = "%/:[]|*'\"";
+    /** Characters that are not allowed in a jcr path. */
+    private static final String ILLEGAL_PATH_CHARS = "[]|*";
+    /** The mask of the hash of an id that gives its shard, 256 shards. */
+    private static final int INDEX_SHARD_MASK = 0xff;
+
+    /**
+     * Generate the unique id of a node from its path. The names of the path
+     * are joined with underscores, the iteration of a name in parentheses
+     * becomes a dot and the number, e.g. body(1) becomes body.1. Underscores
+     * and dots of the names are escaped with a dot, so the ids of two paths
+     * never collide.
+     *
+     * @param path
+     *         resource path
+     * @return unique id
+     */
+    public static String getUniqueId(final String path)
+    {
+        final StringBuilder id = new StringBuilder(path.length());
+        for (final String name : StringUtils.split(path, '/'))
+        {
+            if (id.length() > 0)
+            {
+                id.append('_');
+            }
+            appendName(id, name);
+        }
+        return id.toString();
+    }
+
+    /**
+     * Generate the id of a node the way documents imported before the
+     * collision-free format were rendered with: the names of the path joined
+     * with underscores and the parentheses of the iterations removed. It is
+     * used for the nodes without a stored sling-its id.
+     *
+     * @param path
+     *         resource path
+     * @return legacy id
+     */
+    public static String getLegacyId(final String path)
+    {
+        final StringBuilder id = new StringBuilder(path.length());
+        for (int i = 1; i < path.length(); i++)
+        {
+            final char c = path.charAt(i);
+            if (c == '/')
+            {
+                id.append('_');
+            }
+            else if (c != '(' && c != ')')
+            {
+                id.append(c);
+            }
+        }
+        return id.toString();
+    }
+
+    /**
+     * Get the id a resource is rendered with. That is its id or xml:id or
+     * else its sling-its id.
+     *
+     * @param resource
+     *         the resource
+     * @param props
+     *         the properties of the resource
+     * @return the id of the resource
+     */
+    public static String getRenderedId(final Resource resource, final ValueMap props)
+    {
+        if (props.containsKey("id"))
+        {
+            return props.get("id", String.class);
+        }
+        else if (props.containsKey("xml:id"))
+        {
+            return props.get("xml:id", String.class);
+        }
+        return getSlingItsId(resource, props);
+    }
+
+    /**
+     * Get the sling-its id of a resource. It is stored on the node at import
+     * time, the nodes of older imports get their legacy id.
+     *
+     * @param resource
+     *         the resource
+     * @param props
+     *         the properties of the resource
+     * @return the sling-its id
+     */
+    public static String getSlingItsId(final Resource resource, final ValueMap props)
+    {
+        final String id = props.get(SlingItsConstants.SLING_ITS_ID, String.class);
+        return (id != null ? id : getLegacyId(resource.getPath()));
+    }
+
+    /**
+     * Generate the unique id of a child node from the unique id of its
+     * parent, the same id getUniqueId gives for the path of the child.
+     *
+     * @param parentId
+     *         the unique id of the parent node
+     * @param name
+     *         the name of the child node
+     * @return unique id
+     */
+    public static String getChildId(final String parentId, final String name)
+    {
+        final StringBuilder id = new StringBuilder(parentId.length() + name.length() + 1);
+        id.append(parentId);
+        if (parentId.length() > 0)
+        {
+            id.append('_');
+        }
+        appendName(id, name);
+        return id.toString();
+    }
+
+    /**
+     * Append a node name to a unique id.
+     *
+     * @param id
+     *         the unique id of the parent node
+     * @param name
+     *         the name of the node
+     */
+    private static void appendName(final StringBuilder id, final String name)
+    {
+        final int open = name.lastIndexOf('(');
+        int end = name.length();
+        if (open > -1 && open < end - 2 && name.charAt(end - 1) == ')'
+            && StringUtils.isNumeric(name.substring(open + 1, end - 1)))
+        {
+            end = open;
+        }
+        for (int i = 0; i < end; i++)
+        {
+            final char c = name.charAt(i);
+            if (c == '_' || c == '.')
+            {
+                id.append('.');
+            }
+            id.append(c);
+        }
+        if (end < name.length())
+        {
+            id.append('.').append(name, end + 1, name.length() - 1);
+        }
+    }
+
+    /**
+     * Escape an id so it can be used as a property name of the index node.
+     *
+     * @param id
+     *         the sling-its id or the id of the element
+     * @return the escaped property name
+     */
+    public static String escapeId(final String id)
+    {
+        final StringBuilder name = new StringBuilder(id.length());
+        for (int i = 0; i < id.length(); i++)
+        {
+            final char c = id.charAt(i);
+            if (ILLEGAL_NAME_CHARS.indexOf(c) > -1 || Character.isWhitespace(c))
+            {
+                name.append('%').append(String.format("%02X", (int) c));
+            }
+            else
+            {
+                name.append(c);
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Add an id to the id index of a document. The index is sharded across
+     * child nodes by the hash of the id. An id that is already indexed keeps
+     * the path it was first indexed with.
+     *
+     * @param index
+     *         the index node
+     * @param id
+     *         the sling-its id or the id of the element
+     * @param path
+     *         the path of the element
+     * @return null if the id was added, the path it is indexed with otherwise
+     * @throws RepositoryException
+     *         if the index could not be updated
+     */
+    public static String addId(final Node index, final String id, final String path)
+        throws RepositoryException
+    {
+        final String name = escapeId(id);
+        final String shardName = getShardName(name);
+        final Node shard;
+        if (index.hasNode(shardName))
+        {
+            shard = index.getNode(shardName);
+            if (shard.hasProperty(name))
+            {
+                return shard.getProperty(name).getString();
+            }
+        }
+        else
+        {
+            shard = index.addNode(shardName, "nt:unstructured");
+        }
+        shard.setProperty(name, path);
+        return null;
+    }
+
+    /**
+     * Look up the path of the element with the given id in the id index of a
+     * document. Indexes of older imports hold the ids on the index node.
+     *
+     * @param index
+     *         the index node
+     * @param id
+     *         the sling-its id or the id of the element
+     * @return the path of the element or null if the id is not indexed
+     * @throws RepositoryException
+     *         if the index could not be read
+     */
+    public static String lookupId(final Node index, final String id) throws RepositoryException
+    {
+        final String name = escapeId(id);
+        final String shardName = getShardName(name);
+        if (index.hasNode(shardName) && index.getNode(shardName).hasProperty(name))
+        {
+            return index.getNode(shardName).getProperty(name).getString();
+        }
+        if (index.hasProperty(name))
+        {
+            return index.getProperty(name).getString();
+        }
+        // the id may have been rendered with the legacy format.
+        final String docPath = StringUtils.substringBeforeLast(index.getPath(), "/").substring(
+            SlingItsConstants.ITS_INDEX_PATH.length());
+        final String prefix = getLegacyId(docPath) + "_";
+        return (id.startsWith(prefix) ? findLegacyPath(index.getSession(), docPath, id
+            .substring(prefix.length())) : null);
+    }
+
+    /**
+     * Look up the path of the element with the given id in the id index of a
+     * document.
+     *
+     * @param index
+     *         the index resource
+     * @param id
+     *         the sling-its id or the id of the element
+     * @return the path of the element or null if the id is not indexed
+     */
+    public static String lookupId(final Resource index, final String id)
+    {
+        final Node indexNode = index.adaptTo(Node.class);
+        if (indexNode != null)
+        {
+            try
+            {
+                return lookupId(indexNode, id);
+            }
+            catch (final RepositoryException e)
+            {
+                LOG.error("Failed to read the id index. Stack Trace: ", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the element a legacy id was generated for. The names of a legacy
+     * id are separated by underscores, which may also be part of a name, and
+     * the iteration of a name is appended without parentheses, so every
+     * split of the id is tried against the stored tree.
+     *
+     * @param session
+     *         the session
+     * @param parentPath
+     *         the path of the parent of the next name
+     * @param rest
+     *         the legacy id below the parent
+     * @return the path of the element or null if none matches
+     * @throws RepositoryException
+     *         if the tree could not be read
+     */
+    private static String findLegacyPath(final Session session, final String parentPath,
+        final String rest) throws RepositoryException
+    {
+        int end = rest.indexOf('_');
+        while (true)
+        {
+            final String segment = (end < 0 ? rest : rest.substring(0, end));
+            for (final String name : getLegacyNames(segment))
+            {
+                final String path = parentPath + "/" + name;
+                if (session.nodeExists(path))
+                {
+                    final String found = (end < 0 ? path : findLegacyPath(session, path, rest
+                        .substring(end + 1)));
+                    if (found != null)
+                    {
+                        return found;
+                    }
+                }
+            }
+            if (end < 0)
+            {
+                return null;
+            }
+            end = rest.indexOf('_', end + 1);
+        }
+    }
+
+    /**
+     * Get the node names a name of a legacy id may stand for, the iterations
+     * first, e.g. p11 may be p1(1), p(11) or p11.
+     *
+     * @param segment
+     *         a name of a legacy id
+     * @return the node names
+     */
+    private static List<String> getLegacyNames(final String segment)
+    {
+        final List<String> names = new ArrayList<String>();
+        if (StringUtils.containsAny(segment, ILLEGAL_PATH_CHARS))
+        {
+            return names;
+        }
+        for (int i = segment.length() - 1; i > 0 && Character.isDigit(segment.charAt(i)); i--)
+        {
+            if (segment.charAt(i) != '0')
+            {
+                names.add(segment.substring(0, i) + "(" + segment.substring(i) + ")");
+            }
+        }
+        if (segment.length() > 0)
+        {
+            names.add(segment);
+        }
+        return names;
+    }
+
+    /**
+     * Get the name of the child node of the index that holds an id.
+     *
+     * @param name
+     *         the escaped id
+     * @return the name of the shard
+     */
+    private static String getShardName(final String name)
+    {
+        return String.format("%02x", name.hashCode() & INDEX_SHARD_MASK);
+    }
+
+    /**
+     * Get the path of the node that holds the ids of the document imported to
+     * docPath.
+     *
+     * @param docPath
+     *         the target path of the import
+     * @return the path of the index node
+     */
+    public static String getIndexPath(final String docPath)
+    {
+        return SlingItsConstants.ITS_INDEX_PATH + docPath + "/"
+            + SlingItsConstants.ITS_INDEX_IDS;
+    }
+
+    /**
+     * Remove the old index of the document if it exist and create a new empty
+     * index for it.
+     *
+     * @param session
+     *         the current session
+     * @param docPath
+     *         the target path of the import
+     * @param resourceType
+     *         the resourceType of the document
+     * @return the index node or null if it could not be created
+     */
+    public static Node createIndexNode(final Session session, final String docPath,
+        final String resourceType)
+    {
+        try
+        {
+            final String indexPath = getIndexPath(docPath);
+            if (session.nodeExists(indexPath))
+            {
+                session.getNode(indexPath).remove();
+            }
+            final Node indexNode = JcrResourceUtil.createPath(indexPath, "nt:unstructured",
+                "nt:unstructured", session, false);
+            indexNode.getParent().setProperty(SlingItsConstants.ITS_INDEX_RESOURCE_TYPE,
+                StringUtils.defaultString(resourceType));
+            session.save();
+            return indexNode;
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error("Failed to access repository. Stack Trace: ", e);
+        }
+        return null;
+    }
+
+    /**
+     * Find the index node of the document the resource belongs to. The index
+     * is looked up for the resource itself and then for each of its ancestors.
+     *
+     * @param resource
+     *         a resource of an imported document
+     * @return the index resource or null if the document has not been indexed
+     */
+    public static Resource findIndex(final Resource resource)
+    {
+        final ResourceResolver resolver = resource.getResourceResolver();
+        String path = resource.getPath();
+        while (StringUtils.isNotEmpty(path) && !"/".equals(path))
+        {
+            final Resource index = resolver.getResource(getIndexPath(path));
+            if (index != null)
+            {
+                return index;
+            }
+            path = StringUtils.substringBeforeLast(path, "/");
+        }
+        return null;
+    }
+
+    /**
+     * Get the root element of a document. The resource is either the target
+     * path of the import, whose only child is the root element, or an element
+     * of the document itself.
+     *
+     * @param resource
+     *         the requested resource
+     * @return the root element or the resource itself
+     */
+    public static Resource getRootElement(final Resource resource)
+    {
+        if (resource.getResourceResolver().getResource(getIndexPath(resource.getPath())) != null)
+        {
+            final Iterator<Resource> children = resource.listChildren();
+            if (children.hasNext())
+            {
+                return children.next();
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * Get the resourceType of the document the resource belongs to, as it
+     * was recorded in the id index at import time.
+     *
+     * @param resource
+     *         a resource of an imported document
+     * @return the resourceType or an empty string if not found
+     */
+    public static String getResourceType(final Resource resource)
+    {
+        final Resource index = findIndex(resource);
+        if (index != null)
+        {
+            final Resource indexParent = resource.getResourceResolver().getResource(
+                ResourceUtil.getParent(index.getPath()));
+            if (indexParent != null)
+            {
+                return indexParent.adaptTo(ValueMap.class).get(
+                    SlingItsConstants.ITS_INDEX_RESOURCE_TYPE, StringUtils.EMPTY);
+            }
+        }
+        return StringUtils.EMPTY;
+    }
+
+    /**
+     * Private constructor to prevent instantiation of this class.
+     */
+    private ItsIdUtils()
+    {
+        throw new AssertionError("This class is not ment to be instantiated.");
+    }
+}
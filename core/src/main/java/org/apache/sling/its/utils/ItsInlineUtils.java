@@ -0,0 +1,371 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A utilities class for the compact storage of inline content. The content
+ * of an element whose descendants are all within text (ITS Elements Within
+ * Text) is kept as one segment: the text with a marker and an index
+ * character for each inline element, in the style of the okapi coded text,
+ * and the start tags of the inline elements as codes.
+ */
+public final class ItsInlineUtils
+{
+    /** Marks the start of an inline element with content. */
+    public static final char MARKER_OPENING = '\uE101';
+    /** Marks the end of an inline element with content. */
+    public static final char MARKER_CLOSING = '\uE102';
+    /** Marks an empty inline element. */
+    public static final char MARKER_ISOLATED = '\uE103';
+    /** The index character of the first code. */
+    private static final int INDEX_BASE = 0xE110;
+    /** Maximum number of codes of a segment, the index stays in the private use area. */
+    private static final int MAX_CODES = 0xF8FF - INDEX_BASE;
+    /** The HTML elements that are within text by default. */
+    private static final Set<String> HTML_INLINE = Collections.unmodifiableSet(new HashSet<String>(
+        Arrays.asList("a", "abbr", "b", "bdi", "bdo", "br", "cite", "code", "data", "del",
+            "dfn", "em", "i", "ins", "kbd", "mark", "q", "s", "samp", "small", "span",
+            "strong", "sub", "sup", "time", "u", "var", "wbr")));
+
+    /**
+     * The inline content of an element.
+     */
+    public static final class Segment
+    {
+        /** The text with the markers. */
+        private final String text;
+        /** The start tags of the inline elements. */
+        private final String[] codes;
+
+        /**
+         * Constructor.
+         *
+         * @param text
+         *         the text with the markers
+         * @param codes
+         *         the start tags of the inline elements
+         */
+        public Segment(final String text, final String[] codes)
+        {
+            this.text = text;
+            this.codes = codes;
+        }
+
+        /**
+         * @return the text with the markers
+         */
+        public String getText()
+        {
+            return this.text;
+        }
+
+        /**
+         * @return the start tags of the inline elements
+         */
+        public String[] getCodes()
+        {
+            return this.codes;
+        }
+    }
+
+    /**
+     * Check if an HTML element is within text by default, i.e. if it is
+     * phrasing content and has no local withinText markup.
+     *
+     * @param element
+     *         an element of an HTML document
+     * @return true if the element is within text by default
+     */
+    public static boolean isHtmlInline(final Element element)
+    {
+        return isHtmlInline(element.getLocalName() != null ? element.getLocalName()
+            : element.getNodeName())
+            && !element.hasAttribute("its-within-text");
+    }
+
+    /**
+     * Check if an HTML element is phrasing content, i.e. within text unless
+     * its local markup says otherwise.
+     *
+     * @param localName
+     *         the local name of the element
+     * @return true if the element is within text by default
+     */
+    public static boolean isHtmlInline(final String localName)
+    {
+        return HTML_INLINE.contains(localName);
+    }
+
+    /**
+     * Encode the content of an element as a segment. The content can only be
+     * encoded if it consists of text and inline elements. Inline elements
+     * must not have an ITS prefix or an id, so the ids of the document stay
+     * addressable.
+     *
+     * @param element
+     *         the element
+     * @param inline
+     *         the elements that are within text or null to accept any
+     *         element without prefix and id
+     * @return the segment or null if the content can't be encoded
+     */
+    public static Segment encode(final Element element, final Set<Node> inline)
+    {
+        final StringBuilder text = new StringBuilder();
+        final List<String> codes = new ArrayList<String>();
+        final Deque<Integer> open = new ArrayDeque<Integer>();
+        Node node = element.getFirstChild();
+        while (node != null)
+        {
+            if (node.getNodeType() == Node.TEXT_NODE
+                || node.getNodeType() == Node.CDATA_SECTION_NODE)
+            {
+                if (hasMarkers(node.getNodeValue()))
+                {
+                    return null;
+                }
+                text.append(node.getNodeValue());
+            }
+            else if (node.getNodeType() == Node.ELEMENT_NODE)
+            {
+                final Element el = (Element) node;
+                if (el.getPrefix() != null || el.hasAttribute("id") || el.hasAttribute("xml:id")
+                    || (inline != null && !inline.contains(el)) || codes.size() >= MAX_CODES)
+                {
+                    return null;
+                }
+                final int index = codes.size();
+                codes.add(getStartTag(el));
+                if (el.hasChildNodes())
+                {
+                    text.append(MARKER_OPENING).append((char) (INDEX_BASE + index));
+                    open.push(index);
+                    node = el.getFirstChild();
+                    continue;
+                }
+                text.append(MARKER_ISOLATED).append((char) (INDEX_BASE + index));
+            }
+            else
+            {
+                return null;
+            }
+            while (node.getNextSibling() == null && node.getParentNode() != element)
+            {
+                node = node.getParentNode();
+                text.append(MARKER_CLOSING).append((char) (INDEX_BASE + open.pop()));
+            }
+            node = node.getNextSibling();
+        }
+        return new Segment(text.toString(), codes.toArray(new String[codes.size()]));
+    }
+
+    /**
+     * Expand a segment into the content of an element.
+     *
+     * @param parent
+     *         the element
+     * @param text
+     *         the text with the markers
+     * @param codes
+     *         the start tags of the inline elements
+     */
+    public static void decode(final Element parent, final String text, final String[] codes)
+    {
+        final Document doc = parent.getOwnerDocument();
+        final StringBuilder pending = new StringBuilder();
+        Node current = parent;
+        for (int i = 0; i < text.length(); i++)
+        {
+            final char c = text.charAt(i);
+            if (isMarker(c) && i + 1 < text.length())
+            {
+                if (pending.length() > 0)
+                {
+                    current.appendChild(doc.createTextNode(pending.toString()));
+                    pending.setLength(0);
+                }
+                final int index = text.charAt(++i) - INDEX_BASE;
+                if (c == MARKER_CLOSING)
+                {
+                    current = (current != parent ? current.getParentNode() : parent);
+                }
+                else if (index >= 0 && index < codes.length)
+                {
+                    final Element el = createElement(doc, codes[index]);
+                    current.appendChild(el);
+                    if (c == MARKER_OPENING)
+                    {
+                        current = el;
+                    }
+                }
+            }
+            else
+            {
+                pending.append(c);
+            }
+        }
+        if (pending.length() > 0)
+        {
+            current.appendChild(doc.createTextNode(pending.toString()));
+        }
+    }
+
+    /**
+     * Get the text of a segment without its markers.
+     *
+     * @param text
+     *         the text with the markers
+     * @return the plain text
+     */
+    public static String getPlainText(final String text)
+    {
+        if (text == null)
+        {
+            return null;
+        }
+        final StringBuilder plain = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++)
+        {
+            final char c = text.charAt(i);
+            if (isMarker(c))
+            {
+                i++;
+            }
+            else
+            {
+                plain.append(c);
+            }
+        }
+        return plain.toString();
+    }
+
+    /**
+     * @param c
+     *         a character
+     * @return true if it is one of the markers
+     */
+    private static boolean isMarker(final char c)
+    {
+        return c == MARKER_OPENING || c == MARKER_CLOSING || c == MARKER_ISOLATED;
+    }
+
+    /**
+     * @param text
+     *         a text
+     * @return true if the text contains a marker
+     */
+    private static boolean hasMarkers(final String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            if (isMarker(text.charAt(i)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the start tag of an element, e.g. a href="x".
+     *
+     * @param element
+     *         the element
+     * @return the name and the attributes of the element
+     */
+    private static String getStartTag(final Element element)
+    {
+        final StringBuilder tag = new StringBuilder(element.getNodeName());
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++)
+        {
+            final Node attr = attributes.item(i);
+            tag.append(' ').append(attr.getNodeName()).append("=\"");
+            final String value = attr.getNodeValue();
+            for (int j = 0; j < value.length(); j++)
+            {
+                final char c = value.charAt(j);
+                if (c == '&')
+                {
+                    tag.append("&amp;");
+                }
+                else if (c == '"')
+                {
+                    tag.append("&quot;");
+                }
+                else
+                {
+                    tag.append(c);
+                }
+            }
+            tag.append('"');
+        }
+        return tag.toString();
+    }
+
+    /**
+     * Create an element from its start tag.
+     *
+     * @param doc
+     *         the document
+     * @param tag
+     *         the name and the attributes of the element
+     * @return the element
+     */
+    private static Element createElement(final Document doc, final String tag)
+    {
+        int end = tag.indexOf(' ');
+        final Element element = doc.createElement(end < 0 ? tag : tag.substring(0, end));
+        while (end > -1)
+        {
+            final int eq = tag.indexOf("=\"", end);
+            final int close = tag.indexOf('"', eq + 2);
+            if (eq < 0 || close < 0)
+            {
+                break;
+            }
+            element.setAttribute(tag.substring(end + 1, eq), tag.substring(eq + 2, close)
+                .replace("&quot;", "\"").replace("&amp;", "&"));
+            end = (close + 1 < tag.length() ? close + 1 : -1);
+        }
+        return element;
+    }
+
+    /**
+     * Private constructor to prevent instantiation of this class.
+     */
+    private ItsInlineUtils()
+    {
+        throw new AssertionError("This class is not ment to be instantiated.");
+    }
+}
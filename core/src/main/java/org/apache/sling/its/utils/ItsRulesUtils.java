@@ -19,8 +19,15 @@
 
 package org.apache.sling.its.utils;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
@@ -50,14 +57,17 @@ public final class ItsRulesUtils
      *         current session
      * @param path
      *         the root path of the page
+     * @return the number of queries run
      */
-    public static void createItsRulesNode(final Session session, final String path)
+    public static int createItsRulesNode(final Session session, final String path)
     {
+        int queries = 0;
         try
         {
             final Node rootElement = JcrNodeUtils.getFirstChild(session, path);
             if (rootElement != null)
             {
+                queries++;
                 final NodeIterator headNodes = JcrResourceUtil.query(
                     session,
                     "SELECT * FROM [nt:base] as t WHERE ISDESCENDANTNODE(["
@@ -91,6 +101,7 @@ public final class ItsRulesUtils
             LOG.error(
                 "Unable to access repository to access or create node. Stack Trace: ", e);
         }
+        return queries;
     }
 
     /**
@@ -101,10 +112,12 @@ public final class ItsRulesUtils
      *          the current session
      * @param resourceType
      *          resourceType
+     * @return the number of queries run
      */
-    public static void createGlobalRulesNode(final Session session,
+    public static int createGlobalRulesNode(final Session session,
         final String resourceType)
     {
+        int queries = 0;
         try
         {
             if (StringUtils.isNotBlank(resourceType))
@@ -113,6 +126,7 @@ public final class ItsRulesUtils
                 {
                     final String path = SlingItsConstants.getGlobalRules().get(key)
                         + resourceType;
+                    queries++;
                     final NodeIterator children = JcrResourceUtil.query(
                         session,
                         "SELECT * FROM [nt:base] as t WHERE ISCHILDNODE([" + path
@@ -132,6 +146,95 @@ public final class ItsRulesUtils
             LOG.error(
                 "Unable to access repository to access or create node. Stack Trace: ", e);
         }
+        return queries;
+    }
+
+    /**
+     * Compute a digest of the global rules of the resourceType. The digest
+     * only changes when a rule is added, removed or changed, so it tells
+     * whether the annotations stored with a document are still valid.
+     *
+     * @param session
+     *          the current session
+     * @param resourceType
+     *          resourceType
+     * @return the hex encoded digest, the digest of nothing if there are no rules
+     * @throws RepositoryException
+     *          if the rules could not be read
+     */
+    public static String getRulesDigest(final Session session, final String resourceType)
+        throws RepositoryException
+    {
+        final MessageDigest digest = HashUtils.newDigest();
+        if (StringUtils.isNotBlank(resourceType))
+        {
+            for (final String key : SlingItsConstants.getGlobalRules().keySet())
+            {
+                final String path = SlingItsConstants.getGlobalRules().get(key)
+                    + resourceType;
+                if (!session.nodeExists(path))
+                {
+                    continue;
+                }
+                final NodeIterator rules = session.getNode(path).getNodes();
+                while (rules.hasNext())
+                {
+                    final Node rule = rules.nextNode();
+                    HashUtils.update(digest, "\n" + rule.getName());
+                    final List<String> names = new ArrayList<String>();
+                    final PropertyIterator properties = rule.getProperties();
+                    while (properties.hasNext())
+                    {
+                        final Property property = properties.nextProperty();
+                        if (!property.isMultiple() && !property.getName().startsWith("jcr:")
+                            && !property.getName().startsWith(
+                                SlingItsConstants.SLING_ITS_PROPERTY_PREFIX))
+                        {
+                            names.add(property.getName());
+                        }
+                    }
+                    Collections.sort(names);
+                    for (final String name : names)
+                    {
+                        HashUtils.update(digest, "\t" + name + "="
+                            + rule.getProperty(name).getString());
+                    }
+                }
+            }
+        }
+        return HashUtils.toHex(digest);
+    }
+
+    /**
+     * Record the digest of the current rules of the resourceType in the id
+     * index of a document, once the document has been annotated with them.
+     *
+     * @param session
+     *          the current session
+     * @param docPath
+     *          the target path of the import
+     * @param resourceType
+     *          the resourceType of the document
+     */
+    public static void storeRulesDigest(final Session session, final String docPath,
+        final String resourceType)
+    {
+        try
+        {
+            final String indexPath = ItsIdUtils.getIndexPath(docPath);
+            if (session.nodeExists(indexPath))
+            {
+                session.getNode(indexPath).getParent().setProperty(
+                    SlingItsConstants.ITS_INDEX_RULES_DIGEST,
+                    getRulesDigest(session, resourceType));
+                session.save();
+            }
+        }
+        catch (final RepositoryException e)
+        {
+            LOG.error(
+                "Unable to access repository to access or create node. Stack Trace: ", e);
+        }
     }
 
     /**
@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import java.text.BreakIterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.its.constants.SlingItsConstants;
+
+/**
+ * A utilities class to support the word and character statistics. Every
+ * element node holds the counts of its own text and of the text of all its
+ * descendants, split into translatable and non-translatable, so the counts of
+ * a document or a subtree are read from a single node. The number of element
+ * and text nodes of the subtree is kept the same way.
+ *
+ * Words are the segments of a word BreakIterator that contain a letter or a
+ * digit, characters are the code points that are not whitespace.
+ */
+public final class ItsStatsUtils
+{
+    /** Index of the node count in the count arrays. */
+    public static final int NODES = 4;
+    /** The properties that hold the counts, in the order of the count arrays. */
+    private static final String[] PROPERTIES = {
+        SlingItsConstants.SLING_ITS_WORDS_TRANSLATABLE,
+        SlingItsConstants.SLING_ITS_CHARS_TRANSLATABLE,
+        SlingItsConstants.SLING_ITS_WORDS_UNTRANSLATABLE,
+        SlingItsConstants.SLING_ITS_CHARS_UNTRANSLATABLE,
+        SlingItsConstants.SLING_ITS_NODES };
+
+    /**
+     * @param text
+     *         the text
+     * @return the number of words of the text
+     */
+    public static long countWords(final String text)
+    {
+        if (StringUtils.isBlank(text))
+        {
+            return 0;
+        }
+        final BreakIterator words = BreakIterator.getWordInstance(Locale.ROOT);
+        words.setText(text);
+        long count = 0;
+        int start = words.first();
+        for (int end = words.next(); end != BreakIterator.DONE; start = end, end = words.next())
+        {
+            for (int i = start; i < end; i++)
+            {
+                if (Character.isLetterOrDigit(text.charAt(i)))
+                {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param text
+     *         the text
+     * @return the number of characters of the text that are not whitespace
+     */
+    public static long countCharacters(final String text)
+    {
+        if (text == null)
+        {
+            return 0;
+        }
+        long count = 0;
+        for (int i = 0; i < text.length(); i = text.offsetByCodePoints(i, 1))
+        {
+            if (!Character.isWhitespace(text.codePointAt(i)))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return zero counts
+     */
+    public static long[] newCounts()
+    {
+        return new long[PROPERTIES.length];
+    }
+
+    /**
+     * @param element
+     *         an element node
+     * @return true if the text of the element is translatable according to
+     *         its translate annotation
+     * @throws RepositoryException
+     *         if the node could not be read
+     */
+    public static boolean isTranslatable(final Node element) throws RepositoryException
+    {
+        return !element.hasProperty(SlingItsConstants.SLING_ITS_TRANSLATE)
+            || element.getProperty(SlingItsConstants.SLING_ITS_TRANSLATE).getBoolean();
+    }
+
+    /**
+     * Count the text of a text-content-node.
+     *
+     * @param text
+     *         the text
+     * @param translate
+     *         true if the text is translatable
+     * @return the counts
+     */
+    public static long[] count(final String text, final boolean translate)
+    {
+        final long[] counts = newCounts();
+        final int offset = (translate ? 0 : 2);
+        counts[offset] = countWords(text);
+        counts[offset + 1] = countCharacters(text);
+        counts[NODES] = (text != null ? 1 : 0);
+        return counts;
+    }
+
+    /**
+     * Add the counts to the totals.
+     *
+     * @param totals
+     *         the totals
+     * @param counts
+     *         the counts to add
+     * @param sign
+     *         1 to add, -1 to subtract
+     */
+    public static void add(final long[] totals, final long[] counts, final int sign)
+    {
+        for (int i = 0; i < totals.length; i++)
+        {
+            totals[i] += sign * counts[i];
+        }
+    }
+
+    /**
+     * Read the counts of an element.
+     *
+     * @param props
+     *         the properties of the element
+     * @return the counts, zero if they were not computed
+     */
+    public static long[] read(final ValueMap props)
+    {
+        final long[] counts = newCounts();
+        for (int i = 0; i < PROPERTIES.length; i++)
+        {
+            counts[i] = props.get(PROPERTIES[i], 0L);
+        }
+        return counts;
+    }
+
+    /**
+     * Roll the counts of the elements up to their ancestors, up to and
+     * including rootPath. On input the map holds the counts of the own text
+     * of the elements, on output the counts of their subtrees.
+     *
+     * @param stats
+     *         the counts by element path
+     * @param rootPath
+     *         the path the counts are rolled up to
+     */
+    public static void rollUp(final Map<String, long[]> stats, final String rootPath)
+    {
+        final List<String> paths = new ArrayList<String>(stats.keySet());
+        for (final String path : paths)
+        {
+            String parent = path;
+            while (parent.length() > rootPath.length() && parent.startsWith(rootPath))
+            {
+                parent = StringUtils.substringBeforeLast(parent, "/");
+                if (stats.containsKey(parent))
+                {
+                    break;
+                }
+                stats.put(parent, newCounts());
+            }
+        }
+        if (!stats.containsKey(rootPath))
+        {
+            stats.put(rootPath, newCounts());
+        }
+        final List<String> sorted = new ArrayList<String>(stats.keySet());
+        Collections.sort(sorted, new Comparator<String>()
+        {
+            public int compare(final String p1, final String p2)
+            {
+                return StringUtils.countMatches(p2, "/") - StringUtils.countMatches(p1, "/");
+            }
+        });
+        for (final String path : sorted)
+        {
+            if (path.length() > rootPath.length() && path.startsWith(rootPath))
+            {
+                add(stats.get(StringUtils.substringBeforeLast(path, "/")), stats.get(path), 1);
+            }
+        }
+    }
+
+    /**
+     * Write the counts to the element nodes. The session is not saved.
+     *
+     * @param session
+     *         the session
+     * @param stats
+     *         the counts by element path
+     * @throws RepositoryException
+     *         if a node could not be updated
+     */
+    public static void store(final Session session, final Map<String, long[]> stats)
+        throws RepositoryException
+    {
+        for (final Map.Entry<String, long[]> entry : stats.entrySet())
+        {
+            if (session.nodeExists(entry.getKey()))
+            {
+                store(session.getNode(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Write the counts to an element node. The session is not saved.
+     *
+     * @param node
+     *         the element node
+     * @param counts
+     *         the counts of the element
+     * @throws RepositoryException
+     *         if the node could not be updated
+     */
+    public static void store(final Node node, final long[] counts) throws RepositoryException
+    {
+        for (int i = 0; i < PROPERTIES.length; i++)
+        {
+            node.setProperty(PROPERTIES[i], counts[i]);
+        }
+    }
+
+    /**
+     * Add a change of the counts to an element and all its ancestors up to
+     * and including rootPath. The session is not saved.
+     *
+     * @param session
+     *         the session
+     * @param elementPath
+     *         the path of the element whose text changed
+     * @param rootPath
+     *         the target path of the document
+     * @param delta
+     *         the change of the counts
+     * @throws RepositoryException
+     *         if a node could not be updated
+     */
+    public static void propagate(final Session session, final String elementPath,
+        final String rootPath, final long[] delta) throws RepositoryException
+    {
+        String path = elementPath;
+        while (path.length() >= rootPath.length() && path.startsWith(rootPath))
+        {
+            if (session.nodeExists(path))
+            {
+                final Node node = session.getNode(path);
+                for (int i = 0; i < PROPERTIES.length; i++)
+                {
+                    final long value = (node.hasProperty(PROPERTIES[i]) ? node.getProperty(
+                        PROPERTIES[i]).getLong() : 0L);
+                    node.setProperty(PROPERTIES[i], value + delta[i]);
+                }
+            }
+            if (path.length() == rootPath.length())
+            {
+                break;
+            }
+            path = StringUtils.substringBeforeLast(path, "/");
+        }
+    }
+
+    /**
+     * Compute the counts of a whole document again from its stored tree, e.g.
+     * after the translate data category of its elements changed. The session
+     * is not saved.
+     *
+     * @param session
+     *         the session
+     * @param rootPath
+     *         the target path of the document
+     * @throws RepositoryException
+     *         if the document could not be read or updated
+     */
+    public static void recompute(final Session session, final String rootPath)
+        throws RepositoryException
+    {
+        final Map<String, long[]> stats = new HashMap<String, long[]>();
+        final Deque<Node> stack = new ArrayDeque<Node>();
+        stack.push(session.getNode(rootPath));
+        while (!stack.isEmpty())
+        {
+            final Node element = stack.pop();
+            final boolean translate = isTranslatable(element);
+            final long[] counts = newCounts();
+            counts[NODES] = (element.getPath().equals(rootPath) ? 0 : 1);
+            if (element.hasProperty(SlingItsConstants.SLING_ITS_SEGMENT))
+            {
+                add(counts, count(ItsInlineUtils.getPlainText(element.getProperty(
+                    SlingItsConstants.SLING_ITS_SEGMENT).getString()), translate), 1);
+            }
+            final NodeIterator children = element.getNodes();
+            while (children.hasNext())
+            {
+                final Node child = children.nextNode();
+                if (child.getName().startsWith(SlingItsConstants.TEXT_CONTENT_NODE))
+                {
+                    add(counts, count(ItsTextUtils.getText(child), translate), 1);
+                }
+                else if (!isRules(child))
+                {
+                    stack.push(child);
+                }
+            }
+            stats.put(element.getPath(), counts);
+        }
+        rollUp(stats, rootPath);
+        store(session, stats);
+    }
+
+    /**
+     * @param node
+     *         a child node
+     * @return true if the node holds the local rules of a document
+     * @throws RepositoryException
+     *         if the node could not be read
+     */
+    private static boolean isRules(final Node node) throws RepositoryException
+    {
+        return StringUtils.substringBefore(node.getName(), "(").endsWith(
+            SlingItsConstants.ITS_RULES)
+            && node.hasProperty(SlingItsConstants.NODE_PREFIX);
+    }
+
+    /**
+     * Private constructor to prevent instantiation of this class.
+     */
+    private ItsStatsUtils()
+    {
+        throw new AssertionError("This class is not ment to be instantiated.");
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.its.constants.SlingItsConstants;
+import org.apache.sling.jcr.resource.JcrResourceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A utilities class for the text of the text-content-nodes. Texts above a
+ * size threshold can be kept once in a content-addressed store below
+ * /var/its/text, keyed by the SHA-1 of the text, and be referenced from each
+ * text-content-node that holds them. Stored texts never change, so they are
+ * resolved through a bounded in-memory cache.
+ */
+public final class ItsTextUtils
+{
+    /** Logger instance. */
+    private static final Logger LOG = LoggerFactory.getLogger(ItsTextUtils.class);
+    /** Maximum number of characters kept in the cache. */
+    static final int CACHE_CHARS = 4 * 1024 * 1024;
+    /** How long a stored text is not touched again when it is referenced. */
+    public static final long TOUCH_INTERVAL = 60L * 60L * 1000L;
+    /** The cached texts by their hash, least recently used first. */
+    private static final Map<String, String> CACHE = new LinkedHashMap<String, String>(16,
+        0.75f, true);
+    /** Number of characters in the cache. */
+    private static long cachedChars;
+
+    /**
+     * Get the path of a stored text. The texts are spread over buckets named
+     * after the first two characters of their hash.
+     *
+     * @param hash
+     *         the hash of the text
+     * @return the path of the node holding the text
+     */
+    public static String getStorePath(final String hash)
+    {
+        return SlingItsConstants.ITS_TEXT_STORE_PATH + "/" + hash.substring(0, 2) + "/" + hash;
+    }
+
+    /**
+     * Set the text of a text-content-node. If the store is enabled and the
+     * text is not shorter than the threshold, the text is stored and the
+     * node references it, otherwise the text is set on the node.
+     *
+     * @param node
+     *         the text-content-node
+     * @param text
+     *         the text
+     * @param threshold
+     *         the number of characters from which a text is stored, 0 to
+     *         disable the store
+     * @throws RepositoryException
+     *         if the text could not be set
+     */
+    public static void setText(final Node node, final String text, final int threshold)
+        throws RepositoryException
+    {
+        if (threshold > 0 && text.length() >= threshold)
+        {
+            node.setProperty(SlingItsConstants.SLING_ITS_TEXT_REF, store(node.getSession(),
+                text));
+            if (node.hasProperty(SlingItsConstants.TEXT_CONTENT))
+            {
+                node.getProperty(SlingItsConstants.TEXT_CONTENT).remove();
+            }
+        }
+        else
+        {
+            node.setProperty(SlingItsConstants.TEXT_CONTENT, text);
+            if (node.hasProperty(SlingItsConstants.SLING_ITS_TEXT_REF))
+            {
+                node.getProperty(SlingItsConstants.SLING_ITS_TEXT_REF).remove();
+            }
+        }
+    }
+
+    /**
+     * Store a text unless it is already stored. A stored text that is
+     * referenced again is stamped with the current time from time to time,
+     * so the cleanup does not remove it while it is being referenced.
+     *
+     * @param session
+     *         the current session
+     * @param text
+     *         the text
+     * @return the hash of the text
+     * @throws RepositoryException
+     *         if the text could not be stored
+     */
+    public static String store(final Session session, final String text)
+        throws RepositoryException
+    {
+        final String hash = HashUtils.sha1Hex(text);
+        final String path = getStorePath(hash);
+        final long now = System.currentTimeMillis();
+        if (session.nodeExists(path))
+        {
+            final Node textNode = session.getNode(path);
+            if (!textNode.hasProperty(SlingItsConstants.SLING_ITS_MODIFIED)
+                || textNode.getProperty(SlingItsConstants.SLING_ITS_MODIFIED).getLong() < now
+                    - TOUCH_INTERVAL)
+            {
+                textNode.setProperty(SlingItsConstants.SLING_ITS_MODIFIED, now);
+            }
+        }
+        else
+        {
+            final Node textNode = JcrResourceUtil.createPath(path, "nt:unstructured",
+                "nt:unstructured", session, false);
+            textNode.setProperty(SlingItsConstants.TEXT_CONTENT, text);
+            textNode.setProperty(SlingItsConstants.SLING_ITS_MODIFIED, now);
+        }
+        return hash;
+    }
+
+    /**
+     * Get the text of a text-content-node resource.
+     *
+     * @param resource
+     *         the text-content-node
+     * @return the text or null if it has none
+     */
+    public static String getText(final Resource resource)
+    {
+        final ValueMap props = resource.adaptTo(ValueMap.class);
+        final String text = props.get(SlingItsConstants.TEXT_CONTENT, String.class);
+        if (text != null)
+        {
+            return text;
+        }
+        final String hash = props.get(SlingItsConstants.SLING_ITS_TEXT_REF, String.class);
+        return (hash != null ? resolve(hash, resource.getResourceResolver()) : null);
+    }
+
+    /**
+     * Get the text of a text-content-node.
+     *
+     * @param node
+     *         the text-content-node
+     * @return the text or null if it has none
+     * @throws RepositoryException
+     *         if the text could not be read
+     */
+    public static String getText(final Node node) throws RepositoryException
+    {
+        if (node.hasProperty(SlingItsConstants.TEXT_CONTENT))
+        {
+            return node.getProperty(SlingItsConstants.TEXT_CONTENT).getString();
+        }
+        if (!node.hasProperty(SlingItsConstants.SLING_ITS_TEXT_REF))
+        {
+            return null;
+        }
+        final String hash = node.getProperty(SlingItsConstants.SLING_ITS_TEXT_REF).getString();
+        String text = getCached(hash);
+        if (text == null)
+        {
+            final String path = getStorePath(hash);
+            if (!node.getSession().nodeExists(path))
+            {
+                LOG.warn("No stored text found for hash: " + hash);
+                return null;
+            }
+            text = node.getSession().getNode(path).getProperty(
+                SlingItsConstants.TEXT_CONTENT).getString();
+            cache(hash, text);
+        }
+        return text;
+    }
+
+    /**
+     * Resolve a stored text through the cache.
+     *
+     * @param hash
+     *         the hash of the text
+     * @param resolver
+     *         the resource resolver
+     * @return the text or null if it is not stored
+     */
+    private static String resolve(final String hash, final ResourceResolver resolver)
+    {
+        String text = getCached(hash);
+        if (text == null)
+        {
+            final Resource stored = resolver.getResource(getStorePath(hash));
+            text = (stored != null ? stored.adaptTo(ValueMap.class).get(
+                SlingItsConstants.TEXT_CONTENT, String.class) : null);
+            if (text == null)
+            {
+                LOG.warn("No stored text found for hash: " + hash);
+                return null;
+            }
+            cache(hash, text);
+        }
+        return text;
+    }
+
+    /**
+     * @param hash
+     *         the hash of the text
+     * @return the cached text or null
+     */
+    static String getCached(final String hash)
+    {
+        synchronized (CACHE)
+        {
+            return CACHE.get(hash);
+        }
+    }
+
+    /**
+     * Cache a text. The least recently used texts are evicted once the cache
+     * holds more than {@link #CACHE_CHARS} characters.
+     *
+     * @param hash
+     *         the hash of the text
+     * @param text
+     *         the text
+     */
+    static void cache(final String hash, final String text)
+    {
+        if (text.length() > CACHE_CHARS)
+        {
+            return;
+        }
+        synchronized (CACHE)
+        {
+            if (CACHE.put(hash, text) == null)
+            {
+                cachedChars += text.length();
+            }
+            final Iterator<String> cached = CACHE.values().iterator();
+            while (cachedChars > CACHE_CHARS && cached.hasNext())
+            {
+                cachedChars -= cached.next().length();
+                cached.remove();
+            }
+        }
+    }
+
+    /**
+     * Private constructor to prevent instantiation of this class.
+     */
+    private ItsTextUtils()
+    {
+        throw new AssertionError("This class is not ment to be instantiated.");
+    }
+}
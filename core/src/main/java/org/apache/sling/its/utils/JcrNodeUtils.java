@@ -25,6 +25,8 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.its.constants.SlingItsConstants;
 import org.apache.sling.jcr.resource.JcrResourceUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +38,8 @@ public final class JcrNodeUtils
 {
     /** Logger instance. */
     private static final Logger LOG = LoggerFactory.getLogger(JcrNodeUtils.class);
+    /** Characters that are not allowed in the names of a path. */
+    private static final String ILLEGAL_PATH_CHARS = "[]|*";
 
     /**
      * Get the first child node.
@@ -102,6 +106,21 @@ public final class JcrNodeUtils
         return node;
     }
 
+    /**
+     * Tag the changes of a session as changes made by sling-its, the listener
+     * that tracks the changes of imported documents ignores them.
+     *
+     * @param session
+     *           the session
+     * @throws RepositoryException
+     *           if the observation manager is not available
+     */
+    public static void setItsUserData(final Session session) throws RepositoryException
+    {
+        session.getWorkspace().getObservationManager().setUserData(
+            SlingItsConstants.ITS_EVENT_USER_DATA);
+    }
+
     /**
      * Remove all child nodes below parentPath.
      *
@@ -137,6 +156,35 @@ public final class JcrNodeUtils
         }
     }
 
+    /**
+     * Check if a path is a normalized absolute path that can be used in a
+     * JCR-SQL2 statement.
+     *
+     * @param path
+     *           the requested path
+     * @return true if the path is valid
+     */
+    public static boolean isAbsolutePath(final String path)
+    {
+        if ("/".equals(path))
+        {
+            return true;
+        }
+        if (path == null || !path.startsWith("/"))
+        {
+            return false;
+        }
+        for (final String name : StringUtils.splitPreserveAllTokens(path.substring(1), '/'))
+        {
+            if (StringUtils.isBlank(name) || ".".equals(name) || "..".equals(name)
+                || StringUtils.containsAny(name, ILLEGAL_PATH_CHARS))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Private constructor to prevent instantiation of this class.
      */
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.render;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for RenderCache.
+ */
+public class RenderCacheTest
+{
+    @Test
+    public final void testETag()
+    {
+        final RenderCache cache = new RenderCache(100);
+        cache.put("/doc", "\"a\"", new byte[10]);
+        assertArrayEquals(new byte[10], cache.get("/doc", "\"a\""));
+        assertNull(cache.get("/doc", "\"b\""));
+        cache.put("/doc", "\"b\"", new byte[20]);
+        assertNull(cache.get("/doc", "\"a\""));
+        assertEquals(20, cache.getSize());
+    }
+
+    @Test
+    public final void testEviction()
+    {
+        final RenderCache cache = new RenderCache(100);
+        cache.put("/doc1", "1", new byte[40]);
+        cache.put("/doc2", "2", new byte[40]);
+        cache.get("/doc1", "1");
+        cache.put("/doc3", "3", new byte[40]);
+        assertNull(cache.get("/doc2", "2"));
+        assertEquals(40, cache.get("/doc1", "1").length);
+        assertEquals(80, cache.getSize());
+        cache.put("/doc4", "4", new byte[101]);
+        assertNull(cache.get("/doc4", "4"));
+        assertEquals(80, cache.getSize());
+    }
+
+    @Test
+    public final void testDisabled()
+    {
+        final RenderCache cache = new RenderCache(0);
+        assertFalse(cache.isEnabled());
+        cache.put("/doc", "1", new byte[1]);
+        assertNull(cache.get("/doc", "1"));
+        assertTrue(new RenderCache(1).isEnabled());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for ItsCategoryFilter.
+ */
+public class ItsCategoryFilterTest
+{
+    @Test
+    public final void testFromSelectors()
+    {
+        assertNull(ItsCategoryFilter.fromSelectors(new String[] {"its", "compact" }));
+        final ItsCategoryFilter filter = ItsCategoryFilter.fromSelectors(new String[] {"its",
+            "locNote", "translate", "segment" });
+        assertEquals("[locNote, translate]", filter.getCategories().toString());
+    }
+
+    @Test
+    public final void testRules()
+    {
+        final ItsCategoryFilter filter = ItsCategoryFilter.fromSelectors(new String[] {"its",
+            "translate" });
+        assertTrue(filter.isRuleIncluded("translateRule"));
+        assertTrue(filter.isRuleIncluded("param"));
+        assertFalse(filter.isRuleIncluded("locNoteRule"));
+        assertFalse(filter.isRuleIncluded("idValueRule"));
+    }
+
+    @Test
+    public final void testXmlAttributes()
+    {
+        final ItsCategoryFilter filter = ItsCategoryFilter.fromSelectors(new String[] {"its",
+            "locNote" });
+        assertTrue(filter.isAttributeIncluded("its:locNote", false));
+        assertTrue(filter.isAttributeIncluded("its:locNoteType", false));
+        assertFalse(filter.isAttributeIncluded("its:translate", false));
+        assertTrue(filter.isAttributeIncluded("its:version", false));
+        assertTrue(filter.isAttributeIncluded("translate", false));
+        assertTrue(filter.isAttributeIncluded("xml:lang", false));
+    }
+
+    @Test
+    public final void testHtmlAttributes()
+    {
+        final ItsCategoryFilter filter = ItsCategoryFilter.fromSelectors(new String[] {"its",
+            "locNote" });
+        assertTrue(filter.isAttributeIncluded("its-loc-note", true));
+        assertFalse(filter.isAttributeIncluded("translate", true));
+        assertTrue(filter.isAttributeIncluded("class", true));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Test class for ItsSelector.
+ */
+public class ItsSelectorTest
+{
+    /** No parameters. */
+    private static final Map<String, String> NO_PARAMS = Collections.emptyMap();
+
+    @Test
+    public final void testChildAndDescendantSteps()
+    {
+        final ItsSelector selector = ItsSelector.parse("/html/body//p", NO_PARAMS);
+        assertTrue(selector.matches(stack("html", "body", "p")));
+        assertTrue(selector.matches(stack("html", "body", "div", "div", "p")));
+        assertFalse(selector.matches(stack("html", "head", "p")));
+        assertFalse(selector.matches(stack("body", "p")));
+        assertFalse(selector.matches(stack("html", "body", "p", "span")));
+    }
+
+    @Test
+    public final void testUnionAndNameTests()
+    {
+        final ItsSelector selector = ItsSelector.parse("//code | /doc/*/h:pre", NO_PARAMS);
+        assertTrue(selector.matches(stack("doc", "section", "code")));
+        assertTrue(selector.matches(stack("doc", "section", "pre")));
+        assertFalse(selector.matches(stack("doc", "pre")));
+        final ItsSelector any = ItsSelector.parse("//node()", NO_PARAMS);
+        assertTrue(any.matches(stack("doc")));
+    }
+
+    @Test
+    public final void testPredicates()
+    {
+        final ItsSelector selector = ItsSelector.parse("//span[@class='x'][@title]",
+            NO_PARAMS);
+        assertTrue(selector.matches(with(stack("p", "span"), "class", "x", "title", "t")));
+        assertFalse(selector.matches(with(stack("p", "span"), "class", "x")));
+        assertFalse(selector.matches(with(stack("p", "span"), "class", "y", "title", "t")));
+        final Map<String, String> params = new HashMap<String, String>();
+        params.put("cls", "x");
+        final ItsSelector withParam = ItsSelector.parse("//span[@class=$cls]", params);
+        assertTrue(withParam.matches(with(stack("span"), "class", "x")));
+        final ItsSelector quoted = ItsSelector.parse("//a[@href=\"/x|y\"]", NO_PARAMS);
+        assertTrue(quoted.matches(with(stack("a"), "href", "/x|y")));
+    }
+
+    @Test
+    public final void testAttributeSteps()
+    {
+        final ItsSelector selector = ItsSelector.parse("//img/@alt|//*/@its:title",
+            NO_PARAMS);
+        final List<Node> img = stack("p", "img");
+        assertFalse(selector.matches(img));
+        assertTrue(selector.matchesAttribute(img, "alt"));
+        assertTrue(selector.matchesAttribute(img, "title"));
+        assertFalse(selector.matchesAttribute(img, "src"));
+        assertFalse(selector.matchesAttribute(stack("p", "input"), "alt"));
+        final ItsSelector all = ItsSelector.parse("//@*", NO_PARAMS);
+        assertTrue(all.matchesAttribute(stack("p"), "lang"));
+    }
+
+    @Test
+    public final void testUnsupported()
+    {
+        assertNull(ItsSelector.parse(null, NO_PARAMS));
+        assertNull(ItsSelector.parse("  ", NO_PARAMS));
+        assertNull(ItsSelector.parse("p", NO_PARAMS));
+        assertNull(ItsSelector.parse("//p[1]", NO_PARAMS));
+        assertNull(ItsSelector.parse("//p[contains(@class, 'x')]", NO_PARAMS));
+        assertNull(ItsSelector.parse("//text()", NO_PARAMS));
+        assertNull(ItsSelector.parse("//ancestor::p", NO_PARAMS));
+        assertNull(ItsSelector.parse("//@alt/x", NO_PARAMS));
+        assertNull(ItsSelector.parse("//p | span", NO_PARAMS));
+        assertNotNull(ItsSelector.parse("//p | //span", NO_PARAMS));
+    }
+
+    @Test
+    public final void testIncompleteRuleSet() throws Exception
+    {
+        final ItsRuleSet complete = ItsRuleSet.create();
+        complete.addRules(parseRules("<its:translateRule selector='//code' translate='no'/>"));
+        assertTrue(complete.isComplete());
+        assertEquals(1, complete.getRules("translateRule").size());
+
+        final ItsRuleSet incomplete = ItsRuleSet.create();
+        incomplete.addRules(parseRules("<its:translateRule selector='//p[2]' translate='no'/>"
+            + "<its:translateRule selector='//code' translate='no'/>"));
+        assertFalse(incomplete.isComplete());
+        assertEquals(1, incomplete.getRules("translateRule").size());
+    }
+
+    /**
+     * Parse the global rules of an its:rules element.
+     *
+     * @param rules
+     *         the rule elements
+     * @return the its:rules element
+     * @throws Exception
+     *         if the rules could not be parsed
+     */
+    private static Element parseRules(final String rules) throws Exception
+    {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(
+            "<its:rules xmlns:its='http://www.w3.org/2005/11/its' version='2.0'>" + rules
+                + "</its:rules>"))).getDocumentElement();
+    }
+
+    /**
+     * Build the stack of elements from the root to the current element.
+     *
+     * @param names
+     *         the local names of the elements
+     * @return the stack
+     */
+    private static List<Node> stack(final String... names)
+    {
+        final List<Node> stack = new ArrayList<Node>();
+        for (final String name : names)
+        {
+            stack.add(new Node(name));
+        }
+        return stack;
+    }
+
+    /**
+     * Set attributes of the current element.
+     *
+     * @param stack
+     *         the stack
+     * @param attributes
+     *         pairs of attribute names and values
+     * @return the stack
+     */
+    private static List<Node> with(final List<Node> stack, final String... attributes)
+    {
+        final Node node = stack.get(stack.size() - 1);
+        for (int i = 0; i < attributes.length; i += 2)
+        {
+            node.attributes.put(attributes[i], attributes[i + 1]);
+        }
+        return stack;
+    }
+
+    /**
+     * An element of the stack.
+     */
+    private static final class Node implements ItsSelector.SelectorNode
+    {
+        /** The local name. */
+        private final String localName;
+        /** The attributes. */
+        private final Map<String, String> attributes = new HashMap<String, String>();
+
+        /**
+         * Constructor.
+         *
+         * @param localName
+         *         the local name
+         */
+        private Node(final String localName)
+        {
+            this.localName = localName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getLocalName()
+        {
+            return this.localName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getAttribute(final String name)
+        {
+            return this.attributes.get(name);
+        }
+    }
+}
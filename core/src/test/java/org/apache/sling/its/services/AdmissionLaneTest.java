@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test class for AdmissionLane.
+ */
+public class AdmissionLaneTest
+{
+    @Test
+    public final void testSmallestFirst() throws Exception
+    {
+        final AdmissionLane lane = new AdmissionLane("import", 1, 3, 5000);
+        final AdmissionLane.Permit first = lane.acquire(100);
+        final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        int queued = 0;
+        for (final long size : new long[] { 500, 50, 300 })
+        {
+            executor.submit(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    final AdmissionLane.Permit permit = lane.acquire(size);
+                    order.add(size);
+                    permit.release();
+                    return null;
+                }
+            });
+            waitForQueued(lane, ++queued);
+        }
+        first.release();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        assertEquals(3, order.size());
+        assertEquals(Long.valueOf(50), order.get(0));
+        assertEquals(Long.valueOf(300), order.get(1));
+        assertEquals(Long.valueOf(500), order.get(2));
+        assertEquals(0, lane.getStatistics()[3]);
+    }
+
+    @Test
+    public final void testQueueFull() throws Exception
+    {
+        final AdmissionLane lane = new AdmissionLane("export", 1, 0, 5000);
+        final AdmissionLane.Permit permit = lane.acquire(1);
+        try
+        {
+            lane.acquire(1);
+            fail("The request should have been rejected.");
+        }
+        catch (final AdmissionRejectedException e)
+        {
+            assertEquals(1, lane.getRejectedCount());
+        }
+        permit.release();
+        permit.release();
+        lane.acquire(1).release();
+        assertEquals(0, lane.getStatistics()[3]);
+    }
+
+    @Test
+    public final void testTimeout() throws Exception
+    {
+        final AdmissionLane lane = new AdmissionLane("extraction", 1, 1, 50);
+        lane.acquire(1);
+        try
+        {
+            lane.acquire(1);
+            fail("The request should have timed out.");
+        }
+        catch (final AdmissionRejectedException e)
+        {
+            assertEquals(1, lane.getRejectedCount());
+            assertEquals(0, lane.getStatistics()[4]);
+        }
+    }
+
+    @Test
+    public final void testParse()
+    {
+        final AdmissionLane lane = AdmissionLane.parse("import:2:10:30000");
+        assertEquals("import", lane.getName());
+        assertEquals(2, lane.getStatistics()[0]);
+        assertEquals(10, lane.getStatistics()[1]);
+        assertEquals(30000, lane.getStatistics()[2]);
+        assertNull(AdmissionLane.parse("import:2:10"));
+        assertNull(AdmissionLane.parse("import:x:10:30000"));
+    }
+
+    /**
+     * Wait until the number of queued requests is reached.
+     *
+     * @param lane
+     *         the lane
+     * @param count
+     *         the number of requests
+     * @throws InterruptedException
+     *         if interrupted
+     */
+    private static void waitForQueued(final AdmissionLane lane, final int count)
+        throws InterruptedException
+    {
+        final long end = System.currentTimeMillis() + 5000;
+        while (lane.getStatistics()[4] < count && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test class for MetricHistogram.
+ */
+public class MetricHistogramTest
+{
+    @Test
+    public final void testPercentiles()
+    {
+        final MetricHistogram histogram = new MetricHistogram(1000);
+        for (int i = 100; i >= 1; i--)
+        {
+            histogram.record(i);
+        }
+        final long[] statistics = histogram.getStatistics();
+        assertEquals(100, statistics[0]);
+        assertEquals(5050, statistics[1]);
+        assertEquals(1, statistics[2]);
+        assertEquals(100, statistics[3]);
+        assertEquals(50, statistics[4]);
+        assertEquals(95, statistics[5]);
+        assertEquals(99, statistics[6]);
+    }
+
+    @Test
+    public final void testWindow()
+    {
+        final MetricHistogram histogram = new MetricHistogram(10);
+        for (int i = 0; i < 10; i++)
+        {
+            histogram.record(1000);
+        }
+        for (int i = 0; i < 10; i++)
+        {
+            histogram.record(1);
+        }
+        final long[] statistics = histogram.getStatistics();
+        assertEquals(20, statistics[0]);
+        assertEquals(1000, statistics[3]);
+        assertEquals(1, statistics[6]);
+    }
+
+    @Test
+    public final void testEmpty()
+    {
+        final long[] statistics = new MetricHistogram(10).getStatistics();
+        assertEquals(0, statistics[0]);
+        assertEquals(0, statistics[2]);
+        assertEquals(0, statistics[3]);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test class for RequestMetrics.
+ */
+public class RequestMetricsTest
+{
+    @Test
+    public final void testServerTiming()
+    {
+        final RequestMetrics metrics = new RequestMetrics();
+        assertEquals("", metrics.getServerTiming());
+        metrics.add("queries", 2);
+        metrics.add("queries", 1);
+        metrics.addTime("traversalTime", System.nanoTime());
+        final String header = metrics.getServerTiming();
+        assertTrue(header, header.matches("traversalTime;dur=\\d+\\.\\d, queries;desc=\"3\""));
+    }
+
+    @Test
+    public final void testValues()
+    {
+        final RequestMetrics metrics = new RequestMetrics();
+        metrics.add("nodes", 5);
+        metrics.addTime("storeTime", System.nanoTime() - 3000000L);
+        final Map<String, Long> values = metrics.getValues();
+        assertEquals(Long.valueOf(5), values.get("nodes"));
+        assertTrue(values.get("storeTime") >= 3);
+    }
+}
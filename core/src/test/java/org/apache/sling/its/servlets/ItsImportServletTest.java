@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.sling.its.utils.HashUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Test class for ItsImportServlet.
+ */
+public class ItsImportServletTest
+{
+    /** The document the elements of a test are created in. */
+    private Document document;
+
+    @Before
+    public final void setUp() throws Exception
+    {
+        this.document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+    }
+
+    @Test
+    public final void testIsStreamed()
+    {
+        assertTrue(ItsImportServlet.isStreamed(true, "stream", null, null));
+        assertTrue(ItsImportServlet.isStreamed(true, "stream", "merge", "default"));
+        assertFalse(ItsImportServlet.isStreamed(false, "stream", null, null));
+        assertFalse(ItsImportServlet.isStreamed(true, null, null, null));
+        assertFalse(ItsImportServlet.isStreamed(true, "stream", "staged", null));
+        assertFalse(ItsImportServlet.isStreamed(true, "stream", null, "compact"));
+    }
+
+    @Test
+    public final void testGetRenderedId()
+    {
+        final Element element = this.document.createElement("p");
+        assertNull(ItsImportServlet.getRenderedId(element));
+        element.setAttribute("xml:id", "x1");
+        assertEquals("x1", ItsImportServlet.getRenderedId(element));
+        element.setAttribute("id", "i1");
+        assertEquals("i1", ItsImportServlet.getRenderedId(element));
+        element.setAttribute("data-sling-its-id", "h1");
+        assertEquals("h1", ItsImportServlet.getRenderedId(element));
+        element.setAttribute("sling-its:id", "s1");
+        assertEquals("s1", ItsImportServlet.getRenderedId(element));
+    }
+
+    @Test
+    public final void testGetTexts()
+    {
+        final Element element = this.document.createElement("p");
+        assertEquals(Collections.emptyList(), ItsImportServlet.getTexts(element));
+        element.appendChild(this.document.createTextNode("\n  "));
+        element.appendChild(this.document.createElement("b")).appendChild(
+            this.document.createTextNode("bold"));
+        element.appendChild(this.document.createTextNode("one "));
+        element.appendChild(this.document.createElement("br"));
+        element.appendChild(this.document.createTextNode(" two"));
+        element.appendChild(this.document.createTextNode(" "));
+        // the texts of the child elements belong to the children.
+        assertEquals(Arrays.asList("one ", " two"), ItsImportServlet.getTexts(element));
+    }
+
+    @Test
+    public final void testUpdateDigest() throws IOException
+    {
+        final String digest = digest("doc.html", "<p>A</p>");
+        assertEquals(digest, digest("doc.html", "<p>A</p>"));
+        assertNotEquals(digest, digest("other.html", "<p>A</p>"));
+        assertNotEquals(digest, digest("doc.html", "<p>B</p>"));
+        assertNotEquals(digest, digest(null, "<p>A</p>"));
+        assertEquals(digest(null, "<p>A</p>"), digest("", "<p>A</p>"));
+    }
+
+    /**
+     * @param fileName
+     *         the name of the uploaded file
+     * @param content
+     *         the content of the uploaded file
+     * @return the content digest of an upload of the file
+     * @throws IOException
+     *         if the content could not be read
+     */
+    private static String digest(final String fileName, final String content)
+        throws IOException
+    {
+        final MessageDigest digest = HashUtils.newDigest();
+        final byte[] bytes = content.getBytes("UTF-8");
+        ItsImportServlet.updateDigest(digest, fileName, bytes.length,
+            new ByteArrayInputStream(bytes));
+        return HashUtils.toHex(digest);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Test class for ItsQueryServlet.
+ */
+public class ItsQueryServletTest
+{
+    @Test
+    public final void testIsInDocument()
+    {
+        final Set<String> documents = new HashSet<String>(Arrays.asList("/content/doc",
+            "/content/other/doc"));
+        assertTrue(ItsQueryServlet.isInDocument("/content/doc", documents));
+        assertTrue(ItsQueryServlet.isInDocument("/content/doc/html/body/p(1)", documents));
+        assertTrue(ItsQueryServlet.isInDocument("/content/other/doc/p", documents));
+        assertFalse(ItsQueryServlet.isInDocument("/content", documents));
+        assertFalse(ItsQueryServlet.isInDocument("/content/doc2/p", documents));
+        assertFalse(ItsQueryServlet.isInDocument("/content/other/p", documents));
+    }
+
+    @Test
+    public final void testEscape()
+    {
+        assertEquals("no", ItsQueryServlet.escape("no"));
+        assertEquals("it''s ''quoted''", ItsQueryServlet.escape("it's 'quoted'"));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Test class for ItsServlet.
+ */
+public class ItsServletTest
+{
+    /** A rendered document with mixed content and an empty element. */
+    private Document document;
+
+    @Before
+    public final void setUp() throws Exception
+    {
+        this.document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+        final Element root = this.document.createElement("doc");
+        root.setAttribute("xmlns:its", "http://www.w3.org/2005/11/its");
+        root.setAttribute("its:version", "2.0");
+        this.document.appendChild(root);
+        final Element par = this.document.createElement("p");
+        par.setAttribute("its:translate", "no");
+        par.appendChild(this.document.createTextNode("A "));
+        par.appendChild(this.document.createElement("b")).appendChild(
+            this.document.createTextNode("b"));
+        root.appendChild(par);
+        root.appendChild(this.document.createElement("br"));
+        root.appendChild(this.document.createElement("div")).appendChild(
+            this.document.createElement("span")).appendChild(
+            this.document.createTextNode("c & d"));
+    }
+
+    @Test
+    public final void testSerializeMatchesBaseline() throws Exception
+    {
+        assertEquals(transform(this.document, "yes"), serialize(this.document, false));
+    }
+
+    @Test
+    public final void testSerializeCompact() throws Exception
+    {
+        final String compact = serialize(this.document, true);
+        assertEquals(transform(this.document, "no"), compact);
+        assertEquals("<doc xmlns:its=\"http://www.w3.org/2005/11/its\" its:version=\"2.0\">"
+            + "<p its:translate=\"no\">A <b>b</b></p><br/><div><span>c &amp; d</span></div>"
+            + "</doc>", compact);
+    }
+
+    @Test
+    public final void testSerializeDeep() throws Exception
+    {
+        final Document deep = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+        Node parent = deep;
+        for (int i = 0; i <= ItsServlet.TRANSFORM_MAX_DEPTH; i++)
+        {
+            parent = parent.appendChild(deep.createElement("e"));
+        }
+        parent.appendChild(deep.createTextNode("x"));
+        final String compact = serialize(deep, true);
+        assertTrue(compact.startsWith("<e><e>"));
+        assertTrue(compact.endsWith("<e>x</e></e>"));
+    }
+
+    @Test
+    public final void testHasChangedAncestor()
+    {
+        final Set<String> changed = new HashSet<String>(Arrays.asList("/doc/body/p(1)",
+            "/doc/body/p(1)/b", "/content"));
+        assertTrue(ItsServlet.hasChangedAncestor("/doc/body/p(1)/b", "/doc", changed));
+        assertTrue(ItsServlet.hasChangedAncestor("/doc/body/p(1)/b/i", "/doc", changed));
+        assertFalse(ItsServlet.hasChangedAncestor("/doc/body/p(1)", "/doc", changed));
+        assertFalse(ItsServlet.hasChangedAncestor("/doc/body/p(2)/b", "/doc", changed));
+        // the ancestors above the root are not part of the delta.
+        assertFalse(ItsServlet.hasChangedAncestor("/content/doc/p", "/content/doc", changed));
+    }
+
+    /**
+     * Write a document with ItsServlet.serialize.
+     *
+     * @param doc
+     *         the document
+     * @param isCompact
+     *         true to write without indentation
+     * @return the written document
+     * @throws Exception
+     *         if the document could not be written
+     */
+    private static String serialize(final Document doc, final boolean isCompact)
+        throws Exception
+    {
+        final StringWriter out = new StringWriter();
+        ItsServlet.serialize(doc, out, isCompact);
+        return out.toString();
+    }
+
+    /**
+     * Write a document the way the servlet wrote every document before the
+     * compact mode was added.
+     *
+     * @param doc
+     *         the document
+     * @param indent
+     *         the indent output property
+     * @return the written document
+     * @throws Exception
+     *         if the document could not be transformed
+     */
+    private static String transform(final Document doc, final String indent)
+        throws Exception
+    {
+        final Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+        transformer.setOutputProperty(OutputKeys.INDENT, indent);
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        final StringWriter out = new StringWriter();
+        transformer.transform(new DOMSource(doc), new StreamResult(out));
+        return out.toString();
+    }
+}
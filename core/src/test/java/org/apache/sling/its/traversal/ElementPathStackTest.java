@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.traversal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Test class for ElementPathStack.
+ */
+public class ElementPathStackTest
+{
+    private static final int DEPTH = 12000;
+
+    @Test
+    public final void testChildPaths()
+    {
+        final ElementPathStack<String> stack = new ElementPathStack<String>("/doc", "doc",
+            DEPTH);
+        stack.push("html", "html");
+        assertEquals("body(1)", stack.getChildName("body"));
+        stack.push("body(1)", "body");
+        assertEquals("span(1)", stack.getChildName("span"));
+        assertEquals("span(2)", stack.getChildName("span"));
+        assertEquals("p(1)", stack.getChildName("p"));
+        assertEquals("/doc/html/body(1)", stack.getPath());
+        stack.pop();
+        assertEquals("html", stack.getValue());
+        assertEquals("/doc/html", stack.getPath());
+        assertEquals("body(2)", stack.getChildName("body"));
+    }
+
+    @Test
+    public final void testPushSame()
+    {
+        final ElementPathStack<String> stack = new ElementPathStack<String>("/doc", "doc",
+            DEPTH);
+        assertEquals("p(1)", stack.getChildName("p"));
+        stack.pushSame();
+        assertEquals("p(2)", stack.getChildName("p"));
+        assertEquals("doc", stack.getValue());
+        assertEquals("/doc", stack.getPath());
+        stack.pop();
+        assertEquals("p(3)", stack.getChildName("p"));
+        stack.pop();
+        assertEquals("/doc", stack.getPath());
+        assertEquals(0, stack.getDepth());
+    }
+
+    @Test
+    public final void testDeepNesting()
+    {
+        final ElementPathStack<Integer> stack = new ElementPathStack<Integer>("/doc", 0,
+            DEPTH);
+        for (int i = 1; i <= DEPTH; i++)
+        {
+            stack.push(stack.getChildName("div"), i);
+        }
+        assertEquals(DEPTH, stack.getDepth());
+        assertEquals(Integer.valueOf(DEPTH), stack.getValue());
+        assertEquals(DEPTH * "/div(1)".length() + "/doc".length(), stack.getPath().length());
+        for (int i = DEPTH; i > 1; i--)
+        {
+            stack.pop();
+        }
+        assertEquals("/doc/div(1)", stack.getPath());
+        stack.pop();
+        assertEquals("div(2)", stack.getChildName("div"));
+    }
+
+    @Test
+    public final void testDepthLimit()
+    {
+        final ElementPathStack<Integer> stack = new ElementPathStack<Integer>("/doc", 0,
+            10000);
+        try
+        {
+            for (int i = 1; i <= DEPTH; i++)
+            {
+                stack.push(stack.getChildName("div"), i);
+            }
+            fail("The depth limit was not enforced.");
+        }
+        catch (final DepthLimitExceededException e)
+        {
+            assertEquals(10000, stack.getDepth());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.traversal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Test class for HtmlStreamParser.
+ */
+public class HtmlStreamParserTest
+{
+    private static final String HTML = "<!DOCTYPE html><html sling-resourceType=\"foo\">"
+        + "<head><script type=\"application/its+xml\"><its:rules version=\"2.0\""
+        + " xmlns:its=\"http://www.w3.org/2005/11/its\">"
+        + "<its:translateRule selector=\"//h:code\" translate=\"no\""
+        + " xmlns:h=\"http://www.w3.org/1999/xhtml\"/></its:rules></script></head>"
+        + "<body><p its-loc-note=\"A note\">Hello <code>x</code></p>"
+        + "<p translate=\"no\">Keep <b>this</b></p></body></html>";
+
+    private File file;
+
+    @Before
+    public final void setUp() throws IOException
+    {
+        this.file = File.createTempFile("stream", ".html");
+        FileUtils.writeStringToFile(this.file, HTML, "UTF-8");
+    }
+
+    @After
+    public final void tearDown()
+    {
+        this.file.delete();
+    }
+
+    @Test
+    public final void testGetResourceType() throws IOException
+    {
+        assertEquals("foo", HtmlStreamParser.getResourceType(this.file));
+    }
+
+    @Test
+    public final void testAnnotations() throws IOException, SAXException
+    {
+        final List<String> events = new ArrayList<String>();
+        final boolean[] inBody = new boolean[1];
+        HtmlStreamParser.parse(this.file, Collections.<Document> emptyList(),
+            new HtmlStreamParser.Listener()
+            {
+                public void startElement(final HtmlStreamParser.StreamElement element)
+                {
+                    inBody[0] |= "body".equals(element.getLocalName());
+                    if (inBody[0])
+                    {
+                        events.add(element.getLocalName() + "=" + element.isTranslate()
+                            + (element.getLocNote() != null ? "/" + element.getLocNote() : ""));
+                    }
+                }
+
+                public void text(final String text)
+                {
+                    if (inBody[0])
+                    {
+                        events.add(text.trim());
+                    }
+                }
+
+                public void endElement()
+                {
+                    // not recorded.
+                }
+            });
+        assertEquals("[body=true, p=true/A note, Hello, code=false/A note, x, p=false, Keep,"
+            + " b=false, this]", events.toString());
+    }
+}
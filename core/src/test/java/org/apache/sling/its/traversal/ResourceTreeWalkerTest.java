@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.traversal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.SyntheticResource;
+import org.junit.Test;
+
+/**
+ * Test class for ResourceTreeWalker.
+ */
+public class ResourceTreeWalkerTest
+{
+    private static final int DEPTH = 50000;
+
+    @Test
+    public final void testWalkDeepTree()
+    {
+        final DepthVisitor visitor = new DepthVisitor();
+        new ResourceTreeWalker(DEPTH).walk(new ChainResource(1, DEPTH), 0, visitor);
+        assertEquals(DEPTH, visitor.entered);
+        assertEquals(DEPTH, visitor.left);
+        assertEquals(DEPTH, visitor.maxDepth);
+    }
+
+    @Test
+    public final void testDepthLimit()
+    {
+        final DepthVisitor visitor = new DepthVisitor();
+        try
+        {
+            new ResourceTreeWalker(10000).walk(new ChainResource(1, DEPTH), 0, visitor);
+            fail("The depth limit was not enforced.");
+        }
+        catch (final DepthLimitExceededException e)
+        {
+            assertEquals(10000, e.getMaxDepth());
+            assertEquals(10000, visitor.entered);
+        }
+    }
+
+    @Test
+    public final void testSkipChildren()
+    {
+        final DepthVisitor visitor = new DepthVisitor();
+        visitor.skipFrom = 3;
+        new ResourceTreeWalker(DEPTH).walk(new ChainResource(1, DEPTH), 0, visitor);
+        assertEquals(3, visitor.entered);
+        assertEquals(2, visitor.left);
+    }
+
+    /**
+     * Records the depth of the entered resources.
+     */
+    private static final class DepthVisitor implements
+        ResourceTreeWalker.Visitor<Integer, RuntimeException>
+    {
+        private int entered;
+
+        private int left;
+
+        private int maxDepth;
+
+        private int skipFrom = Integer.MAX_VALUE;
+
+        public Integer enter(final Resource resource, final Integer parent)
+        {
+            this.entered++;
+            final int depth = parent + 1;
+            this.maxDepth = Math.max(this.maxDepth, depth);
+            return (depth < this.skipFrom ? depth : null);
+        }
+
+        public Iterator<Resource> getChildren(final Resource resource, final Integer depth)
+        {
+            return resource.listChildren();
+        }
+
+        public void leave(final Resource resource, final Integer depth)
+        {
+            this.left++;
+        }
+    }
+
+    /**
+     * A resource with a single child down to the given depth.
+     */
+    private static final class ChainResource extends SyntheticResource
+    {
+        private final int level;
+
+        private final int depth;
+
+        private ChainResource(final int level, final int depth)
+        {
+            super(null, "/chain/" + level, "test/chain");
+            this.level = level;
+            this.depth = depth;
+        }
+
+        @Override
+        public Iterator<Resource> listChildren()
+        {
+            if (this.level >= this.depth)
+            {
+                return Collections.<Resource> emptyList().iterator();
+            }
+            return Collections.<Resource> singletonList(
+                new ChainResource(this.level + 1, this.depth)).iterator();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.traversal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test class for WritePipeline.
+ */
+public class WritePipelineTest
+{
+    @Test
+    public final void testOrderAndBatches() throws Exception
+    {
+        final List<String> log = new ArrayList<String>();
+        final WritePipeline<List<String>, IOException> pipeline = newPipeline(log, 2, 3);
+        pipeline.start();
+        for (int i = 1; i <= 7; i++)
+        {
+            pipeline.submit(add(String.valueOf(i)));
+        }
+        pipeline.finish();
+        assertEquals("[1, 2, 3, commit, 4, 5, 6, commit, 7, commit]", log.toString());
+    }
+
+    @Test
+    public final void testFailure() throws Exception
+    {
+        final List<String> log = new ArrayList<String>();
+        final WritePipeline<List<String>, IOException> pipeline = newPipeline(log, 1, 10);
+        pipeline.start();
+        try
+        {
+            pipeline.submit(add("1"));
+            pipeline.submit(new WritePipeline.Operation<List<String>, IOException>()
+            {
+                public void apply(final List<String> target) throws IOException
+                {
+                    throw new IOException("write failed");
+                }
+            });
+            // either this submit or finish throws the failure.
+            pipeline.submit(add("2"));
+            pipeline.finish();
+            fail("The failure was not thrown.");
+        }
+        catch (final IOException e)
+        {
+            assertEquals("write failed", e.getMessage());
+        }
+        pipeline.close();
+        assertEquals("[1, discard]", log.toString());
+    }
+
+    @Test
+    public final void testClose() throws Exception
+    {
+        final List<String> log = new ArrayList<String>();
+        final WritePipeline<List<String>, IOException> pipeline = newPipeline(log, 4, 10);
+        pipeline.start();
+        pipeline.submit(add("1"));
+        pipeline.submit(add("2"));
+        pipeline.close();
+        // the operations the writer did not reach yet are dropped.
+        assertFalse(log.contains("commit"));
+        assertEquals("discard", log.get(log.size() - 1));
+    }
+
+    private static WritePipeline<List<String>, IOException> newPipeline(
+        final List<String> log, final int queueSize, final int batchSize)
+    {
+        return new WritePipeline<List<String>, IOException>("test-writer", log, queueSize,
+            batchSize, add("commit"), add("discard"));
+    }
+
+    private static WritePipeline.Operation<List<String>, IOException> add(final String entry)
+    {
+        return new WritePipeline.Operation<List<String>, IOException>()
+        {
+            public void apply(final List<String> target)
+            {
+                target.add(entry);
+            }
+        };
+    }
+}
@@ -20,9 +20,13 @@ package org.apache.sling.its.utils;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.StringWriter;
+
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
@@ -30,12 +34,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * Test class for DocumentUtils.
  */
 public class DocumentUtilsTest
 {
+    private static final int DEPTH = 12000;
+
     private Document document1;
 
     private Document document2;
@@ -75,4 +82,58 @@ public class DocumentUtilsTest
         assertEquals(secondDocumentResourceType, "bar");
         assertEquals(thirdDocumentResourceType, StringUtils.EMPTY);
     }
+
+    @Test
+    public final void testDeepDocument() throws XMLStreamException
+    {
+        final Element root = this.document3.getDocumentElement();
+        Element element = root;
+        for (int i = 0; i < DEPTH; i++)
+        {
+            final Element child = this.document3.createElement("div");
+            element.appendChild(child);
+            element = child;
+        }
+        element.appendChild(this.document3.createTextNode("deep"));
+        assertEquals(DEPTH + 1, DocumentUtils.getDepth(root));
+
+        final Node copy = DocumentUtils.importTree(this.document1, root);
+        assertEquals(this.document1, copy.getOwnerDocument());
+        assertEquals(DEPTH + 1, DocumentUtils.getDepth(copy));
+
+        final String expected = "<doc>" + StringUtils.repeat("<div>", DEPTH) + "deep"
+            + StringUtils.repeat("</div>", DEPTH) + "</doc>";
+        StringWriter out = new StringWriter();
+        DocumentUtils.write(root, XMLOutputFactory.newInstance().createXMLStreamWriter(out));
+        assertEquals(expected, out.toString());
+        out = new StringWriter();
+        DocumentUtils.write(copy, XMLOutputFactory.newInstance().createXMLStreamWriter(out));
+        assertEquals(expected, out.toString());
+    }
+
+    @Test
+    public final void testWrite() throws XMLStreamException
+    {
+        final StringWriter out = new StringWriter();
+        DocumentUtils.write(this.document1, XMLOutputFactory.newInstance()
+            .createXMLStreamWriter(out));
+        assertEquals("<doc sling:resourceType=\"foo\"/>", out.toString());
+    }
+
+    @Test
+    public final void testWriteIndented() throws XMLStreamException
+    {
+        final Element root = this.document3.getDocumentElement();
+        final Element par = this.document3.createElement("p");
+        par.appendChild(this.document3.createTextNode("A "));
+        par.appendChild(this.document3.createElement("b")).appendChild(
+            this.document3.createTextNode("b"));
+        root.appendChild(this.document3.createTextNode("\n  "));
+        root.appendChild(par);
+        root.appendChild(this.document3.createElement("br"));
+        final StringWriter out = new StringWriter();
+        DocumentUtils.write(this.document3, XMLOutputFactory.newInstance()
+            .createXMLStreamWriter(out), 4);
+        assertEquals("<doc>\n    <p>A <b>b</b></p>\n    <br/>\n</doc>", out.toString());
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+/**
+ * Test class for HashUtils.
+ */
+public class HashUtilsTest
+{
+    @Test
+    public final void testSha1Hex()
+    {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", HashUtils.sha1Hex("abc"));
+    }
+
+    @Test
+    public final void testUpdateStream() throws IOException
+    {
+        final byte[] content = new byte[20000];
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i] = (byte) i;
+        }
+        final MessageDigest expected = HashUtils.newDigest();
+        expected.update(content);
+        final MessageDigest streamed = HashUtils.newDigest();
+        HashUtils.update(streamed, new ByteArrayInputStream(content));
+        assertEquals(HashUtils.toHex(expected), HashUtils.toHex(streamed));
+    }
+}
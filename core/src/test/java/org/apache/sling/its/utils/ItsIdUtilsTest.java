@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+/**
+ * Test class for ItsIdUtils.
+ */
+public class ItsIdUtilsTest
+{
+    @Test
+    public final void testGetUniqueId()
+    {
+        assertEquals("content_doc_myMetaDoc_body.1_par.2",
+            ItsIdUtils.getUniqueId("/content/doc/myMetaDoc/body(1)/par(2)"));
+        assertEquals("content", ItsIdUtils.getUniqueId("/content"));
+        assertEquals("my._doc_a..b.1", ItsIdUtils.getUniqueId("/my_doc/a.b(1)"));
+    }
+
+    @Test
+    public final void testGetUniqueIdCollisions()
+    {
+        assertNotEquals(ItsIdUtils.getUniqueId("/content/p1(1)"),
+            ItsIdUtils.getUniqueId("/content/p(11)"));
+        assertNotEquals(ItsIdUtils.getUniqueId("/content/a_b(1)"),
+            ItsIdUtils.getUniqueId("/content/a/b(1)"));
+        assertNotEquals(ItsIdUtils.getUniqueId("/content/a.1(1)"),
+            ItsIdUtils.getUniqueId("/content/a(1)/1(1)"));
+    }
+
+    @Test
+    public final void testGetLegacyId()
+    {
+        assertEquals("content_doc_myMetaDoc_body1_par2",
+            ItsIdUtils.getLegacyId("/content/doc/myMetaDoc/body(1)/par(2)"));
+        assertEquals("content", ItsIdUtils.getLegacyId("/content"));
+    }
+
+    @Test
+    public final void testGetChildId()
+    {
+        assertEquals(ItsIdUtils.getUniqueId("/content/doc/body(1)"),
+            ItsIdUtils.getChildId(ItsIdUtils.getUniqueId("/content/doc"), "body(1)"));
+        assertEquals("content", ItsIdUtils.getChildId("", "content"));
+    }
+
+    @Test
+    public final void testEscapeId()
+    {
+        assertEquals("content_doc_par1", ItsIdUtils.escapeId("content_doc_par1"));
+        assertEquals("a%3Ab%2Fc%20d", ItsIdUtils.escapeId("a:b/c d"));
+    }
+
+    @Test
+    public final void testGetIndexPath()
+    {
+        assertEquals("/var/its/index/content/doc/sling-its-ids",
+            ItsIdUtils.getIndexPath("/content/doc"));
+    }
+}
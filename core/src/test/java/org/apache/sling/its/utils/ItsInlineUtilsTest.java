@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Test class for ItsInlineUtils.
+ */
+public class ItsInlineUtilsTest
+{
+    private static final String PARAGRAPH = "<p>Read <b>the <i>new</i></b> "
+        + "<a href=\"/terms?a=1&amp;b=&quot;2&quot;\" title=\"Terms\">terms</a>.<br/>Thanks</p>";
+
+    @Test
+    public final void testRoundTrip() throws Exception
+    {
+        final Element paragraph = parse(PARAGRAPH);
+        final ItsInlineUtils.Segment segment = ItsInlineUtils.encode(paragraph, null);
+        assertEquals("Read the new terms.Thanks", ItsInlineUtils.getPlainText(segment
+            .getText()));
+        assertArrayEquals(new String[] { "b", "i",
+            "a href=\"/terms?a=1&amp;b=&quot;2&quot;\" title=\"Terms\"", "br" },
+            segment.getCodes());
+
+        final Element copy = parse("<p/>");
+        ItsInlineUtils.decode(copy, segment.getText(), segment.getCodes());
+        assertEquals(write(paragraph), write(copy));
+    }
+
+    @Test
+    public final void testInlineElementsOnly() throws Exception
+    {
+        final Element paragraph = parse(PARAGRAPH);
+        final Set<Node> inline = new HashSet<Node>();
+        inline.add(paragraph.getElementsByTagName("b").item(0));
+        inline.add(paragraph.getElementsByTagName("i").item(0));
+        inline.add(paragraph.getElementsByTagName("a").item(0));
+        assertNull(ItsInlineUtils.encode(paragraph, inline));
+
+        inline.add(paragraph.getElementsByTagName("br").item(0));
+        assertEquals(4, ItsInlineUtils.encode(paragraph, inline).getCodes().length);
+    }
+
+    @Test
+    public final void testElementsWithIds() throws Exception
+    {
+        assertNull(ItsInlineUtils.encode(parse("<p>A <span id=\"s1\">b</span></p>"), null));
+    }
+
+    private static Element parse(final String xml) throws ParserConfigurationException,
+        SAXException, IOException
+    {
+        final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+            new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        return doc.getDocumentElement();
+    }
+
+    private static String write(final Element element) throws XMLStreamException
+    {
+        final StringWriter out = new StringWriter();
+        DocumentUtils.write(element, XMLOutputFactory.newInstance().createXMLStreamWriter(out));
+        return out.toString();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test class for ItsStatsUtils.
+ */
+public class ItsStatsUtilsTest
+{
+    @Test
+    public final void testCountWords()
+    {
+        assertEquals(0, ItsStatsUtils.countWords("  "));
+        assertEquals(4, ItsStatsUtils.countWords("Hello, world! It's 2013."));
+        assertEquals(2, ItsStatsUtils.countWords("\n  two\twords "));
+    }
+
+    @Test
+    public final void testCountCharacters()
+    {
+        assertEquals(0, ItsStatsUtils.countCharacters(null));
+        assertEquals(9, ItsStatsUtils.countCharacters(" Hello, you "));
+    }
+
+    @Test
+    public final void testRollUp()
+    {
+        final Map<String, long[]> stats = new HashMap<String, long[]>();
+        stats.put("/doc/html/body(1)/p(1)", ItsStatsUtils.count("one two", true));
+        stats.put("/doc/html/body(1)/p(2)/code(1)", ItsStatsUtils.count("x", false));
+        ItsStatsUtils.rollUp(stats, "/doc");
+        assertArrayEquals(new long[] { 2, 6, 1, 1, 2 }, stats.get("/doc"));
+        assertArrayEquals(new long[] { 0, 0, 1, 1, 1 }, stats.get("/doc/html/body(1)/p(2)"));
+        assertArrayEquals(new long[] { 2, 6, 0, 0, 1 }, stats.get("/doc/html/body(1)/p(1)"));
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+/**
+ * Test class for ItsTextUtils.
+ */
+public class ItsTextUtilsTest
+{
+    @Test
+    public final void testGetStorePath()
+    {
+        final String hash = HashUtils.sha1Hex("Copyright");
+        assertEquals("/var/its/text/" + hash.substring(0, 2) + "/" + hash,
+            ItsTextUtils.getStorePath(hash));
+    }
+
+    @Test
+    public final void testCacheIsBounded()
+    {
+        final String large = StringUtils.repeat("x", ItsTextUtils.CACHE_CHARS / 2);
+        ItsTextUtils.cache("first", large);
+        ItsTextUtils.cache("second", large);
+        assertEquals(large, ItsTextUtils.getCached("first"));
+
+        // first was used last, so second is evicted.
+        ItsTextUtils.cache("third", large);
+        assertEquals(large, ItsTextUtils.getCached("first"));
+        assertNull(ItsTextUtils.getCached("second"));
+        assertEquals(large, ItsTextUtils.getCached("third"));
+
+        ItsTextUtils.cache("huge", large + large + "x");
+        assertNull(ItsTextUtils.getCached("huge"));
+    }
+}
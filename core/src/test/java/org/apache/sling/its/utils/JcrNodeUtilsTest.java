@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.its.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for JcrNodeUtils.
+ */
+public class JcrNodeUtilsTest
+{
+    @Test
+    public final void testIsAbsolutePath()
+    {
+        assertTrue(JcrNodeUtils.isAbsolutePath("/"));
+        assertTrue(JcrNodeUtils.isAbsolutePath("/content"));
+        assertTrue(JcrNodeUtils.isAbsolutePath("/content/its/doc.html"));
+        assertTrue(JcrNodeUtils.isAbsolutePath("/content/p(1)"));
+        assertFalse(JcrNodeUtils.isAbsolutePath(null));
+        assertFalse(JcrNodeUtils.isAbsolutePath(""));
+        assertFalse(JcrNodeUtils.isAbsolutePath("content"));
+        assertFalse(JcrNodeUtils.isAbsolutePath("/content/"));
+        assertFalse(JcrNodeUtils.isAbsolutePath("//content"));
+        assertFalse(JcrNodeUtils.isAbsolutePath("/content/./its"));
+        assertFalse(JcrNodeUtils.isAbsolutePath("/content/../var"));
+        assertFalse(JcrNodeUtils.isAbsolutePath("/content/ /its"));
+        assertFalse(JcrNodeUtils.isAbsolutePath("/content]) OR ISDESCENDANTNODE([/"));
+        assertFalse(JcrNodeUtils.isAbsolutePath("/content/*"));
+        assertFalse(JcrNodeUtils.isAbsolutePath("/content|/var"));
+    }
+}